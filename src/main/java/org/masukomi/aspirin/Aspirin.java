@@ -1,16 +1,22 @@
 package org.masukomi.aspirin;
 
+import java.io.File;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.listener.AspirinListener;
+import org.masukomi.aspirin.core.listener.BatchAspirinListener;
 import org.masukomi.aspirin.core.store.mail.FileMailStore;
 import org.masukomi.aspirin.core.store.mail.MailStore;
 import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.queue.DeliveryProgress;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
 
@@ -39,8 +45,9 @@ import org.masukomi.aspirin.core.store.queue.QueueStore;
  * object.</p>
  * 
  * <p><b>Hint:</b> If you need a Quality-of-Service mail sending, use
- * {@link FileMailStore} and additional <b>SqliteQueueStore</b>, they could 
- * preserve emails in queue between runs or on Java failure.</p>
+ * {@link FileMailStore} and JdbcQueueStore with an embedded database (or 
+ * additional <b>SqliteQueueStore</b>), they could preserve emails in queue 
+ * between runs or on Java failure.</p>
  * 
  * @author Laszlo Solova
  *
@@ -80,6 +87,48 @@ public class Aspirin {
 		AspirinInternal.add(msg, expiry);
 	}
 	
+	/**
+	 * Add MimeMessage to delivery with an external list of recipients, for 
+	 * example a newsletter with a huge recipient list. The recipients are 
+	 * queued while they are read from the iterator, so the whole list is not 
+	 * held in memory and it is not written into the message headers. The 
+	 * recipients of the message headers are not used.
+	 * @param msg MimeMessage to deliver.
+	 * @param recipients Recipients of the message.
+	 * @throws MessagingException If delivery add failed. The recipients 
+	 * queued before the failure are kept.
+	 */
+	public static void add(MimeMessage msg, Iterator<InternetAddress> recipients) throws MessagingException {
+		AspirinInternal.add(msg, recipients);
+	}
+	
+	/**
+	 * Add MimeMessage to delivery with the recipients listed in an UTF-8 text 
+	 * file, one address per line. Empty lines and lines starting with # are 
+	 * skipped, invalid addresses are skipped with a warning. The file is read 
+	 * while the recipients are queued, like in 
+	 * {@link #add(MimeMessage, Iterator)}.
+	 * @param msg MimeMessage to deliver.
+	 * @param recipientFile File of recipients.
+	 * @throws MessagingException If delivery add failed or the file could not 
+	 * be read. The recipients queued before the failure are kept.
+	 */
+	public static void add(MimeMessage msg, File recipientFile) throws MessagingException {
+		AspirinInternal.add(msg, recipientFile);
+	}
+	
+	/**
+	 * Add more MimeMessages to delivery at once. It is faster than adding 
+	 * them one by one: the messages are parsed parallel, and the stores are 
+	 * locked and written only once for the whole collection.
+	 * @param msgs MimeMessages to deliver.
+	 * @throws MessagingException If a message could not be parsed or stored, 
+	 * or the queueing failed, then none of the messages is added.
+	 */
+	public static void addAll(Collection<MimeMessage> msgs) throws MessagingException {
+		AspirinInternal.addAll(msgs);
+	}
+	
 	/**
 	 * Add mail delivery status listener.
 	 * @param listener AspirinListener object
@@ -88,6 +137,16 @@ public class Aspirin {
 		AspirinInternal.addListener(listener);
 	}
 	
+	/**
+	 * Add mail delivery status listener, which gets the results in batches 
+	 * of aspirin.listener.batch.size results or after 
+	 * aspirin.listener.batch.timeout milliseconds.
+	 * @param listener BatchAspirinListener object
+	 */
+	public static void addListener(BatchAspirinListener listener) {
+		AspirinInternal.addListener(listener);
+	}
+	
 	/**
 	 * It creates a new MimeMessage with standard Aspirin ID header.
 	 * 
@@ -119,6 +178,19 @@ public class Aspirin {
 		return AspirinInternal.getConfiguration();
 	}
 	
+	/**
+	 * Get the delivery progress of an email: the count of its pending, sent 
+	 * and failed recipients. The counts are given back in constant time by 
+	 * the default queue stores.
+	 * @param mailid Unique Aspirin ID of the email.
+	 * @return The recipient counts or null, if the email is not in the queue 
+	 * (e.g. it was completed and removed) or the queue store does not count 
+	 * them.
+	 */
+	public static DeliveryProgress getProgress(String mailid) {
+		return AspirinInternal.getProgress(mailid);
+	}
+	
 	/**
 	 * Remove an email from delivery.
 	 * @param mailid Unique Aspirin ID of this email.
@@ -136,6 +208,14 @@ public class Aspirin {
 		AspirinInternal.removeListener(listener);
 	}
 	
+	/**
+	 * Remove batched delivery status listener.
+	 * @param listener BatchAspirinListener
+	 */
+	public static void removeListener(BatchAspirinListener listener) {
+		AspirinInternal.removeListener(listener);
+	}
+	
 	/**
 	 * Call on shutting down your system. All aspirin processes will be 
 	 * shutdown as recommended.
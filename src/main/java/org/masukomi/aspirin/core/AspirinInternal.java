@@ -1,9 +1,12 @@
 package org.masukomi.aspirin.core;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -17,7 +20,9 @@ import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.delivery.DeliveryManager;
 import org.masukomi.aspirin.core.listener.AspirinListener;
+import org.masukomi.aspirin.core.listener.BatchAspirinListener;
 import org.masukomi.aspirin.core.listener.ListenerManager;
+import org.masukomi.aspirin.core.store.queue.DeliveryProgress;
 import org.slf4j.Logger;
 
 /**
@@ -33,6 +38,16 @@ public class AspirinInternal {
 	 * change a current header.
 	 */
 	public static final SimpleDateFormat expiryFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+	/**
+	 * SimpleDateFormat is not thread safe, the headers are parsed and 
+	 * formatted by a copy of the formatter per thread.
+	 */
+	private static final ThreadLocal<SimpleDateFormat> threadExpiryFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return (SimpleDateFormat)expiryFormat.clone();
+		}
+	};
 	
 	/** This session is used to generate new MimeMessage objects. */
 	private static volatile Session defaultSession = null;
@@ -47,6 +62,7 @@ public class AspirinInternal {
 	private static volatile ListenerManager listenerManager = null;
 	/** Delivery and QoS service management. Create on first request. */
 	private static volatile DeliveryManager deliveryManager = new DeliveryManager();
+	private static Object deliveryStartLock = new Object();
 	
 	/**
 	 * You can get configuration object, which could be changed to set up new 
@@ -65,8 +81,7 @@ public class AspirinInternal {
 	 * @throws MessagingException If delivery add failed.
 	 */
 	protected static void add(MimeMessage msg) throws MessagingException {
-		if( !deliveryManager.isAlive() )
-			deliveryManager.start();
+		startDelivery();
 		deliveryManager.add(msg);
 	}
 	
@@ -82,14 +97,80 @@ public class AspirinInternal {
 		add(msg);
 	}
 	
+	/**
+	 * Add MimeMessage to delivery with an external list of recipients. The 
+	 * recipients are queued while they are read from the iterator, the 
+	 * recipients of the message headers are not used.
+	 * @param msg MimeMessage to deliver.
+	 * @param recipients Recipients of the message.
+	 * @throws MessagingException If delivery add failed.
+	 */
+	public static void add(MimeMessage msg, Iterator<InternetAddress> recipients) throws MessagingException {
+		startDelivery();
+		deliveryManager.add(msg, recipients);
+	}
+	
+	/**
+	 * Add MimeMessage to delivery with the recipients listed in an UTF-8 text 
+	 * file, one address per line. The recipients are queued while the file is 
+	 * read, the recipients of the message headers are not used.
+	 * @param msg MimeMessage to deliver.
+	 * @param recipientFile File of recipients.
+	 * @throws MessagingException If delivery add failed or the file could not 
+	 * be read.
+	 */
+	public static void add(MimeMessage msg, File recipientFile) throws MessagingException {
+		startDelivery();
+		deliveryManager.add(msg, recipientFile);
+	}
+	
+	/**
+	 * Add more MimeMessages to delivery at once. The headers and recipients 
+	 * of the messages are parsed parallel, then they are stored together.
+	 * @param msgs MimeMessages to deliver.
+	 * @return The mail ids of the messages in the same order.
+	 * @throws MessagingException If a message could not be parsed or stored, 
+	 * or the queueing failed, then none of the messages is added.
+	 */
+	public static List<String> addAll(Collection<MimeMessage> msgs) throws MessagingException {
+		startDelivery();
+		return deliveryManager.addAll(msgs);
+	}
+	
+	/**
+	 * Start the delivery manager by the first added message. The concurrent 
+	 * adds start it only once.
+	 */
+	private static void startDelivery() {
+		synchronized (deliveryStartLock) {
+			if( !deliveryManager.isAlive() )
+				deliveryManager.start();
+		}
+	}
+	
 	/**
 	 * Add mail delivery status listener.
 	 * @param listener AspirinListener object
 	 */
 	public static void addListener(AspirinListener listener) {
-		if( listenerManager == null )
-			listenerManager = new ListenerManager();
-		listenerManager.add(listener);
+		createListenerManager().add(listener);
+	}
+	
+	/**
+	 * Add mail delivery status listener, which gets the results in batches.
+	 * @param listener BatchAspirinListener object
+	 */
+	public static void addListener(BatchAspirinListener listener) {
+		createListenerManager().add(listener);
+	}
+	
+	/**
+	 * @param mailid Unique Aspirin ID of an email.
+	 * @return The recipient counts of the email or null.
+	 * @see DeliveryManager#getProgress(String)
+	 */
+	public static DeliveryProgress getProgress(String mailid) {
+		return deliveryManager.getProgress(mailid);
 	}
 	
 	/**
@@ -110,6 +191,15 @@ public class AspirinInternal {
 			listenerManager.remove(listener);
 	}
 	
+	/**
+	 * Remove batched delivery status listener.
+	 * @param listener BatchAspirinListener
+	 */
+	public static void removeListener(BatchAspirinListener listener) {
+		if( listenerManager != null )
+			listenerManager.remove(listener);
+	}
+	
 	/**
 	 * It creates a new MimeMessage with standard Aspirin ID header.
 	 * 
@@ -167,7 +257,7 @@ public class AspirinInternal {
 	 * MimeMessage header. Please use HEADER_EXPIRY constant as header name.
 	 */
 	public static String formatExpiry(Date date) {
-		return expiryFormat.format(date);
+		return threadExpiryFormat.get().format(date);
 	}
 
 	/**
@@ -199,7 +289,7 @@ public class AspirinInternal {
 		try {
 			headers = message.getHeader(Aspirin.HEADER_EXPIRY);
 			if( headers != null && 0 < headers.length )
-				return expiryFormat.parse(headers[0]).getTime();
+				return threadExpiryFormat.get().parse(headers[0]).getTime();
 		} catch (Exception e) {
 			getLogger().error("Expiration header could not be get from MimeMessage.", e);
 		}
@@ -217,7 +307,7 @@ public class AspirinInternal {
 	
 	public static void setExpiry(MimeMessage message, long expiry) {
 		try {
-			message.setHeader(Aspirin.HEADER_EXPIRY, expiryFormat.format(new Date(System.currentTimeMillis()+expiry)));
+			message.setHeader(Aspirin.HEADER_EXPIRY, threadExpiryFormat.get().format(new Date(System.currentTimeMillis()+expiry)));
 		} catch (MessagingException e) {
 			getLogger().error("Could not set Expiry of the MimeMessage: "+getMailID(message)+".", e);
 		}
@@ -236,8 +326,16 @@ public class AspirinInternal {
 		return listenerManager;
 	}
 	
+	private static synchronized ListenerManager createListenerManager() {
+		if( listenerManager == null )
+			listenerManager = new ListenerManager();
+		return listenerManager;
+	}
+	
 	public static void shutdown() {
 		deliveryManager.shutdown();
+		if( listenerManager != null )
+			listenerManager.shutdown();
 	}
 
 }
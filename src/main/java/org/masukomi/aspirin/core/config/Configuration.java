@@ -34,6 +34,7 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.ParseException;
 
 import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.delivery.ThreadPoolDeliveryExecutor;
 import org.masukomi.aspirin.core.store.mail.MailStore;
 import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
@@ -81,12 +82,41 @@ import org.slf4j.LoggerFactory;
  *     <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.connection.idle.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of idle SMTP connections kept open per mail server. 
+ *     <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.idle.timeout</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds after an idle SMTP connection is closed. 
+ *     <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.messages.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of messages sent on one SMTP connection before it is 
+ *     closed. If it is 1, then connections are not reused. <i>Change by JMX 
+ *     applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.delivery.debug</td>
  *     <td>Boolean</td>
  *     <td>If true, full SMTP communication will be logged. <i>Change by JMX 
  *     applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *   	<td>aspirin.delivery.executor.class</td>
+ *   	<td>String</td>
+ *   	<td>The class name of the delivery engine. Default class is 
+ *   	ThreadPoolDeliveryExecutor in org.masukomi.aspirin.core.delivery 
+ *   	package, PooledDeliveryExecutor is the previous commons-pool based 
+ *   	engine, VirtualThreadDeliveryExecutor runs every delivery on its own 
+ *   	virtual thread (Java 21+). <i>Change by JMX applied immediately.</i>
+ *   	</td>
+ *   </tr>
+ *   <tr>
  *   	<td>aspirin.delivery.expiry</td>
  *   	<td>Long</td>
  *   	<td>Time of sending expiry in milliseconds. The queue send an email 
@@ -95,17 +125,27 @@ import org.slf4j.LoggerFactory;
  *   	immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.recipients.max</td>
+ *     <td>Integer</td>
+ *     <td>The maximal count of recipients of the same mail in the same 
+ *     domain, which are delivered in one SMTP transaction (multiple RCPT TO 
+ *     commands, the message is sent once). Grouping is used only with queue 
+ *     stores implementing GroupingQueueStore. Value 1 disables grouping. 
+ *     Default value is 50.</td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.delivery.threads.active.max</td>
  *     <td>Integer</td>
- *     <td>Maximum number of active delivery threads in the pool. <i>Change by 
- *     JMX applied immediately.</i></td>
+ *     <td>Maximum number of active delivery threads in the pool. With 
+ *     VirtualThreadDeliveryExecutor it is the maximum number of paralel 
+ *     deliveries. <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
  *     <td>aspirin.delivery.threads.idle.max</td>
  *     <td>Integer</td>
  *     <td>Maximum number of idle delivery threads in the pool (the deilvery 
- *     threads over this limit will be shutdown). <i>Change by JMX applied 
- *     immediately.</i></td>
+ *     threads over this limit will be shutdown). Used only by 
+ *     PooledDeliveryExecutor. <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
  *     <td>aspirin.delivery.timeout</td>
@@ -114,6 +154,54 @@ import org.slf4j.LoggerFactory;
  *     JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.dns.addresses.resolve</td>
+ *     <td>Boolean</td>
+ *     <td>If true, the IP addresses (A and AAAA records) of mail servers are 
+ *     resolved and cached by Aspirin for the TTL of the records, and the 
+ *     connections are opened to these addresses one by one. The host name 
+ *     of the mail server is kept for TLS. If false, the host names are 
+ *     resolved by JavaMail on every connection. Default value is 
+ *     false.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.size</td>
+ *     <td>Integer</td>
+ *     <td>The maximal count of domains, which mail servers are cached. If the 
+ *     cache is full, expired entries are removed first, then other entries 
+ *     are evicted. Value 0 disables caching, but concurrent lookups of the 
+ *     same domain are still shared. Default value is 10000.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.ttl.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal caching time of resolved mail servers in milliseconds. The 
+ *     TTL of DNS records is used, if it is lower. Default value is 3600000 
+ *     (one hour).</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.ttl.min</td>
+ *     <td>Integer</td>
+ *     <td>Minimal caching time of resolved mail servers in milliseconds. The 
+ *     TTL of DNS records is used, if it is higher. Default value is 60000 
+ *     (one minute).</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.ttl.negative</td>
+ *     <td>Integer</td>
+ *     <td>Caching time in milliseconds of domains, which have no mail server 
+ *     (not existing domain or empty answer). Temporary lookup failures are 
+ *     not cached. Value 0 disables negative caching. Default value is 60000 
+ *     (one minute).</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.prefetch.threads</td>
+ *     <td>Integer</td>
+ *     <td>Count of background threads, which resolve the mail servers of 
+ *     recipient domains when a mail is added, so the first delivery attempt 
+ *     finds them in the MX cache. Prefetching is not used, if the MX cache is 
+ *     disabled. Value 0 disables prefetching. Default value is 2.</td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.encoding</td>
  *     <td>String</td>
  *     <td>The MIME encoding. <i>Change by JMX applied immediately.</i></td>
@@ -124,6 +212,49 @@ import org.slf4j.LoggerFactory;
  *     <td>The hostname. <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.listener.batch.size</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of delivery results given to a BatchAspirinListener 
+ *     in one call. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.batch.timeout</td>
+ *     <td>Integer</td>
+ *     <td>Maximal time in milliseconds a delivery result waits in an unfilled 
+ *     batch for a BatchAspirinListener. <i>Change by JMX applied 
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.dispatcher.threads</td>
+ *     <td>Integer</td>
+ *     <td>Count of threads calling the AspirinListeners. The events of a mail 
+ *     are dispatched by the same thread in order. If it is 0, the listeners 
+ *     are called synchronously by the delivery threads. <i>Read when the 
+ *     first event is published.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.overflow</td>
+ *     <td>String</td>
+ *     <td>Policy applied when the event buffer of a listener dispatcher 
+ *     thread is full. <i>block</i>: the delivery thread waits for free space, 
+ *     <i>drop</i>: the event is dropped, <i>spill</i>: the event is written 
+ *     to a temporary file and dispatched later in order. <i>Change by JMX 
+ *     applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.queue.size</td>
+ *     <td>Integer</td>
+ *     <td>Count of listener events buffered in memory per dispatcher thread. 
+ *     <i>Read when the first event is published.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.spill.directory</td>
+ *     <td>String</td>
+ *     <td>Directory of the temporary files of spilled listener events. If it 
+ *     is empty, the system temporary directory is used. <i>Change by JMX 
+ *     applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.logger.name</td>
  *     <td>String</td>
  *     <td>
@@ -145,16 +276,164 @@ import org.slf4j.LoggerFactory;
  *     immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.mailstore.cache.policy</td>
+ *     <td>String</td>
+ *     <td>Eviction policy of CachingMailStore: lru evicts the least recently 
+ *     used message, tinylfu (W-TinyLFU) keeps the frequently used messages 
+ *     and lets the new ones in only if they are used more often than the 
+ *     evicted ones. Default value is lru. Applied to the stores created 
+ *     later.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.cache.size</td>
+ *     <td>Long</td>
+ *     <td>Maximum estimated size of the messages cached by CachingMailStore 
+ *     in bytes. Default value is 67108864 (64 MB). Applied to the stores 
+ *     created later.</td>
+ *   </tr>
+ *   <tr>
  *   	<td>aspirin.mailstore.class</td>
  *   	<td>String</td>
  *   	<td>The class name of mail store. Default class is SimpleMailStore in 
- *   	org.masukomi.aspirin.core.store package.</td>
+ *   	org.masukomi.aspirin.core.store package. FileMailStore keeps the 
+ *   	messages in files, SegmentMailStore appends them to large segment 
+ *   	files if there are a lot of messages. Wrap them into CachingMailStore 
+ *   	to keep the recently used messages in memory, and into 
+ *   	WriteBehindMailStore to write the messages in the background.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.segment.compaction.threshold</td>
+ *     <td>Integer</td>
+ *     <td>A closed segment of SegmentMailStore is compacted, if at most this 
+ *     percent of it is used by live messages. Its live messages are copied 
+ *     into the current segment and the segment is deleted. Default value is 
+ *     50. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.segment.dir</td>
+ *     <td>String</td>
+ *     <td>Directory of the segment files of SegmentMailStore. Default value 
+ *     is aspirin-mail-segments. Applied at the next init() of the store.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.segment.size</td>
+ *     <td>Integer</td>
+ *     <td>Size of a segment file of SegmentMailStore in bytes. If the current 
+ *     segment reaches it, a new segment is started. Default value is 
+ *     268435456 (256 MB). <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.writebehind.batch.size</td>
+ *     <td>Integer</td>
+ *     <td>Maximum count of messages written by WriteBehindMailStore in a 
+ *     group commit, which is synced once. Default value is 256. <i>Change by 
+ *     JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.writebehind.queue.size</td>
+ *     <td>Integer</td>
+ *     <td>Maximum count of messages and removals waiting to be written by 
+ *     WriteBehindMailStore. If it is reached, storing a message waits for the 
+ *     writer. Default value is 10000. <i>Change by JMX applied 
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.writebehind.sync</td>
+ *     <td>Boolean</td>
+ *     <td>If true, storing a message in WriteBehindMailStore waits until the 
+ *     message is written and synced by a group commit, otherwise it returns 
+ *     immediately and the message is written in the background. It could be 
+ *     set per message by WriteBehindMailStore.set(mailid, message, sync). 
+ *     Default value is false. <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
  *   	<td>aspirin.queuestore.class</td>
  *   	<td>String</td>
  *   	<td>The class name of queue store. Default class is SimpleQueueStore in 
- *   	org.masukomi.aspirin.core.queue package.</td>
+ *   	org.masukomi.aspirin.core.queue package. Use IndexedQueueStore from 
+ *   	the same package if there are a lot of recipients in the queue, 
+ *   	ConcurrentQueueStore if a lot of threads add mails, JournaledQueueStore 
+ *   	or JdbcQueueStore if the queue has to survive a restart, or 
+ *   	MappedQueueStore if the queue is too large for the Java heap.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.jdbc.batch.size</td>
+ *     <td>Integer</td>
+ *     <td>Count of rows claimed at once by JdbcQueueStore, and the count of 
+ *     changes which are committed together. Default value is 100.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.jdbc.commit.interval</td>
+ *     <td>Integer</td>
+ *     <td>Maximal time in milliseconds while changes of JdbcQueueStore are 
+ *     not committed. Uncommitted changes could be lost on a crash, then the 
+ *     recipients in progress are sent again. Value 0 commits every change 
+ *     immediately. Default value is 100.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.jdbc.password</td>
+ *     <td>String</td>
+ *     <td>Password of the JdbcQueueStore database. Default value is 
+ *     empty.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.jdbc.url</td>
+ *     <td>String</td>
+ *     <td>JDBC URL of the JdbcQueueStore database, for example 
+ *     jdbc:h2:/var/aspirin/queue or jdbc:sqlite:/var/aspirin/queue.db. The 
+ *     driver has to be on the classpath. Default value is 
+ *     jdbc:h2:aspirin-queue.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.jdbc.user</td>
+ *     <td>String</td>
+ *     <td>User name of the JdbcQueueStore database. Default value is sa.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.journal.compaction.size</td>
+ *     <td>Integer</td>
+ *     <td>Size of the JournaledQueueStore journal in bytes. If the journal is 
+ *     greater, a snapshot of the whole queue is written and the older 
+ *     journals are deleted. Default value is 67108864 (64 MB).</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.journal.dir</td>
+ *     <td>String</td>
+ *     <td>The directory of JournaledQueueStore files: the journals of queue 
+ *     changes and the snapshot of the whole queue. Default value is 
+ *     aspirin-queue in the working directory.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.journal.snapshot.interval</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds between two snapshots of the 
+ *     JournaledQueueStore, if the journal is not empty. A snapshot contains 
+ *     the whole queue, the older journals are deleted after it. Value 0 
+ *     disables periodic snapshots, then only the journal size triggers them. 
+ *     Default value is 3600000 (one hour).</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.journal.sync.interval</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds between two syncs of the JournaledQueueStore 
+ *     journal to the disk. Changes written since the last sync could be lost 
+ *     on a system crash. Value 0 syncs every change immediately, it is the 
+ *     safest and the slowest. Default value is 1000.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.mapped.dir</td>
+ *     <td>String</td>
+ *     <td>The directory of MappedQueueStore files: the records, the interned 
+ *     strings, the indexes and the heap of the queue. Default value is 
+ *     aspirin-mapped-queue in the working directory.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.stripes</td>
+ *     <td>Integer</td>
+ *     <td>Count of ConcurrentQueueStore stripes. The mails are distributed 
+ *     among the stripes by their mailid, every stripe has its own lock, so 
+ *     more threads could add and deliver mails of different stripes at the 
+ *     same time. It is rounded up to a power of two. Default value is 16.</td>
  *   </tr>
  * </table>
  * 
@@ -187,18 +466,54 @@ public class Configuration implements ConfigurationMBean {
 		parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_COUNT,		3,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_DELAY,		300000,			Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_BOUNCE_ON_FAILURE,	true,			Parameter.TYPE_BOOLEAN));
+		parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_IDLE_MAX,	4,				Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT,	30000,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX,	100,		Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_DEBUG,				false,			Parameter.TYPE_BOOLEAN));
+		parameterList.add(new Parameter(PARAM_DELIVERY_EXECUTOR_CLASS,		ThreadPoolDeliveryExecutor.class.getCanonicalName(),	Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY,				-1L,			Parameter.TYPE_LONG));
+		parameterList.add(new Parameter(PARAM_DELIVERY_RECIPIENTS_MAX,		50,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_ACTIVE_MAX,	3,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_IDLE_MAX,	3,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_DELIVERY_TIMEOUT,				30000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_ADDRESSES_RESOLVE,		false,			Parameter.TYPE_BOOLEAN));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_SIZE,				10000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_TTL_MAX,			3600000,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_TTL_MIN,			60000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_CACHE_TTL_NEGATIVE,		60000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_DNS_PREFETCH_THREADS,			2,				Parameter.TYPE_INTEGER));
 		parameterList.add(new Parameter(PARAM_ENCODING,						"UTF-8",		Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_HOSTNAME,						"localhost",	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_LISTENER_BATCH_SIZE,			100,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_LISTENER_BATCH_TIMEOUT,		1000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_LISTENER_DISPATCHER_THREADS,	1,				Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_LISTENER_OVERFLOW,			"spill",		Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_LISTENER_QUEUE_SIZE,			10000,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_LISTENER_SPILL_DIRECTORY,		"",				Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_LOGGER_NAME,					"Aspirin",		Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_LOGGER_PREFIX,				"Aspirin ",		Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_CACHE_POLICY,		"lru",			Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_CACHE_SIZE,			67108864L,		Parameter.TYPE_LONG));
 		parameterList.add(new Parameter(PARAM_MAILSTORE_CLASS,				SimpleMailStore.class.getCanonicalName(),	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_SEGMENT_COMPACTION_THRESHOLD,	50,	Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_SEGMENT_DIR,		"aspirin-mail-segments",	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_SEGMENT_SIZE,		268435456,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_WRITEBEHIND_BATCH_SIZE,	256,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_WRITEBEHIND_QUEUE_SIZE,	10000,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_MAILSTORE_WRITEBEHIND_SYNC,	false,			Parameter.TYPE_BOOLEAN));
 		parameterList.add(new Parameter(PARAM_POSTMASTER_EMAIL,				null,			Parameter.TYPE_STRING));
 		parameterList.add(new Parameter(PARAM_QUEUESTORE_CLASS,				SimpleQueueStore.class.getCanonicalName(),	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JDBC_BATCH_SIZE,	100,			Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JDBC_COMMIT_INTERVAL,	100,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JDBC_PASSWORD,		"",				Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JDBC_URL,			"jdbc:h2:aspirin-queue",	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JDBC_USER,			"sa",			Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JOURNAL_COMPACTION_SIZE,	67108864,	Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JOURNAL_DIR,		"aspirin-queue",	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JOURNAL_SNAPSHOT_INTERVAL,	3600000,	Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_JOURNAL_SYNC_INTERVAL,	1000,		Parameter.TYPE_INTEGER));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_MAPPED_DIR,		"aspirin-mapped-queue",	Parameter.TYPE_STRING));
+		parameterList.add(new Parameter(PARAM_QUEUESTORE_STRIPES,			16,				Parameter.TYPE_INTEGER));
 		
 		for( Parameter param : parameterList )
 		{
@@ -254,6 +569,11 @@ public class Configuration implements ConfigurationMBean {
 //		return (int)retryInterval;
 	}
 
+	@Override
+	public String getDeliveryExecutorClassName() {
+		return (String)configParameters.get(PARAM_DELIVERY_EXECUTOR_CLASS);
+	}
+
 	@Override
 	public int getDeliveryThreadsActiveMax() {
 		return (Integer)configParameters.get(PARAM_DELIVERY_THREADS_ACTIVE_MAX);
@@ -290,7 +610,7 @@ public class Configuration implements ConfigurationMBean {
 			String mailStoreClassName = (String)configParameters.get(PARAM_MAILSTORE_CLASS);
 			try {
 				Class<?> storeClass = (Class<?>) Class.forName(mailStoreClassName);
-				if( storeClass.getInterfaces()[0].equals(MailStore.class) )
+				if( MailStore.class.isAssignableFrom(storeClass) )
 					mailStore = (MailStore)storeClass.newInstance();
 			} catch (Exception e) {
 				log.error(getClass().getSimpleName()+" Mail store class could not be instantiated. Class="+mailStoreClassName, e);
@@ -311,7 +631,7 @@ public class Configuration implements ConfigurationMBean {
 			String queueStoreClassName = (String)configParameters.get(PARAM_QUEUESTORE_CLASS);
 			try {
 				Class<?> storeClass = (Class<?>) Class.forName(queueStoreClassName);
-				if( storeClass.getInterfaces()[0].equals(QueueStore.class) )
+				if( QueueStore.class.isAssignableFrom(storeClass) )
 					queueStore = (QueueStore)storeClass.newInstance();
 			} catch (Exception e) {
 				log.error(getClass().getSimpleName()+" Queue store class could not be instantiated. Class="+queueStoreClassName, e);
@@ -358,6 +678,12 @@ public class Configuration implements ConfigurationMBean {
 		notifyListeners(PARAM_DELIVERY_DEBUG);
 	}
 
+	@Override
+	public void setDeliveryExecutorClassName(String className) {
+		configParameters.put(PARAM_DELIVERY_EXECUTOR_CLASS, className);
+		notifyListeners(PARAM_DELIVERY_EXECUTOR_CLASS);
+	}
+
 	@Override
 	public void setDeliveryThreadsActiveMax(int activeThreadsMax) {
 		configParameters.put(PARAM_DELIVERY_THREADS_ACTIVE_MAX, activeThreadsMax);
@@ -481,6 +807,391 @@ public class Configuration implements ConfigurationMBean {
 //		this.queueStoreClassName = className;
 	}
 	
+	@Override
+	public int getDeliveryConnectionIdleMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_CONNECTION_IDLE_MAX);
+	}
+	
+	@Override
+	public void setDeliveryConnectionIdleMax(int idleMax) {
+		configParameters.put(PARAM_DELIVERY_CONNECTION_IDLE_MAX, idleMax);
+		notifyListeners(PARAM_DELIVERY_CONNECTION_IDLE_MAX);
+	}
+	
+	@Override
+	public int getDeliveryConnectionIdleTimeout() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+	}
+	
+	@Override
+	public void setDeliveryConnectionIdleTimeout(int idleTimeout) {
+		configParameters.put(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT, idleTimeout);
+		notifyListeners(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+	}
+	
+	@Override
+	public int getDeliveryConnectionMessagesMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+	}
+	
+	@Override
+	public void setDeliveryConnectionMessagesMax(int messagesMax) {
+		configParameters.put(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX, messagesMax);
+		notifyListeners(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+	}
+	
+	@Override
+	public int getDeliveryRecipientsMax() {
+		return (Integer)configParameters.get(PARAM_DELIVERY_RECIPIENTS_MAX);
+	}
+	
+	@Override
+	public void setDeliveryRecipientsMax(int recipientsMax) {
+		configParameters.put(PARAM_DELIVERY_RECIPIENTS_MAX, recipientsMax);
+		notifyListeners(PARAM_DELIVERY_RECIPIENTS_MAX);
+	}
+	
+	@Override
+	public int getDnsCacheSize() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_SIZE);
+	}
+	
+	@Override
+	public void setDnsCacheSize(int cacheSize) {
+		configParameters.put(PARAM_DNS_CACHE_SIZE, cacheSize);
+		notifyListeners(PARAM_DNS_CACHE_SIZE);
+	}
+	
+	@Override
+	public int getDnsCacheTtlMax() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_TTL_MAX);
+	}
+	
+	@Override
+	public void setDnsCacheTtlMax(int ttlMax) {
+		configParameters.put(PARAM_DNS_CACHE_TTL_MAX, ttlMax);
+		notifyListeners(PARAM_DNS_CACHE_TTL_MAX);
+	}
+	
+	@Override
+	public int getDnsCacheTtlMin() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_TTL_MIN);
+	}
+	
+	@Override
+	public void setDnsCacheTtlMin(int ttlMin) {
+		configParameters.put(PARAM_DNS_CACHE_TTL_MIN, ttlMin);
+		notifyListeners(PARAM_DNS_CACHE_TTL_MIN);
+	}
+	
+	@Override
+	public int getDnsCacheTtlNegative() {
+		return (Integer)configParameters.get(PARAM_DNS_CACHE_TTL_NEGATIVE);
+	}
+	
+	@Override
+	public void setDnsCacheTtlNegative(int ttlNegative) {
+		configParameters.put(PARAM_DNS_CACHE_TTL_NEGATIVE, ttlNegative);
+		notifyListeners(PARAM_DNS_CACHE_TTL_NEGATIVE);
+	}
+	
+	@Override
+	public int getDnsPrefetchThreads() {
+		return (Integer)configParameters.get(PARAM_DNS_PREFETCH_THREADS);
+	}
+	
+	@Override
+	public void setDnsPrefetchThreads(int prefetchThreads) {
+		configParameters.put(PARAM_DNS_PREFETCH_THREADS, prefetchThreads);
+		notifyListeners(PARAM_DNS_PREFETCH_THREADS);
+	}
+	
+	@Override
+	public boolean isDnsAddressesResolve() {
+		return (Boolean)configParameters.get(PARAM_DNS_ADDRESSES_RESOLVE);
+	}
+	
+	@Override
+	public void setDnsAddressesResolve(boolean addressesResolve) {
+		configParameters.put(PARAM_DNS_ADDRESSES_RESOLVE, addressesResolve);
+		notifyListeners(PARAM_DNS_ADDRESSES_RESOLVE);
+	}
+	
+	@Override
+	public String getQueueStoreJournalDir() {
+		return (String)configParameters.get(PARAM_QUEUESTORE_JOURNAL_DIR);
+	}
+	
+	@Override
+	public void setQueueStoreJournalDir(String journalDir) {
+		configParameters.put(PARAM_QUEUESTORE_JOURNAL_DIR, journalDir);
+		notifyListeners(PARAM_QUEUESTORE_JOURNAL_DIR);
+	}
+	
+	@Override
+	public int getQueueStoreJournalSyncInterval() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_JOURNAL_SYNC_INTERVAL);
+	}
+	
+	@Override
+	public void setQueueStoreJournalSyncInterval(int syncInterval) {
+		configParameters.put(PARAM_QUEUESTORE_JOURNAL_SYNC_INTERVAL, syncInterval);
+		notifyListeners(PARAM_QUEUESTORE_JOURNAL_SYNC_INTERVAL);
+	}
+	
+	@Override
+	public int getQueueStoreJournalCompactionSize() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_JOURNAL_COMPACTION_SIZE);
+	}
+	
+	@Override
+	public void setQueueStoreJournalCompactionSize(int compactionSize) {
+		configParameters.put(PARAM_QUEUESTORE_JOURNAL_COMPACTION_SIZE, compactionSize);
+		notifyListeners(PARAM_QUEUESTORE_JOURNAL_COMPACTION_SIZE);
+	}
+	
+	@Override
+	public int getQueueStoreJournalSnapshotInterval() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_JOURNAL_SNAPSHOT_INTERVAL);
+	}
+	
+	@Override
+	public void setQueueStoreJournalSnapshotInterval(int snapshotInterval) {
+		configParameters.put(PARAM_QUEUESTORE_JOURNAL_SNAPSHOT_INTERVAL, snapshotInterval);
+		notifyListeners(PARAM_QUEUESTORE_JOURNAL_SNAPSHOT_INTERVAL);
+	}
+	
+	@Override
+	public String getQueueStoreMappedDir() {
+		return (String)configParameters.get(PARAM_QUEUESTORE_MAPPED_DIR);
+	}
+	
+	@Override
+	public void setQueueStoreMappedDir(String mappedDir) {
+		configParameters.put(PARAM_QUEUESTORE_MAPPED_DIR, mappedDir);
+		notifyListeners(PARAM_QUEUESTORE_MAPPED_DIR);
+	}
+	
+	@Override
+	public int getQueueStoreStripes() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_STRIPES);
+	}
+	
+	@Override
+	public void setQueueStoreStripes(int stripes) {
+		configParameters.put(PARAM_QUEUESTORE_STRIPES, stripes);
+		notifyListeners(PARAM_QUEUESTORE_STRIPES);
+	}
+	
+	@Override
+	public int getQueueStoreJdbcBatchSize() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_JDBC_BATCH_SIZE);
+	}
+	
+	@Override
+	public void setQueueStoreJdbcBatchSize(int batchSize) {
+		configParameters.put(PARAM_QUEUESTORE_JDBC_BATCH_SIZE, batchSize);
+		notifyListeners(PARAM_QUEUESTORE_JDBC_BATCH_SIZE);
+	}
+	
+	@Override
+	public int getQueueStoreJdbcCommitInterval() {
+		return (Integer)configParameters.get(PARAM_QUEUESTORE_JDBC_COMMIT_INTERVAL);
+	}
+	
+	@Override
+	public void setQueueStoreJdbcCommitInterval(int commitInterval) {
+		configParameters.put(PARAM_QUEUESTORE_JDBC_COMMIT_INTERVAL, commitInterval);
+		notifyListeners(PARAM_QUEUESTORE_JDBC_COMMIT_INTERVAL);
+	}
+	
+	@Override
+	public String getQueueStoreJdbcPassword() {
+		return (String)configParameters.get(PARAM_QUEUESTORE_JDBC_PASSWORD);
+	}
+	
+	@Override
+	public void setQueueStoreJdbcPassword(String password) {
+		configParameters.put(PARAM_QUEUESTORE_JDBC_PASSWORD, password);
+		notifyListeners(PARAM_QUEUESTORE_JDBC_PASSWORD);
+	}
+	
+	@Override
+	public String getQueueStoreJdbcUrl() {
+		return (String)configParameters.get(PARAM_QUEUESTORE_JDBC_URL);
+	}
+	
+	@Override
+	public void setQueueStoreJdbcUrl(String url) {
+		configParameters.put(PARAM_QUEUESTORE_JDBC_URL, url);
+		notifyListeners(PARAM_QUEUESTORE_JDBC_URL);
+	}
+	
+	@Override
+	public String getQueueStoreJdbcUser() {
+		return (String)configParameters.get(PARAM_QUEUESTORE_JDBC_USER);
+	}
+	
+	@Override
+	public void setQueueStoreJdbcUser(String user) {
+		configParameters.put(PARAM_QUEUESTORE_JDBC_USER, user);
+		notifyListeners(PARAM_QUEUESTORE_JDBC_USER);
+	}
+	
+	@Override
+	public int getListenerDispatcherThreads() {
+		return (Integer)configParameters.get(PARAM_LISTENER_DISPATCHER_THREADS);
+	}
+	
+	@Override
+	public void setListenerDispatcherThreads(int dispatcherThreads) {
+		configParameters.put(PARAM_LISTENER_DISPATCHER_THREADS, dispatcherThreads);
+		notifyListeners(PARAM_LISTENER_DISPATCHER_THREADS);
+	}
+	
+	@Override
+	public String getListenerOverflow() {
+		return (String)configParameters.get(PARAM_LISTENER_OVERFLOW);
+	}
+	
+	@Override
+	public void setListenerOverflow(String overflow) {
+		configParameters.put(PARAM_LISTENER_OVERFLOW, overflow);
+		notifyListeners(PARAM_LISTENER_OVERFLOW);
+	}
+	
+	@Override
+	public int getListenerQueueSize() {
+		return (Integer)configParameters.get(PARAM_LISTENER_QUEUE_SIZE);
+	}
+	
+	@Override
+	public void setListenerQueueSize(int queueSize) {
+		configParameters.put(PARAM_LISTENER_QUEUE_SIZE, queueSize);
+		notifyListeners(PARAM_LISTENER_QUEUE_SIZE);
+	}
+	
+	@Override
+	public String getListenerSpillDirectory() {
+		return (String)configParameters.get(PARAM_LISTENER_SPILL_DIRECTORY);
+	}
+	
+	@Override
+	public void setListenerSpillDirectory(String spillDirectory) {
+		configParameters.put(PARAM_LISTENER_SPILL_DIRECTORY, spillDirectory);
+		notifyListeners(PARAM_LISTENER_SPILL_DIRECTORY);
+	}
+	
+	@Override
+	public int getListenerBatchSize() {
+		return (Integer)configParameters.get(PARAM_LISTENER_BATCH_SIZE);
+	}
+	
+	@Override
+	public void setListenerBatchSize(int batchSize) {
+		configParameters.put(PARAM_LISTENER_BATCH_SIZE, batchSize);
+		notifyListeners(PARAM_LISTENER_BATCH_SIZE);
+	}
+	
+	@Override
+	public int getListenerBatchTimeout() {
+		return (Integer)configParameters.get(PARAM_LISTENER_BATCH_TIMEOUT);
+	}
+	
+	@Override
+	public void setListenerBatchTimeout(int batchTimeout) {
+		configParameters.put(PARAM_LISTENER_BATCH_TIMEOUT, batchTimeout);
+		notifyListeners(PARAM_LISTENER_BATCH_TIMEOUT);
+	}
+	
+	@Override
+	public String getMailStoreCachePolicy() {
+		return (String)configParameters.get(PARAM_MAILSTORE_CACHE_POLICY);
+	}
+	
+	@Override
+	public void setMailStoreCachePolicy(String policy) {
+		configParameters.put(PARAM_MAILSTORE_CACHE_POLICY, policy);
+		notifyListeners(PARAM_MAILSTORE_CACHE_POLICY);
+	}
+	
+	@Override
+	public long getMailStoreCacheSize() {
+		return (Long)configParameters.get(PARAM_MAILSTORE_CACHE_SIZE);
+	}
+	
+	@Override
+	public void setMailStoreCacheSize(long size) {
+		configParameters.put(PARAM_MAILSTORE_CACHE_SIZE, size);
+		notifyListeners(PARAM_MAILSTORE_CACHE_SIZE);
+	}
+	
+	@Override
+	public int getMailStoreSegmentCompactionThreshold() {
+		return (Integer)configParameters.get(PARAM_MAILSTORE_SEGMENT_COMPACTION_THRESHOLD);
+	}
+	
+	@Override
+	public void setMailStoreSegmentCompactionThreshold(int threshold) {
+		configParameters.put(PARAM_MAILSTORE_SEGMENT_COMPACTION_THRESHOLD, threshold);
+		notifyListeners(PARAM_MAILSTORE_SEGMENT_COMPACTION_THRESHOLD);
+	}
+	
+	@Override
+	public String getMailStoreSegmentDir() {
+		return (String)configParameters.get(PARAM_MAILSTORE_SEGMENT_DIR);
+	}
+	
+	@Override
+	public void setMailStoreSegmentDir(String segmentDir) {
+		configParameters.put(PARAM_MAILSTORE_SEGMENT_DIR, segmentDir);
+		notifyListeners(PARAM_MAILSTORE_SEGMENT_DIR);
+	}
+	
+	@Override
+	public int getMailStoreSegmentSize() {
+		return (Integer)configParameters.get(PARAM_MAILSTORE_SEGMENT_SIZE);
+	}
+	
+	@Override
+	public void setMailStoreSegmentSize(int segmentSize) {
+		configParameters.put(PARAM_MAILSTORE_SEGMENT_SIZE, segmentSize);
+		notifyListeners(PARAM_MAILSTORE_SEGMENT_SIZE);
+	}
+	
+	@Override
+	public int getMailStoreWriteBehindBatchSize() {
+		return (Integer)configParameters.get(PARAM_MAILSTORE_WRITEBEHIND_BATCH_SIZE);
+	}
+	
+	@Override
+	public void setMailStoreWriteBehindBatchSize(int batchSize) {
+		configParameters.put(PARAM_MAILSTORE_WRITEBEHIND_BATCH_SIZE, batchSize);
+		notifyListeners(PARAM_MAILSTORE_WRITEBEHIND_BATCH_SIZE);
+	}
+	
+	@Override
+	public int getMailStoreWriteBehindQueueSize() {
+		return (Integer)configParameters.get(PARAM_MAILSTORE_WRITEBEHIND_QUEUE_SIZE);
+	}
+	
+	@Override
+	public void setMailStoreWriteBehindQueueSize(int queueSize) {
+		configParameters.put(PARAM_MAILSTORE_WRITEBEHIND_QUEUE_SIZE, queueSize);
+		notifyListeners(PARAM_MAILSTORE_WRITEBEHIND_QUEUE_SIZE);
+	}
+	
+	@Override
+	public boolean isMailStoreWriteBehindSync() {
+		return (Boolean)configParameters.get(PARAM_MAILSTORE_WRITEBEHIND_SYNC);
+	}
+	
+	@Override
+	public void setMailStoreWriteBehindSync(boolean sync) {
+		configParameters.put(PARAM_MAILSTORE_WRITEBEHIND_SYNC, sync);
+		notifyListeners(PARAM_MAILSTORE_WRITEBEHIND_SYNC);
+	}
+	
 	public Logger getLogger() {
 		return LoggerFactory.getLogger((String)configParameters.get(PARAM_LOGGER_PREFIX));
 	}
@@ -564,4 +1275,4 @@ public class Configuration implements ConfigurationMBean {
 		
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
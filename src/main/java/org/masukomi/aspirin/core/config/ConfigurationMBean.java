@@ -2,8 +2,20 @@ package org.masukomi.aspirin.core.config;
 
 import javax.mail.Transport;
 
+import org.masukomi.aspirin.core.delivery.PooledDeliveryExecutor;
+import org.masukomi.aspirin.core.delivery.ThreadPoolDeliveryExecutor;
+import org.masukomi.aspirin.core.delivery.VirtualThreadDeliveryExecutor;
+import org.masukomi.aspirin.core.store.mail.CachingMailStore;
 import org.masukomi.aspirin.core.store.mail.FileMailStore;
+import org.masukomi.aspirin.core.store.mail.SegmentMailStore;
 import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.mail.WriteBehindMailStore;
+import org.masukomi.aspirin.core.store.queue.ConcurrentQueueStore;
+import org.masukomi.aspirin.core.store.queue.IndexedQueueStore;
+import org.masukomi.aspirin.core.store.queue.JdbcQueueStore;
+import org.masukomi.aspirin.core.store.queue.JournaledQueueStore;
+import org.masukomi.aspirin.core.store.queue.MappedQueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
 
 /**
  * <p>This is the JMX bean of Aspirin configuration. Some configuration 
@@ -17,18 +29,54 @@ public interface ConfigurationMBean {
 	public static final String PARAM_DELIVERY_ATTEMPT_DELAY			= "aspirin.delivery.attempt.delay";
 	public static final String PARAM_DELIVERY_ATTEMPT_COUNT			= "aspirin.delivery.attempt.count";
 	public static final String PARAM_DELIVERY_BOUNCE_ON_FAILURE		= "aspirin.delivery.bounce-on-failure";
+	public static final String PARAM_DELIVERY_CONNECTION_IDLE_MAX	= "aspirin.delivery.connection.idle.max";
+	public static final String PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT	= "aspirin.delivery.connection.idle.timeout";
+	public static final String PARAM_DELIVERY_CONNECTION_MESSAGES_MAX	= "aspirin.delivery.connection.messages.max";
 	public static final String PARAM_DELIVERY_DEBUG					= "aspirin.delivery.debug";
+	public static final String PARAM_DELIVERY_EXECUTOR_CLASS		= "aspirin.delivery.executor.class";
 	public static final String PARAM_DELIVERY_EXPIRY				= "aspirin.delivery.expiry";
+	public static final String PARAM_DELIVERY_RECIPIENTS_MAX		= "aspirin.delivery.recipients.max";
 	public static final String PARAM_DELIVERY_THREADS_ACTIVE_MAX	= "aspirin.delivery.threads.active.max";
 	public static final String PARAM_DELIVERY_THREADS_IDLE_MAX		= "aspirin.delivery.threads.idle.max";
 	public static final String PARAM_DELIVERY_TIMEOUT				= "aspirin.delivery.timeout";
+	public static final String PARAM_DNS_ADDRESSES_RESOLVE			= "aspirin.dns.addresses.resolve";
+	public static final String PARAM_DNS_CACHE_SIZE					= "aspirin.dns.cache.size";
+	public static final String PARAM_DNS_CACHE_TTL_MAX				= "aspirin.dns.cache.ttl.max";
+	public static final String PARAM_DNS_CACHE_TTL_MIN				= "aspirin.dns.cache.ttl.min";
+	public static final String PARAM_DNS_CACHE_TTL_NEGATIVE			= "aspirin.dns.cache.ttl.negative";
+	public static final String PARAM_DNS_PREFETCH_THREADS			= "aspirin.dns.prefetch.threads";
 	public static final String PARAM_ENCODING						= "aspirin.encoding";
 	public static final String PARAM_HOSTNAME						= "aspirin.hostname";
+	public static final String PARAM_LISTENER_BATCH_SIZE			= "aspirin.listener.batch.size";
+	public static final String PARAM_LISTENER_BATCH_TIMEOUT			= "aspirin.listener.batch.timeout";
+	public static final String PARAM_LISTENER_DISPATCHER_THREADS	= "aspirin.listener.dispatcher.threads";
+	public static final String PARAM_LISTENER_OVERFLOW				= "aspirin.listener.overflow";
+	public static final String PARAM_LISTENER_QUEUE_SIZE			= "aspirin.listener.queue.size";
+	public static final String PARAM_LISTENER_SPILL_DIRECTORY		= "aspirin.listener.spill.directory";
 	public static final String PARAM_LOGGER_NAME					= "aspirin.logger.name";
 	public static final String PARAM_LOGGER_PREFIX					= "aspirin.logger.prefix";
 	public static final String PARAM_POSTMASTER_EMAIL				= "aspirin.postmaster.email";
+	public static final String PARAM_MAILSTORE_CACHE_POLICY			= "aspirin.mailstore.cache.policy";
+	public static final String PARAM_MAILSTORE_CACHE_SIZE			= "aspirin.mailstore.cache.size";
 	public static final String PARAM_MAILSTORE_CLASS				= "aspirin.mailstore.class";
+	public static final String PARAM_MAILSTORE_SEGMENT_COMPACTION_THRESHOLD	= "aspirin.mailstore.segment.compaction.threshold";
+	public static final String PARAM_MAILSTORE_SEGMENT_DIR			= "aspirin.mailstore.segment.dir";
+	public static final String PARAM_MAILSTORE_SEGMENT_SIZE			= "aspirin.mailstore.segment.size";
+	public static final String PARAM_MAILSTORE_WRITEBEHIND_BATCH_SIZE	= "aspirin.mailstore.writebehind.batch.size";
+	public static final String PARAM_MAILSTORE_WRITEBEHIND_QUEUE_SIZE	= "aspirin.mailstore.writebehind.queue.size";
+	public static final String PARAM_MAILSTORE_WRITEBEHIND_SYNC		= "aspirin.mailstore.writebehind.sync";
 	public static final String PARAM_QUEUESTORE_CLASS				= "aspirin.queuestore.class";
+	public static final String PARAM_QUEUESTORE_JDBC_BATCH_SIZE		= "aspirin.queuestore.jdbc.batch.size";
+	public static final String PARAM_QUEUESTORE_JDBC_COMMIT_INTERVAL	= "aspirin.queuestore.jdbc.commit.interval";
+	public static final String PARAM_QUEUESTORE_JDBC_PASSWORD		= "aspirin.queuestore.jdbc.password";
+	public static final String PARAM_QUEUESTORE_JDBC_URL			= "aspirin.queuestore.jdbc.url";
+	public static final String PARAM_QUEUESTORE_JDBC_USER			= "aspirin.queuestore.jdbc.user";
+	public static final String PARAM_QUEUESTORE_JOURNAL_COMPACTION_SIZE	= "aspirin.queuestore.journal.compaction.size";
+	public static final String PARAM_QUEUESTORE_JOURNAL_DIR			= "aspirin.queuestore.journal.dir";
+	public static final String PARAM_QUEUESTORE_JOURNAL_SNAPSHOT_INTERVAL	= "aspirin.queuestore.journal.snapshot.interval";
+	public static final String PARAM_QUEUESTORE_JOURNAL_SYNC_INTERVAL	= "aspirin.queuestore.journal.sync.interval";
+	public static final String PARAM_QUEUESTORE_MAPPED_DIR			= "aspirin.queuestore.mapped.dir";
+	public static final String PARAM_QUEUESTORE_STRIPES				= "aspirin.queuestore.stripes";
 	
 	/**
 	 * Value of never expiration. If an email expire is marked with this value, 
@@ -44,6 +92,10 @@ public interface ConfigurationMBean {
 	 * @return The maximal count of delivery attempts of an email. 
 	 */
 	public int getDeliveryAttemptCount();
+	/**
+	 * @return The class name of the engine which runs the delivery threads.
+	 */
+	public String getDeliveryExecutorClassName();
 	/**
 	 * @return The maximal count of delivery threads running paralel.
 	 */
@@ -123,6 +175,15 @@ public interface ConfigurationMBean {
 	 * @param debug If true, then the full communication will be logged.
 	 */
 	public void setDeliveryDebug(boolean debug);
+	/**
+	 * Set the class name of the engine, which runs the delivery threads. 
+	 * Built-in executors are {@link ThreadPoolDeliveryExecutor}, 
+	 * {@link PooledDeliveryExecutor} and {@link VirtualThreadDeliveryExecutor}. 
+	 * The executor is replaced immediately, 
+	 * the running deliveries are finished by the previous one.
+	 * @param className
+	 */
+	public void setDeliveryExecutorClassName(String className);
 	/**
 	 * Set the maximal count of paralel running delivery threads.
 	 * @param threadsCount The count of delivery threads.
@@ -164,7 +225,12 @@ public interface ConfigurationMBean {
 	public void setLoggerPrefix(String loggerPrefix);
 	/**
 	 * Set the mail store class name, where MimeMessages will be stored. 
-	 * Built-in stores are {@link SimpleMailStore} and {@link FileMailStore}.
+	 * Built-in stores are {@link SimpleMailStore}, {@link FileMailStore} and 
+	 * {@link SegmentMailStore}. 
+	 * A store could be wrapped into a {@link CachingMailStore} by 
+	 * {@link Configuration#setMailStore(org.masukomi.aspirin.core.store.mail.MailStore)} 
+	 * to keep the recently used messages in memory, and into a 
+	 * {@link WriteBehindMailStore} to write the messages in the background.
 	 * @param className
 	 */
 	public void setMailStoreClassName(String className);
@@ -176,7 +242,10 @@ public interface ConfigurationMBean {
 	public void setPostmasterEmail(String emailAddress);
 	/**
 	 * Set the queue store class name, where queue informations are placed in. 
-	 * Built-in store is the {@link SimpleQueueStore}.
+	 * Built-in stores are the {@link SimpleQueueStore}, the 
+	 * {@link IndexedQueueStore}, the {@link ConcurrentQueueStore} and the 
+	 * persistent {@link JournaledQueueStore}, {@link JdbcQueueStore} and 
+	 * {@link MappedQueueStore}.
 	 * @param className
 	 */
 	public void setQueueStoreClassName(String className);
@@ -188,5 +257,368 @@ public interface ConfigurationMBean {
 	 * @param hostname The name of this server or application.
 	 */
 	public void setHostname(String hostname);
+	/**
+	 * @return The maximal count of idle SMTP connections kept open per mail 
+	 * server.
+	 */
+	public int getDeliveryConnectionIdleMax();
+	/**
+	 * Set the maximal count of idle SMTP connections kept open per mail server.
+	 * @param idleMax The count of idle connections.
+	 */
+	public void setDeliveryConnectionIdleMax(int idleMax);
+	/**
+	 * @return The time in milliseconds after an idle SMTP connection is closed.
+	 */
+	public int getDeliveryConnectionIdleTimeout();
+	/**
+	 * Set the time after an idle SMTP connection is closed.
+	 * @param idleTimeout The value of timeout in milliseconds.
+	 */
+	public void setDeliveryConnectionIdleTimeout(int idleTimeout);
+	/**
+	 * @return The maximal count of messages sent on one SMTP connection.
+	 */
+	public int getDeliveryConnectionMessagesMax();
+	/**
+	 * Set the maximal count of messages sent on one SMTP connection. If it is 1, 
+	 * then SMTP connections are not reused.
+	 * @param messagesMax The count of messages.
+	 */
+	public void setDeliveryConnectionMessagesMax(int messagesMax);
+	/**
+	 * @return Maximal count of recipients of the same mail and domain 
+	 * delivered in one SMTP transaction.
+	 */
+	public int getDeliveryRecipientsMax();
+	/**
+	 * Set the maximal count of recipients of the same mail and domain delivered 
+	 * in one SMTP transaction. Value 1 disables grouping.
+	 * @param recipientsMax Maximal count of recipients in one SMTP transaction.
+	 */
+	public void setDeliveryRecipientsMax(int recipientsMax);
+	/**
+	 * @return Maximal count of domains in the MX cache.
+	 */
+	public int getDnsCacheSize();
+	/**
+	 * Set the maximal count of domains in the MX cache. Value 0 disables the 
+	 * cache.
+	 * @param cacheSize Maximal count of cached domains.
+	 */
+	public void setDnsCacheSize(int cacheSize);
+	/**
+	 * @return Maximal caching time of resolved mail servers in milliseconds.
+	 */
+	public int getDnsCacheTtlMax();
+	/**
+	 * Set the maximal caching time of resolved mail servers in milliseconds.
+	 * @param ttlMax Maximal caching time in milliseconds.
+	 */
+	public void setDnsCacheTtlMax(int ttlMax);
+	/**
+	 * @return Minimal caching time of resolved mail servers in milliseconds.
+	 */
+	public int getDnsCacheTtlMin();
+	/**
+	 * Set the minimal caching time of resolved mail servers in milliseconds.
+	 * @param ttlMin Minimal caching time in milliseconds.
+	 */
+	public void setDnsCacheTtlMin(int ttlMin);
+	/**
+	 * @return Caching time of domains without mail server in milliseconds.
+	 */
+	public int getDnsCacheTtlNegative();
+	/**
+	 * Set the caching time of domains without mail server in milliseconds. Value 
+	 * 0 disables negative caching.
+	 * @param ttlNegative Caching time of failed lookups in milliseconds.
+	 */
+	public void setDnsCacheTtlNegative(int ttlNegative);
+	/**
+	 * @return Count of threads resolving mail servers of new recipients in 
+	 * background.
+	 */
+	public int getDnsPrefetchThreads();
+	/**
+	 * Set the count of threads resolving mail servers of new recipients in 
+	 * background. Value 0 disables prefetching.
+	 * @param prefetchThreads Count of prefetching threads.
+	 */
+	public void setDnsPrefetchThreads(int prefetchThreads);
+	/**
+	 * @return true, if the IP addresses of mail servers are resolved and cached 
+	 * by Aspirin.
+	 */
+	public boolean isDnsAddressesResolve();
+	/**
+	 * Set the resolution of mail server IP addresses by Aspirin. If false, the 
+	 * host names are resolved by JavaMail on every connection.
+	 * @param addressesResolve If true, mail server addresses are resolved.
+	 */
+	public void setDnsAddressesResolve(boolean addressesResolve);
+	/**
+	 * @return The directory of JournaledQueueStore files.
+	 */
+	public String getQueueStoreJournalDir();
+	/**
+	 * Set the directory of JournaledQueueStore files. It is used on the next 
+	 * initialization of the store.
+	 * @param journalDir Path of the journal directory.
+	 */
+	public void setQueueStoreJournalDir(String journalDir);
+	/**
+	 * @return Time in milliseconds between two syncs of the JournaledQueueStore 
+	 * journal to the disk.
+	 */
+	public int getQueueStoreJournalSyncInterval();
+	/**
+	 * Set the time in milliseconds between two syncs of the JournaledQueueStore 
+	 * journal to the disk. Value 0 syncs on every change.
+	 * @param syncInterval Time between two syncs in milliseconds.
+	 */
+	public void setQueueStoreJournalSyncInterval(int syncInterval);
+	/**
+	 * @return Size of the JournaledQueueStore journal in bytes, which triggers a 
+	 * snapshot.
+	 */
+	public int getQueueStoreJournalCompactionSize();
+	/**
+	 * Set the size of the JournaledQueueStore journal in bytes, which triggers a 
+	 * snapshot.
+	 * @param compactionSize Journal size in bytes.
+	 */
+	public void setQueueStoreJournalCompactionSize(int compactionSize);
+	/**
+	 * @return Time in milliseconds between two snapshots of the 
+	 * JournaledQueueStore.
+	 */
+	public int getQueueStoreJournalSnapshotInterval();
+	/**
+	 * Set the time in milliseconds between two snapshots of the 
+	 * JournaledQueueStore. Value 0 disables periodic snapshots.
+	 * @param snapshotInterval Time between two snapshots in milliseconds.
+	 */
+	public void setQueueStoreJournalSnapshotInterval(int snapshotInterval);
+	/**
+	 * @return The directory of MappedQueueStore files.
+	 */
+	public String getQueueStoreMappedDir();
+	/**
+	 * Set the directory of MappedQueueStore files. It is used on the next 
+	 * initialization of the store.
+	 * @param mappedDir Path of the queue directory.
+	 */
+	public void setQueueStoreMappedDir(String mappedDir);
+	/**
+	 * @return Count of ConcurrentQueueStore stripes.
+	 */
+	public int getQueueStoreStripes();
+	/**
+	 * Set the count of ConcurrentQueueStore stripes. It is used by the next 
+	 * created store.
+	 * @param stripes Count of stripes.
+	 */
+	public void setQueueStoreStripes(int stripes);
+	/**
+	 * @return Maximal count of queue rows claimed by one query and of changes 
+	 * committed in one transaction by the JDBC queue store.
+	 */
+	public int getQueueStoreJdbcBatchSize();
+	/**
+	 * Set the maximal count of queue rows claimed by one query and of changes 
+	 * committed in one transaction by the JDBC queue store.
+	 * @param batchSize Maximal count of rows claimed at once and of changes 
+	 * committed together.
+	 */
+	public void setQueueStoreJdbcBatchSize(int batchSize);
+	/**
+	 * @return Maximal time in milliseconds while changes of the JDBC queue store 
+	 * are not committed.
+	 */
+	public int getQueueStoreJdbcCommitInterval();
+	/**
+	 * Set the maximal time in milliseconds while changes of the JDBC queue store 
+	 * are not committed.
+	 * @param commitInterval Commit interval in milliseconds, 0 commits every 
+	 * operation.
+	 */
+	public void setQueueStoreJdbcCommitInterval(int commitInterval);
+	/**
+	 * @return Password of the JDBC queue store database.
+	 */
+	public String getQueueStoreJdbcPassword();
+	/**
+	 * Set the password of the JDBC queue store database.
+	 * @param password Database password.
+	 */
+	public void setQueueStoreJdbcPassword(String password);
+	/**
+	 * @return JDBC URL of the queue store database.
+	 */
+	public String getQueueStoreJdbcUrl();
+	/**
+	 * Set the JDBC URL of the queue store database. The driver has to be on the 
+	 * classpath.
+	 * @param url JDBC URL of the database.
+	 */
+	public void setQueueStoreJdbcUrl(String url);
+	/**
+	 * @return User name of the JDBC queue store database.
+	 */
+	public String getQueueStoreJdbcUser();
+	/**
+	 * Set the user name of the JDBC queue store database.
+	 * @param user Database user name.
+	 */
+	public void setQueueStoreJdbcUser(String user);
+	/**
+	 * @return Count of threads calling the AspirinListeners. If it is 0, 
+	 * listeners are called by the delivery threads.
+	 */
+	public int getListenerDispatcherThreads();
+	/**
+	 * Set the count of threads calling the AspirinListeners.
+	 * @param dispatcherThreads Count of listener dispatcher threads.
+	 */
+	public void setListenerDispatcherThreads(int dispatcherThreads);
+	/**
+	 * @return Policy applied when the listener event buffer of a dispatcher is 
+	 * full: block, drop or spill.
+	 */
+	public String getListenerOverflow();
+	/**
+	 * Set the policy applied when the listener event buffer of a dispatcher is 
+	 * full.
+	 * @param overflow Overflow policy: block, drop or spill.
+	 */
+	public void setListenerOverflow(String overflow);
+	/**
+	 * @return Size of the listener event buffer of a dispatcher thread.
+	 */
+	public int getListenerQueueSize();
+	/**
+	 * Set the size of the listener event buffer of a dispatcher thread.
+	 * @param queueSize Event buffer size of a dispatcher thread.
+	 */
+	public void setListenerQueueSize(int queueSize);
+	/**
+	 * @return Directory of the temporary files of spilled listener events. If it 
+	 * is empty, the system temporary directory is used.
+	 */
+	public String getListenerSpillDirectory();
+	/**
+	 * Set the directory of the temporary files of spilled listener events.
+	 * @param spillDirectory Directory of spilled listener events.
+	 */
+	public void setListenerSpillDirectory(String spillDirectory);
+	/**
+	 * @return Maximal count of delivery results given to a BatchAspirinListener 
+	 * in one call.
+	 */
+	public int getListenerBatchSize();
+	/**
+	 * Set the maximal count of delivery results given to a BatchAspirinListener 
+	 * in one call.
+	 * @param batchSize Maximal count of results in a batch.
+	 */
+	public void setListenerBatchSize(int batchSize);
+	/**
+	 * @return Maximal time in milliseconds a delivery result waits in a batch 
+	 * for a BatchAspirinListener.
+	 */
+	public int getListenerBatchTimeout();
+	/**
+	 * Set the maximal time a delivery result waits in a batch for a 
+	 * BatchAspirinListener.
+	 * @param batchTimeout Maximal waiting time of a result in milliseconds.
+	 */
+	public void setListenerBatchTimeout(int batchTimeout);
+	/**
+	 * @return Eviction policy of CachingMailStore.
+	 */
+	public String getMailStoreCachePolicy();
+	/**
+	 * Set the eviction policy of CachingMailStore. Applied to the stores created 
+	 * later.
+	 * @param policy lru or tinylfu.
+	 */
+	public void setMailStoreCachePolicy(String policy);
+	/**
+	 * @return Maximum estimated size of the messages cached by CachingMailStore 
+	 * in bytes.
+	 */
+	public long getMailStoreCacheSize();
+	/**
+	 * Set the maximum size of the messages cached by CachingMailStore. Applied 
+	 * to the stores created later.
+	 * @param size Maximum size in bytes.
+	 */
+	public void setMailStoreCacheSize(long size);
+	/**
+	 * @return Percent of live records, under which a segment of SegmentMailStore 
+	 * is compacted.
+	 */
+	public int getMailStoreSegmentCompactionThreshold();
+	/**
+	 * Set the percent of live records, under which a segment of SegmentMailStore 
+	 * is compacted. Change by JMX applied immediately.
+	 * @param threshold Percent of live records.
+	 */
+	public void setMailStoreSegmentCompactionThreshold(int threshold);
+	/**
+	 * @return Directory of the segment files of SegmentMailStore.
+	 */
+	public String getMailStoreSegmentDir();
+	/**
+	 * Set the directory of the segment files of SegmentMailStore. Applied at the 
+	 * next init() of the store.
+	 * @param segmentDir Path of the directory.
+	 */
+	public void setMailStoreSegmentDir(String segmentDir);
+	/**
+	 * @return Size of a segment file of SegmentMailStore in bytes.
+	 */
+	public int getMailStoreSegmentSize();
+	/**
+	 * Set the size of a segment file of SegmentMailStore. Change by JMX applied 
+	 * immediately.
+	 * @param segmentSize Size in bytes.
+	 */
+	public void setMailStoreSegmentSize(int segmentSize);
+	/**
+	 * @return Maximum count of messages written by WriteBehindMailStore in a 
+	 * group commit.
+	 */
+	public int getMailStoreWriteBehindBatchSize();
+	/**
+	 * Set the maximum count of messages written by WriteBehindMailStore in a 
+	 * group commit. Change by JMX applied immediately.
+	 * @param batchSize Maximum count of messages.
+	 */
+	public void setMailStoreWriteBehindBatchSize(int batchSize);
+	/**
+	 * @return Maximum count of messages waiting to be written by 
+	 * WriteBehindMailStore.
+	 */
+	public int getMailStoreWriteBehindQueueSize();
+	/**
+	 * Set the maximum count of messages waiting to be written by 
+	 * WriteBehindMailStore. Change by JMX applied immediately.
+	 * @param queueSize Maximum count of messages.
+	 */
+	public void setMailStoreWriteBehindQueueSize(int queueSize);
+	/**
+	 * @return True, if storing a message in WriteBehindMailStore waits until it 
+	 * is written and synced.
+	 */
+	public boolean isMailStoreWriteBehindSync();
+	/**
+	 * Set whether storing a message in WriteBehindMailStore waits until it is 
+	 * written and synced, or returns immediately. Change by JMX applied 
+	 * immediately.
+	 * @param sync True to wait for the sync.
+	 */
+	public void setMailStoreWriteBehindSync(boolean sync);
 
 }
@@ -0,0 +1,74 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+
+import javax.net.SocketFactory;
+
+/**
+ * This socket factory connects to an address resolved by Aspirin instead of
+ * the address of the host name given by JavaMail. The host name is kept in
+ * JavaMail, so STARTTLS sends and checks the name of the mail server. It is
+ * set per connection by the {@link SmtpConnectionPool}.
+ */
+class AddressSocketFactory extends SocketFactory {
+
+	private final InetAddress address;
+
+	/**
+	 * @param hostName Host name of the mail server.
+	 * @param hostAddress Literal IP address of the mail server.
+	 * @throws UnknownHostException If the address is not a literal IP address.
+	 */
+	AddressSocketFactory(String hostName, String hostAddress) throws UnknownHostException {
+		// A literal address is not looked up.
+		this.address = InetAddress.getByAddress(hostName, InetAddress.getByName(hostAddress).getAddress());
+	}
+
+	InetAddress getAddress() {
+		return address;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return new AddressSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return new Socket(address, port);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return new Socket(address, port);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException {
+		return new Socket(address, port, localAddress, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port, InetAddress localAddress, int localPort) throws IOException {
+		return new Socket(address, port, localAddress, localPort);
+	}
+
+	/**
+	 * Unconnected socket, which replaces the address of the endpoint on
+	 * connect.
+	 */
+	private class AddressSocket extends Socket {
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			if( endpoint instanceof InetSocketAddress )
+				endpoint = new InetSocketAddress(address, ((InetSocketAddress)endpoint).getPort());
+			super.connect(endpoint, timeout);
+		}
+	}
+
+}
@@ -1,6 +1,9 @@
 package org.masukomi.aspirin.core.delivery;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.mail.Session;
@@ -24,6 +27,29 @@ public class DeliveryContext {
 		this.queueInfo = queueInfo;
 		return this;
 	}
+	/**
+	 * Other recipients of the same mail in the same domain, which are 
+	 * delivered in the same SMTP transaction.
+	 */
+	private List<QueueInfo> coRecipientQueueInfos = null;
+	public DeliveryContext addCoRecipientQueueInfo(QueueInfo coRecipientQueueInfo) {
+		if( coRecipientQueueInfos == null )
+			coRecipientQueueInfos = new ArrayList<QueueInfo>();
+		coRecipientQueueInfos.add(coRecipientQueueInfo);
+		return this;
+	}
+	/**
+	 * @return All QueueInfo objects delivered in this context, the main 
+	 * QueueInfo is the first.
+	 */
+	public List<QueueInfo> getQueueInfos() {
+		if( coRecipientQueueInfos == null )
+			return Collections.singletonList(queueInfo);
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>(coRecipientQueueInfos.size()+1);
+		queueInfos.add(queueInfo);
+		queueInfos.addAll(coRecipientQueueInfos);
+		return queueInfos;
+	}
 	private MimeMessage message;
 	public MimeMessage getMessage() {
 		return message;
@@ -63,6 +89,8 @@ public class DeliveryContext {
 			StringBuilder sb = new StringBuilder();
 			sb.append(getClass().getSimpleName()).append(" [");
 			sb.append("qi=").append(queueInfo);
+			if( coRecipientQueueInfos != null )
+				sb.append("; coRecipients=").append(coRecipientQueueInfos.size());
 			sb.append("]; ");
 			ctxToString = sb.toString();
 		}
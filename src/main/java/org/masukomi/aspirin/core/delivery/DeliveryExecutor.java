@@ -0,0 +1,44 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
+
+/**
+ * <p>This interface defines the engine, which runs the delivery tasks given 
+ * by the {@link DeliveryManager}. The implementation class could be set in 
+ * the configuration (aspirin.delivery.executor.class). The configuration 
+ * changes are forwarded by the DeliveryManager, so the thread limits could 
+ * be applied immediately.</p>
+ * 
+ * <p>Built-in executors are the {@link ThreadPoolDeliveryExecutor} (default), 
+ * the {@link PooledDeliveryExecutor} and the 
+ * {@link VirtualThreadDeliveryExecutor}.</p>
+ */
+public interface DeliveryExecutor extends ConfigurationChangeListener {
+	/**
+	 * Initialize the executor based on the current configuration. It is 
+	 * called once, before the first task is executed.
+	 */
+	public void init();
+	/**
+	 * Run the delivery task asynchronously. If all delivery threads are busy, 
+	 * the executor could wait for a free thread.
+	 * @param task The delivery task.
+	 * @throws RejectedExecutionException If the task could not be accepted. 
+	 * The QueueInfo of the task has to be released by the caller.
+	 */
+	public void execute(DeliveryTask task) throws RejectedExecutionException;
+	/**
+	 * @return The count of currently running delivery tasks.
+	 */
+	public int getActiveCount();
+	/**
+	 * Shutdown the executor. Running tasks are finished, but tasks, which are 
+	 * not started yet, are given back.
+	 * @return List of tasks never started. Their QueueInfo objects have to be 
+	 * released by the caller.
+	 */
+	public List<DeliveryTask> shutdown();
+}
@@ -1,20 +1,30 @@
 package org.masukomi.aspirin.core.delivery;
 
+import java.util.HashSet;
 import java.util.List;
 
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.queue.ExpiringQueueStore;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
 
 /**
  * This is a maintenance thread, to clean up stores - remove all finished 
  * mails from these objects. This is very useful for long-time runs.
+ * <p>If the queue store is an {@link ExpiringQueueStore}, the expired items 
+ * are reaped in every minute and only the mails removed by the queue store 
+ * are removed from the mail store. The whole stores are compared only once, 
+ * at the first run, to remove the messages left by a previous run. Other 
+ * queue stores are cleaned in every hour.</p>
  * 
  * @author Laszlo Solova
  *
  */
 public class DeliveryMaintenanceThread extends Thread {
 	
+	private static final long CLEAN_INTERVAL = 3600000;
+	private static final long REAP_INTERVAL = 60000;
+	
 	private boolean running = false;
 	
 	public DeliveryMaintenanceThread() {
@@ -25,27 +35,36 @@ public class DeliveryMaintenanceThread extends Thread {
 	public void run() {
 		AspirinInternal.getLogger().info("Maintenance thread started.");
 		running = true;
+		boolean cleaned = false;
 		while( running )
 		{
+			QueueStore queueStore = AspirinInternal.getConfiguration().getQueueStore();
+			boolean expiring = queueStore instanceof ExpiringQueueStore;
+			boolean reaping = cleaned && expiring;
 			try {
 				synchronized (this) {
-					wait(3600000);
+					wait(( expiring ) ? REAP_INTERVAL : CLEAN_INTERVAL);
 				}
 			} catch (InterruptedException ie) {
 				running = false;
 				AspirinInternal.getLogger().info("Maintenance thread goes down.");
 			}
-			// Maintain queues in every hour
 			try {
-				QueueStore queueStore = AspirinInternal.getConfiguration().getQueueStore();
 				MailStore mailStore = AspirinInternal.getConfiguration().getMailStore();
-				List<String> usedMailIds = queueStore.clean();
-				List<String> mailStoreMailIds = mailStore.getMailIds();
-				AspirinInternal.getLogger().debug("Maintenance running: usedMailIds: {}, mailStoreMailIds: {}.",new Object[]{usedMailIds.size(), mailStoreMailIds.size()});
-				if( mailStoreMailIds.removeAll(usedMailIds) )
+				if( reaping )
+				{
+					List<String> removedMailIds = ((ExpiringQueueStore)queueStore).reapExpired();
+					AspirinInternal.getLogger().debug("Maintenance running: removedMailIds: {}.",removedMailIds.size());
+					removeUnused(mailStore, removedMailIds);
+				}
+				else
 				{
-					for( String unusedMailId : mailStoreMailIds )
-						mailStore.remove(unusedMailId);
+					List<String> usedMailIds = queueStore.clean();
+					List<String> mailStoreMailIds = mailStore.getMailIds();
+					AspirinInternal.getLogger().debug("Maintenance running: usedMailIds: {}, mailStoreMailIds: {}.",new Object[]{usedMailIds.size(), mailStoreMailIds.size()});
+					if( mailStoreMailIds.removeAll(new HashSet<String>(usedMailIds)) )
+						removeUnused(mailStore, mailStoreMailIds);
+					cleaned = true;
 				}
 			} catch (Exception e) {
 				AspirinInternal.getLogger().error("Maintenance failed.",e);
@@ -53,6 +72,15 @@ public class DeliveryMaintenanceThread extends Thread {
 		}
 	}
 	
+	private void removeUnused(MailStore mailStore, List<String> unusedMailIds) {
+		for( String unusedMailId : unusedMailIds )
+		{
+			// The first recipients of a streamed mail could be already removed.
+			if( !AspirinInternal.getDeliveryManager().isStreaming(unusedMailId) )
+				mailStore.remove(unusedMailId);
+		}
+	}
+	
 	public void shutdown() {
 		running = false;
 		synchronized (this) {
@@ -1,23 +1,39 @@
 package org.masukomi.aspirin.core.delivery;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool;
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.config.Configuration;
 import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
-import org.masukomi.aspirin.core.config.ConfigurationMBean;
+import org.masukomi.aspirin.core.dns.MxPrefetcher;
 import org.masukomi.aspirin.core.dns.ResolveHost;
+import org.masukomi.aspirin.core.store.mail.BulkMailStore;
 import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.WriteBehindMailStore;
+import org.masukomi.aspirin.core.store.queue.BlockingQueueStore;
+import org.masukomi.aspirin.core.store.queue.BulkQueueStore;
+import org.masukomi.aspirin.core.store.queue.DeliveryProgress;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.GroupingQueueStore;
+import org.masukomi.aspirin.core.store.queue.ProgressQueueStore;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
 
@@ -32,32 +48,45 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 	private QueueStore queueStore;
 	private DeliveryMaintenanceThread maintenanceThread;
 	private Object mailingLock = new Object();
-	private ObjectPool deliveryThreadObjectPool = null;
-	private boolean running = false;
-	private GenericPoolableDeliveryThreadFactory deliveryThreadObjectFactory = null;
+	private volatile DeliveryExecutor deliveryExecutor = null;
+	private SmtpConnectionPool connectionPool = null;
+	private MxPrefetcher mxPrefetcher = null;
+	private volatile boolean running = false;
+	/**
+	 * It is set, when a new or released item could be sendable. Used only 
+	 * with queue stores, which are not {@link BlockingQueueStore}.
+	 */
+	private boolean dispatchSignalled = false;
 	private Map<String, DeliveryHandler> deliveryHandlers = new HashMap<String, DeliveryHandler>();
+	/**
+	 * Minimal count of messages parsed by one thread in 
+	 * {@link #addAll(Collection)}.
+	 */
+	private static final int PARSE_SLICE_MIN = 256;
+	/**
+	 * Count of recipients queued together by 
+	 * {@link #add(MimeMessage, Iterator)}.
+	 */
+	private static final int RECIPIENT_CHUNK_SIZE = 1000;
+	/**
+	 * Mails, which message is stored, but their recipients are being added. 
+	 * They are not completed, even if all of their queued recipients are 
+	 * handled, and their message is not removed as unused.
+	 */
+	private Set<String> streamingMailids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	
 	public DeliveryManager() {
 		// Set up default objects.
 		this.setName("Aspirin-"+getClass().getSimpleName()+"-"+getId());
 		
-		// Configure pool of DeliveryThread threads
-		GenericObjectPool.Config gopConf = new GenericObjectPool.Config();
-		gopConf.lifo = false;
-		gopConf.maxActive = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
-		gopConf.maxIdle = AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax();
-		gopConf.maxWait = 5000;
-		gopConf.testOnReturn = true;
-		gopConf.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+		// Set up the engine of delivery threads
+		deliveryExecutor = createDeliveryExecutor();
 		
-		// Create DeliveryThread object factory used in pool
-		deliveryThreadObjectFactory = new GenericPoolableDeliveryThreadFactory();
+		// Set up the pool of open SMTP connections
+		connectionPool = new SmtpConnectionPool();
 		
-		// Create pool
-		deliveryThreadObjectPool = new GenericObjectPool(deliveryThreadObjectFactory,gopConf);
-		
-		// Initialize object factory of pool
-		deliveryThreadObjectFactory.init(new ThreadGroup("DeliveryThreadGroup"),deliveryThreadObjectPool);
+		// Set up the background resolution of recipient domains
+		mxPrefetcher = new MxPrefetcher();
 		
 		// Set up stores and configuration listener 
 		queueStore = AspirinInternal.getConfiguration().getQueueStore();
@@ -81,13 +110,243 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		String mailid = AspirinInternal.getMailID(mimeMessage);
 		long expiry = AspirinInternal.getExpiry(mimeMessage);
 		Collection<InternetAddress> recipients = AspirinInternal.extractRecipients(mimeMessage);
-		synchronized (mailingLock) {
-			mailStore.set(mailid, mimeMessage);
-			queueStore.add(mailid, expiry, recipients);
+		streamingMailids.add(mailid);
+		try {
+			storeMessage(mailid, mimeMessage);
+			synchronized (mailingLock) {
+				queueStore.add(mailid, expiry, recipients);
+			}
+		} finally {
+			streamingMailids.remove(mailid);
 		}
+		mxPrefetcher.prefetch(recipients);
+		signal();
 		return mailid;
 	}
 	
+	/**
+	 * Add a message with an external list of recipients. The recipients are 
+	 * queued in chunks of {@link #RECIPIENT_CHUNK_SIZE} while they are read 
+	 * from the iterator, so a huge list is never held in memory. The 
+	 * recipients in the headers of the message are not used, and the given 
+	 * recipients are not written into the message. The delivery of the first 
+	 * chunks starts while the later ones are added, but the mail is not 
+	 * completed until the iterator is finished. If every recipient was 
+	 * handled before, the completion is notified with a null recipient at 
+	 * the end of the iterator. If the add fails, the mail is not completed: 
+	 * the message and the recipients queued before the failure are removed. 
+	 * A mail added before with the same mail id is kept.
+	 * @param mimeMessage The message to deliver.
+	 * @param recipients The recipients of the message.
+	 * @return The mail id of the message.
+	 * @throws MessagingException If the message could not be stored or the 
+	 * queueing failed.
+	 */
+	public String add(MimeMessage mimeMessage, Iterator<InternetAddress> recipients) throws MessagingException {
+		String mailid = AspirinInternal.getMailID(mimeMessage);
+		long expiry = AspirinInternal.getExpiry(mimeMessage);
+		// A counting store holds the completion itself, so the last recipient 
+		// and the end of the iterator could not both complete the mail.
+		QueueStore store = queueStore;
+		ProgressQueueStore progressStore = ( store instanceof ProgressQueueStore ) ? (ProgressQueueStore)store : null;
+		if( progressStore != null )
+			progressStore.holdCompletion(mailid);
+		boolean stored = isStored(mailid);
+		boolean added = false;
+		streamingMailids.add(mailid);
+		try {
+			storeMessage(mailid, mimeMessage);
+			List<InternetAddress> chunk = new ArrayList<InternetAddress>(RECIPIENT_CHUNK_SIZE);
+			while( recipients.hasNext() )
+			{
+				chunk.add(recipients.next());
+				if( RECIPIENT_CHUNK_SIZE <= chunk.size() )
+				{
+					addChunk(mailid, expiry, chunk);
+					chunk = new ArrayList<InternetAddress>(RECIPIENT_CHUNK_SIZE);
+				}
+			}
+			if( !chunk.isEmpty() )
+				addChunk(mailid, expiry, chunk);
+			if( recipients instanceof RecipientFileReader )
+				((RecipientFileReader)recipients).checkFailure();
+			added = true;
+		} finally {
+			streamingMailids.remove(mailid);
+			// Every recipient could be handled while the last ones were added.
+			boolean completed = ( progressStore != null ) ? progressStore.releaseCompletion(mailid) : store.isCompleted(mailid);
+			if( !added && !stored )
+				remove(mailid);
+			else
+			if( completed )
+			{
+				if( AspirinInternal.getListenerManager() != null )
+					AspirinInternal.getListenerManager().notifyFinished(mailid);
+				removeCompleted(mailid);
+			}
+		}
+		return mailid;
+	}
+	
+	/**
+	 * Add a message with the recipients listed in an UTF-8 text file, one 
+	 * address per line. Empty lines and lines starting with # are skipped, 
+	 * invalid addresses are skipped with a warning. The file is read while 
+	 * the recipients are queued, see {@link #add(MimeMessage, Iterator)}.
+	 * @param mimeMessage The message to deliver.
+	 * @param recipientFile The file of recipients.
+	 * @return The mail id of the message.
+	 * @throws MessagingException If the file could not be read or the 
+	 * queueing failed, then the recipients queued before the failure are 
+	 * removed.
+	 */
+	public String add(MimeMessage mimeMessage, File recipientFile) throws MessagingException {
+		RecipientFileReader recipientReader = null;
+		try {
+			recipientReader = new RecipientFileReader(recipientFile);
+			return add(mimeMessage, recipientReader);
+		} catch (IOException ioe) {
+			throw new MessagingException("Recipient file could not be opened: "+recipientFile, ioe);
+		} finally {
+			if( recipientReader != null )
+				recipientReader.close();
+		}
+	}
+	
+	/**
+	 * Store the message of a mail. A synced {@link WriteBehindMailStore} is 
+	 * waited for without the mailing lock, so the concurrently added 
+	 * messages share its group commits. The mail has to be in the streaming 
+	 * mails until its recipients are queued.
+	 * @throws MessagingException If the message could not be stored.
+	 */
+	private void storeMessage(String mailid, MimeMessage mimeMessage) throws MessagingException {
+		WriteBehindMailStore.PendingWrite pendingWrite = null;
+		synchronized (mailingLock) {
+			if( mailStore instanceof WriteBehindMailStore && AspirinInternal.getConfiguration().isMailStoreWriteBehindSync() )
+			{
+				pendingWrite = ((WriteBehindMailStore)mailStore).write(mailid, mimeMessage);
+				if( pendingWrite == null )
+					throw new MessagingException("Message could not be stored, mail store is closed: "+mailid);
+			}
+			else
+				mailStore.set(mailid, mimeMessage);
+		}
+		if( pendingWrite != null && !pendingWrite.await() )
+			throw new MessagingException("Message could not be stored: "+mailid);
+	}
+	
+	/**
+	 * @return True, if a message is stored with the mail id. A failed add 
+	 * does not remove a mail added before with the same mail id.
+	 */
+	private boolean isStored(String mailid) {
+		return mailStore.get(mailid) != null;
+	}
+	
+	/**
+	 * @param mailid The mail id of a message.
+	 * @return True, if the message of the mail is stored, but its 
+	 * recipients are being added by {@link #add(MimeMessage)} or 
+	 * {@link #add(MimeMessage, Iterator)}.
+	 */
+	public boolean isStreaming(String mailid) {
+		return streamingMailids.contains(mailid);
+	}
+	
+	/**
+	 * Add more messages at once. The headers and recipients of the messages 
+	 * are parsed parallel, then the messages are stored and queued in one 
+	 * critical section. Stores implementing {@link BulkMailStore} and 
+	 * {@link BulkQueueStore} are written once for the whole batch. If a 
+	 * message could not be stored or the queueing failed, the messages and 
+	 * the queued recipients of the batch are removed again, so nothing is 
+	 * added. A mail added before with the mail id of a message in the batch 
+	 * is kept.
+	 * @param mimeMessages The messages to deliver.
+	 * @return The mail ids of the messages in the same order.
+	 * @throws MessagingException If a message could not be parsed or stored, 
+	 * or the queueing failed, then none of the messages is added.
+	 */
+	public List<String> addAll(Collection<MimeMessage> mimeMessages) throws MessagingException {
+		List<MimeMessage> messages = new ArrayList<MimeMessage>(mimeMessages);
+		ParsedMessage[] parsedMessages = parse(messages);
+		
+		List<String> mailids = new ArrayList<String>(messages.size());
+		List<InternetAddress> allRecipients = new ArrayList<InternetAddress>();
+		for( ParsedMessage parsedMessage : parsedMessages )
+		{
+			mailids.add(parsedMessage.mailid);
+			allRecipients.addAll(parsedMessage.recipients);
+		}
+		List<QueueInfo> queueInfos = null;
+		if( queueStore instanceof BulkQueueStore )
+		{
+			queueInfos = new ArrayList<QueueInfo>(allRecipients.size());
+			for( ParsedMessage parsedMessage : parsedMessages )
+			{
+				for( InternetAddress recipient : parsedMessage.recipients )
+				{
+					QueueInfo qi = queueStore.createQueueInfo();
+					qi.setMailid(parsedMessage.mailid);
+					qi.setExpiry(parsedMessage.expiry);
+					qi.setRecipient(recipient.getAddress());
+					queueInfos.add(qi);
+				}
+			}
+		}
+		
+		synchronized (mailingLock) {
+			Set<String> storedMailids = new HashSet<String>();
+			for( String mailid : mailids )
+			{
+				if( isStored(mailid) )
+					storedMailids.add(mailid);
+			}
+			boolean added = false;
+			try {
+				if( mailStore instanceof BulkMailStore )
+				{
+					Map<String, MimeMessage> messageMap = new LinkedHashMap<String, MimeMessage>();
+					for( int i = 0; i < parsedMessages.length; i++ )
+						messageMap.put(parsedMessages[i].mailid, messages.get(i));
+					Set<String> failedMailids = ((BulkMailStore)mailStore).setAll(messageMap);
+					if( !failedMailids.isEmpty() )
+						throw new MessagingException("Messages could not be stored: "+failedMailids);
+				}
+				else
+				{
+					for( int i = 0; i < parsedMessages.length; i++ )
+						mailStore.set(parsedMessages[i].mailid, messages.get(i));
+				}
+				if( queueInfos != null )
+					((BulkQueueStore)queueStore).addAll(queueInfos);
+				else
+				{
+					for( ParsedMessage parsedMessage : parsedMessages )
+						queueStore.add(parsedMessage.mailid, parsedMessage.expiry, parsedMessage.recipients);
+				}
+				added = true;
+			} finally {
+				// The recipients queued before the failure are removed with 
+				// the messages of the batch.
+				if( !added )
+				{
+					for( String mailid : mailids )
+					{
+						if( storedMailids.contains(mailid) )
+							continue;
+						queueStore.remove(mailid);
+						mailStore.remove(mailid);
+					}
+				}
+			}
+		}
+		mxPrefetcher.prefetch(allRecipients);
+		signal();
+		return mailids;
+	}
+	
 	public MimeMessage get(QueueInfo qi) {
 		return mailStore.get(qi.getMailid());
 	}
@@ -106,8 +365,9 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		while( running )
 		{
 			QueueInfo qi = null;
+			DeliveryTask task = null;
 			try {
-				qi = queueStore.next();
+				qi = nextQueueInfo();
 				if( qi != null )
 				{
 					MimeMessage message = get(qi);
@@ -122,62 +382,49 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 					DeliveryContext dCtx = new DeliveryContext()
 						.setQueueInfo(qi)
 						.setMessage(message);
-					AspirinInternal.getLogger().trace("DeliveryManager.run(): Pool state. A{}/I{}",new Object[]{deliveryThreadObjectPool.getNumActive(),deliveryThreadObjectPool.getNumIdle()});
+					addCoRecipients(dCtx);
+					task = new DeliveryTask(dCtx);
 					try 
 					{
-						AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}",qi);
-						DeliveryThread dThread = (DeliveryThread)deliveryThreadObjectPool.borrowObject();
-						AspirinInternal.getLogger().trace("DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'",new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
-						dThread.setContext(dCtx);
-						/*
-						 * On first borrow the DeliveryThread is created and 
-						 * initialized, but not started, because the first 
-						 * time we have to set up the QueItem to deliver.
-						 */
-						if( !dThread.isAlive() )
-							dThread.start();
-					} catch ( IllegalStateException ise )
-					{
-						/*
-						 * This could be happen, if thread is running, but 
-						 * ObjectPool is already closed. It is a normal process 
-						 * of Aspirin sending thread shutdown.
-						 */
-						release(qi);
-					} catch ( NoSuchElementException nsee )
+						AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. dCtx={}",dCtx);
+						deliveryExecutor.execute(task);
+					} catch ( RejectedExecutionException ree )
 					{
 						/*
-						 * This happens if there is a lot of mail to send, and 
-						 * no idle DeliveryThread is available.
+						 * This happens if the executor is already shut down 
+						 * or no delivery thread is available.
 						 */
-						AspirinInternal.getLogger().debug("DeliveryManager.run(): No idle DeliveryThread is available: {}",nsee.getMessage());
-						release(qi);
+						AspirinInternal.getLogger().debug("DeliveryManager.run(): Delivery task rejected: {}",ree.getMessage());
+						task.release();
 					} catch ( Exception e )
 					{
-						AspirinInternal.getLogger().error("DeliveryManager.run(): Failed borrow delivery thread object.",e);
-						release(qi);
+						AspirinInternal.getLogger().error("DeliveryManager.run(): Failed to start delivery.",e);
+						task.release();
 					}
 				}
 				else
+				if( !(queueStore instanceof BlockingQueueStore) )
 				{
 					if( AspirinInternal.getLogger().isTraceEnabled() && 0 < queueStore.size() )
 						AspirinInternal.getLogger().trace("DeliveryManager.run(): There is no sendable item in the queue. Fallback to waiting state for a minute.");
 					synchronized (this) {
-						try
-						{
-							/*
-							 * We should wait for a specified time, because 
-							 * some emails unsent could be sendable again.
-							 */
+						/*
+						 * We should wait for a specified time, because 
+						 * some emails unsent could be sendable again. A new 
+						 * or released item wakes us up earlier.
+						 */
+						if( !dispatchSignalled )
 							wait(60000);
-						}catch (InterruptedException e)
-						{
-							running = false;
-						}
+						dispatchSignalled = false;
 					}
 				}
 				
+			} catch (InterruptedException ie) {
+				running = false;
 			} catch (Throwable t) {
+				if( task != null )
+					task.release();
+				else
 				if( qi != null )
 					release(qi);
 			}
@@ -186,12 +433,146 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 		AspirinInternal.getLogger().info("DeliveryManager terminated.");
 	}
 	
+	/**
+	 * Add the other sendable recipients of the same mail in the same domain 
+	 * to the delivery context, if the queue store supports grouping. They 
+	 * are delivered in one SMTP transaction.
+	 */
+	private void addCoRecipients(DeliveryContext dCtx) {
+		QueueStore store = queueStore;
+		int recipientsMax = AspirinInternal.getConfiguration().getDeliveryRecipientsMax();
+		if( 1 < recipientsMax && store instanceof GroupingQueueStore )
+		{
+			for( QueueInfo coQi : ((GroupingQueueStore)store).nextCoRecipients(dCtx.getQueueInfo(), recipientsMax-1) )
+				dCtx.addCoRecipientQueueInfo(coQi);
+		}
+	}
+	
+	/**
+	 * Create and initialize the delivery executor set in the configuration. 
+	 * If it could not be instantiated, the default 
+	 * {@link ThreadPoolDeliveryExecutor} is used.
+	 */
+	private DeliveryExecutor createDeliveryExecutor() {
+		String executorClassName = AspirinInternal.getConfiguration().getDeliveryExecutorClassName();
+		DeliveryExecutor executor = null;
+		try {
+			executor = (DeliveryExecutor)Class.forName(executorClassName).newInstance();
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("DeliveryManager.createDeliveryExecutor(): Delivery executor class could not be instantiated. Class="+executorClassName, e);
+			executor = new ThreadPoolDeliveryExecutor();
+		}
+		executor.init();
+		return executor;
+	}
+	
+	/**
+	 * Shutdown the delivery executor and release all tasks never started.
+	 */
+	private void shutdownDeliveryExecutor(DeliveryExecutor executor) {
+		List<DeliveryTask> notStartedTasks = executor.shutdown();
+		for( DeliveryTask task : notStartedTasks )
+			task.release();
+	}
+	
+	/**
+	 * Get the next sendable item. A {@link BlockingQueueStore} is asked to 
+	 * wait for the next sendable item (at most for a minute), the other 
+	 * stores are polled.
+	 */
+	private QueueInfo nextQueueInfo() throws InterruptedException {
+		QueueStore store = queueStore;
+		if( store instanceof BlockingQueueStore )
+			return ((BlockingQueueStore)store).nextBlocking(60000);
+		return store.next();
+	}
+	
+	private void addChunk(String mailid, long expiry, List<InternetAddress> chunk) throws MessagingException {
+		synchronized (mailingLock) {
+			queueStore.add(mailid, expiry, chunk);
+		}
+		mxPrefetcher.prefetch(chunk);
+		signal();
+	}
+	
+	/**
+	 * Parse the mail id, the expiry and the recipients of the messages. Large 
+	 * collections are split among more threads, every thread parses at least 
+	 * {@link #PARSE_SLICE_MIN} messages.
+	 */
+	private ParsedMessage[] parse(final List<MimeMessage> messages) throws MessagingException {
+		final ParsedMessage[] parsedMessages = new ParsedMessage[messages.size()];
+		int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), messages.size()/PARSE_SLICE_MIN);
+		if( threadCount <= 1 )
+		{
+			for( int i = 0; i < messages.size(); i++ )
+				parsedMessages[i] = new ParsedMessage(messages.get(i));
+			return parsedMessages;
+		}
+		final MessagingException[] failures = new MessagingException[threadCount];
+		List<Thread> parserThreads = new ArrayList<Thread>(threadCount);
+		int sliceSize = (messages.size()+threadCount-1)/threadCount;
+		for( int t = 0; t < threadCount; t++ )
+		{
+			final int thread = t;
+			final int from = t*sliceSize;
+			final int to = Math.min(messages.size(), from+sliceSize);
+			Thread parserThread = new Thread("Aspirin-"+getClass().getSimpleName()+"-Parser-"+t) {
+				@Override
+				public void run() {
+					try {
+						for( int i = from; i < to; i++ )
+							parsedMessages[i] = new ParsedMessage(messages.get(i));
+					} catch (MessagingException me) {
+						failures[thread] = me;
+					} catch (RuntimeException re) {
+						failures[thread] = new MessagingException("Message parsing failed.", re);
+					}
+				}
+			};
+			parserThread.start();
+			parserThreads.add(parserThread);
+		}
+		try {
+			for( Thread parserThread : parserThreads )
+				parserThread.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Message parsing interrupted.", ie);
+		}
+		for( MessagingException failure : failures )
+		{
+			if( failure != null )
+				throw failure;
+		}
+		return parsedMessages;
+	}
+	
+	/**
+	 * Wake up the dispatching loop, because an item could be sendable.
+	 */
+	private void signal() {
+		QueueStore store = queueStore;
+		if( store instanceof BlockingQueueStore )
+		{
+			((BlockingQueueStore)store).signal();
+		}
+		else
+		{
+			synchronized (this) {
+				dispatchSignalled = true;
+				notify();
+			}
+		}
+	}
+	
 	public boolean isRunning() {
 		return running;
 	}
 	
 	public void terminate() {
 		running = false;
+		signal();
 	}
 	
 	public void release(QueueInfo qi) {
@@ -209,15 +590,62 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 			}
 		}
 		queueStore.setSendingResult(qi);
-		if( queueStore.isCompleted(qi.getMailid()) )
-			queueStore.remove(qi.getMailid());
+		if( isCompleted(qi) )
+			removeCompleted(qi.getMailid());
 		AspirinInternal.getLogger().trace("DeliveryManager.release(): Release item '{}' with state: '{}' after {} attempts.",new Object[]{qi.getMailid(),qi.getState().name(), qi.getAttemptCount()});
+		signal();
 	}
 	
 	public boolean isCompleted(QueueInfo qi) {
+		// Recipients could be added later to a streamed mail.
+		if( streamingMailids.contains(qi.getMailid()) )
+			return false;
 		return queueStore.isCompleted(qi.getMailid());
 	}
 	
+	/**
+	 * The listeners check it, when the state of an item is changed. A 
+	 * {@link ProgressQueueStore} notifies the completion itself, when the 
+	 * sending result of the last pending item is set, so it is never 
+	 * completed by the state change.
+	 * @param qi An item with changed state.
+	 * @return True, if the mail of the item is completed by the state 
+	 * change.
+	 */
+	public boolean isFinishedBy(QueueInfo qi) {
+		if( queueStore instanceof ProgressQueueStore )
+			return false;
+		return isCompleted(qi);
+	}
+	
+	/**
+	 * @param mailid The mail id of a message.
+	 * @return The recipient counts of the mail or null, if the mail is not 
+	 * in the queue or the queue store is not a {@link ProgressQueueStore}.
+	 */
+	public DeliveryProgress getProgress(String mailid) {
+		QueueStore store = queueStore;
+		if( store instanceof ProgressQueueStore )
+			return ((ProgressQueueStore)store).getProgress(mailid);
+		return null;
+	}
+	
+	/**
+	 * Remove a completed mail from the queue store and its message from the 
+	 * mail store, so it is reclaimed when its last recipient is finished, 
+	 * not by the maintenance thread. The completion is checked again in 
+	 * locked state, the mail could be added again meanwhile.
+	 */
+	private void removeCompleted(String mailid) {
+		synchronized (mailingLock) {
+			if( !streamingMailids.contains(mailid) && queueStore.isCompleted(mailid) )
+			{
+				mailStore.remove(mailid);
+				queueStore.remove(mailid);
+			}
+		}
+	}
+	
 	@Override
 	public void configChanged(String parameterName) {
 		synchronized (mailingLock) {
@@ -225,28 +653,77 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 				mailStore = AspirinInternal.getConfiguration().getMailStore();
 			else
 			if( parameterName.equals(Configuration.PARAM_QUEUESTORE_CLASS) )
+			{
+				QueueStore previousQueueStore = queueStore;
 				queueStore = AspirinInternal.getConfiguration().getQueueStore();
-			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) )
-				((GenericObjectPool)deliveryThreadObjectPool).setMaxActive(AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+				// Wake up the dispatching loop waiting on the previous store.
+				if( previousQueueStore instanceof BlockingQueueStore )
+					((BlockingQueueStore)previousQueueStore).signal();
+			}
+			if( parameterName.equals(Configuration.PARAM_DELIVERY_EXECUTOR_CLASS) )
+			{
+				DeliveryExecutor previousExecutor = deliveryExecutor;
+				deliveryExecutor = createDeliveryExecutor();
+				shutdownDeliveryExecutor(previousExecutor);
+			}
 			else
-			if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_IDLE_MAX) )
-				((GenericObjectPool)deliveryThreadObjectPool).setMaxIdle(AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax());
+				deliveryExecutor.configChanged(parameterName);
+			connectionPool.configChanged(parameterName);
+			mxPrefetcher.configChanged(parameterName);
 		}
 	}
 	
+	/**
+	 * @return The pool of open SMTP connections. It could be registered as a 
+	 * JMX bean to get connection reuse statistics.
+	 */
+	public SmtpConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
+	/**
+	 * @return The background resolver of recipient domains. It could be 
+	 * registered as a JMX bean to get the prefetch hit ratio.
+	 */
+	public MxPrefetcher getMxPrefetcher() {
+		return mxPrefetcher;
+	}
+	
 	public DeliveryHandler getDeliveryHandler(String handlerName) {
 		return deliveryHandlers.get(handlerName);
 	}
 	
 	public void shutdown() {
 		this.running = false;
+		signal();
 		try {
-			deliveryThreadObjectPool.close();
-			deliveryThreadObjectPool.clear();
+			shutdownDeliveryExecutor(deliveryExecutor);
+			connectionPool.close();
+			mxPrefetcher.shutdown();
+			// Persistent stores write out their buffers
+			if( queueStore instanceof Closeable )
+				((Closeable)queueStore).close();
+			if( mailStore instanceof Closeable )
+				((Closeable)mailStore).close();
 		} catch (Exception e) {
 			AspirinInternal.getLogger().error("DeliveryManager.shutdown() failed.",e);
 		}
 		maintenanceThread.shutdown();
 	}
+	
+	/**
+	 * The fields of a message needed to queue it.
+	 */
+	private static class ParsedMessage {
+		final String mailid;
+		final long expiry;
+		final Collection<InternetAddress> recipients;
+		
+		ParsedMessage(MimeMessage message) throws MessagingException {
+			mailid = AspirinInternal.getMailID(message);
+			expiry = AspirinInternal.getExpiry(message);
+			recipients = AspirinInternal.extractRecipients(message);
+		}
+	}
 
 }
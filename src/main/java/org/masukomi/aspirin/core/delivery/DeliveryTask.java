@@ -0,0 +1,104 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.dns.ResolveHost;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+/**
+ * This is the delivery of a QueueInfo and its co-recipients: it runs the 
+ * delivery handler chain on the context and releases the QueueInfo objects 
+ * after delivery. These tasks are run 
+ * by a {@link DeliveryExecutor}.
+ * 
+ * Based on original RemoteDelivery class.
+ */
+public class DeliveryTask implements Runnable {
+	
+	private static final String[] HANDLER_LIST = new String[]{
+		ResolveHost.class.getCanonicalName(),
+		SendMessage.class.getCanonicalName()
+	};
+	
+	private DeliveryContext dCtx;
+	
+	public DeliveryTask(DeliveryContext dCtx) {
+		this.dCtx = dCtx;
+	}
+	
+	public DeliveryContext getContext() {
+		return dCtx;
+	}
+	
+	@Override
+	public void run() {
+		try
+		{
+			AspirinInternal.getLogger().trace("DeliveryTask ({}).run(): Call delivering... dCtx={}",new Object[]{Thread.currentThread().getName(),dCtx});
+			deliver();
+		}catch (Exception e)
+		{
+			AspirinInternal.getLogger().error("DeliveryTask ("+Thread.currentThread().getName()+").run(): Could not deliver message. dCtx={"+dCtx+"}", e);
+		}finally
+		/*
+		 * The QueueInfo is released in every case: if its status is 
+		 * IN_PROGRESS yet, it is requeued or failed by the DeliveryManager.
+		 */
+		{
+			release();
+		}
+	}
+	
+	/**
+	 * Give back all QueueInfo objects of this task to the DeliveryManager.
+	 */
+	public void release() {
+		for( QueueInfo qInfo : dCtx.getQueueInfos() )
+			AspirinInternal.getDeliveryManager().release(qInfo);
+	}
+	
+	protected void deliver() {
+		String threadName = Thread.currentThread().getName();
+		AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Starting mail delivery. qi={}", new Object[]{threadName,dCtx});
+		/*
+		 * A delivery exception is the result of all recipients still in 
+		 * progress. Handlers could set the result of a single recipient, if 
+		 * it differs from the others (see SendMessage).
+		 */
+		for( String handlerName : HANDLER_LIST )
+		{
+			try {
+				AspirinInternal.getDeliveryManager().getDeliveryHandler(handlerName).handle(dCtx);
+			} catch (DeliveryException de) {
+				for( QueueInfo qInfo : dCtx.getQueueInfos() )
+				{
+					if( !qInfo.hasState(DeliveryState.IN_PROGRESS) )
+						continue;
+					qInfo.setResultInfo(de.getMessage());
+					AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Mail delivery failed: {}. qi={}", new Object[]{threadName,qInfo.getResultInfo(),qInfo});
+					if( de.isPermanent() )
+						qInfo.setState(DeliveryState.FAILED);
+					else
+						qInfo.setState(DeliveryState.QUEUED);
+				}
+				return;
+			}
+		}
+		for( QueueInfo qInfo : dCtx.getQueueInfos() )
+		{
+			if( qInfo.hasState(DeliveryState.IN_PROGRESS) )
+			{
+				if( qInfo.getResultInfo() == null )
+					qInfo.setResultInfo("250 OK");
+				AspirinInternal.getLogger().info("DeliveryTask ({}).deliver(): Mail delivery success: {}. qi={}", new Object[]{threadName,qInfo.getResultInfo(),qInfo});
+				qInfo.setState(DeliveryState.SENT);
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" ["+dCtx+"]";
+	}
+
+}
@@ -1,15 +1,14 @@
 package org.masukomi.aspirin.core.delivery;
 
 import javax.mail.MessagingException;
-import javax.mail.Session;
 
 import org.apache.commons.pool.ObjectPool;
 import org.masukomi.aspirin.core.AspirinInternal;
-import org.masukomi.aspirin.core.dns.ResolveHost;
-import org.masukomi.aspirin.core.store.queue.DeliveryState;
-import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
 /**
+ * Pooled delivery thread of the {@link PooledDeliveryExecutor}. It waits for 
+ * a {@link DeliveryTask}, runs it and gives back itself into the pool.
+ * 
  * Based on original RemoteDelivery class.
  * 
  * @author Laszlo Solova
@@ -19,7 +18,7 @@ public class DeliveryThread extends Thread {
 	
 	private boolean running = true;
 	private ObjectPool parentObjectPool = null;
-	private DeliveryContext dCtx = null;
+	private DeliveryTask task = null;
 	
 	DeliveryThread(ThreadGroup parentThreadGroup) {
 		super(parentThreadGroup, DeliveryThread.class.getSimpleName());
@@ -43,10 +42,11 @@ public class DeliveryThread extends Thread {
 	@Override
 	public void run() {
 		while (running) {
+			DeliveryTask currentTask = null;
 			synchronized (this) {
-				if( dCtx == null )
+				if( task == null )
 				{
-					// Wait for next QueueInfo to deliver 
+					// Wait for next task to deliver 
 					try
 					{
 						if( running )
@@ -58,15 +58,15 @@ public class DeliveryThread extends Thread {
 					} catch (InterruptedException ie)
 					/*
 					 * On interrupt we shutdown this thread and remove from 
-					 * pool. It could be a QueueInfo in the qi variable, so we 
+					 * pool. It could be a task in the task variable, so we 
 					 * try to release it before finish the work.
 					 */
 					{
-						if( dCtx != null )
+						if( task != null )
 						{
-							AspirinInternal.getLogger().trace("DeliveryThread ({}).run(): Release item after interruption. qi={}", new Object[]{getName(),dCtx});
-							AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
-							dCtx = null;
+							AspirinInternal.getLogger().trace("DeliveryThread ({}).run(): Release item after interruption. task={}", new Object[]{getName(),task});
+							task.release();
+							task = null;
 						}
 						running = false;
 						try
@@ -80,35 +80,15 @@ public class DeliveryThread extends Thread {
 					}
 
 				}
+				currentTask = task;
 			}
-			// Try to deliver the QueueInfo
-			try
+			// Deliver and release the QueueInfo of the task
+			if( currentTask != null )
 			{
-				if( dCtx != null )
-				{
-					AspirinInternal.getLogger().trace("DeliveryThread ({}).run(): Call delivering... dCtx={}",new Object[]{getName(),dCtx});
-					deliver(dCtx, AspirinInternal.getConfiguration().getMailSession());
-					AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
-					dCtx = null;
+				currentTask.run();
+				synchronized (this) {
+					task = null;
 				}
-			}catch (Exception e)
-			{
-				AspirinInternal.getLogger().error("DeliveryThread ("+getName()+").run(): Could not deliver message. dCtx={"+dCtx+"}", e);
-			}finally
-			/*
-			 * Sometimes QueueInfo's status could be IN_PROCESS. This QueueInfo 
-			 * have to be released before we finishing this round of running. 
-			 * After releasing the dCtx variable will be nullified.
-			 */
-			{
-				if( dCtx != null && !dCtx.getQueueInfo().isSendable() )
-				{
-					AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
-					dCtx = null;
-				}
-			}
-			if( dCtx == null )
-			{
 				try
 				{
 					AspirinInternal.getLogger().trace("DeliveryThread ({}).run(): Try to give back DeliveryThread object into the pool.",getName());
@@ -122,54 +102,21 @@ public class DeliveryThread extends Thread {
 		}
 	}
 	
-	public void setContext(DeliveryContext dCtx) throws MessagingException {
+	public void setTask(DeliveryTask task) throws MessagingException {
 		/*
-		 * If the dCtx variable is not null, then the previous item could be in. 
-		 * If the previous item is not ready to send and is not completed, we 
-		 * have to try send this item with this thread. After this thread is 
-		 * waked up, there were thrown an Exception.
+		 * If the task variable is not null, then the previous task is not 
+		 * finished yet, so this thread could not take a new one.
 		 */
 		synchronized (this) {
-			if( this.dCtx != null )
+			if( this.task != null )
 			{
-				if( this.dCtx.getQueueInfo().hasState(org.masukomi.aspirin.core.store.queue.DeliveryState.IN_PROGRESS) )
-					notify();
-				throw new MessagingException("The previous QuedItem was not removed from this thread.");
+				notify();
+				throw new MessagingException("The previous task was not removed from this thread.");
 			}
-			this.dCtx = dCtx;
-			AspirinInternal.getLogger().trace("DeliveryThread ({}).setQuedItem(): Item was set. qi={}",new Object[]{getName(),dCtx});
+			this.task = task;
+			AspirinInternal.getLogger().trace("DeliveryThread ({}).setTask(): Task was set. task={}",new Object[]{getName(),task});
 			notify();
 		}
 	}
-	
-	private void deliver(DeliveryContext dCtx, Session session) {
-		AspirinInternal.getLogger().info("DeliveryThread ({}).deliver(): Starting mail delivery. qi={}", new Object[]{getName(),dCtx});
-		String[] handlerList = new String[]{
-				ResolveHost.class.getCanonicalName(),
-				SendMessage.class.getCanonicalName()
-		};
-		QueueInfo qInfo = dCtx.getQueueInfo();
-		for( String handlerName : handlerList )
-		{
-			try {
-				AspirinInternal.getDeliveryManager().getDeliveryHandler(handlerName).handle(dCtx);
-			} catch (DeliveryException de) {
-				qInfo.setResultInfo(de.getMessage());
-				AspirinInternal.getLogger().info("DeliveryThread ({}).deliver(): Mail delivery failed: {}. qi={}", new Object[]{getName(),qInfo.getResultInfo(),dCtx});
-				if( de.isPermanent() )
-					qInfo.setState(DeliveryState.FAILED);
-				else
-					qInfo.setState(DeliveryState.QUEUED);
-				return;
-			}
-		}
-		if( qInfo.hasState(DeliveryState.IN_PROGRESS) )
-		{
-			if( qInfo.getResultInfo() == null )
-				qInfo.setResultInfo("250 OK");
-			AspirinInternal.getLogger().info("DeliveryThread ({}).deliver(): Mail delivery success: {}. qi={}", new Object[]{getName(),qInfo.getResultInfo(),dCtx});
-			qInfo.setState(DeliveryState.SENT);
-		}
-	}
 
 }
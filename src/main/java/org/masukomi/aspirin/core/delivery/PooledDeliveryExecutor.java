@@ -0,0 +1,116 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>This {@link DeliveryExecutor} hands the delivery tasks over to 
+ * {@link DeliveryThread} objects borrowed from a commons-pool ObjectPool. It 
+ * was the only delivery engine of Aspirin before the 
+ * {@link ThreadPoolDeliveryExecutor}. If no idle DeliveryThread is available 
+ * in five seconds, the task is rejected.</p>
+ */
+public class PooledDeliveryExecutor implements DeliveryExecutor {
+	
+	private GenericObjectPool deliveryThreadObjectPool = null;
+	private GenericPoolableDeliveryThreadFactory deliveryThreadObjectFactory = null;
+	
+	@Override
+	public void init() {
+		// Configure pool of DeliveryThread threads
+		GenericObjectPool.Config gopConf = new GenericObjectPool.Config();
+		gopConf.lifo = false;
+		gopConf.maxActive = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
+		gopConf.maxIdle = AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax();
+		gopConf.maxWait = 5000;
+		gopConf.testOnReturn = true;
+		gopConf.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+		
+		// Create DeliveryThread object factory used in pool
+		deliveryThreadObjectFactory = new GenericPoolableDeliveryThreadFactory();
+		
+		// Create pool
+		deliveryThreadObjectPool = new GenericObjectPool(deliveryThreadObjectFactory,gopConf);
+		
+		// Initialize object factory of pool
+		deliveryThreadObjectFactory.init(new ThreadGroup("DeliveryThreadGroup"),deliveryThreadObjectPool);
+	}
+	
+	@Override
+	public void execute(DeliveryTask task) throws RejectedExecutionException {
+		AspirinInternal.getLogger().trace("PooledDeliveryExecutor.execute(): Pool state. A{}/I{}",new Object[]{deliveryThreadObjectPool.getNumActive(),deliveryThreadObjectPool.getNumIdle()});
+		DeliveryThread dThread = null;
+		try
+		{
+			dThread = (DeliveryThread)deliveryThreadObjectPool.borrowObject();
+		} catch ( IllegalStateException ise )
+		{
+			/*
+			 * This could be happen, if thread is running, but ObjectPool is 
+			 * already closed. It is a normal process of Aspirin sending thread 
+			 * shutdown.
+			 */
+			throw new RejectedExecutionException("DeliveryThread pool is already closed.", ise);
+		} catch ( NoSuchElementException nsee )
+		{
+			/*
+			 * This happens if there is a lot of mail to send, and no idle 
+			 * DeliveryThread is available.
+			 */
+			throw new RejectedExecutionException("No idle DeliveryThread is available: "+nsee.getMessage(), nsee);
+		} catch ( Exception e )
+		{
+			throw new RejectedExecutionException("Failed borrow delivery thread object.", e);
+		}
+		AspirinInternal.getLogger().trace("PooledDeliveryExecutor.execute(): Borrow DeliveryThread object. dt={}: state '{}/{}'",new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
+		try
+		{
+			dThread.setTask(task);
+		} catch ( MessagingException me )
+		{
+			throw new RejectedExecutionException(me.getMessage(), me);
+		}
+		/*
+		 * On first borrow the DeliveryThread is created and initialized, but 
+		 * not started, because the first time we have to set up the task to 
+		 * deliver.
+		 */
+		if( !dThread.isAlive() )
+			dThread.start();
+	}
+	
+	@Override
+	public int getActiveCount() {
+		return deliveryThreadObjectPool.getNumActive();
+	}
+	
+	@Override
+	public void configChanged(String parameterName) {
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) )
+			deliveryThreadObjectPool.setMaxActive(AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+		else
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_IDLE_MAX) )
+			deliveryThreadObjectPool.setMaxIdle(AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax());
+	}
+	
+	@Override
+	public List<DeliveryTask> shutdown() {
+		try {
+			deliveryThreadObjectPool.close();
+			deliveryThreadObjectPool.clear();
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("PooledDeliveryExecutor.shutdown() failed.",e);
+		}
+		// Borrowed threads finish and release their tasks themselves.
+		return new ArrayList<DeliveryTask>();
+	}
+
+}
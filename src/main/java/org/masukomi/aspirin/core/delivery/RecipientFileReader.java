@@ -0,0 +1,114 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Iterator of the recipients listed in an UTF-8 text file, one address per 
+ * line. Empty lines and lines starting with # are skipped, invalid addresses 
+ * are skipped with a warning. Only the current line is kept in memory, so 
+ * the size of the list is not limited by the heap.</p>
+ * 
+ * <p>An iterator could not throw checked exceptions: if the file could not be 
+ * read, the iteration ends and the exception is given back by 
+ * {@link #getFailure()} and {@link #checkFailure()}.</p>
+ */
+class RecipientFileReader implements Iterator<InternetAddress>, Closeable {
+	
+	private File file;
+	private BufferedReader reader;
+	private InternetAddress nextRecipient = null;
+	private int lineNumber = 0;
+	private IOException failure = null;
+	
+	RecipientFileReader(File file) throws IOException {
+		this.file = file;
+		this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+	
+	@Override
+	public boolean hasNext() {
+		while( nextRecipient == null && reader != null )
+		{
+			String line = null;
+			try {
+				line = reader.readLine();
+			} catch (IOException ioe) {
+				failure = ioe;
+			}
+			if( line == null )
+			{
+				close();
+				break;
+			}
+			lineNumber++;
+			line = line.trim();
+			if( line.length() == 0 || line.startsWith("#") )
+				continue;
+			try {
+				InternetAddress recipient = new InternetAddress(line);
+				recipient.validate();
+				nextRecipient = recipient;
+			} catch (AddressException ae) {
+				AspirinInternal.getLogger().warn("RecipientFileReader.hasNext(): Invalid recipient skipped in {} at line {}: {}",new Object[]{file.getName(), lineNumber, line});
+			}
+		}
+		return nextRecipient != null;
+	}
+	
+	@Override
+	public InternetAddress next() {
+		if( !hasNext() )
+			throw new NoSuchElementException();
+		InternetAddress recipient = nextRecipient;
+		nextRecipient = null;
+		return recipient;
+	}
+	
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * @return The exception, which stopped the reading of the file, or null.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * @throws MessagingException If the reading of the file was stopped by 
+	 * an exception.
+	 */
+	void checkFailure() throws MessagingException {
+		if( failure != null )
+			throw new MessagingException("Recipient file could not be read completely: "+file, failure);
+	}
+	
+	@Override
+	public void close() {
+		if( reader != null )
+		{
+			try {
+				reader.close();
+			} catch (IOException ioe) {
+				// Nothing to do
+			}
+			reader = null;
+		}
+	}
+	
+}
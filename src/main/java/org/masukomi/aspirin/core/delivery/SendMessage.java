@@ -1,12 +1,17 @@
 package org.masukomi.aspirin.core.delivery;
 
-import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Properties;
+import java.util.List;
+import java.util.Map;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
-import javax.mail.Session;
+import javax.mail.SendFailedException;
 import javax.mail.Transport;
 import javax.mail.URLName;
 import javax.mail.internet.AddressException;
@@ -15,10 +20,17 @@ import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
+import com.sun.mail.smtp.SMTPAddressFailedException;
 import com.sun.mail.smtp.SMTPTransport;
 
 /**
+ * This delivery handler sends the message to all recipients of the delivery 
+ * context in one SMTP transaction. If some of the recipients are rejected by 
+ * the server, their results are set here one by one: rejected recipients 
+ * are failed, temporarily rejected recipients are requeued. The result of 
+ * other recipients is set by the delivery task.
  * 
  * @author Laszlo Solova
  *
@@ -29,48 +41,106 @@ public class SendMessage implements DeliveryHandler {
 	public void handle(DeliveryContext dCtx) throws DeliveryException {
 		// Collect sending informations
 		Collection<URLName> targetServers = dCtx.getContextVariable("targetservers");
-		Session session = AspirinInternal.getConfiguration().getMailSession();
 		MimeMessage message = dCtx.getMessage();
 		
 		// Prepare and send
 		Iterator<URLName> urlnIt = targetServers.iterator();
-		InternetAddress[] addr;
-		try {
-			addr = new InternetAddress[]{new InternetAddress(dCtx.getQueueInfo().getRecipient())};
-		} catch (AddressException e) {
-			throw new DeliveryException("Recipient could not be parsed:"+dCtx.getQueueInfo().getRecipient(), true, e);
+		Map<String, QueueInfo> queueInfoByAddress = new HashMap<String, QueueInfo>();
+		List<InternetAddress> addrList = new ArrayList<InternetAddress>();
+		for( QueueInfo qi : dCtx.getQueueInfos() )
+		{
+			if( !qi.hasState(DeliveryState.IN_PROGRESS) )
+				continue;
+			try {
+				InternetAddress recipientAddress = new InternetAddress(qi.getRecipient());
+				addrList.add(recipientAddress);
+				queueInfoByAddress.put(recipientAddress.getAddress().toLowerCase(), qi);
+			} catch (AddressException e) {
+				AspirinInternal.getLogger().info("SendMessage.handle(): Recipient could not be parsed: {}.",qi.getRecipient());
+				qi.setResultInfo("Recipient could not be parsed:"+qi.getRecipient());
+				qi.setState(DeliveryState.FAILED);
+			}
 		}
+		if( addrList.isEmpty() )
+			return;
+		InternetAddress[] addr = addrList.toArray(new InternetAddress[addrList.size()]);
 		boolean sentSuccessfully = false;
-		while ( !sentSuccessfully && urlnIt.hasNext() )
+		URLName outgoingMailServer = null;
+		boolean retryOnNewConnection = false;
+		while ( !sentSuccessfully && (retryOnNewConnection || urlnIt.hasNext()) )
 		{
+			/*
+			 * A reused connection could be closed by the server since the 
+			 * last message, then the same server is tried once more on a 
+			 * new connection.
+			 */
+			boolean retry = retryOnNewConnection;
+			retryOnNewConnection = false;
 			try {
-				URLName outgoingMailServer = urlnIt.next();
-				AspirinInternal.getLogger().debug("SendMessage.handle(): Attempting delivery of '{}' to recipient '{}' on host '{}' ",new Object[]{dCtx.getQueueInfo().getMailid(),dCtx.getQueueInfo().getRecipient(),outgoingMailServer});
-				Properties props = session.getProperties();
-				if (message.getSender() == null) {
-					props.put("mail.smtp.from", "<>");
-				} else {
-					String sender = message.getSender().toString();
-					props.put("mail.smtp.from", sender);
-				}
-				Transport transport = null;
+				if( !retry )
+					outgoingMailServer = urlnIt.next();
+				AspirinInternal.getLogger().debug("SendMessage.handle(): Attempting delivery of '{}' to {} recipient(s) '{}' on host '{}' ",new Object[]{dCtx.getQueueInfo().getMailid(),addr.length,dCtx.getQueueInfo().getRecipient(),outgoingMailServer});
+				String sender = ( message.getSender() == null ) ? "<>" : message.getSender().toString();
+				SmtpConnectionPool connectionPool = AspirinInternal.getDeliveryManager().getConnectionPool();
+				SmtpConnection connection = null;
+				boolean reused = false;
+				boolean sent = false;
  				try {
-					transport = session.getTransport(outgoingMailServer);
 					try {
-						transport.connect();
-						transport.sendMessage(message, addr);
-						if( transport instanceof SMTPTransport )
+						connection = connectionPool.borrow(outgoingMailServer, retry);
+						reused = 0 < connection.getMessageCount();
+						// The connection has its own session properties.
+						connection.setEnvelopeFrom(sender);
+						Transport transport = connection.getTransport();
+						try {
+							transport.sendMessage(message, addr);
+							sent = true;
+						} catch (SendFailedException sfe) {
+							/*
+							 * If the message was sent to some recipients or 
+							 * all recipients were rejected, it is the result. 
+							 * Otherwise the whole transaction was failed.
+							 */
+							sent = hasAddress(sfe.getValidSentAddresses());
+							if( !handleRejectedRecipients(sfe, queueInfoByAddress, sent) )
+							{
+								if( !hasAddress(sfe.getInvalidAddresses()) )
+									throw sfe;
+								/*
+								 * The other recipients should not get the 
+								 * result of the rejected ones, only the 
+								 * result of the transaction.
+								 */
+								throw new MessagingException(sfe.getMessage());
+							}
+						}
+						if( sent && transport instanceof SMTPTransport )
 						{
 							String response = ((SMTPTransport)transport).getLastServerResponse();
 							if( response != null )
 							{
 								AspirinInternal.getLogger().error("SendMessage.handle(): Last server response: {}.",response);
-								dCtx.getQueueInfo().setResultInfo(response);
+								for( QueueInfo qi : queueInfoByAddress.values() )
+								{
+									if( qi.hasState(DeliveryState.IN_PROGRESS) )
+										qi.setResultInfo(response);
+								}
 							}
 						}
 					} catch (MessagingException me) {
-						/* Catch on connection error only. */
-						if( resolveException(me) instanceof ConnectException )
+						/*
+						 * Catch on network errors only (refused, reset or 
+						 * timed out connections), the next server is tried.
+						 */
+						Exception cause = resolveException(me);
+						boolean networkError = ( cause instanceof SocketException || cause instanceof SocketTimeoutException );
+						if( reused && !retry && (networkError || !connection.getTransport().isConnected()) )
+						{
+							AspirinInternal.getLogger().debug("SendMessage.handle(): Reused connection to {} went stale, retrying on a new connection: {}",new Object[]{outgoingMailServer,me.getMessage()});
+							retryOnNewConnection = true;
+							continue;
+						}
+						if( networkError )
 						{
 							AspirinInternal.getLogger().error("SendMessage.handle(): Connection failed.",me);
 							if( !urlnIt.hasNext() )
@@ -87,9 +157,13 @@ public class SendMessage implements DeliveryHandler {
 					sentSuccessfully = true;
 					dCtx.addContextVariable("newstate", DeliveryState.SENT);
 				} finally {
-					if (transport != null) {
-						transport.close();
-						transport = null;
+					/*
+					 * Connection is kept open for the next message to this 
+					 * server only after a successful delivery.
+					 */
+					if (connection != null) {
+						connectionPool.giveBack(connection, sent);
+						connection = null;
 					}
 				}
 			} catch (MessagingException me) {
@@ -104,6 +178,60 @@ public class SendMessage implements DeliveryHandler {
 			throw new DeliveryException("SendMessage.handle(): Mail '{}' sending failed, try later.", false);
 	}
 
+	/**
+	 * Set the result of recipients rejected by the server. Permanently 
+	 * rejected recipients are failed. If the message was sent to other 
+	 * recipients, the not sent ones are requeued.
+	 * 
+	 * @return true, if no more result should be set by the exception.
+	 */
+	private boolean handleRejectedRecipients(SendFailedException sfe, Map<String, QueueInfo> queueInfoByAddress, boolean sent) {
+		// Collect the server responses of rejected recipients
+		Map<String, String> responseByAddress = new HashMap<String, String>();
+		Exception nextException = sfe.getNextException();
+		while( nextException instanceof SMTPAddressFailedException )
+		{
+			SMTPAddressFailedException afe = (SMTPAddressFailedException)nextException;
+			if( afe.getAddress() != null )
+				responseByAddress.put(afe.getAddress().getAddress().toLowerCase(), afe.getMessage());
+			nextException = afe.getNextException();
+		}
+		boolean inProgress = false;
+		if( sfe.getInvalidAddresses() != null )
+		{
+			for( Address address : sfe.getInvalidAddresses() )
+				setRecipientResult(address, DeliveryState.FAILED, queueInfoByAddress, responseByAddress, sfe);
+		}
+		if( sfe.getValidUnsentAddresses() != null )
+		{
+			for( Address address : sfe.getValidUnsentAddresses() )
+			{
+				if( sent )
+					setRecipientResult(address, DeliveryState.QUEUED, queueInfoByAddress, responseByAddress, sfe);
+				else
+					inProgress = true;
+			}
+		}
+		return !inProgress;
+	}
+	
+	private void setRecipientResult(Address address, DeliveryState state, Map<String, QueueInfo> queueInfoByAddress, Map<String, String> responseByAddress, SendFailedException sfe) {
+		if( !(address instanceof InternetAddress) )
+			return;
+		String searchKey = ((InternetAddress)address).getAddress().toLowerCase();
+		QueueInfo qi = queueInfoByAddress.get(searchKey);
+		if( qi == null || !qi.hasState(DeliveryState.IN_PROGRESS) )
+			return;
+		String response = responseByAddress.get(searchKey);
+		qi.setResultInfo( response != null ? response : resolveException(sfe).getMessage() );
+		AspirinInternal.getLogger().info("SendMessage.handle(): Recipient rejected: {}. qi={}",qi.getResultInfo(),qi);
+		qi.setState(state);
+	}
+	
+	private boolean hasAddress(Address[] addresses) {
+		return ( addresses != null && 0 < addresses.length );
+	}
+
 	private Exception resolveException(MessagingException msgExc) {
 		MessagingException me = msgExc;
 		Exception nextException = null;
@@ -0,0 +1,89 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * This is an open connection to a mail server, managed by the 
+ * {@link SmtpConnectionPool}. Every connection has its own mail session, so 
+ * the per message session properties (the envelope sender) are set on the 
+ * borrowed connection without affecting other deliveries.
+ */
+public class SmtpConnection {
+	
+	private final URLName targetServer;
+	private final Transport transport;
+	private final Properties sessionProperties;
+	private int messageCount = 0;
+	
+	SmtpConnection(URLName targetServer, Transport transport, Properties sessionProperties) {
+		this.targetServer = targetServer;
+		this.transport = transport;
+		this.sessionProperties = sessionProperties;
+	}
+	
+	public URLName getTargetServer() {
+		return targetServer;
+	}
+	
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * @return The count of messages sent successfully on this connection.
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+	
+	/**
+	 * Set the envelope sender (MAIL FROM) of the next message sent on this 
+	 * connection.
+	 * @param from The sender address or "&lt;&gt;".
+	 */
+	void setEnvelopeFrom(String from) {
+		sessionProperties.put("mail.smtp.from", from);
+	}
+	
+	void incMessageCount() {
+		messageCount++;
+	}
+	
+	/**
+	 * Reset the SMTP session before the next message. It is the health check 
+	 * of the connection too.
+	 * @return true, if the server accepted the RSET command.
+	 */
+	boolean reset() {
+		if( !(transport instanceof SMTPTransport) )
+			return transport.isConnected();
+		try {
+			return ((SMTPTransport)transport).simpleCommand("RSET") == 250;
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().debug("SmtpConnection.reset(): RSET failed on {}: {}",new Object[]{targetServer,me.getMessage()});
+			return false;
+		}
+	}
+	
+	void close() {
+		try {
+			transport.close();
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().debug("SmtpConnection.close(): Connection close failed on {}: {}",new Object[]{targetServer,me.getMessage()});
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" [server="+targetServer+"; messages="+messageCount+"]";
+	}
+
+}
@@ -0,0 +1,242 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.net.UnknownHostException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>This pool keeps open SMTP connections ({@link Transport} objects) per 
+ * target mail server, so the following messages to the same server do not 
+ * pay the connection setup (TCP, banner, EHLO, STARTTLS) again.</p>
+ * 
+ * <p>A reused connection is checked with an RSET command before it is given 
+ * out. A connection is closed, if it has sent 
+ * aspirin.delivery.connection.messages.max messages, if it was idle for 
+ * aspirin.delivery.connection.idle.timeout milliseconds or if the delivery 
+ * failed on it. If the messages maximum is 1, then connections are not 
+ * reused at all.</p>
+ * 
+ * <p>If the target server has an address resolved by Aspirin (the file part 
+ * of the URLName), the connection is opened to this address by an 
+ * {@link AddressSocketFactory}, but JavaMail gets the host name.</p>
+ */
+public class SmtpConnectionPool implements SmtpConnectionPoolMBean, ConfigurationChangeListener {
+	
+	private GenericKeyedObjectPool connectionPool = null;
+	private volatile int messagesMax = 1;
+	private AtomicLong hitCount = new AtomicLong(0);
+	private AtomicLong missCount = new AtomicLong(0);
+	private AtomicLong destroyedCount = new AtomicLong(0);
+	
+	public SmtpConnectionPool() {
+		GenericKeyedObjectPool.Config gkopConf = new GenericKeyedObjectPool.Config();
+		gkopConf.lifo = true;
+		gkopConf.maxActive = -1;
+		gkopConf.maxTotal = -1;
+		gkopConf.maxIdle = AspirinInternal.getConfiguration().getDeliveryConnectionIdleMax();
+		gkopConf.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW;
+		gkopConf.testOnBorrow = true;
+		gkopConf.testOnReturn = false;
+		gkopConf.testWhileIdle = false;
+		gkopConf.numTestsPerEvictionRun = -1;
+		setIdleTimeout(gkopConf, AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout());
+		connectionPool = new GenericKeyedObjectPool(new SmtpConnectionFactory(), gkopConf);
+		messagesMax = AspirinInternal.getConfiguration().getDeliveryConnectionMessagesMax();
+	}
+	
+	/**
+	 * Get an open connection to the mail server. If there is an idle 
+	 * connection, it is reused, else a new connection is opened.
+	 * @param targetServer URL of the mail server.
+	 * @return Connection with a connected transport.
+	 * @throws MessagingException If the connection could not be opened.
+	 */
+	public SmtpConnection borrow(URLName targetServer) throws MessagingException {
+		return borrow(targetServer, false);
+	}
+	
+	/**
+	 * Get an open connection to the mail server.
+	 * @param targetServer URL of the mail server.
+	 * @param fresh If true, the idle connections to the server are closed 
+	 * first, so a new connection is opened. It is used after a reused 
+	 * connection went stale, the other idle ones are as old as that.
+	 * @return Connection with a connected transport.
+	 * @throws MessagingException If the connection could not be opened.
+	 */
+	public SmtpConnection borrow(URLName targetServer, boolean fresh) throws MessagingException {
+		SmtpConnection connection = null;
+		if( messagesMax <= 1 )
+		{
+			connection = openConnection(targetServer.toString());
+		}
+		else
+		{
+			try {
+				if( fresh )
+					connectionPool.clear(targetServer.toString());
+				connection = (SmtpConnection)connectionPool.borrowObject(targetServer.toString());
+			} catch (MessagingException me) {
+				throw me;
+			} catch (Exception e) {
+				throw new MessagingException("SMTP connection could not be get from pool: "+targetServer, e);
+			}
+		}
+		if( 0 < connection.getMessageCount() )
+			hitCount.incrementAndGet();
+		else
+			missCount.incrementAndGet();
+		return connection;
+	}
+	
+	/**
+	 * Give back the connection after delivery.
+	 * @param connection The borrowed connection.
+	 * @param sent If true, the message was sent successfully and the 
+	 * connection could be reused. Else the connection is closed.
+	 */
+	public void giveBack(SmtpConnection connection, boolean sent) {
+		String key = connection.getTargetServer().toString();
+		if( sent )
+			connection.incMessageCount();
+		try {
+			if( messagesMax <= 1 )
+				closeConnection(connection);
+			else
+			if( sent && connection.getMessageCount() < messagesMax )
+				connectionPool.returnObject(key, connection);
+			else
+				connectionPool.invalidateObject(key, connection);
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("SmtpConnectionPool.giveBack(): Connection could not be given back to "+key+".", e);
+		}
+	}
+	
+	@Override
+	public void configChanged(String parameterName) {
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_CONNECTION_MESSAGES_MAX) )
+			messagesMax = AspirinInternal.getConfiguration().getDeliveryConnectionMessagesMax();
+		else
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_CONNECTION_IDLE_MAX) )
+			connectionPool.setMaxIdle(AspirinInternal.getConfiguration().getDeliveryConnectionIdleMax());
+		else
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT) )
+		{
+			long idleTimeout = AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout();
+			connectionPool.setMinEvictableIdleTimeMillis(idleTimeout);
+			connectionPool.setTimeBetweenEvictionRunsMillis(getEvictionPeriod(idleTimeout));
+		}
+	}
+	
+	/**
+	 * Close all connections.
+	 */
+	public void close() {
+		try {
+			connectionPool.close();
+		} catch (Exception e) {
+			AspirinInternal.getLogger().error("SmtpConnectionPool.close() failed.",e);
+		}
+	}
+	
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+	
+	@Override
+	public int getNumActive() {
+		return connectionPool.getNumActive();
+	}
+	
+	@Override
+	public int getNumIdle() {
+		return connectionPool.getNumIdle();
+	}
+	
+	private static void setIdleTimeout(GenericKeyedObjectPool.Config gkopConf, long idleTimeout) {
+		gkopConf.minEvictableIdleTimeMillis = idleTimeout;
+		gkopConf.timeBetweenEvictionRunsMillis = getEvictionPeriod(idleTimeout);
+	}
+	
+	private static long getEvictionPeriod(long idleTimeout) {
+		return Math.max(1000, idleTimeout/2);
+	}
+	
+	private SmtpConnection openConnection(String key) throws MessagingException {
+		// The session properties of the connection are changed per message.
+		Properties sessionProperties = (Properties)AspirinInternal.getConfiguration().getMailSession().getProperties().clone();
+		/*
+		 * The message is sent to the accepted recipients, even if some 
+		 * others are rejected.
+		 */
+		sessionProperties.put("mail.smtp.sendpartial", "true");
+		URLName targetServer = new URLName(key);
+		if( targetServer.getFile() != null && 0 < targetServer.getFile().length() )
+		{
+			try {
+				sessionProperties.put("mail.smtp.socketFactory", new AddressSocketFactory(targetServer.getHost(), targetServer.getFile()));
+			} catch (UnknownHostException uhe) {
+				throw new MessagingException("Invalid mail server address: "+key, uhe);
+			}
+		}
+		Session session = Session.getInstance(sessionProperties);
+		Transport transport = session.getTransport(targetServer);
+		transport.connect();
+		AspirinInternal.getLogger().trace("SmtpConnectionPool.openConnection(): New connection opened to {}.",key);
+		return new SmtpConnection(targetServer, transport, sessionProperties);
+	}
+	
+	private void closeConnection(SmtpConnection connection) {
+		destroyedCount.incrementAndGet();
+		connection.close();
+	}
+	
+	/**
+	 * Pooled objects are created, checked and destroyed by this factory.
+	 */
+	private class SmtpConnectionFactory extends BaseKeyedPoolableObjectFactory {
+		@Override
+		public Object makeObject(Object key) throws Exception {
+			return openConnection((String)key);
+		}
+		
+		@Override
+		public void destroyObject(Object key, Object obj) throws Exception {
+			closeConnection((SmtpConnection)obj);
+		}
+		
+		@Override
+		public boolean validateObject(Object key, Object obj) {
+			SmtpConnection connection = (SmtpConnection)obj;
+			// New connection, it is just checked on connect.
+			if( connection.getMessageCount() == 0 )
+				return true;
+			if( messagesMax <= connection.getMessageCount() )
+				return false;
+			return connection.reset();
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.masukomi.aspirin.core.delivery;
+
+/**
+ * <p>This is the JMX bean of the SMTP connection pool. It gives back usage 
+ * statistics of the pooled connections.</p>
+ */
+public interface SmtpConnectionPoolMBean {
+	/**
+	 * @return The count of deliveries, which reused an open connection.
+	 */
+	public long getHitCount();
+	/**
+	 * @return The count of deliveries, which opened a new connection.
+	 */
+	public long getMissCount();
+	/**
+	 * @return The count of closed connections (idle, exhausted or broken).
+	 */
+	public long getDestroyedCount();
+	/**
+	 * @return The count of connections currently used by deliveries.
+	 */
+	public int getNumActive();
+	/**
+	 * @return The count of open connections waiting for reuse.
+	 */
+	public int getNumIdle();
+}
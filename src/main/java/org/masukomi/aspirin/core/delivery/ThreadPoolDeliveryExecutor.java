@@ -0,0 +1,133 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>This is the default {@link DeliveryExecutor}. It runs the delivery tasks 
+ * on a bounded {@link ThreadPoolExecutor}. The count of delivery threads is 
+ * the aspirin.delivery.threads.active.max value, which could be changed 
+ * immediately. The work queue holds at most as many tasks as the initial 
+ * count of threads. If all threads are busy and the work queue is full, the 
+ * DeliveryManager waits for a free place instead of requeueing the item.</p>
+ * 
+ * <p>Delivery threads are stopped after a minute of idleness, so the 
+ * aspirin.delivery.threads.idle.max value is not used by this executor.</p>
+ */
+public class ThreadPoolDeliveryExecutor implements DeliveryExecutor {
+	
+	private static final long KEEP_ALIVE_MILLIS = 60000;
+	
+	private ThreadPoolExecutor executor = null;
+	
+	@Override
+	public void init() {
+		int threadsMax = Math.max(1, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+		executor = new ThreadPoolExecutor(
+				threadsMax,
+				threadsMax,
+				KEEP_ALIVE_MILLIS,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(threadsMax),
+				new DeliveryThreadFactory(),
+				new WaitForFreePlacePolicy()
+		);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	@Override
+	public void execute(DeliveryTask task) throws RejectedExecutionException {
+		executor.execute(task);
+	}
+	
+	@Override
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	/**
+	 * @return The count of tasks waiting for a free delivery thread.
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+	
+	@Override
+	public void configChanged(String parameterName) {
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) )
+			resize(Math.max(1, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax()));
+	}
+	
+	private synchronized void resize(int threadsMax) {
+		// Core size could not be greater than maximum size in any moment.
+		if( executor.getMaximumPoolSize() < threadsMax )
+		{
+			executor.setMaximumPoolSize(threadsMax);
+			executor.setCorePoolSize(threadsMax);
+		}
+		else
+		{
+			executor.setCorePoolSize(threadsMax);
+			executor.setMaximumPoolSize(threadsMax);
+		}
+		AspirinInternal.getLogger().debug("ThreadPoolDeliveryExecutor.resize(): Delivery threads maximum set to {}.",threadsMax);
+	}
+	
+	@Override
+	public List<DeliveryTask> shutdown() {
+		List<Runnable> notStarted = new ArrayList<Runnable>();
+		executor.shutdown();
+		executor.getQueue().drainTo(notStarted);
+		List<DeliveryTask> tasks = new ArrayList<DeliveryTask>(notStarted.size());
+		for( Runnable r : notStarted )
+			tasks.add((DeliveryTask)r);
+		return tasks;
+	}
+	
+	/**
+	 * The DeliveryManager has to wait, if all delivery threads are busy and 
+	 * the work queue is full.
+	 */
+	private static class WaitForFreePlacePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if( executor.isShutdown() )
+				throw new RejectedExecutionException("Delivery executor is already shut down.");
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Waiting for a free delivery thread was interrupted.", ie);
+			}
+			// Shutdown could happen while we were waiting.
+			if( executor.isShutdown() && executor.getQueue().remove(r) )
+				throw new RejectedExecutionException("Delivery executor is already shut down.");
+		}
+	}
+	
+	/**
+	 * Create named delivery threads in a common ThreadGroup.
+	 */
+	private static class DeliveryThreadFactory implements ThreadFactory {
+		private ThreadGroup deliveryThreadGroup = new ThreadGroup("DeliveryThreadGroup");
+		private int threadCount = 0;
+		
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			threadCount++;
+			Thread t = new Thread(deliveryThreadGroup, r, DeliveryThread.class.getSimpleName()+"-"+threadCount);
+			AspirinInternal.getLogger().trace("ThreadPoolDeliveryExecutor.newThread(): New delivery thread created: {}.",t.getName());
+			return t;
+		}
+	}
+
+}
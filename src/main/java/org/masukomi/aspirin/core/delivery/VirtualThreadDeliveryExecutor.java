@@ -0,0 +1,208 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>This {@link DeliveryExecutor} runs every delivery task on its own 
+ * virtual thread (Java 21 or newer). SMTP delivery is mostly waiting for the 
+ * network, so a lot of slow deliveries could run paralel without the memory 
+ * cost of platform threads.</p>
+ * 
+ * <p>The count of paralel deliveries is limited by the 
+ * aspirin.delivery.threads.active.max value (change is applied immediately), 
+ * so in this mode it could be set to thousands. If the limit is reached, the 
+ * DeliveryManager waits for a finishing delivery.</p>
+ * 
+ * <p>Virtual threads are created by reflection, so Aspirin could be run on 
+ * older Java versions. On these versions this executor falls back to a new 
+ * platform thread per delivery.</p>
+ * 
+ * <p><b>Carrier pinning:</b> JavaMail 1.4.2 connects and sends in 
+ * synchronized methods (Service.connect(), SMTPTransport.sendMessage()). 
+ * Before Java 24 a virtual thread blocked on the network inside a 
+ * synchronized method pins its carrier thread, so on Java 21-23 only as many 
+ * deliveries could wait for the network at the same time as many carrier 
+ * threads are (jdk.virtualThreadScheduler.parallelism, default is the count 
+ * of processors). The other deliveries wait for a free carrier, so a higher 
+ * aspirin.delivery.threads.active.max does not give more paralel deliveries 
+ * on these versions. A warning is logged on {@link #init()} in this case. 
+ * Java 24 and newer (JEP 491) do not pin carriers in synchronized 
+ * methods.</p>
+ */
+public class VirtualThreadDeliveryExecutor implements DeliveryExecutor {
+	
+	/**
+	 * Permits given on shutdown, so every waiting and later caller of 
+	 * execute() gets through the semaphore and sees the shutdown flag.
+	 */
+	private static final int SHUTDOWN_PERMITS = Integer.MAX_VALUE/2;
+	
+	private ThreadFactory threadFactory = null;
+	private ResizeableSemaphore permits = null;
+	private int permitCount = 0;
+	private AtomicInteger activeCount = new AtomicInteger(0);
+	private volatile boolean shutdown = false;
+	
+	@Override
+	public void init() {
+		permitCount = Math.max(1, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+		permits = new ResizeableSemaphore(permitCount);
+		threadFactory = createVirtualThreadFactory();
+		if( threadFactory == null )
+		{
+			AspirinInternal.getLogger().warn("VirtualThreadDeliveryExecutor.init(): Virtual threads are not supported by this Java runtime, platform threads are used.");
+			threadFactory = new PlatformThreadFactory();
+		}
+		else
+		if( isCarrierPinnedBySynchronized() )
+		{
+			int carrierCount = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+			if( carrierCount < permitCount )
+				AspirinInternal.getLogger().warn("VirtualThreadDeliveryExecutor.init(): JavaMail pins carrier threads on this Java runtime, only {} of {} paralel deliveries could wait for the network at the same time.",carrierCount,permitCount);
+		}
+	}
+	
+	@Override
+	public void execute(final DeliveryTask task) throws RejectedExecutionException {
+		if( shutdown )
+			throw new RejectedExecutionException("Delivery executor is already shut down.");
+		try {
+			permits.acquire();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Waiting for a free delivery slot was interrupted.", ie);
+		}
+		if( shutdown )
+		{
+			permits.release();
+			throw new RejectedExecutionException("Delivery executor is already shut down.");
+		}
+		Runnable delivery = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					activeCount.decrementAndGet();
+					permits.release();
+				}
+			}
+		};
+		activeCount.incrementAndGet();
+		try {
+			threadFactory.newThread(delivery).start();
+		} catch (RuntimeException re) {
+			activeCount.decrementAndGet();
+			permits.release();
+			throw new RejectedExecutionException("Delivery thread could not be started.", re);
+		}
+	}
+	
+	@Override
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+	
+	@Override
+	public void configChanged(String parameterName) {
+		if( parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX) )
+			resize(Math.max(1, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax()));
+	}
+	
+	private synchronized void resize(int newPermitCount) {
+		if( shutdown )
+			return;
+		if( permitCount < newPermitCount )
+			permits.release(newPermitCount-permitCount);
+		else
+		if( newPermitCount < permitCount )
+			permits.reducePermits(permitCount-newPermitCount);
+		permitCount = newPermitCount;
+		AspirinInternal.getLogger().debug("VirtualThreadDeliveryExecutor.resize(): Paralel deliveries maximum set to {}.",newPermitCount);
+	}
+	
+	@Override
+	public synchronized List<DeliveryTask> shutdown() {
+		if( !shutdown )
+		{
+			shutdown = true;
+			// Wake up the callers waiting for a free delivery slot.
+			if( permits != null )
+				permits.release(SHUTDOWN_PERMITS);
+		}
+		// Tasks are started immediately, so there is no waiting task.
+		return new ArrayList<DeliveryTask>();
+	}
+	
+	/**
+	 * Get the factory of virtual threads by reflection: 
+	 * Thread.ofVirtual().name("DeliveryThread-", 1).factory().
+	 * @return The thread factory or null, if the runtime does not support 
+	 * virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Class<?> builderClass = ofVirtual.getReturnType();
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, DeliveryThread.class.getSimpleName()+"-", 1L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			AspirinInternal.getLogger().debug("VirtualThreadDeliveryExecutor.createVirtualThreadFactory(): Virtual thread factory could not be created: {}",e.toString());
+			return null;
+		}
+	}
+	
+	/**
+	 * @return True, if a virtual thread blocked in a synchronized method pins
+	 * its carrier thread (Java 21-23).
+	 */
+	private static boolean isCarrierPinnedBySynchronized() {
+		String specificationVersion = System.getProperty("java.specification.version", "");
+		try {
+			return Integer.parseInt(specificationVersion) < 24;
+		} catch (NumberFormatException nfe) {
+			// 1.x versions have no virtual threads
+			return false;
+		}
+	}
+	
+	/**
+	 * Semaphore which permits could be reduced on configuration change.
+	 */
+	private static class ResizeableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 5296408725823409342L;
+		
+		ResizeableSemaphore(int permits) {
+			super(permits);
+		}
+		
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+	
+	/**
+	 * Fallback of runtimes without virtual threads.
+	 */
+	private static class PlatformThreadFactory implements ThreadFactory {
+		private ThreadGroup deliveryThreadGroup = new ThreadGroup("DeliveryThreadGroup");
+		private AtomicInteger threadCount = new AtomicInteger(0);
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(deliveryThreadGroup, r, DeliveryThread.class.getSimpleName()+"-"+threadCount.incrementAndGet());
+		}
+	}
+
+}
@@ -1,13 +1,18 @@
 package org.masukomi.aspirin.core.dns;
 
+import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.mail.URLName;
 
 import org.masukomi.aspirin.core.AspirinInternal;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.MXRecord;
 import org.xbill.DNS.Record;
@@ -15,8 +20,12 @@ import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 /**
- * This object checks all DNS contents and get MX records for emails.
- * TODO Create DNS cache
+ * This object checks all DNS contents and get MX records for emails. The 
+ * resolved mail servers are cached in a {@link MxCache} for the TTL of the 
+ * DNS records. Concurrent lookups of the same domain are collapsed into one 
+ * by a {@link SingleFlight}, even if the cache is disabled. The IP 
+ * addresses of mail servers are resolved and cached in the same way, so the 
+ * connections are opened to the addresses of the DNS records of Aspirin.
  * 
  * @author Laszlo Solova
  *
@@ -25,6 +34,36 @@ public class DnsResolver {
 	
 	public static final String SMTP_PROTOCOL_PREFIX = "smtp://";
 	
+	private static final MxCache mxCache = new MxCache();
+	
+	private static final SingleFlight<String, Collection<URLName>> mxSingleFlight = new SingleFlight<String, Collection<URLName>>();
+	private static final MxCache addressCache = new MxCache();
+	private static final SingleFlight<String, Collection<URLName>> addressSingleFlight = new SingleFlight<String, Collection<URLName>>();
+	
+	/**
+	 * @return The cache of resolved mail servers. It could be registered as 
+	 * a JMX bean to get cache statistics.
+	 */
+	public static MxCache getMxCache() {
+		return mxCache;
+	}
+	
+	/**
+	 * @return The sharing of concurrent lookups. It could be registered as a 
+	 * JMX bean to get lookup statistics.
+	 */
+	public static SingleFlight<String, Collection<URLName>> getMxSingleFlight() {
+		return mxSingleFlight;
+	}
+	
+	/**
+	 * @return The cache of resolved mail server addresses, keyed by mail 
+	 * server host name. It could be registered as a JMX bean.
+	 */
+	public static MxCache getAddressCache() {
+		return addressCache;
+	}
+	
 	/**
 	 * <p>This method gives back the host name(s) where we can send the email. 
 	 * It is copied from it's original place in RemoteDelivery object.</p>
@@ -40,6 +79,15 @@ public class DnsResolver {
 	 * Special Thanks to Tim Motika (tmotika at ionami dot com) for 
 	 * his reworking of this method.
 	 * 
+	 * <p>The result is cached. Temporary lookup failures are not cached.</p>
+	 * 
+	 * <p>If aspirin.dns.addresses.resolve is set, every mail server is 
+	 * replaced by one URLName per IP address in the same order (IPv4 first). 
+	 * The host name is kept, the address is the file part of the URLName, 
+	 * for example smtp://mx.example.com/192.0.2.1. The connection is opened 
+	 * to the address, but TLS checks the host name. If a mail server address 
+	 * could not be resolved, the URLName is kept without address.</p>
+	 * 
 	 * @param hostName We search the associated MX server of this hostname.
 	 * @return Collection of URLName objects. If no MX server found, then it 
 	 * gives back an empty collection.
@@ -47,11 +95,117 @@ public class DnsResolver {
 	 */
 	
 	public static Collection<URLName> getMXRecordsForHost(String hostName) {
+		Collection<URLName> recordsColl = getMailServerNames(hostName);
+		if( recordsColl == null )
+			return null;
+		if( AspirinInternal.getConfiguration().isDnsAddressesResolve() )
+			return getMailServerAddresses(recordsColl);
+		return new Vector<URLName>(recordsColl);
+	}
+	
+	/**
+	 * Get the mail server host names of a domain from the cache or by a 
+	 * shared lookup.
+	 */
+	private static Collection<URLName> getMailServerNames(final String hostName) {
+		final String domain = hostName.toLowerCase();
+		Collection<URLName> cachedRecordsColl = mxCache.get(domain);
+		if( cachedRecordsColl != null )
+			return new Vector<URLName>(cachedRecordsColl);
+		
+		Collection<URLName> recordsColl = null;
+		try {
+			recordsColl = mxSingleFlight.execute(domain, new Callable<Collection<URLName>>() {
+				@Override
+				public Collection<URLName> call() throws Exception {
+					LookupResult lookupResult = new LookupResult();
+					Collection<URLName> lookedUpRecordsColl = lookupMXRecordsForHost(hostName, lookupResult);
+					if( lookedUpRecordsColl != null && !lookupResult.temporaryFailure )
+						mxCache.put(domain, lookedUpRecordsColl, lookupResult.ttl);
+					return lookedUpRecordsColl;
+				}
+			});
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			AspirinInternal.getConfiguration().getLogger().warn("DnsResolver.getMXRecordsForHost(): Interrupted while waiting for MX record of host '{}'.",hostName);
+		} catch (ExecutionException ee) {
+			AspirinInternal.getConfiguration().getLogger().warn("DnsResolver.getMXRecordsForHost(): Failed get MX record for host '"+hostName+"'.",ee.getCause());
+		}
+		return recordsColl;
+	}
+	
+	/**
+	 * Replace the mail servers with their cached or resolved IP addresses.
+	 */
+	private static Collection<URLName> getMailServerAddresses(Collection<URLName> mailServers) {
+		Vector<URLName> addressColl = new Vector<URLName>(mailServers.size());
+		for( URLName mailServer : mailServers )
+		{
+			final String serverName = mailServer.getHost().toLowerCase();
+			Collection<URLName> serverAddresses = addressCache.get(serverName);
+			if( serverAddresses == null )
+			{
+				try {
+					serverAddresses = addressSingleFlight.execute(serverName, new Callable<Collection<URLName>>() {
+						@Override
+						public Collection<URLName> call() throws Exception {
+							LookupResult lookupResult = new LookupResult();
+							Collection<URLName> lookedUpAddresses = lookupAddresses(serverName, lookupResult);
+							if( !lookupResult.temporaryFailure )
+								addressCache.put(serverName, lookedUpAddresses, lookupResult.ttl);
+							return lookedUpAddresses;
+						}
+					});
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException ee) {
+					AspirinInternal.getConfiguration().getLogger().warn("DnsResolver.getMailServerAddresses(): Failed get address of mail server '"+serverName+"'.",ee.getCause());
+				}
+			}
+			// JavaMail resolves the host name, if we could not.
+			if( serverAddresses == null || serverAddresses.isEmpty() )
+				addressColl.add(mailServer);
+			else
+				addressColl.addAll(serverAddresses);
+		}
+		return addressColl;
+	}
+	
+	/**
+	 * Get the IPv4 and IPv6 addresses of a mail server as URLName objects 
+	 * with the host name of the server and the address as file.
+	 */
+	private static Collection<URLName> lookupAddresses(String serverName, LookupResult lookupResult) throws TextParseException {
+		Vector<URLName> addressColl = new Vector<URLName>();
+		int[] types = new int[]{Type.A, Type.AAAA};
+		for( int type : types )
+		{
+			Record[] records = lookup(serverName, type, lookupResult);
+			if( records == null )
+				continue;
+			for( Record record : records )
+			{
+				InetAddress address = null;
+				if( record instanceof ARecord )
+					address = ((ARecord)record).getAddress();
+				else
+				if( record instanceof AAAARecord )
+					address = ((AAAARecord)record).getAddress();
+				if( address == null )
+					continue;
+				addressColl.add(new URLName(SMTP_PROTOCOL_PREFIX + serverName + "/" + address.getHostAddress()));
+			}
+		}
+		AspirinInternal.getConfiguration().getLogger().trace("DnsResolver.lookupAddresses(): {} addresses found for mail server '{}'.",addressColl.size(),serverName);
+		return addressColl;
+	}
+	
+	private static Collection<URLName> lookupMXRecordsForHost(String hostName, LookupResult lookupResult) {
 
 		Vector<URLName> recordsColl = null;
 		try {
 			boolean foundOriginalMX = true;
-			Record[] records = new Lookup(hostName, Type.MX).run();
+			Record[] records = lookup(hostName, Type.MX, lookupResult);
 			
 			/*
 			 * Sometimes we should send an email to a subdomain which does not 
@@ -72,7 +226,7 @@ public class DnsResolver {
 					)
 				{
 					upperLevelHostName = upperLevelHostName.substring(upperLevelHostName.indexOf(".")+1);
-					records = new Lookup(upperLevelHostName, Type.MX).run();
+					records = lookup(upperLevelHostName, Type.MX, lookupResult);
 				}
 			}
 
@@ -116,7 +270,7 @@ public class DnsResolver {
              */
 			if( !foundOriginalMX )
 			{
-				Record[] recordsTypeA = new Lookup(hostName, Type.A).run();
+				Record[] recordsTypeA = lookup(hostName, Type.A, lookupResult);
 				if (recordsTypeA != null && recordsTypeA.length > 0)
 				{
 					recordsColl.add(0, new URLName(SMTP_PROTOCOL_PREFIX + hostName));
@@ -129,4 +283,35 @@ public class DnsResolver {
 
 		return recordsColl;
 	}
+	
+	/**
+	 * Run a DNS lookup and collect the lowest TTL of records and the 
+	 * temporary failures into the lookup result.
+	 */
+	private static Record[] lookup(String name, int type, LookupResult lookupResult) throws TextParseException {
+		Lookup lookup = new Lookup(name, type);
+		Record[] records = lookup.run();
+		if( lookup.getResult() == Lookup.TRY_AGAIN || lookup.getResult() == Lookup.UNRECOVERABLE )
+			lookupResult.temporaryFailure = true;
+		if( records != null )
+		{
+			for( Record record : records )
+			{
+				if( lookupResult.ttl < 0 || record.getTTL() < lookupResult.ttl )
+					lookupResult.ttl = record.getTTL();
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Cacheability informations collected in a host resolution.
+	 */
+	private static class LookupResult {
+		/**
+		 * The lowest TTL of used records in seconds, -1 if none.
+		 */
+		private long ttl = -1;
+		private boolean temporaryFailure = false;
+	}
 }
@@ -0,0 +1,202 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.URLName;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This is the cache of mail servers resolved by {@link DnsResolver}. 
+ * Every domain is cached for the lowest TTL of its DNS records, clamped 
+ * between the configured minimal and maximal caching time. Domains without 
+ * mail server are cached for the negative caching time.</p>
+ * 
+ * <p>The cache size is limited. If it is full, the expired entries are 
+ * removed first, then the entries nearest to their expiry are evicted. The 
+ * entries are kept ordered by expiry too, so a put does not scan the 
+ * cache. Lookups read the map only.</p>
+ */
+public class MxCache implements MxCacheMBean {
+	
+	private ConcurrentMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+	/**
+	 * Entries ordered by expiry, guarded by the eviction lock.
+	 */
+	private TreeSet<CacheEntry> expiryOrder = new TreeSet<CacheEntry>();
+	private Object evictionLock = new Object();
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	private AtomicLong expiredCount = new AtomicLong();
+	private AtomicLong evictionCount = new AtomicLong();
+	
+	/**
+	 * @param domain The lower case domain name.
+	 * @return The cached mail servers or null, if the domain is not cached. 
+	 * A cached domain without mail server gives back an empty collection.
+	 */
+	public Collection<URLName> get(String domain) {
+		CacheEntry entry = entries.get(domain);
+		if( entry != null && entry.isExpired(System.currentTimeMillis()) )
+		{
+			synchronized (evictionLock) {
+				if( entries.remove(domain, entry) )
+				{
+					expiryOrder.remove(entry);
+					expiredCount.incrementAndGet();
+				}
+			}
+			entry = null;
+		}
+		if( entry == null )
+		{
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.targetServers;
+	}
+	
+	/**
+	 * Check the domain without counting a hit or a miss.
+	 * 
+	 * @param domain The lower case domain name.
+	 * @return true, if the domain is cached and not expired.
+	 */
+	public boolean isCached(String domain) {
+		CacheEntry entry = entries.get(domain);
+		return ( entry != null && !entry.isExpired(System.currentTimeMillis()) );
+	}
+	
+	/**
+	 * Cache the resolved mail servers of a domain.
+	 * 
+	 * @param domain The lower case domain name.
+	 * @param targetServers The mail servers, could be empty.
+	 * @param ttl The lowest TTL of DNS records in seconds or -1, if there was 
+	 * no record.
+	 */
+	public void put(String domain, Collection<URLName> targetServers, long ttl) {
+		int sizeMax = AspirinInternal.getConfiguration().getDnsCacheSize();
+		long cachingTime = getCachingTime(targetServers.isEmpty(), ttl);
+		if( sizeMax <= 0 || cachingTime <= 0 )
+			return;
+		List<URLName> targetServerList = Collections.unmodifiableList(new ArrayList<URLName>(targetServers));
+		long now = System.currentTimeMillis();
+		CacheEntry entry = new CacheEntry(domain, targetServerList, now+cachingTime);
+		synchronized (evictionLock) {
+			CacheEntry previousEntry = entries.get(domain);
+			if( previousEntry != null )
+				expiryOrder.remove(previousEntry);
+			else
+				makeRoom(sizeMax, now);
+			entries.put(domain, entry);
+			expiryOrder.add(entry);
+		}
+	}
+	
+	/**
+	 * Remove expired entries, then the entries nearest to their expiry, 
+	 * until there is place for a new entry. The eviction lock has to be 
+	 * held.
+	 */
+	private void makeRoom(int sizeMax, long now) {
+		while( !expiryOrder.isEmpty() && expiryOrder.first().isExpired(now) )
+		{
+			entries.remove(expiryOrder.pollFirst().domain);
+			expiredCount.incrementAndGet();
+		}
+		while( sizeMax <= entries.size() && !expiryOrder.isEmpty() )
+		{
+			entries.remove(expiryOrder.pollFirst().domain);
+			evictionCount.incrementAndGet();
+		}
+	}
+	
+	private long getCachingTime(boolean negative, long ttl) {
+		if( negative )
+			return AspirinInternal.getConfiguration().getDnsCacheTtlNegative();
+		long ttlMin = AspirinInternal.getConfiguration().getDnsCacheTtlMin();
+		long ttlMax = AspirinInternal.getConfiguration().getDnsCacheTtlMax();
+		long cachingTime = ( ttl < 0 ) ? ttlMin : ttl*1000;
+		if( cachingTime < ttlMin )
+			cachingTime = ttlMin;
+		if( ttlMax < cachingTime )
+			cachingTime = ttlMax;
+		return cachingTime;
+	}
+	
+	@Override
+	public void clear() {
+		synchronized (evictionLock) {
+			entries.clear();
+			expiryOrder.clear();
+		}
+	}
+	
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	@Override
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+	
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	@Override
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long lookups = hits+missCount.get();
+		return ( lookups == 0 ) ? 0.0 : (double)hits/lookups;
+	}
+	
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	public int getSize() {
+		return entries.size();
+	}
+	
+	/**
+	 * Cached mail servers of a domain, ordered by expiry and domain.
+	 */
+	private static class CacheEntry implements Comparable<CacheEntry> {
+		private final String domain;
+		private final List<URLName> targetServers;
+		private final long expiry;
+		
+		CacheEntry(String domain, List<URLName> targetServers, long expiry) {
+			this.domain = domain;
+			this.targetServers = targetServers;
+			this.expiry = expiry;
+		}
+		
+		boolean isExpired(long now) {
+			return expiry <= now;
+		}
+		
+		@Override
+		public int compareTo(CacheEntry other) {
+			if( expiry != other.expiry )
+				return ( expiry < other.expiry ) ? -1 : 1;
+			return domain.compareTo(other.domain);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.masukomi.aspirin.core.dns;
+
+/**
+ * <p>This is the JMX bean of the MX cache.</p>
+ */
+public interface MxCacheMBean {
+	/**
+	 * @return Count of lookups answered from the cache.
+	 */
+	public long getHitCount();
+	/**
+	 * @return Count of lookups sent to the DNS resolver.
+	 */
+	public long getMissCount();
+	/**
+	 * @return Ratio of cache hits and all lookups, between 0 and 1.
+	 */
+	public double getHitRatio();
+	/**
+	 * @return Count of domains removed, because their caching time is over.
+	 */
+	public long getExpiredCount();
+	/**
+	 * @return Count of domains removed before expiry, because the cache was 
+	 * full.
+	 */
+	public long getEvictionCount();
+	/**
+	 * @return Current count of cached domains.
+	 */
+	public int getSize();
+	/**
+	 * Remove all cached domains.
+	 */
+	public void clear();
+}
@@ -0,0 +1,202 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>This object resolves the mail servers of recipient domains in 
+ * background, when a mail is added to the queue. The results are put into 
+ * the {@link MxCache} by {@link DnsResolver}, so the first delivery attempt 
+ * usually finds them resolved. If the delivery comes while the prefetching 
+ * is in progress, it waits for the same lookup.</p>
+ * 
+ * <p>Prefetching is best effort: if the small work queue is full, the 
+ * domain is resolved at delivery.</p>
+ */
+public class MxPrefetcher implements MxPrefetcherMBean, ConfigurationChangeListener {
+	
+	private static final long KEEP_ALIVE_MILLIS = 60000;
+	private static final int QUEUE_SIZE = 1000;
+	
+	private ThreadPoolExecutor executor;
+	/**
+	 * Domains prefetched, but not delivered yet. Used to count the hits. 
+	 * Domains of removed mails are never delivered, so the least recently 
+	 * prefetched domains are forgotten above the queue size.
+	 */
+	private Map<String, Boolean> prefetchedDomains = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = -3818262532874530184L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return QUEUE_SIZE < size();
+		}
+	};
+	private AtomicLong scheduledCount = new AtomicLong();
+	private AtomicLong rejectedCount = new AtomicLong();
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	
+	public MxPrefetcher() {
+		int threadsMax = Math.max(1, AspirinInternal.getConfiguration().getDnsPrefetchThreads());
+		executor = new ThreadPoolExecutor(
+				threadsMax,
+				threadsMax,
+				KEEP_ALIVE_MILLIS,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+				new PrefetchThreadFactory()
+		);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Schedule the resolution of recipient domains, which are not cached.
+	 * 
+	 * @param recipients The recipients of a new mail.
+	 */
+	public void prefetch(Collection<InternetAddress> recipients) {
+		if( AspirinInternal.getConfiguration().getDnsPrefetchThreads() <= 0 || 
+				AspirinInternal.getConfiguration().getDnsCacheSize() <= 0 )
+			return;
+		Set<String> domains = new HashSet<String>();
+		for( InternetAddress recipient : recipients )
+		{
+			String address = recipient.getAddress();
+			if( address != null )
+				domains.add(address.substring(address.lastIndexOf("@")+1).toLowerCase());
+		}
+		for( final String domain : domains )
+		{
+			if( DnsResolver.getMxCache().isCached(domain) )
+				continue;
+			synchronized (prefetchedDomains) {
+				if( prefetchedDomains.put(domain, Boolean.TRUE) != null )
+					continue;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						DnsResolver.getMXRecordsForHost(domain);
+					}
+				});
+				scheduledCount.incrementAndGet();
+			} catch (RejectedExecutionException ree) {
+				synchronized (prefetchedDomains) {
+					prefetchedDomains.remove(domain);
+				}
+				rejectedCount.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Count a hit or a miss, if the domain was prefetched and this is the 
+	 * first delivery to it. Call before resolving the domain at delivery. 
+	 * If the prefetching lookup is in progress, the delivery waits for it, 
+	 * so it is a hit too.
+	 * 
+	 * @param host The domain of a recipient.
+	 */
+	public void checkPrefetched(String host) {
+		String domain = host.toLowerCase();
+		Boolean prefetched;
+		synchronized (prefetchedDomains) {
+			prefetched = prefetchedDomains.remove(domain);
+		}
+		if( prefetched != null )
+		{
+			// The lookup caches its result before it leaves the flight.
+			if( DnsResolver.getMxSingleFlight().isInFlight(domain) || DnsResolver.getMxCache().isCached(domain) )
+				hitCount.incrementAndGet();
+			else
+				missCount.incrementAndGet();
+		}
+	}
+	
+	@Override
+	public void configChanged(String parameterName) {
+		if( parameterName.equals(ConfigurationMBean.PARAM_DNS_PREFETCH_THREADS) )
+			resize(Math.max(1, AspirinInternal.getConfiguration().getDnsPrefetchThreads()));
+	}
+	
+	private synchronized void resize(int threadsMax) {
+		// Core size could not be greater than maximum size in any moment.
+		if( executor.getMaximumPoolSize() < threadsMax )
+		{
+			executor.setMaximumPoolSize(threadsMax);
+			executor.setCorePoolSize(threadsMax);
+		}
+		else
+		{
+			executor.setCorePoolSize(threadsMax);
+			executor.setMaximumPoolSize(threadsMax);
+		}
+	}
+	
+	public void shutdown() {
+		executor.shutdownNow();
+		synchronized (prefetchedDomains) {
+			prefetchedDomains.clear();
+		}
+	}
+	
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	@Override
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long checks = hits+missCount.get();
+		return ( checks == 0 ) ? 0.0 : (double)hits/checks;
+	}
+	
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	@Override
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+	
+	/**
+	 * Create named daemon threads, so prefetching never blocks the exit.
+	 */
+	private static class PrefetchThreadFactory implements ThreadFactory {
+		private int threadCount = 0;
+		
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			threadCount++;
+			Thread t = new Thread(r, "DnsPrefetchThread-"+threadCount);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package org.masukomi.aspirin.core.dns;
+
+/**
+ * <p>This is the JMX bean of MX prefetching.</p>
+ */
+public interface MxPrefetcherMBean {
+	/**
+	 * @return Count of domains scheduled for prefetching.
+	 */
+	public long getScheduledCount();
+	/**
+	 * @return Count of domains not prefetched, because the prefetching 
+	 * queue was full.
+	 */
+	public long getRejectedCount();
+	/**
+	 * @return Count of first deliveries to a prefetched domain, which found 
+	 * the mail servers already resolved or being resolved by the 
+	 * prefetching.
+	 */
+	public long getHitCount();
+	/**
+	 * @return Count of first deliveries to a prefetched domain, which had to 
+	 * resolve the mail servers themselves.
+	 */
+	public long getMissCount();
+	/**
+	 * @return Ratio of hits and all first deliveries to prefetched domains, 
+	 * between 0 and 1.
+	 */
+	public double getHitRatio();
+}
@@ -29,6 +29,7 @@ public class ResolveHost implements DeliveryHandler {
 		String host = currentRecipient.substring(currentRecipient.lastIndexOf("@")+1);
 		Collection<URLName> targetServers = null;
 		try {
+			AspirinInternal.getDeliveryManager().getMxPrefetcher().checkPrefetched(host);
 			targetServers = DnsResolver.getMXRecordsForHost(host);
 			/*
              * If there was no target server, could be caused by a temporary
@@ -0,0 +1,78 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This object collapses concurrent lookups of the same key into one 
+ * execution. The first caller executes the lookup in its own thread, the 
+ * other callers with the same key wait for its result. After the lookup is 
+ * finished, the next call starts a new execution, so results are not 
+ * cached here.</p>
+ * @param <K> Type of lookup key.
+ * @param <V> Type of lookup result.
+ */
+public class SingleFlight<K, V> implements SingleFlightMBean {
+	
+	private ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+	private AtomicLong executionCount = new AtomicLong();
+	private AtomicLong sharedCount = new AtomicLong();
+	
+	/**
+	 * Execute the lookup or wait for the result of the same lookup started 
+	 * by another thread.
+	 * 
+	 * @param key The key of lookup.
+	 * @param lookup The lookup executed, if there is no lookup in progress 
+	 * with the same key.
+	 * @return The result of the lookup.
+	 * @throws ExecutionException If the lookup failed.
+	 * @throws InterruptedException If the thread was interrupted while 
+	 * waiting for the result of another thread.
+	 */
+	public V execute(K key, Callable<V> lookup) throws ExecutionException, InterruptedException {
+		FutureTask<V> task = new FutureTask<V>(lookup);
+		FutureTask<V> runningTask = inFlight.putIfAbsent(key, task);
+		if( runningTask == null )
+		{
+			executionCount.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			return task.get();
+		}
+		sharedCount.incrementAndGet();
+		return runningTask.get();
+	}
+	
+	/**
+	 * @param key The key of lookup.
+	 * @return True, if a lookup of the key is in progress, so a caller would 
+	 * wait for its result.
+	 */
+	public boolean isInFlight(K key) {
+		return inFlight.containsKey(key);
+	}
+	
+	@Override
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+	
+	@Override
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	@Override
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+}
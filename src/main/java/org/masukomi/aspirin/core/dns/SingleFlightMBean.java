@@ -0,0 +1,20 @@
+package org.masukomi.aspirin.core.dns;
+
+/**
+ * <p>This is the JMX bean of concurrent lookup sharing.</p>
+ */
+public interface SingleFlightMBean {
+	/**
+	 * @return Count of lookups really executed.
+	 */
+	public long getExecutionCount();
+	/**
+	 * @return Count of callers, which got the result of a lookup executed 
+	 * by another caller.
+	 */
+	public long getSharedCount();
+	/**
+	 * @return Current count of executing lookups.
+	 */
+	public int getInFlightCount();
+}
@@ -0,0 +1,26 @@
+package org.masukomi.aspirin.core.listener;
+
+import java.util.List;
+
+/**
+ * <p>This listener gets the delivery results in batches instead of one
+ * call per recipient, so a consumer could handle a batch in one
+ * transaction. A batch is delivered when it has
+ * aspirin.listener.batch.size results or its first result is older than
+ * aspirin.listener.batch.timeout milliseconds.</p>
+ *
+ * <p>The batches are delivered by the listener dispatcher threads. If there
+ * are more dispatcher threads, batches could be delivered concurrently,
+ * but the results of a mail are always in the same batch or in following
+ * batches in order. If there is no dispatcher thread, every result is
+ * delivered alone by the delivery thread.</p>
+ */
+public interface BatchAspirinListener {
+	/**
+	 * Called with delivery results with a persistent delivery state and 
+	 * with the completions of the mails. A completion has no state.
+	 * @param results The results in order of their state changes. The list
+	 * is reused after the call, copy it to keep the results.
+	 */
+	public void delivered(List<DeliveryResult> results);
+}
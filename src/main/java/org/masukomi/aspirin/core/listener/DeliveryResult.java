@@ -0,0 +1,104 @@
+package org.masukomi.aspirin.core.listener;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Delivery result of a recipient. The same object is used as the event
+ * waiting for dispatching and as the record given to the
+ * {@link BatchAspirinListener}s. The completion of a mail is a separate
+ * result flagged as finished, published by the queue store, when the last
+ * pending recipient is finished. The queue stores, which do not count the
+ * recipients of the mails, flag the result of a recipient as finished, if
+ * the mail is completed when the result is published.</p>
+ */
+public class DeliveryResult {
+	/** Longer result texts are truncated in spill files. */
+	private static final int SPILLED_TEXT_MAX = 16384;
+
+	private final String mailid;
+	private final String recipient;
+	private final ResultState state;
+	private final boolean finished;
+	private final String resultInfo;
+	private final long published;
+
+	DeliveryResult(String mailid, String recipient, ResultState state, boolean finished, String resultInfo, long published) {
+		this.mailid = mailid;
+		this.recipient = recipient;
+		this.state = state;
+		this.finished = finished;
+		this.resultInfo = resultInfo;
+		this.published = published;
+	}
+
+	public String getMailid() {
+		return mailid;
+	}
+	/**
+	 * @return The recipient or null, if the mail was completed when its 
+	 * streamed recipients were all added, see 
+	 * {@link ListenerManager#notifyFinished(String)}.
+	 */
+	public String getRecipient() {
+		return recipient;
+	}
+	/**
+	 * @return SENT or FAILED, or null if this result notifies only the 
+	 * completion of the mail, see {@link #isFinished()}.
+	 */
+	public ResultState getState() {
+		return state;
+	}
+	/**
+	 * @return True, if all recipients of the mail have a final delivery
+	 * state with this result.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+	public String getResultInfo() {
+		return resultInfo;
+	}
+	/**
+	 * @return Time of the state change in milliseconds.
+	 */
+	public long getTime() {
+		return published;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" [mailid="+mailid+"; recipient="+recipient+"; state="+state+"; finished="+finished+"]";
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		writeText(out, mailid);
+		writeText(out, recipient);
+		writeText(out, ( state != null ) ? state.name() : null);
+		out.writeBoolean(finished);
+		writeText(out, resultInfo);
+		out.writeLong(published);
+	}
+
+	static DeliveryResult readFrom(DataInput in) throws IOException {
+		String mailid = readText(in);
+		String recipient = readText(in);
+		String state = readText(in);
+		boolean finished = in.readBoolean();
+		String resultInfo = readText(in);
+		long published = in.readLong();
+		return new DeliveryResult(mailid, recipient, ( state != null ) ? ResultState.valueOf(state) : null, finished, resultInfo, published);
+	}
+
+	private static void writeText(DataOutput out, String text) throws IOException {
+		out.writeBoolean(text != null);
+		if( text != null )
+			out.writeUTF(( SPILLED_TEXT_MAX < text.length() ) ? text.substring(0, SPILLED_TEXT_MAX) : text);
+	}
+
+	private static String readText(DataInput in) throws IOException {
+		return ( in.readBoolean() ) ? in.readUTF() : null;
+	}
+}
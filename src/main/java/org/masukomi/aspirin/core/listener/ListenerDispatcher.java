@@ -0,0 +1,276 @@
+package org.masukomi.aspirin.core.listener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This thread calls the listeners with the events published by the
+ * delivery threads. The events are buffered in a bounded ring buffer. If
+ * the buffer is full, the event is handled by the overflow policy:</p>
+ * <ul>
+ *   <li><b>block</b>: the publishing thread waits for free space,</li>
+ *   <li><b>drop</b>: the event is dropped,</li>
+ *   <li><b>spill</b>: the event is appended to a temporary file. The
+ *   following events are spilled too, until the buffer is empty and the
+ *   spilled events are dispatched, so the order of events is kept.</li>
+ * </ul>
+ *
+ * <p>The dispatched results are collected into a batch for the
+ * {@link BatchAspirinListener}s. The batch is delivered, when it is full or
+ * its first result waited aspirin.listener.batch.timeout milliseconds. The
+ * list of the batch is reused.</p>
+ */
+class ListenerDispatcher extends Thread {
+
+	static final String OVERFLOW_BLOCK = "block";
+	static final String OVERFLOW_DROP = "drop";
+	static final String OVERFLOW_SPILL = "spill";
+
+	private static final long POLL_TIMEOUT = 1000;
+
+	private final ListenerManager manager;
+	private final BlockingQueue<DeliveryResult> buffer;
+	private final Object spillLock = new Object();
+	private File spillFile = null;
+	private DataOutputStream spillOut = null;
+	private volatile int spilledEvents = 0;
+	private volatile long spillPublished = 0;
+	private volatile int replayedEvents = 0;
+	private volatile long replayPublished = 0;
+	private volatile boolean running = true;
+	private final List<DeliveryResult> batch = new ArrayList<DeliveryResult>();
+	private long batchDeadline = Long.MAX_VALUE;
+	private AtomicLong dispatchedCount = new AtomicLong(0);
+	private AtomicLong droppedCount = new AtomicLong(0);
+	private AtomicLong spilledCount = new AtomicLong(0);
+
+	ListenerDispatcher(ListenerManager manager, int bufferSize) {
+		this.manager = manager;
+		this.buffer = new ArrayBlockingQueue<DeliveryResult>(Math.max(1, bufferSize));
+		setName("Aspirin-"+getClass().getSimpleName()+"-"+getId());
+		setDaemon(true);
+	}
+
+	/**
+	 * Put an event into the buffer or handle it by the overflow policy. An
+	 * unknown policy is handled as block.
+	 */
+	void publish(DeliveryResult result, String overflow) {
+		synchronized (spillLock) {
+			if( spillFile == null && buffer.offer(result) )
+				return;
+			// The following events wait behind the spilled ones.
+			if( spillFile != null || OVERFLOW_SPILL.equalsIgnoreCase(overflow) )
+			{
+				if( !spill(result) )
+					droppedCount.incrementAndGet();
+				return;
+			}
+		}
+		if( !OVERFLOW_DROP.equalsIgnoreCase(overflow) )
+		{
+			try {
+				buffer.put(result);
+				return;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		droppedCount.incrementAndGet();
+	}
+
+	@Override
+	public void run() {
+		while( true )
+		{
+			try {
+				DeliveryResult result = buffer.poll();
+				if( result == null )
+				{
+					if( replaySpill() )
+						continue;
+					if( !running )
+						break;
+					flushBatch(false);
+					long timeout = Math.min(POLL_TIMEOUT, batchDeadline-System.currentTimeMillis());
+					result = buffer.poll(Math.max(1, timeout), TimeUnit.MILLISECONDS);
+					if( result == null )
+						continue;
+				}
+				dispatch(result);
+			} catch (InterruptedException ie) {
+				running = false;
+			}
+		}
+		flushBatch(true);
+	}
+
+	/**
+	 * Stop the thread after the waiting events are dispatched.
+	 */
+	void shutdown() {
+		running = false;
+	}
+
+	int getQueueDepth() {
+		return replayedEvents+buffer.size()+spilledEvents;
+	}
+
+	/**
+	 * @return Publishing time of the oldest waiting event or Long.MAX_VALUE.
+	 */
+	long getOldestPublished() {
+		if( 0 < replayedEvents )
+			return replayPublished;
+		DeliveryResult result = buffer.peek();
+		if( result != null )
+			return result.getTime();
+		if( 0 < spilledEvents )
+			return spillPublished;
+		return Long.MAX_VALUE;
+	}
+
+	long getDispatchedCount() {
+		return dispatchedCount.get();
+	}
+
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * Call the listeners with the result and put it into the batch.
+	 */
+	private void dispatch(DeliveryResult result) {
+		manager.dispatch(result);
+		if( manager.hasBatchListeners() )
+		{
+			if( batch.isEmpty() )
+				batchDeadline = System.currentTimeMillis()+AspirinInternal.getConfiguration().getListenerBatchTimeout();
+			batch.add(result);
+			flushBatch(false);
+		}
+		dispatchedCount.incrementAndGet();
+	}
+
+	/**
+	 * Deliver the batch, if it is full, its deadline is passed or it is
+	 * forced.
+	 */
+	private void flushBatch(boolean force) {
+		if( batch.isEmpty() )
+			return;
+		if( force || AspirinInternal.getConfiguration().getListenerBatchSize() <= batch.size() || batchDeadline <= System.currentTimeMillis() )
+		{
+			manager.dispatchBatch(batch);
+			batch.clear();
+			batchDeadline = Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Append the event to the spill file. Call only in locked state.
+	 * @return False, if the event could not be written.
+	 */
+	private boolean spill(DeliveryResult result) {
+		try {
+			if( spillFile == null )
+			{
+				String directory = AspirinInternal.getConfiguration().getListenerSpillDirectory();
+				spillFile = File.createTempFile("aspirin-listener-", ".spill", ( directory == null || directory.length() == 0 ) ? null : new File(directory));
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+				spillPublished = result.getTime();
+			}
+			result.writeTo(spillOut);
+			spilledEvents++;
+			spilledCount.incrementAndGet();
+			return true;
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("ListenerDispatcher.spill(): Listener event could not be spilled, it is dropped. mailid="+result.getMailid(), ioe);
+			if( spilledEvents == 0 )
+				closeSpill(true);
+			return false;
+		}
+	}
+
+	/**
+	 * Dispatch the spilled events, if the buffer is empty. The events
+	 * spilled meanwhile go into a new file.
+	 * @return True, if there were spilled events.
+	 */
+	private boolean replaySpill() {
+		File replayFile = null;
+		int events = 0;
+		synchronized (spillLock) {
+			if( spillFile == null || !buffer.isEmpty() )
+				return false;
+			replayFile = spillFile;
+			events = spilledEvents;
+			replayPublished = spillPublished;
+			replayedEvents = events;
+			closeSpill(false);
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(replayFile)));
+			while( 0 < replayedEvents )
+			{
+				DeliveryResult result = DeliveryResult.readFrom(in);
+				replayPublished = result.getTime();
+				dispatch(result);
+				replayedEvents--;
+			}
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("ListenerDispatcher.replaySpill(): "+replayedEvents+" of "+events+" spilled listener events are lost. file="+replayFile.getAbsolutePath(), ioe);
+		} finally {
+			replayedEvents = 0;
+			if( in != null )
+			{
+				try {
+					in.close();
+				} catch (IOException ioe) {
+					// Nothing to do
+				}
+			}
+			if( !replayFile.delete() )
+				AspirinInternal.getLogger().warn("ListenerDispatcher.replaySpill(): Spill file could not be deleted: {}.", replayFile.getAbsolutePath());
+		}
+		return true;
+	}
+
+	/**
+	 * Close the spill file, the next spilled event creates a new one. Call
+	 * only in locked state.
+	 */
+	private void closeSpill(boolean delete) {
+		try {
+			if( spillOut != null )
+				spillOut.close();
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("ListenerDispatcher.closeSpill(): Spill file could not be closed: "+spillFile.getAbsolutePath(), ioe);
+		}
+		if( delete && spillFile != null )
+			spillFile.delete();
+		spillFile = null;
+		spillOut = null;
+		spilledEvents = 0;
+	}
+}
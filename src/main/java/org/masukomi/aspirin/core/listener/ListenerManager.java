@@ -6,45 +6,257 @@ import java.util.List;
 
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.ProgressQueueStore;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
 /**
- * 
+ * <p>The delivery results are published as events to dispatcher threads,
+ * so the delivery threads do not run listener code. The count of dispatcher
+ * threads is set by aspirin.listener.dispatcher.threads, every dispatcher
+ * has a bounded buffer of aspirin.listener.queue.size events. The events of
+ * a mail are dispatched by the same thread, so the FINISHED event comes
+ * after the result of the last recipient. If the count of dispatcher
+ * threads is 0, the listeners are called by the delivery threads.</p>
+ *
+ * <p>If the buffer of a dispatcher is full, the event is handled by the
+ * aspirin.listener.overflow policy, see {@link ListenerDispatcher}. The
+ * depth of the buffers and the lag of dispatching could be watched by
+ * registering this object as a JMX bean.</p>
+ *
+ * <p>The {@link BatchAspirinListener}s get the same results collected into
+ * batches by the dispatcher threads.</p>
+ *
  * @author Laszlo Solova
  *
  */
-public class ListenerManager {
+public class ListenerManager implements ListenerManagerMBean {
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
 	private List<AspirinListener> listenerList = new ArrayList<AspirinListener>();
-	
+	private volatile AspirinListener[] listeners = new AspirinListener[0];
+	private List<BatchAspirinListener> batchListenerList = new ArrayList<BatchAspirinListener>();
+	private volatile BatchAspirinListener[] batchListeners = new BatchAspirinListener[0];
+	private volatile ListenerDispatcher[] dispatchers = null;
+	private volatile boolean shutdown = false;
+	private Object dispatchersLock = new Object();
+
 	public void add(AspirinListener listener) {
 		synchronized (listenerList) {
 			listenerList.add(listener);
+			listeners = listenerList.toArray(new AspirinListener[listenerList.size()]);
 		}
 	}
 	public void remove(AspirinListener listener) {
 		synchronized (listenerList) {
 			listenerList.remove(listener);
+			listeners = listenerList.toArray(new AspirinListener[listenerList.size()]);
+		}
+	}
+	public void add(BatchAspirinListener listener) {
+		synchronized (batchListenerList) {
+			batchListenerList.add(listener);
+			batchListeners = batchListenerList.toArray(new BatchAspirinListener[batchListenerList.size()]);
+		}
+	}
+	public void remove(BatchAspirinListener listener) {
+		synchronized (batchListenerList) {
+			batchListenerList.remove(listener);
+			batchListeners = batchListenerList.toArray(new BatchAspirinListener[batchListenerList.size()]);
 		}
 	}
-	
+
 	public void notifyListeners(QueueInfo qi) {
-		List<AspirinListener> listeners = null;
-		synchronized (listenerList) {
-			listeners = Collections.unmodifiableList(listenerList);
+		if( listeners.length == 0 && batchListeners.length == 0 )
+			return;
+		ResultState state = null;
+		if( qi.hasState(DeliveryState.FAILED) )
+			state = ResultState.FAILED;
+		else
+		if( qi.hasState(DeliveryState.SENT) )
+			state = ResultState.SENT;
+		// Checked once for all listeners, when the state is changed.
+		boolean finished = AspirinInternal.getDeliveryManager().isFinishedBy(qi);
+		if( state == null && !finished )
+			return;
+		publish(new DeliveryResult(qi.getMailid(), qi.getRecipient(), state, finished, qi.getResultInfo(), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Notify the listeners about the completion of the mail of the item. It
+	 * is called by the {@link ProgressQueueStore}s, when the last pending
+	 * recipient of the mail gets its final state, after its own result was
+	 * published.
+	 * @param qi The last finished item of the mail.
+	 */
+	public void notifyFinished(QueueInfo qi) {
+		if( listeners.length == 0 && batchListeners.length == 0 )
+			return;
+		publish(new DeliveryResult(qi.getMailid(), qi.getRecipient(), null, true, qi.getResultInfo(), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Notify the listeners about the completion of a mail, which was not 
+	 * completed by a recipient, for example every recipient of a streamed 
+	 * mail was finished before the last ones were added. The recipient of 
+	 * the result is null.
+	 * @param mailid The mail id of the completed message.
+	 */
+	public void notifyFinished(String mailid) {
+		if( listeners.length == 0 && batchListeners.length == 0 )
+			return;
+		publish(new DeliveryResult(mailid, null, null, true, null, System.currentTimeMillis()));
+	}
+
+	private void publish(DeliveryResult result) {
+		ListenerDispatcher dispatcher = getDispatcher(result.getMailid());
+		if( dispatcher != null )
+			dispatcher.publish(result, AspirinInternal.getConfiguration().getListenerOverflow());
+		else
+		{
+			dispatch(result);
+			if( hasBatchListeners() )
+				dispatchBatch(Collections.singletonList(result));
+		}
+	}
+
+	/**
+	 * Stop the dispatcher threads after the waiting events are dispatched.
+	 * The later events are dispatched by the publishing threads.
+	 */
+	public void shutdown() {
+		ListenerDispatcher[] stoppedDispatchers = null;
+		synchronized (dispatchersLock) {
+			shutdown = true;
+			stoppedDispatchers = dispatchers;
+		}
+		if( stoppedDispatchers == null )
+			return;
+		for( ListenerDispatcher dispatcher : stoppedDispatchers )
+			dispatcher.shutdown();
+		long deadline = System.currentTimeMillis()+SHUTDOWN_TIMEOUT;
+		try {
+			for( ListenerDispatcher dispatcher : stoppedDispatchers )
+				dispatcher.join(Math.max(1, deadline-System.currentTimeMillis()));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int queueDepth = 0;
+		for( ListenerDispatcher dispatcher : getDispatchers() )
+			queueDepth += dispatcher.getQueueDepth();
+		return queueDepth;
+	}
+
+	@Override
+	public long getLag() {
+		long oldestPublished = Long.MAX_VALUE;
+		for( ListenerDispatcher dispatcher : getDispatchers() )
+			oldestPublished = Math.min(oldestPublished, dispatcher.getOldestPublished());
+		return ( oldestPublished == Long.MAX_VALUE ) ? 0 : Math.max(0, System.currentTimeMillis()-oldestPublished);
+	}
+
+	@Override
+	public long getDispatchedCount() {
+		long count = 0;
+		for( ListenerDispatcher dispatcher : getDispatchers() )
+			count += dispatcher.getDispatchedCount();
+		return count;
+	}
+
+	@Override
+	public long getDroppedCount() {
+		long count = 0;
+		for( ListenerDispatcher dispatcher : getDispatchers() )
+			count += dispatcher.getDroppedCount();
+		return count;
+	}
+
+	@Override
+	public long getSpilledCount() {
+		long count = 0;
+		for( ListenerDispatcher dispatcher : getDispatchers() )
+			count += dispatcher.getSpilledCount();
+		return count;
+	}
+
+	/**
+	 * Call the listeners with the event. An exception of a listener does not
+	 * stop the dispatching to the other listeners.
+	 */
+	void dispatch(DeliveryResult result) {
+		for( AspirinListener listener : listeners )
+		{
+			try {
+				if( result.getState() != null )
+					listener.delivered(result.getMailid(), result.getRecipient(), result.getState(), result.getResultInfo());
+				if( result.isFinished() )
+					listener.delivered(result.getMailid(), result.getRecipient(), ResultState.FINISHED, result.getResultInfo());
+			} catch (RuntimeException re) {
+				AspirinInternal.getLogger().error("ListenerManager.dispatch(): Listener failed. mailid="+result.getMailid()+", recipient="+result.getRecipient(), re);
+			}
+		}
+	}
+
+	/**
+	 * Call the batch listeners with the results.
+	 */
+	void dispatchBatch(List<DeliveryResult> results) {
+		List<DeliveryResult> unmodifiableResults = Collections.unmodifiableList(results);
+		for( BatchAspirinListener listener : batchListeners )
+		{
+			try {
+				listener.delivered(unmodifiableResults);
+			} catch (RuntimeException re) {
+				AspirinInternal.getLogger().error("ListenerManager.dispatchBatch(): Batch listener failed with "+results.size()+" results.", re);
+			}
 		}
-		if( listeners != null && !listeners.isEmpty() )
+	}
+
+	boolean hasBatchListeners() {
+		return 0 < batchListeners.length;
+	}
+
+	/**
+	 * @return The dispatcher of the mail or null, if the listeners are called
+	 * synchronously.
+	 */
+	private ListenerDispatcher getDispatcher(String mailid) {
+		if( shutdown )
+			return null;
+		ListenerDispatcher[] currentDispatchers = dispatchers;
+		if( currentDispatchers == null )
 		{
-			for( AspirinListener listener : listeners )
-			{
-				if( qi.hasState(DeliveryState.FAILED) )
-					listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FAILED, qi.getResultInfo());
-				else
-				if( qi.hasState(DeliveryState.SENT) )
-					listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.SENT, qi.getResultInfo());
-				if( AspirinInternal.getDeliveryManager().isCompleted(qi) )
-					listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FINISHED, qi.getResultInfo());
+			synchronized (dispatchersLock) {
+				if( shutdown )
+					return null;
+				if( dispatchers == null )
+				{
+					int threadCount = Math.max(0, AspirinInternal.getConfiguration().getListenerDispatcherThreads());
+					int queueSize = AspirinInternal.getConfiguration().getListenerQueueSize();
+					ListenerDispatcher[] newDispatchers = new ListenerDispatcher[threadCount];
+					for( int i = 0; i < threadCount; i++ )
+					{
+						newDispatchers[i] = new ListenerDispatcher(this, queueSize);
+						newDispatchers[i].start();
+					}
+					dispatchers = newDispatchers;
+				}
+				currentDispatchers = dispatchers;
 			}
 		}
+		if( currentDispatchers.length == 0 )
+			return null;
+		int hash = mailid.hashCode();
+		hash ^= (hash >>> 16);
+		return currentDispatchers[(hash & Integer.MAX_VALUE) % currentDispatchers.length];
+	}
+
+	private ListenerDispatcher[] getDispatchers() {
+		ListenerDispatcher[] currentDispatchers = dispatchers;
+		return ( currentDispatchers != null ) ? currentDispatchers : new ListenerDispatcher[0];
 	}
 
 }
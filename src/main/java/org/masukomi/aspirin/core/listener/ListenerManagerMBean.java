@@ -0,0 +1,31 @@
+package org.masukomi.aspirin.core.listener;
+
+/**
+ * <p>This is the JMX bean of the listener dispatching. It gives back the 
+ * state of the event buffers of the dispatcher threads.</p>
+ */
+public interface ListenerManagerMBean {
+	/**
+	 * @return The count of events waiting for dispatching, in memory and in 
+	 * spill files.
+	 */
+	public int getQueueDepth();
+	/**
+	 * @return Age of the oldest waiting event in milliseconds, 0 if no event 
+	 * is waiting.
+	 */
+	public long getLag();
+	/**
+	 * @return The count of events dispatched to the listeners.
+	 */
+	public long getDispatchedCount();
+	/**
+	 * @return The count of events dropped, because the buffer was full.
+	 */
+	public long getDroppedCount();
+	/**
+	 * @return The count of events written to spill files, because the 
+	 * buffer was full.
+	 */
+	public long getSpilledCount();
+}
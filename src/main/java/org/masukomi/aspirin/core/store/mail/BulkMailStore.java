@@ -0,0 +1,20 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>Extension of {@link MailStore} for stores, which could save more
+ * messages at once cheaper than one by one.</p>
+ */
+public interface BulkMailStore extends MailStore {
+	/**
+	 * Store the messages like {@link MailStore#set(String, MimeMessage)}.
+	 * @param messages MimeMessages by their mailid.
+	 * @return The mailids of the messages, which could not be stored. It is
+	 * empty, if every message is stored.
+	 */
+	public Set<String> setAll(Map<String, MimeMessage> messages);
+}
@@ -0,0 +1,211 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store keeps the recently used messages of another store in
+ * memory, so the backing store, for example a {@link FileMailStore}, does
+ * not have to load the message for every recipient and every retry. The
+ * memory usage is bounded by the estimated size of the messages, set by
+ * aspirin.mailstore.cache.size, the eviction policy is set by
+ * aspirin.mailstore.cache.policy (lru or tinylfu).</p>
+ *
+ * <pre>
+ * FileMailStore fileStore = new FileMailStore();
+ * fileStore.setRootDir(new File("mails"));
+ * Aspirin.getConfiguration().setMailStore(new CachingMailStore(fileStore));
+ * </pre>
+ *
+ * <p>The hits, misses and evictions of the cache could be watched by
+ * registering this object as a JMX bean.</p>
+ */
+public class CachingMailStore implements BulkMailStore, Closeable, CachingMailStoreMBean {
+
+	/** Estimated memory used by a MimeMessage besides its content. */
+	private static final int MESSAGE_OVERHEAD = 1024;
+
+	private final MailStore backingStore;
+	private final MessageCache cache;
+	private final String policy;
+
+	/**
+	 * Create a cache with the configured size and policy.
+	 */
+	public CachingMailStore(MailStore backingStore) {
+		this(backingStore, AspirinInternal.getConfiguration().getMailStoreCacheSize(), AspirinInternal.getConfiguration().getMailStoreCachePolicy());
+	}
+
+	/**
+	 * @param capacity Maximum size of the cached messages in bytes.
+	 * @param policy lru or tinylfu, an unknown policy is handled as lru.
+	 */
+	public CachingMailStore(MailStore backingStore, long capacity, String policy) {
+		if( backingStore == null )
+			throw new IllegalArgumentException(getClass().getSimpleName()+" Please set up backing store.");
+		this.backingStore = backingStore;
+		this.policy = ( MessageCache.POLICY_TINYLFU.equalsIgnoreCase(policy) ) ? MessageCache.POLICY_TINYLFU : MessageCache.POLICY_LRU;
+		this.cache = new MessageCache(capacity, this.policy);
+	}
+
+	@Override
+	public MimeMessage get(String mailid) {
+		MimeMessage msg = cache.get(mailid);
+		if( msg == null )
+		{
+			long modifications = cache.getModifications();
+			msg = backingStore.get(mailid);
+			if( msg != null )
+				cache.putLoaded(mailid, msg, estimateSize(msg), modifications);
+		}
+		return msg;
+	}
+
+	@Override
+	public List<String> getMailIds() {
+		return backingStore.getMailIds();
+	}
+
+	@Override
+	public void init() {
+		backingStore.init();
+	}
+
+	/**
+	 * Close the backing store, if it is closeable.
+	 */
+	@Override
+	public void close() throws IOException {
+		if( backingStore instanceof Closeable )
+			((Closeable)backingStore).close();
+	}
+
+	@Override
+	public void remove(String mailid) {
+		// The backing store goes first, so a concurrent load is not cached.
+		backingStore.remove(mailid);
+		cache.remove(mailid);
+	}
+
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		backingStore.set(mailid, msg);
+		cache.put(mailid, msg, estimateSize(msg));
+	}
+
+	@Override
+	public Set<String> setAll(Map<String, MimeMessage> messages) {
+		Set<String> failedMailids = Collections.emptySet();
+		if( backingStore instanceof BulkMailStore )
+			failedMailids = ((BulkMailStore)backingStore).setAll(messages);
+		else
+		{
+			for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+				backingStore.set(message.getKey(), message.getValue());
+		}
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+		{
+			// A failed message is not served from the memory.
+			if( failedMailids.contains(message.getKey()) )
+				cache.remove(message.getKey());
+			else
+				cache.put(message.getKey(), message.getValue(), estimateSize(message.getValue()));
+		}
+		return failedMailids;
+	}
+
+	public MailStore getBackingStore() {
+		return backingStore;
+	}
+
+	@Override
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	@Override
+	public long getSize() {
+		return cache.getSize();
+	}
+
+	@Override
+	public long getCapacity() {
+		return cache.getCapacity();
+	}
+
+	@Override
+	public int getCount() {
+		return cache.getCount();
+	}
+
+	@Override
+	public String getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Estimate the memory used by the message. The size of the content and
+	 * the headers is used, if the content is known, else the message is
+	 * written out to count its bytes. The content of a
+	 * {@link SharedFileMimeMessage} stays in its file, only its headers are
+	 * counted.
+	 */
+	static long estimateSize(MimeMessage msg) {
+		long size = MESSAGE_OVERHEAD;
+		try {
+			int contentSize = ( msg instanceof SharedFileMimeMessage ) ? 0 : msg.getSize();
+			if( 0 <= contentSize )
+			{
+				size += contentSize;
+				Enumeration<?> headerLines = msg.getAllHeaderLines();
+				while( headerLines != null && headerLines.hasMoreElements() )
+					size += String.valueOf(headerLines.nextElement()).length()+2;
+				return size;
+			}
+			CountingOutputStream out = new CountingOutputStream();
+			msg.writeTo(out);
+			return size+out.count;
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().warn("CachingMailStore.estimateSize(): Message size could not be estimated.", ioe);
+		} catch (MessagingException me) {
+			AspirinInternal.getLogger().warn("CachingMailStore.estimateSize(): Message size could not be estimated.", me);
+		}
+		return size;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.masukomi.aspirin.core.store.mail;
+
+/**
+ * <p>This is the JMX bean of the {@link CachingMailStore}. It gives back
+ * usage statistics of the message cache.</p>
+ */
+public interface CachingMailStoreMBean {
+	/**
+	 * @return The count of messages found in the cache.
+	 */
+	public long getHitCount();
+	/**
+	 * @return The count of messages loaded from the backing store.
+	 */
+	public long getMissCount();
+	/**
+	 * @return The count of messages evicted or not admitted, because the
+	 * cache was full.
+	 */
+	public long getEvictionCount();
+	/**
+	 * @return Estimated size of the cached messages in bytes.
+	 */
+	public long getSize();
+	/**
+	 * @return Maximum size of the cached messages in bytes.
+	 */
+	public long getCapacity();
+	/**
+	 * @return The count of cached messages.
+	 */
+	public int getCount();
+	/**
+	 * @return The eviction policy, lru or tinylfu.
+	 */
+	public String getPolicy();
+}
@@ -1,131 +1,311 @@
 package org.masukomi.aspirin.core.store.mail;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
-import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
 import org.masukomi.aspirin.core.AspirinInternal;
 
 /**
- * This store implementation is designed to reduce memory 
- * usage of MimeMessage instances. All MimeMessage instance 
- * are stored in files and in weak references too. So 
- * garbage collector can remove all large MimeMessage object 
- * from memory if necessary.
- * 
+ * This store implementation is designed to reduce memory
+ * usage of MimeMessage instances. All MimeMessage instance
+ * are stored in files only, and they are loaded from the
+ * file at every request. Wrap this store into a
+ * {@link CachingMailStore} to keep the recently used
+ * messages in memory with bounded size.
+ * <p>The loaded messages read only their headers into
+ * memory, the content is streamed from the file when the
+ * message is sent (see {@link SharedFileMimeMessage}). The
+ * file is open only while the headers are parsed and while
+ * the content is read.</p>
+ * <p>The file name is derived from the mailid (the unsafe
+ * characters are %XX encoded) and a write sequence, and the
+ * subdirectory from the hash of the mailid. Every write
+ * goes into a new file, the previous file of the mailid is
+ * deleted after the index is updated, so a loaded message
+ * never reads the content of a newer version. If a crash
+ * leaves more files of a mailid, the scan keeps the one
+ * with the highest sequence. The mailid to file index is kept in the
+ * mailstore.index file of the root directory (see
+ * {@link FileMailStoreIndex}), so {@link #init()} reads only
+ * the index after a clean shutdown, the store has to be
+ * closed for it. Otherwise the subdirectories are scanned
+ * and the mailids are decoded from the file names, only
+ * the files with other names (for example written by
+ * older versions) are parsed. The subdirectories are
+ * scanned by recoveryThreads threads.</p>
+ * <p>The files are not synced by writing, {@link #flush()}
+ * syncs the files written since the previous flush and
+ * the index, for example after a group commit of the
+ * {@link WriteBehindMailStore}.</p>
+ *
  * @author Laszlo Solova
  *
  */
-public class FileMailStore implements MailStore {
-	
+public class FileMailStore implements BulkMailStore, Closeable, Flushable {
+
+	private static final String MESSAGE_SUFFIX = ".msg";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** Separates the write sequence, it is not a safe character. */
+	private static final char SEQUENCE_SEPARATOR = '+';
+	private static final int WRITE_BUFFER_SIZE = 65536;
+	/** Longer names are not derived from the mailid. */
+	private static final int MAX_NAME_LENGTH = 200;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private File rootDir;
 	private int subDirCount = 3;
-	private Random rand = new Random();
-	private Map<String, WeakReference<MimeMessage>> messageMap = new HashMap<String, WeakReference<MimeMessage>>();
+	private int recoveryThreads = 1;
+	private FileMailStoreIndex index = null;
+	/**
+	 * Sequence of the written files. It starts from the current time, so
+	 * it grows over restarts too, and it is raised above the loaded files.
+	 */
+	private AtomicLong writeSequence = new AtomicLong(System.currentTimeMillis()*1000);
+	/** File paths relative to the root directory by mailid. */
 	private Map<String, String> messagePathMap = new HashMap<String, String>();
-	
+	/** Paths of the stored files, which are not synced. */
+	private Set<String> unsyncedPaths = new HashSet<String>();
+
 	@Override
 	public MimeMessage get(String mailid) {
-		WeakReference<MimeMessage> msgRef = messageMap.get(mailid);
-		MimeMessage msg = null;
-		if( msgRef != null )
-		{
-			msg = msgRef.get();
-			if( msg == null )
-			{
-				try {
-					msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()),new FileInputStream(new File(messagePathMap.get(mailid))));
-					msgRef = new WeakReference<MimeMessage>(msg);
-				} catch (FileNotFoundException e) {
-					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found for name "+mailid,e);
-				} catch (MessagingException e) {
-					AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
-				}
-			}
+		String filepath;
+		synchronized (messagePathMap) {
+			filepath = messagePathMap.get(mailid);
+		}
+		if( filepath == null )
+			return null;
+		try {
+			return SharedFileMimeMessage.open(new File(rootDir, filepath));
+		} catch (FileNotFoundException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found for name "+mailid,e);
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read file for name "+mailid,e);
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
 		}
-		return msg;
+		return null;
 	}
-	
+
 	@Override
 	public List<String> getMailIds() {
-		return new ArrayList<String>(messageMap.keySet());
+		synchronized (messagePathMap) {
+			return new ArrayList<String>(messagePathMap.keySet());
+		}
 	}
-	
+
 	@Override
 	public void init() {
-		if( !rootDir.exists() ) { return; }
-		File[] subdirs = rootDir.listFiles();
-		if( subdirs == null ) { return; }
-		for( File subDir : subdirs )
-		{
-			if( subDir.isDirectory() )
-			{
-				File[] subdirFiles = subDir.listFiles();
-				if( subdirFiles == null ) { continue; }
-				for( File msgFile : subdirFiles )
-				{
-					try {
-						MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()),new FileInputStream(msgFile));
-						String mailid = AspirinInternal.getMailID(msg);
-						synchronized (messageMap) {
-							messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-							messagePathMap.put(mailid, msgFile.getAbsolutePath());
-						}
-					} catch (FileNotFoundException e) {
-						AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found with name "+msgFile.getAbsolutePath(),e);
-					} catch (MessagingException e) {
-						AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception in file "+msgFile.getAbsolutePath(),e);
-					}
-				}
+		if( rootDir == null )
+			throw new RuntimeException(getClass().getSimpleName()+" Please set up root directory.");
+		long start = System.currentTimeMillis();
+		if( !rootDir.exists() )
+			rootDir.mkdirs();
+		FileMailStoreIndex storeIndex = getIndex();
+		synchronized (storeIndex) {
+			Map<String, String> filepaths = storeIndex.read();
+			boolean scanned = ( filepaths == null );
+			if( scanned )
+				filepaths = scan();
+			int messageCount;
+			synchronized (messagePathMap) {
+				messagePathMap.putAll(filepaths);
+				messageCount = messagePathMap.size();
 			}
+			long maxSequence = -1;
+			for( String filepath : filepaths.values() )
+				maxSequence = Math.max(maxSequence, getSequence(filepath.substring(filepath.lastIndexOf('/')+1)));
+			if( writeSequence.get() <= maxSequence )
+				writeSequence.set(maxSequence+1);
+			try {
+				if( scanned || storeIndex.isCompactionDue(messageCount) )
+					snapshotIndex(storeIndex);
+				else
+					storeIndex.open();
+			} catch (IOException e) {
+				AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write index in "+rootDir.getAbsolutePath(),e);
+			}
+			AspirinInternal.getConfiguration().getLogger().info(getClass().getSimpleName()+" "+messageCount+" messages loaded from "+
+					(scanned ? "the store directories" : "the index")+" in "+(System.currentTimeMillis()-start)+" ms.");
 		}
 	}
 
 	@Override
 	public void remove(String mailid) {
-		synchronized (messageMap) {
-			messageMap.remove(mailid);
+		String filepath;
+		FileMailStoreIndex storeIndex = getIndex();
+		synchronized (storeIndex) {
 			synchronized (messagePathMap) {
-				File f = new File(messagePathMap.get(mailid));
-				f.delete();
-				messagePathMap.remove(mailid);
+				filepath = messagePathMap.remove(mailid);
+			}
+			if( filepath == null )
+				return;
+			try {
+				storeIndex.remove(mailid);
+				compactIndex(storeIndex);
+			} catch (IOException e) {
+				AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write index for name "+mailid,e);
 			}
 		}
+		deleteFile(filepath);
 	}
-	
+
 	@Override
 	public void set(String mailid, MimeMessage msg) {
-		String filepath;
+		String filepath = write(mailid, msg);
+		if( filepath == null )
+			return;
+		String previousFilepath;
+		FileMailStoreIndex storeIndex = getIndex();
+		synchronized (storeIndex) {
+			synchronized (messagePathMap) {
+				previousFilepath = messagePathMap.put(mailid, filepath);
+			}
+			try {
+				storeIndex.set(mailid, filepath);
+				compactIndex(storeIndex);
+			} catch (IOException e) {
+				AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write index for name "+mailid,e);
+			}
+		}
+		if( previousFilepath != null && !previousFilepath.equals(filepath) )
+			deleteFile(previousFilepath);
+	}
+
+	@Override
+	public Set<String> setAll(Map<String, MimeMessage> messages) {
+		Map<String, String> filepaths = new HashMap<String, String>();
+		Set<String> failedMailids = new HashSet<String>();
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+		{
+			String filepath = write(message.getKey(), message.getValue());
+			if( filepath != null )
+				filepaths.put(message.getKey(), filepath);
+			else
+				failedMailids.add(message.getKey());
+		}
+		List<String> replacedFilepaths = new ArrayList<String>();
+		FileMailStoreIndex storeIndex = getIndex();
+		synchronized (storeIndex) {
+			synchronized (messagePathMap) {
+				for( Map.Entry<String, String> filepath : filepaths.entrySet() )
+				{
+					String previousFilepath = messagePathMap.put(filepath.getKey(), filepath.getValue());
+					if( previousFilepath != null && !previousFilepath.equals(filepath.getValue()) )
+						replacedFilepaths.add(previousFilepath);
+				}
+			}
+			try {
+				storeIndex.setAll(filepaths);
+				compactIndex(storeIndex);
+			} catch (IOException e) {
+				AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not write index for "+filepaths.size()+" messages",e);
+			}
+		}
+		for( String replacedFilepath : replacedFilepaths )
+			deleteFile(replacedFilepath);
+		// The files are found by the scan, if the index could not be written.
+		return failedMailids;
+	}
+
+	/**
+	 * Sync the files written since the previous flush and the index.
+	 */
+	@Override
+	public void flush() throws IOException {
+		List<String> filepaths;
+		synchronized (unsyncedPaths) {
+			filepaths = new ArrayList<String>(unsyncedPaths);
+			unsyncedPaths.clear();
+		}
+		for( String filepath : filepaths )
+		{
+			FileInputStream msgIn;
+			try {
+				msgIn = new FileInputStream(new File(rootDir, filepath));
+			} catch (FileNotFoundException e) {
+				// Removed meanwhile
+				continue;
+			}
+			try {
+				msgIn.getChannel().force(false);
+			} finally {
+				msgIn.close();
+			}
+		}
+		getIndex().sync();
+	}
+
+	/**
+	 * Close the index, so the next {@link #init()} does not scan the store
+	 * directories. The store could be used after it, but then the index
+	 * has to be closed again.
+	 */
+	@Override
+	public void close() throws IOException {
+		FileMailStoreIndex storeIndex;
+		synchronized (this) {
+			storeIndex = index;
+		}
+		if( storeIndex != null )
+			storeIndex.close();
+	}
+
+	/**
+	 * Write the message into a temporary file in the subdirectory of the
+	 * mailid, then rename it to a new message file. So an incomplete file
+	 * is not loaded after a crash, and the previous file of the mailid is
+	 * kept until the index points to the new one.
+	 * @return The path of the file relative to the root directory or null,
+	 * if it could not be written.
+	 */
+	private String write(String mailid, MimeMessage msg) {
 		// Create file path
 		if( rootDir == null )
 			throw new RuntimeException(getClass().getSimpleName()+" Please set up root directory.");
-		String subDirName = String.valueOf(rand.nextInt(subDirCount));
+		String subDirName = String.valueOf((mailid.hashCode() & Integer.MAX_VALUE) % subDirCount);
 		File dir = new File(rootDir, subDirName);
 		if( !dir.exists() )
 			dir.mkdirs();
-		filepath = new File(dir, mailid+".msg").getAbsolutePath();
+		String filename = encodeMailid(mailid);
+		// The mailid is read from the message file by the scan.
+		if( MAX_NAME_LENGTH < filename.length() )
+			filename = "~";
+		filename += SEQUENCE_SEPARATOR+Long.toHexString(writeSequence.getAndIncrement())+MESSAGE_SUFFIX;
+		File msgFile = new File(dir, filename);
+		File tempFile = new File(dir, filename+TEMP_SUFFIX);
 		// Save informations
 		try {
-			File msgFile = new File(filepath);
-			if( msgFile.exists() ) { msgFile.delete(); }
-			if( !msgFile.exists() ) { msgFile.createNewFile(); }
-			msg.writeTo(new FileOutputStream(msgFile));
-			synchronized (messageMap) {
-				messageMap.put(mailid, new WeakReference<MimeMessage>(msg));
-				messagePathMap.put(mailid, filepath);
+			OutputStream msgOut = new BufferedOutputStream(new FileOutputStream(tempFile), WRITE_BUFFER_SIZE);
+			try {
+				msg.writeTo(msgOut);
+			} finally {
+				msgOut.close();
 			}
+			if( !tempFile.renameTo(msgFile) )
+				throw new IOException("Could not rename "+tempFile.getAbsolutePath());
+			synchronized (unsyncedPaths) {
+				unsyncedPaths.add(subDirName+"/"+filename);
+			}
+			return subDirName+"/"+filename;
 		} catch (FileNotFoundException e) {
 			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found for name "+mailid,e);
 		} catch (IOException e) {
@@ -133,8 +313,218 @@ public class FileMailStore implements MailStore {
 		} catch (MessagingException e) {
 			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception with name "+mailid,e);
 		}
+		tempFile.delete();
+		return null;
+	}
+
+	private void deleteFile(String filepath) {
+		synchronized (unsyncedPaths) {
+			unsyncedPaths.remove(filepath);
+		}
+		new File(rootDir, filepath).delete();
 	}
-	
+
+	private synchronized FileMailStoreIndex getIndex() {
+		if( index == null )
+			index = new FileMailStoreIndex(rootDir);
+		return index;
+	}
+
+	/**
+	 * Write a new index from the stored messages. The index lock has to
+	 * be held.
+	 */
+	private void snapshotIndex(FileMailStoreIndex storeIndex) throws IOException {
+		Map<String, String> filepaths;
+		synchronized (messagePathMap) {
+			filepaths = new HashMap<String, String>(messagePathMap);
+		}
+		storeIndex.snapshot(filepaths);
+	}
+
+	/**
+	 * Compact the index, if it has much more records than messages. The
+	 * index lock has to be held.
+	 */
+	private void compactIndex(FileMailStoreIndex storeIndex) throws IOException {
+		int messageCount;
+		synchronized (messagePathMap) {
+			messageCount = messagePathMap.size();
+		}
+		if( storeIndex.isCompactionDue(messageCount) )
+			snapshotIndex(storeIndex);
+	}
+
+	/**
+	 * Find the message files in the subdirectories of the root directory.
+	 * @return The file paths relative to the root directory by mailid.
+	 */
+	private Map<String, String> scan() {
+		List<File> subDirs = new ArrayList<File>();
+		File[] rootFiles = rootDir.listFiles();
+		if( rootFiles != null )
+		{
+			for( File rootFile : rootFiles )
+			{
+				if( rootFile.isDirectory() )
+					subDirs.add(rootFile);
+			}
+		}
+		Map<String, String> filepaths = new HashMap<String, String>();
+		if( recoveryThreads <= 1 || subDirs.size() <= 1 )
+		{
+			for( File subDir : subDirs )
+				scan(subDir, filepaths);
+			return filepaths;
+		}
+		ScanThread[] scanThreads = new ScanThread[Math.min(recoveryThreads, subDirs.size())];
+		for( int i = 0; i < scanThreads.length; i++ )
+			scanThreads[i] = new ScanThread();
+		for( int i = 0; i < subDirs.size(); i++ )
+			scanThreads[i%scanThreads.length].subDirs.add(subDirs.get(i));
+		for( ScanThread scanThread : scanThreads )
+			scanThread.start();
+		boolean interrupted = false;
+		for( ScanThread scanThread : scanThreads )
+		{
+			// All results are needed, the index is written from them.
+			while( scanThread.isAlive() )
+			{
+				try {
+					scanThread.join();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			filepaths.putAll(scanThread.filepaths);
+		}
+		if( interrupted )
+			Thread.currentThread().interrupt();
+		return filepaths;
+	}
+
+	private void scan(File subDir, Map<String, String> filepaths) {
+		File[] subdirFiles = subDir.listFiles();
+		if( subdirFiles == null ) { return; }
+		for( File msgFile : subdirFiles )
+		{
+			String filename = msgFile.getName();
+			if( filename.endsWith(TEMP_SUFFIX) )
+			{
+				// Incomplete write before a crash
+				msgFile.delete();
+				continue;
+			}
+			if( !filename.endsWith(MESSAGE_SUFFIX) )
+				continue;
+			String name = filename.substring(0, filename.length()-MESSAGE_SUFFIX.length());
+			long sequence = getSequence(filename);
+			if( 0 <= sequence )
+				name = name.substring(0, name.lastIndexOf(SEQUENCE_SEPARATOR));
+			String mailid = decodeMailid(name);
+			if( mailid == null )
+				mailid = readMailid(msgFile);
+			if( mailid == null )
+				continue;
+			String filepath = subDir.getName()+"/"+filename;
+			String otherFilepath = filepaths.put(mailid, filepath);
+			if( otherFilepath != null )
+			{
+				// Crash between the write and the delete of the previous file
+				String otherFilename = otherFilepath.substring(otherFilepath.lastIndexOf('/')+1);
+				if( sequence < getSequence(otherFilename) )
+				{
+					filepaths.put(mailid, otherFilepath);
+					otherFilepath = filepath;
+				}
+				new File(rootDir, otherFilepath).delete();
+			}
+		}
+	}
+
+	/**
+	 * @return The write sequence of the message file name or -1, if the
+	 * name has no sequence (written by older versions).
+	 */
+	static long getSequence(String filename) {
+		if( !filename.endsWith(MESSAGE_SUFFIX) )
+			return -1;
+		String name = filename.substring(0, filename.length()-MESSAGE_SUFFIX.length());
+		int separatorIndex = name.lastIndexOf(SEQUENCE_SEPARATOR);
+		if( separatorIndex < 0 || separatorIndex == name.length()-1 )
+			return -1;
+		try {
+			return Long.parseLong(name.substring(separatorIndex+1), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private String readMailid(File msgFile) {
+		try {
+			// Only the headers are parsed.
+			return AspirinInternal.getMailID(SharedFileMimeMessage.open(msgFile));
+		} catch (FileNotFoundException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" No file representation found with name "+msgFile.getAbsolutePath(),e);
+		} catch (IOException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" Could not read file "+msgFile.getAbsolutePath(),e);
+		} catch (MessagingException e) {
+			AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName()+" There is a messaging exception in file "+msgFile.getAbsolutePath(),e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The mailid with %XX encoded UTF-8 bytes instead of the
+	 * characters, which are not safe in file names.
+	 */
+	static String encodeMailid(String mailid) {
+		StringBuilder filename = new StringBuilder(mailid.length()+16);
+		for( byte b : mailid.getBytes(UTF8) )
+		{
+			if( isSafe((char)b) )
+				filename.append((char)b);
+			else
+				filename.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+		}
+		return filename.toString();
+	}
+
+	/**
+	 * @return The mailid of the file name or null, if the name is not an
+	 * encoded mailid.
+	 */
+	static String decodeMailid(String filename) {
+		byte[] bytes = new byte[filename.length()];
+		int length = 0;
+		for( int i = 0; i < filename.length(); i++ )
+		{
+			char c = filename.charAt(i);
+			if( c == '%' && i+2 < filename.length() )
+			{
+				int high = Character.digit(filename.charAt(i+1), 16);
+				int low = Character.digit(filename.charAt(i+2), 16);
+				if( high < 0 || low < 0 )
+					return null;
+				bytes[length++] = (byte)((high << 4) | low);
+				i += 2;
+			}
+			else
+			if( isSafe(c) )
+				bytes[length++] = (byte)c;
+			else
+				return null;
+		}
+		String mailid = new String(bytes, 0, length, UTF8);
+		// Only the canonical encoding is accepted.
+		return ( encodeMailid(mailid).equals(filename) ) ? mailid : null;
+	}
+
+	private static boolean isSafe(char c) {
+		return ( 'a' <= c && c <= 'z' ) || ( 'A' <= c && c <= 'Z' ) || ( '0' <= c && c <= '9' ) ||
+				c == '.' || c == '_' || c == '-' || c == '@';
+	}
+
 	public void setRootDir(File rootDir) {
 		this.rootDir = rootDir;
 	}
@@ -147,5 +537,34 @@ public class FileMailStore implements MailStore {
 	public int getSubDirCount() {
 		return subDirCount;
 	}
+	/**
+	 * @param recoveryThreads Count of threads scanning the subdirectories,
+	 * if the index could not be used on {@link #init()}.
+	 */
+	public void setRecoveryThreads(int recoveryThreads) {
+		this.recoveryThreads = recoveryThreads;
+	}
+	public int getRecoveryThreads() {
+		return recoveryThreads;
+	}
+
+	/**
+	 * Scan of some subdirectories on {@link FileMailStore#init()}.
+	 */
+	private class ScanThread extends Thread {
+		final List<File> subDirs = new ArrayList<File>();
+		final Map<String, String> filepaths = new HashMap<String, String>();
+
+		ScanThread() {
+			setName("Aspirin-"+FileMailStore.class.getSimpleName()+"-"+getId());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			for( File subDir : subDirs )
+				scan(subDir, filepaths);
+		}
+	}
 
 }
@@ -0,0 +1,294 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>The mailid to file path index of the {@link FileMailStore}. It is an
+ * append-only file in the root directory of the store: it starts with a
+ * snapshot of all stored messages, then every set and remove is appended as
+ * a record (length, content, CRC32). When the store is closed, a closing
+ * record is appended.</p>
+ *
+ * <p>The index is trusted on startup only if it ends with the closing
+ * record, otherwise some files could be written or removed without a
+ * record, and the store directories have to be scanned. When the index is
+ * opened for append, an opening record is synced first, so the previous
+ * closing record is not the last one any more. If a record could not be
+ * written, the closing record is not appended. If the index has much more
+ * records than messages, it is compacted by a new snapshot.</p>
+ */
+class FileMailStoreIndex implements Closeable {
+
+	private static final String INDEX_NAME = "mailstore.index";
+	private static final String INDEX_TEMP_NAME = "mailstore.index.tmp";
+	private static final int INDEX_MAGIC = 0x41534d49;
+	private static final int BUFFER_SIZE = 65536;
+	/** The index is not compacted under this count of records. */
+	private static final int COMPACTION_MIN_RECORDS = 10000;
+
+	private static final byte RECORD_SET = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_CLOSED = 3;
+	private static final byte RECORD_OPENED = 4;
+
+	private final File rootDir;
+	private FileOutputStream indexFileOut = null;
+	private DataOutputStream indexOut = null;
+	private long recordCount = 0;
+	private boolean failed = false;
+	private RecordBuffer recordBuffer = new RecordBuffer();
+	private DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+	private CRC32 recordCrc = new CRC32();
+
+	FileMailStoreIndex(File rootDir) {
+		this.rootDir = rootDir;
+	}
+
+	/**
+	 * @return The relative file paths by mailid, or null if there is no
+	 * index, it is broken or it was not closed.
+	 */
+	synchronized Map<String, String> read() {
+		File indexFile = new File(rootDir, INDEX_NAME);
+		if( !indexFile.exists() )
+			return null;
+		Map<String, String> pathByMailid = new HashMap<String, String>();
+		DataInputStream indexIn = null;
+		try {
+			indexIn = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE));
+			if( indexIn.readInt() != INDEX_MAGIC )
+				return null;
+			byte[] buffer = new byte[256];
+			CRC32 crc = new CRC32();
+			byte recordType = 0;
+			long count = 0;
+			while( true )
+			{
+				int length = 0;
+				int checksum = 0;
+				try {
+					length = indexIn.readInt();
+					if( length <= 0 || buffer.length*16 < length )
+						return null;
+					if( buffer.length < length )
+						buffer = new byte[length];
+					indexIn.readFully(buffer, 0, length);
+					checksum = indexIn.readInt();
+				} catch (EOFException eofe) {
+					break;
+				}
+				crc.reset();
+				crc.update(buffer, 0, length);
+				if( (int)crc.getValue() != checksum )
+					return null;
+				count++;
+				DataInputStream contentIn = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+				recordType = contentIn.readByte();
+				if( recordType == RECORD_SET )
+				{
+					String mailid = contentIn.readUTF();
+					pathByMailid.put(mailid, contentIn.readUTF());
+				}
+				else
+				if( recordType == RECORD_REMOVE )
+					pathByMailid.remove(contentIn.readUTF());
+			}
+			if( recordType != RECORD_CLOSED )
+				return null;
+			recordCount = count;
+			return pathByMailid;
+		} catch (IOException ioe) {
+			return null;
+		} finally {
+			closeQuietly(indexIn);
+		}
+	}
+
+	/**
+	 * Write all messages into a new index and append the next records to
+	 * it.
+	 * @param pathByMailid The relative file paths by mailid.
+	 */
+	synchronized void snapshot(Map<String, String> pathByMailid) throws IOException {
+		closeIndex(false);
+		File indexTempFile = new File(rootDir, INDEX_TEMP_NAME);
+		FileOutputStream snapshotFileOut = new FileOutputStream(indexTempFile);
+		try {
+			DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(snapshotFileOut, BUFFER_SIZE));
+			snapshotOut.writeInt(INDEX_MAGIC);
+			for( Map.Entry<String, String> path : pathByMailid.entrySet() )
+				writeRecord(snapshotOut, RECORD_SET, path.getKey(), path.getValue());
+			snapshotOut.flush();
+			snapshotFileOut.getFD().sync();
+		} finally {
+			snapshotFileOut.close();
+		}
+		File indexFile = new File(rootDir, INDEX_NAME);
+		if( !indexTempFile.renameTo(indexFile) )
+		{
+			// Some platforms could not rename to an existing file.
+			indexFile.delete();
+			if( !indexTempFile.renameTo(indexFile) )
+				throw new IOException("Index could not be renamed: "+indexTempFile.getAbsolutePath());
+		}
+		recordCount = pathByMailid.size();
+		failed = false;
+	}
+
+	/**
+	 * Open the index for append, the index is not trusted any more until it
+	 * is closed.
+	 */
+	synchronized void open() throws IOException {
+		openIndex();
+	}
+
+	synchronized void set(String mailid, String path) throws IOException {
+		try {
+			writeRecord(openIndex(), RECORD_SET, mailid, path);
+			indexOut.flush();
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+	}
+
+	synchronized void setAll(Map<String, String> pathByMailid) throws IOException {
+		try {
+			DataOutputStream out = openIndex();
+			for( Map.Entry<String, String> path : pathByMailid.entrySet() )
+				writeRecord(out, RECORD_SET, path.getKey(), path.getValue());
+			out.flush();
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+	}
+
+	synchronized void remove(String mailid) throws IOException {
+		try {
+			writeRecord(openIndex(), RECORD_REMOVE, mailid, null);
+			indexOut.flush();
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Force the appended records to the disk.
+	 */
+	synchronized void sync() throws IOException {
+		if( indexOut == null )
+			return;
+		try {
+			indexOut.flush();
+			indexFileOut.getFD().sync();
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @param messageCount The count of stored messages.
+	 * @return True, if the index has much more records than messages.
+	 */
+	synchronized boolean isCompactionDue(int messageCount) {
+		return ( COMPACTION_MIN_RECORDS < recordCount && 2L*messageCount < recordCount );
+	}
+
+	/**
+	 * Append the closing record and sync the index. A later record opens it
+	 * again, and the index is not trusted on the next startup.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closeIndex(true);
+	}
+
+	private void closeIndex(boolean closing) throws IOException {
+		if( closing && !failed )
+			writeRecord(openIndex(), RECORD_CLOSED, null, null);
+		if( indexOut != null )
+		{
+			try {
+				indexOut.flush();
+				indexFileOut.getFD().sync();
+			} finally {
+				indexOut.close();
+				indexOut = null;
+				indexFileOut = null;
+			}
+		}
+	}
+
+	private DataOutputStream openIndex() throws IOException {
+		if( indexOut == null )
+		{
+			File indexFile = new File(rootDir, INDEX_NAME);
+			boolean empty = ( indexFile.length() == 0 );
+			indexFileOut = new FileOutputStream(indexFile, true);
+			indexOut = new DataOutputStream(new BufferedOutputStream(indexFileOut, BUFFER_SIZE));
+			if( empty )
+				indexOut.writeInt(INDEX_MAGIC);
+			writeRecord(indexOut, RECORD_OPENED, null, null);
+			indexOut.flush();
+			indexFileOut.getFD().sync();
+		}
+		return indexOut;
+	}
+
+	private void writeRecord(DataOutputStream out, byte recordType, String mailid, String path) throws IOException {
+		recordBuffer.reset();
+		recordOut.writeByte(recordType);
+		if( mailid != null )
+			recordOut.writeUTF(mailid);
+		if( path != null )
+			recordOut.writeUTF(path);
+		recordOut.flush();
+		recordCrc.reset();
+		recordCrc.update(recordBuffer.getBuffer(), 0, recordBuffer.size());
+		out.writeInt(recordBuffer.size());
+		out.write(recordBuffer.getBuffer(), 0, recordBuffer.size());
+		out.writeInt((int)recordCrc.getValue());
+		recordCount++;
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if( closeable == null )
+			return;
+		try {
+			closeable.close();
+		} catch (IOException ioe) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Record content buffer without copying on write.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(256);
+		}
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * <p>Cache of MimeMessage objects by mailid, bounded by the estimated size
+ * of the messages in bytes. The eviction policy is one of these:</p>
+ * <ul>
+ *   <li><b>lru</b>: the least recently used message is evicted,</li>
+ *   <li><b>tinylfu</b>: W-TinyLFU. The new messages get into a small LRU
+ *   window. A message evicted from the window is admitted into the main
+ *   area only if it was used more often than the messages, which should be
+ *   evicted for it. The main area is a segmented LRU, a message used again
+ *   in the probation segment is moved into the protected segment. The
+ *   frequencies are estimated by a count-min sketch, which is halved
+ *   periodically, so the old frequencies are aged out.</li>
+ * </ul>
+ *
+ * <p>The methods are synchronized, the cache does not load messages.</p>
+ */
+class MessageCache {
+
+	static final String POLICY_LRU = "lru";
+	static final String POLICY_TINYLFU = "tinylfu";
+
+	/** Percent of the capacity used by the window of W-TinyLFU. */
+	private static final int WINDOW_PERCENT = 1;
+	/** Percent of the main area used by the protected segment. */
+	private static final int PROTECTED_PERCENT = 80;
+	/** Average message size used to size the frequency sketch. */
+	private static final int AVERAGE_MESSAGE_SIZE = 16384;
+
+	private static class Entry {
+		final String mailid;
+		final MimeMessage msg;
+		final long size;
+
+		Entry(String mailid, MimeMessage msg, long size) {
+			this.mailid = mailid;
+			this.msg = msg;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * LRU ordered entries with their summarized size.
+	 */
+	private static class Segment {
+		final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		long size = 0;
+
+		void add(Entry entry) {
+			entries.put(entry.mailid, entry);
+			size += entry.size;
+		}
+		Entry remove(String mailid) {
+			Entry entry = entries.remove(mailid);
+			if( entry != null )
+				size -= entry.size;
+			return entry;
+		}
+		Entry eldest() {
+			return ( entries.isEmpty() ) ? null : entries.values().iterator().next();
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 bit counters. The counters are halved after
+	 * 10 times as many increments as the width of the sketch.
+	 */
+	private static class FrequencySketch {
+		private static final int[] SEEDS = new int[]{0x5bd1e995, 0x27d4eb2f, 0x165667b1, 0x1b873593};
+		private static final int MAX_COUNT = 15;
+
+		private final int[][] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(long expectedEntries) {
+			int width = 256;
+			while( width < expectedEntries && width < (1 << 20) )
+				width <<= 1;
+			counters = new int[SEEDS.length][width];
+			mask = width-1;
+			sampleSize = 10*width;
+		}
+
+		void increment(String mailid) {
+			int hash = mailid.hashCode();
+			boolean added = false;
+			for( int row = 0; row < counters.length; row++ )
+			{
+				int index = indexOf(hash, row);
+				if( counters[row][index] < MAX_COUNT )
+				{
+					counters[row][index]++;
+					added = true;
+				}
+			}
+			if( added && sampleSize <= ++additions )
+				reset();
+		}
+
+		int frequency(String mailid) {
+			int hash = mailid.hashCode();
+			int frequency = MAX_COUNT;
+			for( int row = 0; row < counters.length; row++ )
+				frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+			return frequency;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = hash*SEEDS[row];
+			h ^= (h >>> 16);
+			return h & mask;
+		}
+
+		private void reset() {
+			for( int[] row : counters )
+				for( int i = 0; i < row.length; i++ )
+					row[i] >>>= 1;
+			additions >>>= 1;
+		}
+	}
+
+	private final long capacity;
+	private final long windowCapacity;
+	private final long protectedCapacity;
+	private final FrequencySketch sketch;
+	private final Segment window = new Segment();
+	private final Segment probation = new Segment();
+	private final Segment protectedSegment = new Segment();
+	private long modifications = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * @param capacity Maximal summarized size of the messages in bytes.
+	 * @param policy lru or tinylfu, an unknown policy is handled as lru.
+	 */
+	MessageCache(long capacity, String policy) {
+		this.capacity = Math.max(0, capacity);
+		if( POLICY_TINYLFU.equalsIgnoreCase(policy) )
+		{
+			this.windowCapacity = this.capacity*WINDOW_PERCENT/100;
+			this.protectedCapacity = (this.capacity-windowCapacity)*PROTECTED_PERCENT/100;
+			this.sketch = new FrequencySketch(this.capacity/AVERAGE_MESSAGE_SIZE);
+		}
+		else
+		{
+			// LRU is a window without main area.
+			this.windowCapacity = this.capacity;
+			this.protectedCapacity = 0;
+			this.sketch = null;
+		}
+	}
+
+	/**
+	 * @return The cached message or null.
+	 */
+	synchronized MimeMessage get(String mailid) {
+		if( sketch != null )
+			sketch.increment(mailid);
+		Entry entry = window.entries.get(mailid);
+		if( entry == null )
+			entry = protectedSegment.entries.get(mailid);
+		if( entry == null )
+		{
+			entry = probation.remove(mailid);
+			if( entry != null )
+				promote(entry);
+		}
+		if( entry == null )
+		{
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.msg;
+	}
+
+	/**
+	 * Put a stored message into the cache, it replaces the previous one.
+	 * @param size Estimated size of the message in bytes.
+	 */
+	synchronized void put(String mailid, MimeMessage msg, long size) {
+		modifications++;
+		add(new Entry(mailid, msg, size));
+	}
+
+	/**
+	 * Put a loaded message into the cache, if the cache was not modified by
+	 * {@link #put(String, MimeMessage, long)} or {@link #remove(String)}
+	 * since the load was started. So a message removed or replaced during
+	 * the load is not cached.
+	 * @param expectedModifications The value of {@link #getModifications()}
+	 * before the load.
+	 */
+	synchronized void putLoaded(String mailid, MimeMessage msg, long size, long expectedModifications) {
+		if( modifications == expectedModifications )
+			add(new Entry(mailid, msg, size));
+	}
+
+	synchronized void remove(String mailid) {
+		modifications++;
+		removeEntry(mailid);
+	}
+
+	synchronized long getModifications() {
+		return modifications;
+	}
+
+	synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	synchronized long getMissCount() {
+		return missCount;
+	}
+
+	synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	synchronized long getSize() {
+		return window.size+probation.size+protectedSegment.size;
+	}
+
+	synchronized int getCount() {
+		return window.entries.size()+probation.entries.size()+protectedSegment.entries.size();
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	private void add(Entry entry) {
+		removeEntry(entry.mailid);
+		if( capacity < entry.size )
+			return;
+		if( sketch != null )
+			sketch.increment(entry.mailid);
+		window.add(entry);
+		while( windowCapacity < window.size )
+		{
+			Entry candidate = window.remove(window.eldest().mailid);
+			if( sketch == null || !admit(candidate) )
+				evictionCount++;
+		}
+	}
+
+	/**
+	 * Move the candidate from the window into the probation segment, if it
+	 * is used more often than the entries, which have to be evicted for it.
+	 * @return False, if the candidate is rejected.
+	 */
+	private boolean admit(Entry candidate) {
+		long free = capacity-windowCapacity-probation.size-protectedSegment.size;
+		if( free < candidate.size )
+		{
+			int candidateFrequency = sketch.frequency(candidate.mailid);
+			List<Entry> victims = new ArrayList<Entry>();
+			if( !collectVictims(probation, candidate, candidateFrequency, free, victims) )
+				return false;
+			for( Entry victim : victims )
+			{
+				if( probation.remove(victim.mailid) == null )
+					protectedSegment.remove(victim.mailid);
+				evictionCount++;
+			}
+		}
+		probation.add(candidate);
+		return true;
+	}
+
+	/**
+	 * Collect the least recently used entries of probation, then of the
+	 * protected segment, until there is enough space for the candidate.
+	 * @return False, if there is not enough space or a victim is used at
+	 * least as often as the candidate.
+	 */
+	private boolean collectVictims(Segment segment, Entry candidate, int candidateFrequency, long free, List<Entry> victims) {
+		for( Entry victim : segment.entries.values() )
+		{
+			if( candidateFrequency <= sketch.frequency(victim.mailid) )
+				return false;
+			victims.add(victim);
+			free += victim.size;
+			if( candidate.size <= free )
+				return true;
+		}
+		if( segment == probation )
+			return collectVictims(protectedSegment, candidate, candidateFrequency, free, victims);
+		return false;
+	}
+
+	/**
+	 * Move an entry from probation into the protected segment. The least
+	 * recently used protected entries go back into probation, if the
+	 * protected segment is full.
+	 */
+	private void promote(Entry entry) {
+		protectedSegment.add(entry);
+		while( protectedCapacity < protectedSegment.size && 1 < protectedSegment.entries.size() )
+			probation.add(protectedSegment.remove(protectedSegment.eldest().mailid));
+	}
+
+	private void removeEntry(String mailid) {
+		if( window.remove(mailid) == null && probation.remove(mailid) == null )
+			protectedSegment.remove(mailid);
+	}
+}
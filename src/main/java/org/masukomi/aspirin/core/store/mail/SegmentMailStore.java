@@ -0,0 +1,699 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store appends the messages to large segment files instead of
+ * creating a file per message, so millions of queued messages do not need
+ * millions of files. The segments are in aspirin.mailstore.segment.dir, a
+ * new segment is started when the current one reaches
+ * aspirin.mailstore.segment.size bytes.</p>
+ *
+ * <p>Records are binary (length, type, sequence, mailid, message, CRC32).
+ * The position of every stored message is kept in memory, the messages are
+ * loaded like in {@link FileMailStore}: only their headers are parsed, the
+ * content is streamed from the segment. Removing a message appends a
+ * tombstone record. A replaced or removed message stays in its segment as
+ * a dead record. A loaded message finds its record again, if the record was
+ * moved by the compaction, but not after the message was removed or
+ * replaced.</p>
+ *
+ * <p>A background thread compacts the closed segments, which have at most
+ * aspirin.mailstore.segment.compaction.threshold percent live records: the
+ * live messages are copied into the current segment and the old segment is
+ * deleted. A tombstone is copied too, while an older segment has a dead
+ * record of the removed message, otherwise it is dropped. The mailids of
+ * the dead records are kept in memory for every segment until the segment
+ * is compacted.</p>
+ *
+ * <p>Recovery reads every segment on {@link #init()}. The record with the
+ * highest sequence wins for every mailid, so the order of the segments
+ * does not matter. An incomplete or broken record, or a record longer than
+ * the rest of the segment is a truncated tail, it stops the reading of its
+ * segment. The new messages go into a new segment after the restart.</p>
+ */
+public class SegmentMailStore implements BulkMailStore, Closeable, Flushable {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int BUFFER_SIZE = 65536;
+	private static final long COMPACTION_CHECK_INTERVAL = 10000;
+	private static final int READ_RETRIES = 3;
+
+	private static final byte RECORD_MESSAGE = 1;
+	private static final byte RECORD_TOMBSTONE = 2;
+
+	/**
+	 * Position of a message record in a segment.
+	 */
+	private static class Location {
+		final long segmentId;
+		/** Position of the message in the segment. */
+		final long offset;
+		/** Length of the message. */
+		final int length;
+		/** Length of the whole record. */
+		final int recordLength;
+		final long sequence;
+
+		Location(long segmentId, long offset, int length, int recordLength, long sequence) {
+			this.segmentId = segmentId;
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+			this.sequence = sequence;
+		}
+	}
+
+	private static class Segment {
+		final long id;
+		final File file;
+		long size = 0;
+		long liveBytes = 0;
+		/** Mailids with a replaced or removed message in the segment. */
+		Set<String> deadMailids = new HashSet<String>();
+
+		Segment(long id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private File segmentDir;
+	private Object lock = new Object();
+	/*
+	 * These fields are guarded by the lock.
+	 */
+	private Map<String, Location> locationByMailid = new HashMap<String, Location>();
+	private TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment activeSegment = null;
+	private RandomAccessFile activeFile = null;
+	private FileChannel activeChannel = null;
+	private long sequence = 0;
+	private CRC32 recordCrc = new CRC32();
+	private volatile boolean closed = false;
+	private CompactionThread compactionThread = null;
+
+	@Override
+	public void init() {
+		synchronized (lock) {
+			segmentDir = new File(AspirinInternal.getConfiguration().getMailStoreSegmentDir());
+			if( !segmentDir.exists() && !segmentDir.mkdirs() )
+				AspirinInternal.getLogger().error("SegmentMailStore.init(): Segment directory could not be created: {}.",segmentDir.getAbsolutePath());
+			long start = System.currentTimeMillis();
+			locationByMailid.clear();
+			segments.clear();
+			Map<String, Location> latestByMailid = new HashMap<String, Location>();
+			long lastSegmentId = 0;
+			for( Long segmentId : getSegmentIds() )
+			{
+				Segment segment = new Segment(segmentId, getSegmentFile(segmentId));
+				segments.put(segmentId, segment);
+				readSegment(segment, latestByMailid);
+				lastSegmentId = segmentId;
+			}
+			for( Map.Entry<String, Location> latest : latestByMailid.entrySet() )
+			{
+				// Removed messages have no location.
+				if( latest.getValue().length < 0 )
+					continue;
+				locationByMailid.put(latest.getKey(), latest.getValue());
+				segments.get(latest.getValue().segmentId).liveBytes += latest.getValue().recordLength;
+			}
+			AspirinInternal.getLogger().info("SegmentMailStore.init(): {} messages recovered from {} segments in {} ms.",new Object[]{locationByMailid.size(),segments.size(),System.currentTimeMillis()-start});
+			try {
+				openSegment(lastSegmentId+1);
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("SegmentMailStore.init(): Segment could not be opened.",ioe);
+			}
+		}
+		closed = false;
+		compactionThread = new CompactionThread();
+		compactionThread.start();
+	}
+
+	@Override
+	public MimeMessage get(String mailid) {
+		for( int attempt = 0; attempt < READ_RETRIES; attempt++ )
+		{
+			Location location;
+			File segmentFile;
+			synchronized (lock) {
+				location = locationByMailid.get(mailid);
+				if( location == null )
+					return null;
+				segmentFile = segments.get(location.segmentId).file;
+			}
+			try {
+				return SharedFileMimeMessage.open(segmentFile, location.offset, location.offset+location.length, new MessageSource(mailid, location.sequence));
+			} catch (FileNotFoundException fnfe) {
+				// The segment was compacted meanwhile, the message was moved.
+				continue;
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("SegmentMailStore.get(): Message could not be read. mailid="+mailid,ioe);
+				return null;
+			} catch (MessagingException me) {
+				AspirinInternal.getLogger().error("SegmentMailStore.get(): Message could not be parsed. mailid="+mailid,me);
+				return null;
+			}
+		}
+		AspirinInternal.getLogger().error("SegmentMailStore.get(): Message could not be read after {} attempts. mailid={}",READ_RETRIES,mailid);
+		return null;
+	}
+
+	@Override
+	public List<String> getMailIds() {
+		synchronized (lock) {
+			return new ArrayList<String>(locationByMailid.keySet());
+		}
+	}
+
+	@Override
+	public void remove(String mailid) {
+		synchronized (lock) {
+			Location location = locationByMailid.remove(mailid);
+			if( location == null )
+				return;
+			release(mailid, location);
+			try {
+				RecordBuffer record = new RecordBuffer(256);
+				startRecord(record, RECORD_TOMBSTONE, mailid);
+				append(record, ++sequence);
+				rollSegment();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("SegmentMailStore.remove(): Tombstone write failed. mailid="+mailid,ioe);
+			}
+		}
+	}
+
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		setAll(Collections.singletonMap(mailid, msg));
+	}
+
+	@Override
+	public Set<String> setAll(Map<String, MimeMessage> messages) {
+		// The messages are serialized before locking.
+		Set<String> failedMailids = new HashSet<String>();
+		Map<String, RecordBuffer> records = new LinkedHashMap<String, RecordBuffer>();
+		Map<String, Integer> messageOffsets = new HashMap<String, Integer>();
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+		{
+			try {
+				RecordBuffer record = new RecordBuffer();
+				messageOffsets.put(message.getKey(), startRecord(record, RECORD_MESSAGE, message.getKey()));
+				message.getValue().writeTo(record);
+				records.put(message.getKey(), record);
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("SegmentMailStore.setAll(): Message could not be written. mailid="+message.getKey(),ioe);
+				failedMailids.add(message.getKey());
+			} catch (MessagingException me) {
+				AspirinInternal.getLogger().error("SegmentMailStore.setAll(): Message could not be written. mailid="+message.getKey(),me);
+				failedMailids.add(message.getKey());
+			}
+		}
+		synchronized (lock) {
+			for( Map.Entry<String, RecordBuffer> record : records.entrySet() )
+			{
+				try {
+					long recordSequence = ++sequence;
+					long position = append(record.getValue(), recordSequence);
+					int messageOffset = messageOffsets.get(record.getKey());
+					put(record.getKey(), new Location(activeSegment.id, position+messageOffset, record.getValue().size()-messageOffset-4, record.getValue().size(), recordSequence));
+					rollSegment();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("SegmentMailStore.setAll(): Message could not be stored. mailid="+record.getKey(),ioe);
+					failedMailids.add(record.getKey());
+				}
+			}
+		}
+		return failedMailids;
+	}
+
+	/**
+	 * Compact every closed segment, which has at most
+	 * aspirin.mailstore.segment.compaction.threshold percent live records.
+	 * It is called by the background thread, but it could be called to
+	 * compact the segments immediately.
+	 *
+	 * @return The count of compacted segments.
+	 * @throws IOException If a segment could not be compacted.
+	 */
+	public int compact() throws IOException {
+		int count = 0;
+		for( Segment segment : getCompactionCandidates() )
+		{
+			if( closed )
+				break;
+			compact(segment);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Force the records of the current segment to the disk by one call. The
+	 * previous segments are forced, when they are closed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		FileChannel channel;
+		synchronized (lock) {
+			channel = activeChannel;
+		}
+		if( channel == null )
+			return;
+		try {
+			// Without locking, the messages could be read meanwhile.
+			channel.force(false);
+		} catch (ClosedChannelException cce) {
+			// The segment was closed and forced meanwhile.
+		}
+	}
+
+	/**
+	 * Sync the current segment and stop the background thread. The store
+	 * could not be used after closing.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if( compactionThread != null )
+			compactionThread.interrupt();
+		synchronized (lock) {
+			closeSegment();
+		}
+	}
+
+	/**
+	 * Write the head of a record: a place for its length, the type, a place
+	 * for the sequence and the mailid.
+	 * @return The length of the head.
+	 */
+	private int startRecord(RecordBuffer record, byte recordType, String mailid) throws IOException {
+		DataOutputStream recordOut = new DataOutputStream(record);
+		recordOut.writeInt(0);
+		recordOut.writeByte(recordType);
+		recordOut.writeLong(0);
+		recordOut.writeUTF(mailid);
+		recordOut.flush();
+		return record.size();
+	}
+
+	/**
+	 * Fill the length, the sequence and the checksum of the record and
+	 * append it to the current segment. Call only in locked state.
+	 * @return The position of the record in the segment.
+	 */
+	private long append(RecordBuffer record, long recordSequence) throws IOException {
+		if( activeChannel == null )
+			throw new IOException("Segment store is closed.");
+		byte[] buffer = record.getBuffer();
+		putInt(buffer, 0, record.size()-4);
+		putLong(buffer, 5, recordSequence);
+		recordCrc.reset();
+		recordCrc.update(buffer, 4, record.size()-4);
+		int checksum = (int)recordCrc.getValue();
+		for( int shift = 24; 0 <= shift; shift -= 8 )
+			record.write(checksum >>> shift);
+		long position = activeSegment.size;
+		ByteBuffer recordBuffer = ByteBuffer.wrap(record.getBuffer(), 0, record.size());
+		// A partly written record is overwritten by the next one.
+		while( recordBuffer.hasRemaining() )
+			position += activeChannel.write(recordBuffer, position);
+		long recordPosition = activeSegment.size;
+		activeSegment.size = position;
+		return recordPosition;
+	}
+
+	/**
+	 * Set the location of the message and release its previous location.
+	 * Call only in locked state.
+	 */
+	private void put(String mailid, Location location) {
+		Location previousLocation = locationByMailid.put(mailid, location);
+		if( previousLocation != null )
+			release(mailid, previousLocation);
+		segments.get(location.segmentId).liveBytes += location.recordLength;
+	}
+
+	/**
+	 * The record of the location becomes dead. Call only in locked state.
+	 */
+	private void release(String mailid, Location location) {
+		Segment segment = segments.get(location.segmentId);
+		if( segment != null )
+		{
+			segment.liveBytes -= location.recordLength;
+			segment.deadMailids.add(mailid);
+		}
+	}
+
+	/**
+	 * @return True, if a segment older than the given one has a dead record
+	 * of the mailid, so a tombstone of the mailid is still needed. Call only
+	 * in locked state.
+	 */
+	private boolean hasOlderDeadRecord(String mailid, long segmentId) {
+		for( Segment segment : segments.headMap(segmentId).values() )
+		{
+			if( segment.deadMailids.contains(mailid) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Close the current segment and start a new one. Call only in locked
+	 * state.
+	 */
+	private void openSegment(long segmentId) throws IOException {
+		closeSegment();
+		Segment segment = new Segment(segmentId, getSegmentFile(segmentId));
+		activeFile = new RandomAccessFile(segment.file, "rw");
+		activeChannel = activeFile.getChannel();
+		activeSegment = segment;
+		segments.put(segmentId, segment);
+	}
+
+	/**
+	 * Call only in locked state.
+	 */
+	private void closeSegment() throws IOException {
+		if( activeFile != null )
+		{
+			try {
+				activeChannel.force(false);
+			} finally {
+				activeFile.close();
+				activeFile = null;
+				activeChannel = null;
+			}
+		}
+	}
+
+	/**
+	 * Start a new segment, if the current one is full. Call only in locked
+	 * state.
+	 */
+	private void rollSegment() throws IOException {
+		if( AspirinInternal.getConfiguration().getMailStoreSegmentSize() <= activeSegment.size )
+			openSegment(activeSegment.id+1);
+	}
+
+	/**
+	 * @return The closed segments with a ratio of live records under the
+	 * threshold, the oldest first.
+	 */
+	private List<Segment> getCompactionCandidates() {
+		int threshold = AspirinInternal.getConfiguration().getMailStoreSegmentCompactionThreshold();
+		List<Segment> candidates = new ArrayList<Segment>();
+		synchronized (lock) {
+			for( Segment segment : segments.values() )
+			{
+				if( segment != activeSegment && segment.liveBytes*100 <= segment.size*threshold )
+					candidates.add(segment);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Copy the live records of a closed segment into the current segment
+	 * and delete it. The closed segment is not changed, so it is read
+	 * without locking.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long start = System.currentTimeMillis();
+		DataInputStream segmentIn = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), BUFFER_SIZE));
+		long position = 0;
+		long copied = 0;
+		try {
+			byte[] content = new byte[256];
+			while( position < segment.size && !closed )
+			{
+				int length = segmentIn.readInt();
+				if( content.length < length )
+					content = new byte[length];
+				segmentIn.readFully(content, 0, length);
+				segmentIn.readInt();
+				DataInputStream contentIn = new DataInputStream(new ByteArrayInputStream(content, 0, length));
+				byte recordType = contentIn.readByte();
+				long recordSequence = contentIn.readLong();
+				String mailid = contentIn.readUTF();
+				int messageOffset = 4+length-contentIn.available();
+				synchronized (lock) {
+					Location location = locationByMailid.get(mailid);
+					boolean live = ( recordType == RECORD_MESSAGE && location != null && location.segmentId == segment.id && location.offset == position+messageOffset );
+					// The removed message could be in an older segment.
+					boolean tombstone = ( recordType == RECORD_TOMBSTONE && hasOlderDeadRecord(mailid, segment.id) );
+					if( live || tombstone )
+					{
+						RecordBuffer record = new RecordBuffer(length+8);
+						record.write(new byte[4], 0, 4);
+						record.write(content, 0, length);
+						long recordPosition = append(record, recordSequence);
+						if( live )
+							put(mailid, new Location(activeSegment.id, recordPosition+messageOffset, location.length, location.recordLength, recordSequence));
+						rollSegment();
+						copied++;
+					}
+				}
+				position += length+8;
+			}
+		} finally {
+			segmentIn.close();
+		}
+		synchronized (lock) {
+			if( closed || segment.liveBytes != 0 )
+				return;
+			// The copies have to be on the disk before the segment is deleted.
+			activeChannel.force(false);
+			segments.remove(segment.id);
+		}
+		if( !segment.file.delete() )
+			AspirinInternal.getLogger().warn("SegmentMailStore.compact(): Segment could not be deleted: {}.",segment.file.getAbsolutePath());
+		AspirinInternal.getLogger().debug("SegmentMailStore.compact(): Segment {} compacted in {} ms, {} records copied.",new Object[]{segment.id,System.currentTimeMillis()-start,copied});
+	}
+
+	/**
+	 * Read the records of a segment. The latest record by sequence is kept
+	 * for every mailid, a tombstone is kept with -1 length. The older
+	 * message records are marked dead in their segments.
+	 */
+	private void readSegment(Segment segment, Map<String, Location> latestByMailid) {
+		DataInputStream segmentIn = null;
+		try {
+			long fileLength = segment.file.length();
+			segmentIn = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), BUFFER_SIZE));
+			byte[] content = new byte[256];
+			CRC32 crc = new CRC32();
+			while( true )
+			{
+				int length = 0;
+				int checksum = 0;
+				try {
+					length = segmentIn.readInt();
+					// The length and the checksum are around the content.
+					if( length <= 0 || fileLength-segment.size-8 < length )
+						throw new IOException("Truncated record at "+segment.size+", length: "+length);
+					if( content.length < length )
+						content = new byte[length];
+					segmentIn.readFully(content, 0, length);
+					checksum = segmentIn.readInt();
+				} catch (EOFException eofe) {
+					break;
+				}
+				crc.reset();
+				crc.update(content, 0, length);
+				if( (int)crc.getValue() != checksum )
+					throw new IOException("Invalid record checksum at "+segment.size+".");
+				DataInputStream contentIn = new DataInputStream(new ByteArrayInputStream(content, 0, length));
+				byte recordType = contentIn.readByte();
+				long recordSequence = contentIn.readLong();
+				String mailid = contentIn.readUTF();
+				int messageLength = contentIn.available();
+				Location location = new Location(segment.id, segment.size+4+length-messageLength, ( recordType == RECORD_MESSAGE ) ? messageLength : -1, length+8, recordSequence);
+				Location latest = latestByMailid.get(mailid);
+				if( latest == null || latest.sequence < recordSequence )
+				{
+					latestByMailid.put(mailid, location);
+					if( latest != null && 0 <= latest.length )
+						segments.get(latest.segmentId).deadMailids.add(mailid);
+				}
+				else
+				if( recordType == RECORD_MESSAGE )
+					segment.deadMailids.add(mailid);
+				sequence = Math.max(sequence, recordSequence);
+				segment.size += length+8;
+			}
+		} catch (IOException ioe) {
+			// Records after a broken one could not be trusted.
+			AspirinInternal.getLogger().warn("SegmentMailStore.readSegment(): Reading of {} stopped: {}",segment.file.getName(),ioe.getMessage());
+		} finally {
+			if( segmentIn != null )
+			{
+				try {
+					segmentIn.close();
+				} catch (IOException ioe) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+
+	private File getSegmentFile(long segmentId) {
+		return new File(segmentDir, SEGMENT_PREFIX+segmentId+SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return The ids of existing segment files in ascending order.
+	 */
+	private List<Long> getSegmentIds() {
+		List<Long> segmentIds = new ArrayList<Long>();
+		String[] fileNames = segmentDir.list();
+		if( fileNames == null )
+			return segmentIds;
+		for( String fileName : fileNames )
+		{
+			if( !fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX) )
+				continue;
+			try {
+				segmentIds.add(Long.valueOf(fileName.substring(SEGMENT_PREFIX.length(), fileName.length()-SEGMENT_SUFFIX.length())));
+			} catch (NumberFormatException nfe) {
+				// Not a segment file
+			}
+		}
+		Collections.sort(segmentIds);
+		return segmentIds;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		for( int i = 3; 0 <= i; i-- )
+		{
+			buffer[offset+i] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	private static void putLong(byte[] buffer, int offset, long value) {
+		for( int i = 7; 0 <= i; i-- )
+		{
+			buffer[offset+i] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Record buffer without copying on write.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(8192);
+		}
+		RecordBuffer(int size) {
+			super(size);
+		}
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Finds the record of a loaded message in its current segment. The
+	 * compaction copies the record with the same sequence.
+	 */
+	private class MessageSource implements SharedFileMimeMessage.Source {
+		private final String mailid;
+		private final long sequence;
+
+		MessageSource(String mailid, long sequence) {
+			this.mailid = mailid;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public InputStream open(long position) throws IOException {
+			for( int attempt = 0; attempt < READ_RETRIES; attempt++ )
+			{
+				Location location;
+				File segmentFile;
+				synchronized (lock) {
+					location = locationByMailid.get(mailid);
+					if( location == null || location.sequence != sequence )
+						throw new FileNotFoundException("Message was removed or replaced. mailid="+mailid);
+					segmentFile = segments.get(location.segmentId).file;
+				}
+				try {
+					return SharedFileMimeMessage.openFile(segmentFile, location.offset+position);
+				} catch (FileNotFoundException fnfe) {
+					// The segment was compacted meanwhile, the message was moved.
+					continue;
+				}
+			}
+			throw new FileNotFoundException("Message could not be opened after "+READ_RETRIES+" attempts. mailid="+mailid);
+		}
+	}
+
+	/**
+	 * This thread compacts the segments periodically.
+	 */
+	private class CompactionThread extends Thread {
+
+		CompactionThread() {
+			setName("Aspirin-"+SegmentMailStore.class.getSimpleName()+"-"+getId());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while( !closed )
+			{
+				try {
+					Thread.sleep(COMPACTION_CHECK_INTERVAL);
+				} catch (InterruptedException ie) {
+					// Closed
+				}
+				if( closed )
+					break;
+				try {
+					compact();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("SegmentMailStore.CompactionThread.run(): Compaction failed.",ioe);
+				}
+			}
+		}
+	}
+
+}
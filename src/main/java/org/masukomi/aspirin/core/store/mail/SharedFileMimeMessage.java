@@ -0,0 +1,219 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * <p>MimeMessage parsed from a file. Only the headers are read into the
+ * heap, the content stays in the file and it is read again at every
+ * {@link #writeTo(java.io.OutputStream)}, so large attachments are streamed
+ * from the file to the SMTP connection.</p>
+ *
+ * <p>The file is not kept open by the message: it is closed after the
+ * headers are parsed, and every content stream opens it again. The content
+ * stream is closed by its reader, writeTo() closes it even if the writing
+ * fails. A store could move the message after it was loaded, then the
+ * {@link Source} of the message finds it again.</p>
+ */
+class SharedFileMimeMessage extends MimeMessage {
+
+	/** Buffer size of the file streams. */
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+	/**
+	 * The place of a message, the content is read from it.
+	 */
+	interface Source {
+		/**
+		 * Open the file of the message.
+		 * @param position Position in the message.
+		 * @return A stream positioned to the given byte of the message.
+		 * @throws IOException If the message is not stored any more.
+		 */
+		InputStream open(long position) throws IOException;
+	}
+
+	/**
+	 * A message, which is not moved in its file.
+	 */
+	private static class FileSource implements Source {
+		private final File file;
+		private final long start;
+
+		FileSource(File file, long start) {
+			this.file = file;
+			this.start = start;
+		}
+
+		@Override
+		public InputStream open(long position) throws IOException {
+			return openFile(file, start+position);
+		}
+	}
+
+	private final Source source;
+	/** Position of the content in the message. */
+	private final long contentOffset;
+	private final long contentLength;
+
+	private SharedFileMimeMessage(Session session, Source source, SharedFileInputStream msgIn, long length) throws MessagingException {
+		super(session);
+		this.source = source;
+		parse(msgIn);
+		saved = true;
+		contentOffset = msgIn.getPosition();
+		contentLength = length-contentOffset;
+		// The content is read by getContentStream().
+		contentStream = null;
+	}
+
+	/**
+	 * Parse the message from the file.
+	 */
+	static SharedFileMimeMessage open(File msgFile) throws IOException, MessagingException {
+		return open(msgFile, 0, -1, new FileSource(msgFile, 0));
+	}
+
+	/**
+	 * Parse the message from a part of the file.
+	 * @param start Position of the first byte of the message.
+	 * @param end Position after the last byte of the message, -1 means the
+	 * end of the file.
+	 * @param source The place of the message for the later reads.
+	 */
+	static SharedFileMimeMessage open(File file, long start, long end, Source source) throws IOException, MessagingException {
+		SharedFileInputStream fileIn = new SharedFileInputStream(file, BUFFER_SIZE);
+		try {
+			long messageEnd = ( end == -1 ) ? file.length() : end;
+			SharedFileInputStream msgIn = ( start == 0 && end == -1 ) ? fileIn : (SharedFileInputStream)fileIn.newStream(start, messageEnd);
+			return new SharedFileMimeMessage(Session.getDefaultInstance(System.getProperties()), source, msgIn, messageEnd-start);
+		} finally {
+			// The streams of the parsed headers are closed with the root.
+			fileIn.close();
+		}
+	}
+
+	/**
+	 * @return A stream of the file positioned to the given byte.
+	 */
+	static InputStream openFile(File file, long position) throws IOException {
+		FileInputStream fileIn = new FileInputStream(file);
+		try {
+			fileIn.getChannel().position(position);
+			return fileIn;
+		} catch (IOException ioe) {
+			fileIn.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Open the content in the file. The stream has to be closed by the
+	 * caller.
+	 */
+	@Override
+	protected InputStream getContentStream() throws MessagingException {
+		try {
+			return new ContentInputStream(new BufferedInputStream(source.open(contentOffset), BUFFER_SIZE), contentLength);
+		} catch (IOException ioe) {
+			throw new MessagingException("Message content could not be opened.", ioe);
+		}
+	}
+
+	@Override
+	public int getSize() throws MessagingException {
+		return (int)Math.min(Integer.MAX_VALUE, contentLength);
+	}
+
+	/**
+	 * Write the parsed headers and the content from the file. The content
+	 * stream is closed even if the writing fails. A modified message is
+	 * written by MimeMessage.
+	 */
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		if( modified )
+		{
+			super.writeTo(os, ignoreList);
+			return;
+		}
+		Enumeration<?> headerLines = getNonMatchingHeaderLines(ignoreList);
+		while( headerLines.hasMoreElements() )
+		{
+			os.write(String.valueOf(headerLines.nextElement()).getBytes("ISO-8859-1"));
+			os.write(CRLF);
+		}
+		os.write(CRLF);
+		InputStream contentIn = getContentStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+			while( (length = contentIn.read(buffer)) != -1 )
+				os.write(buffer, 0, length);
+		} finally {
+			contentIn.close();
+		}
+		os.flush();
+	}
+
+	/**
+	 * Stream of the content, it ends at the end of the message.
+	 */
+	private static class ContentInputStream extends FilterInputStream {
+		private long remaining;
+
+		ContentInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if( remaining <= 0 )
+				return -1;
+			int b = super.read();
+			if( b != -1 )
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if( remaining <= 0 )
+				return -1;
+			int count = super.read(b, off, (int)Math.min(len, remaining));
+			if( 0 < count )
+				remaining -= count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package org.masukomi.aspirin.core.store.mail;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.mail.internet.MimeMessage;
 
@@ -17,7 +20,7 @@ import javax.mail.internet.MimeMessage;
  * @author Laszlo Solova
  *
  */
-public class SimpleMailStore implements MailStore {
+public class SimpleMailStore implements BulkMailStore {
 	
 	private HashMap<String, MimeMessage> messageMap = new HashMap<String, MimeMessage>();
 	
@@ -46,5 +49,11 @@ public class SimpleMailStore implements MailStore {
 	public void set(String mailid, MimeMessage msg) {
 		messageMap.put(mailid, msg);
 	}
+	
+	@Override
+	public Set<String> setAll(Map<String, MimeMessage> messages) {
+		messageMap.putAll(messages);
+		return Collections.emptySet();
+	}
 
 }
@@ -0,0 +1,433 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store writes the messages into another store in the background,
+ * so storing a message, for example while a new mail is added to the
+ * delivery, does not wait for the disk. The waiting messages and removals
+ * are written in order by a writer thread in group commits of at most
+ * aspirin.mailstore.writebehind.batch.size messages: the messages go to
+ * the backing store by one setAll() call (see {@link BulkMailStore}), then
+ * the backing store is flushed once, if it is {@link Flushable}. The
+ * {@link SegmentMailStore} forces its current segment by one call, the
+ * {@link FileMailStore} syncs the written files and its index.</p>
+ *
+ * <p>The durability could be chosen per message by
+ * {@link #set(String, MimeMessage, boolean)}: fire-and-forget returns
+ * immediately, the message is lost, if the process stops before its group
+ * commit. Otherwise the call waits until the group commit of the message is
+ * synced. The durability of {@link #set(String, MimeMessage)} is set by
+ * aspirin.mailstore.writebehind.sync. {@link #write(String, MimeMessage)}
+ * returns immediately, and its caller waits for the group commit later. A
+ * waiting call fails, if its message could not be written (the failed
+ * mailids are given back by a {@link BulkMailStore} backing store) or the
+ * group commit could not be synced. If
+ * aspirin.mailstore.writebehind.queue.size operations are waiting, storing
+ * waits for the writer.</p>
+ *
+ * <p>The waiting messages are served from the memory, the removed but not
+ * written messages are not found.</p>
+ *
+ * <pre>
+ * Aspirin.getConfiguration().setMailStore(new WriteBehindMailStore(new SegmentMailStore()));
+ * </pre>
+ */
+public class WriteBehindMailStore implements BulkMailStore, Closeable, Flushable {
+
+	/**
+	 * A waiting message or removal.
+	 */
+	private static class Operation {
+		final String mailid;
+		/** Null, if the message is removed. */
+		final MimeMessage msg;
+		final long sequence;
+		boolean failed = false;
+
+		Operation(String mailid, MimeMessage msg, long sequence) {
+			this.mailid = mailid;
+			this.msg = msg;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * A message stored by {@link WriteBehindMailStore#write(String, MimeMessage)},
+	 * which waits for its group commit.
+	 */
+	public class PendingWrite {
+		private final Operation operation;
+
+		private PendingWrite(Operation operation) {
+			this.operation = operation;
+		}
+
+		/**
+		 * Wait until the message is written and synced.
+		 * @return False, if the message could not be written and synced, or
+		 * the waiting was interrupted.
+		 */
+		public boolean await() {
+			return WriteBehindMailStore.this.await(Collections.singletonList(operation)).isEmpty();
+		}
+	}
+
+	private final MailStore backingStore;
+	private Object lock = new Object();
+	/*
+	 * These fields are guarded by the lock.
+	 */
+	private LinkedList<Operation> queue = new LinkedList<Operation>();
+	/** The last waiting operation of every mailid. */
+	private Map<String, Operation> pendingByMailid = new HashMap<String, Operation>();
+	private long lastSequence = 0;
+	private long committedSequence = 0;
+	private long failedCommitCount = 0;
+	private boolean closed = false;
+	private WriterThread writerThread = null;
+
+	public WriteBehindMailStore(MailStore backingStore) {
+		if( backingStore == null )
+			throw new IllegalArgumentException(getClass().getSimpleName()+" Please set up backing store.");
+		this.backingStore = backingStore;
+	}
+
+	@Override
+	public MimeMessage get(String mailid) {
+		synchronized (lock) {
+			Operation operation = pendingByMailid.get(mailid);
+			if( operation != null )
+				return operation.msg;
+		}
+		return backingStore.get(mailid);
+	}
+
+	@Override
+	public List<String> getMailIds() {
+		// The waiting operations are copied first, so an operation written
+		// meanwhile is in the list of the backing store.
+		List<Operation> pendingOperations;
+		synchronized (lock) {
+			pendingOperations = new ArrayList<Operation>(pendingByMailid.values());
+		}
+		Set<String> mailids = new LinkedHashSet<String>(backingStore.getMailIds());
+		for( Operation operation : pendingOperations )
+		{
+			if( operation.msg == null )
+				mailids.remove(operation.mailid);
+			else
+				mailids.add(operation.mailid);
+		}
+		return new ArrayList<String>(mailids);
+	}
+
+	@Override
+	public void init() {
+		backingStore.init();
+		synchronized (lock) {
+			closed = false;
+			startWriter();
+		}
+	}
+
+	@Override
+	public void remove(String mailid) {
+		enqueue(mailid, null);
+	}
+
+	@Override
+	public void set(String mailid, MimeMessage msg) {
+		set(mailid, msg, AspirinInternal.getConfiguration().isMailStoreWriteBehindSync());
+	}
+
+	/**
+	 * Store a message with the given durability.
+	 * @param sync If true, wait until the message is written and synced,
+	 * otherwise return immediately.
+	 * @return False, if the store is closed, or the message could not be
+	 * written and synced by a waiting call.
+	 */
+	public boolean set(String mailid, MimeMessage msg, boolean sync) {
+		PendingWrite pendingWrite = write(mailid, msg);
+		if( pendingWrite == null )
+			return false;
+		return !sync || pendingWrite.await();
+	}
+
+	/**
+	 * Store a message without waiting, the caller could wait for its group
+	 * commit later, for example after releasing its own locks, so the
+	 * concurrent callers share the group commits.
+	 * @return The message waiting for its group commit, or null if the store
+	 * is closed.
+	 */
+	public PendingWrite write(String mailid, MimeMessage msg) {
+		Operation operation = enqueue(mailid, msg);
+		return ( operation == null ) ? null : new PendingWrite(operation);
+	}
+
+	/**
+	 * Store the messages. If aspirin.mailstore.writebehind.sync is set, it
+	 * waits until the messages are written and synced.
+	 * @return The mailids of the messages, which could not be stored, or
+	 * which failed in their group commit while waiting for it.
+	 */
+	@Override
+	public Set<String> setAll(Map<String, MimeMessage> messages) {
+		Set<String> failedMailids = new HashSet<String>();
+		List<Operation> operations = new ArrayList<Operation>(messages.size());
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+		{
+			Operation operation = enqueue(message.getKey(), message.getValue());
+			if( operation == null )
+				failedMailids.add(message.getKey());
+			else
+				operations.add(operation);
+		}
+		if( !operations.isEmpty() && AspirinInternal.getConfiguration().isMailStoreWriteBehindSync() )
+			failedMailids.addAll(await(operations));
+		return failedMailids;
+	}
+
+	/**
+	 * Wait until every operation stored before is written and synced.
+	 * @throws IOException If a group commit failed meanwhile.
+	 */
+	@Override
+	public void flush() throws IOException {
+		synchronized (lock) {
+			long flushedSequence = lastSequence;
+			long failedCommits = failedCommitCount;
+			if( !waitForCommit(flushedSequence) )
+				throw new IOException("Flush of WriteBehindMailStore was interrupted.");
+			if( failedCommits != failedCommitCount )
+				throw new IOException("Some messages could not be written or synced.");
+		}
+	}
+
+	/**
+	 * Write out the waiting operations, stop the writer thread and close the
+	 * backing store, if it is closeable.
+	 */
+	@Override
+	public void close() throws IOException {
+		WriterThread writer;
+		synchronized (lock) {
+			closed = true;
+			writer = writerThread;
+			writerThread = null;
+			lock.notifyAll();
+		}
+		if( writer != null )
+		{
+			boolean interrupted = false;
+			// The backing store is closed after the last group commit.
+			while( writer.isAlive() )
+			{
+				try {
+					writer.join();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if( interrupted )
+				Thread.currentThread().interrupt();
+		}
+		if( backingStore instanceof Closeable )
+			((Closeable)backingStore).close();
+	}
+
+	/**
+	 * Add an operation to the queue. It waits while the queue is full.
+	 * @return The operation or null, if the store is closed.
+	 */
+	private Operation enqueue(String mailid, MimeMessage msg) {
+		boolean interrupted = false;
+		try {
+			synchronized (lock) {
+				while( !closed && AspirinInternal.getConfiguration().getMailStoreWriteBehindQueueSize() <= queue.size() )
+				{
+					try {
+						lock.wait();
+					} catch (InterruptedException ie) {
+						// The operation is not dropped.
+						interrupted = true;
+					}
+				}
+				if( closed )
+				{
+					AspirinInternal.getLogger().error("WriteBehindMailStore.enqueue(): Store is closed. mailid={}",mailid);
+					return null;
+				}
+				Operation operation = new Operation(mailid, msg, ++lastSequence);
+				queue.add(operation);
+				pendingByMailid.put(mailid, operation);
+				startWriter();
+				lock.notifyAll();
+				return operation;
+			}
+		} finally {
+			if( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait until the operations are written and synced.
+	 * @return The mailids of the failed operations and of the not committed
+	 * ones, if the waiting was interrupted.
+	 */
+	private Set<String> await(List<Operation> operations) {
+		Set<String> failedMailids = new HashSet<String>();
+		synchronized (lock) {
+			waitForCommit(operations.get(operations.size()-1).sequence);
+			for( Operation operation : operations )
+			{
+				if( operation.failed || committedSequence < operation.sequence )
+					failedMailids.add(operation.mailid);
+			}
+		}
+		return failedMailids;
+	}
+
+	/**
+	 * Wait until the operations are committed up to the sequence. Call only
+	 * in locked state.
+	 * @return False, if the waiting was interrupted.
+	 */
+	private boolean waitForCommit(long sequence) {
+		while( committedSequence < sequence )
+		{
+			try {
+				lock.wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Call only in locked state.
+	 */
+	private void startWriter() {
+		if( writerThread == null && !closed )
+		{
+			writerThread = new WriterThread();
+			writerThread.start();
+		}
+	}
+
+	/**
+	 * Write the operations into the backing store and flush it once. The
+	 * failed operations are marked.
+	 * @return False, if some operations could not be written or flushed.
+	 */
+	private boolean commit(List<Operation> batch) {
+		Map<String, MimeMessage> messages = new LinkedHashMap<String, MimeMessage>();
+		Set<String> failedMailids = new HashSet<String>();
+		boolean committed = false;
+		try {
+			for( Operation operation : batch )
+			{
+				if( operation.msg != null )
+				{
+					messages.put(operation.mailid, operation.msg);
+					continue;
+				}
+				// The earlier messages are written before the removal.
+				failedMailids.addAll(writeMessages(messages));
+				messages.clear();
+				backingStore.remove(operation.mailid);
+			}
+			failedMailids.addAll(writeMessages(messages));
+			if( backingStore instanceof Flushable )
+				((Flushable)backingStore).flush();
+			committed = true;
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("WriteBehindMailStore.commit(): Backing store could not be flushed.",ioe);
+		} catch (RuntimeException re) {
+			AspirinInternal.getLogger().error("WriteBehindMailStore.commit(): Messages could not be written.",re);
+		}
+		for( Operation operation : batch )
+			operation.failed = ( !committed || failedMailids.contains(operation.mailid) );
+		return committed && failedMailids.isEmpty();
+	}
+
+	/**
+	 * @return The mailids of the messages, which could not be written.
+	 */
+	private Set<String> writeMessages(Map<String, MimeMessage> messages) {
+		if( messages.isEmpty() )
+			return Collections.emptySet();
+		if( backingStore instanceof BulkMailStore )
+			return ((BulkMailStore)backingStore).setAll(messages);
+		for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+			backingStore.set(message.getKey(), message.getValue());
+		return Collections.emptySet();
+	}
+
+	private class WriterThread extends Thread {
+
+		WriterThread() {
+			setName("Aspirin-"+WriteBehindMailStore.class.getSimpleName()+"-"+getId());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while( true )
+			{
+				List<Operation> batch = new ArrayList<Operation>();
+				synchronized (lock) {
+					while( queue.isEmpty() && !closed )
+					{
+						try {
+							lock.wait();
+						} catch (InterruptedException ie) {
+							// Stopped by closing only
+						}
+					}
+					if( queue.isEmpty() )
+						return;
+					int batchSize = Math.max(1, AspirinInternal.getConfiguration().getMailStoreWriteBehindBatchSize());
+					while( !queue.isEmpty() && batch.size() < batchSize )
+						batch.add(queue.removeFirst());
+					// The queue has free space.
+					lock.notifyAll();
+				}
+				boolean committed = commit(batch);
+				synchronized (lock) {
+					for( Operation operation : batch )
+					{
+						if( pendingByMailid.get(operation.mailid) == operation )
+							pendingByMailid.remove(operation.mailid);
+					}
+					committedSequence = batch.get(batch.size()-1).sequence;
+					if( !committed )
+						failedCommitCount++;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * <p>Extension of {@link QueueStore} for stores, which know when the next 
+ * item will be sendable. The delivery manager waits in 
+ * {@link #nextBlocking(long)} instead of polling the store, so a new item 
+ * is dispatched immediately and a retry is dispatched when it becomes due.
+ * </p>
+ */
+public interface BlockingQueueStore extends QueueStore {
+	/**
+	 * It gives back the next sendable QueueInfo object like 
+	 * {@link QueueStore#next()}. If there is no sendable item, it waits until 
+	 * an item is added, the earliest queued item becomes sendable, 
+	 * {@link #signal()} is called or the timeout elapses.
+	 * 
+	 * @param timeout Maximal waiting time in milliseconds.
+	 * @return next sendable QueueInfo or null
+	 * @throws InterruptedException If the waiting thread was interrupted.
+	 */
+	public QueueInfo nextBlocking(long timeout) throws InterruptedException;
+	/**
+	 * Wake up all threads waiting in {@link #nextBlocking(long)}.
+	 */
+	public void signal();
+}
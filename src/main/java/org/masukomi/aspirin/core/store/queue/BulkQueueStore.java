@@ -0,0 +1,25 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * <p>Extension of {@link QueueStore} for stores, which could add the
+ * recipients of more mails at once. The store is locked and written once for
+ * the whole batch instead of once per mail.</p>
+ */
+public interface BulkQueueStore extends QueueStore {
+	/**
+	 * Add the given items to the queue. The mailid, the expiry and the
+	 * recipient of the QueueInfo objects (created by
+	 * {@link QueueStore#createQueueInfo()}) are used, every item is queued like
+	 * by {@link QueueStore#add(String, long, Collection)}.
+	 * 
+	 * @param queueInfos The new items, the recipients of a mail follow each
+	 * other.
+	 * @throws MessagingException If queueing failed.
+	 */
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException;
+}
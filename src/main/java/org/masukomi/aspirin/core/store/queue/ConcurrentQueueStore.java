@@ -0,0 +1,246 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store distributes the mails among stripes by the hash of their
+ * mailid. Every stripe is an {@link IndexedQueueStore} with its own lock, so
+ * the threads adding mails and the threads setting sending results do not
+ * wait for each other, if they work with mails of different stripes. The
+ * count of stripes is set by aspirin.queuestore.stripes when the store is
+ * created.</p>
+ *
+ * <p>{@link #next()} starts searching in a rotating stripe, so the consumer
+ * threads start in different stripes. A stripe is locked only if it has a
+ * sendable item: the earliest attempt time of every stripe is read without
+ * locking. Items of different stripes are not strictly ordered by their
+ * attempt time, but an item is given back only if it is sendable.</p>
+ *
+ * <p>Threads waiting in {@link #nextBlocking(long)} wait on a separate
+ * monitor, which is notified only if there is a waiting thread.
+ * {@link #removeRecipient(String)}, {@link #clean()} and
+ * {@link #reapExpired()} work on every stripe one by one.</p>
+ */
+public class ConcurrentQueueStore implements BlockingQueueStore, GroupingQueueStore, BulkQueueStore, ExpiringQueueStore, ProgressQueueStore {
+
+	private final IndexedQueueStore[] stripes;
+	private AtomicInteger nextStripe = new AtomicInteger();
+	private Object waitLock = new Object();
+	private volatile int waitingThreads = 0;
+
+	/**
+	 * The count of stripes is rounded up to a power of two.
+	 */
+	public ConcurrentQueueStore() {
+		int stripeCount = 1;
+		while( stripeCount < AspirinInternal.getConfiguration().getQueueStoreStripes() )
+			stripeCount <<= 1;
+		stripes = new IndexedQueueStore[stripeCount];
+		for( int i = 0; i < stripeCount; i++ )
+			stripes[i] = new IndexedQueueStore();
+	}
+
+	@Override
+	public void add(String mailid, long expire, Collection<InternetAddress> recipients) throws MessagingException {
+		getStripe(mailid).add(mailid, expire, recipients);
+		wakeUp();
+	}
+
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		List<List<QueueInfo>> stripeQueueInfos = new ArrayList<List<QueueInfo>>(stripes.length);
+		for( int i = 0; i < stripes.length; i++ )
+			stripeQueueInfos.add(new ArrayList<QueueInfo>());
+		for( QueueInfo queueInfo : queueInfos )
+			stripeQueueInfos.get(getStripeIndex(queueInfo.getMailid())).add(queueInfo);
+		for( int i = 0; i < stripes.length; i++ )
+		{
+			if( !stripeQueueInfos.get(i).isEmpty() )
+				stripes[i].addAll(stripeQueueInfos.get(i));
+		}
+		wakeUp();
+	}
+
+	@Override
+	public List<String> clean() {
+		List<String> mailidList = new ArrayList<String>();
+		for( IndexedQueueStore stripe : stripes )
+			mailidList.addAll(stripe.clean());
+		return mailidList;
+	}
+
+	@Override
+	public QueueInfo createQueueInfo() {
+		return new QueueInfo();
+	}
+
+	@Override
+	public long getNextAttempt(String mailid, String recipient) {
+		return getStripe(mailid).getNextAttempt(mailid, recipient);
+	}
+
+	@Override
+	public boolean hasBeenRecipientHandled(String mailid, String recipient) {
+		return getStripe(mailid).hasBeenRecipientHandled(mailid, recipient);
+	}
+
+	@Override
+	public void init() {
+		for( IndexedQueueStore stripe : stripes )
+			stripe.init();
+	}
+
+	@Override
+	public boolean isCompleted(String mailid) {
+		return getStripe(mailid).isCompleted(mailid);
+	}
+
+	@Override
+	public DeliveryProgress getProgress(String mailid) {
+		return getStripe(mailid).getProgress(mailid);
+	}
+	
+	@Override
+	public void holdCompletion(String mailid) {
+		getStripe(mailid).holdCompletion(mailid);
+	}
+	
+	@Override
+	public boolean releaseCompletion(String mailid) {
+		return getStripe(mailid).releaseCompletion(mailid);
+	}
+
+	@Override
+	public QueueInfo next() {
+		long now = System.currentTimeMillis();
+		int start = nextStripe.getAndIncrement();
+		for( int i = 0; i < stripes.length; i++ )
+		{
+			IndexedQueueStore stripe = stripes[(start+i) & (stripes.length-1)];
+			if( now <= stripe.getEarliestAttempt() )
+				continue;
+			QueueInfo qi = stripe.next();
+			if( qi != null )
+				return qi;
+		}
+		return null;
+	}
+
+	@Override
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount) {
+		return getStripe(qi.getMailid()).nextCoRecipients(qi, maxCount);
+	}
+
+	@Override
+	public QueueInfo nextBlocking(long timeout) throws InterruptedException {
+		QueueInfo qi = next();
+		if( qi != null )
+			return qi;
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized (waitLock) {
+			waitingThreads++;
+			try {
+				while( true )
+				{
+					// Changes before the increment are seen here, the later
+					// ones notify this monitor.
+					qi = next();
+					if( qi != null )
+						return qi;
+					long now = System.currentTimeMillis();
+					long waitTime = deadline-now;
+					if( waitTime <= 0 )
+						return null;
+					// Wake up when the earliest item becomes sendable.
+					long earliestAttempt = getEarliestAttempt();
+					if( earliestAttempt != Long.MAX_VALUE )
+						waitTime = Math.min(waitTime, Math.max(1, earliestAttempt-now+1));
+					waitLock.wait(waitTime);
+				}
+			} finally {
+				waitingThreads--;
+			}
+		}
+	}
+
+	@Override
+	public List<String> reapExpired() {
+		List<String> mailidList = new ArrayList<String>();
+		for( IndexedQueueStore stripe : stripes )
+			mailidList.addAll(stripe.reapExpired());
+		return mailidList;
+	}
+
+	@Override
+	public void remove(String mailid) {
+		getStripe(mailid).remove(mailid);
+	}
+
+	@Override
+	public void removeRecipient(String recipient) {
+		for( IndexedQueueStore stripe : stripes )
+			stripe.removeRecipient(recipient);
+	}
+
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		getStripe(qi.getMailid()).setSendingResult(qi);
+		if( qi.hasState(DeliveryState.QUEUED) )
+			wakeUp();
+	}
+
+	@Override
+	public void signal() {
+		synchronized (waitLock) {
+			waitLock.notifyAll();
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for( IndexedQueueStore stripe : stripes )
+			size += stripe.size();
+		return size;
+	}
+
+	private IndexedQueueStore getStripe(String mailid) {
+		return stripes[getStripeIndex(mailid)];
+	}
+
+	private int getStripeIndex(String mailid) {
+		int hash = mailid.hashCode();
+		// Spread the higher bits, the low bits select the stripe.
+		hash ^= (hash >>> 16);
+		return hash & (stripes.length-1);
+	}
+
+	private long getEarliestAttempt() {
+		long earliestAttempt = Long.MAX_VALUE;
+		for( IndexedQueueStore stripe : stripes )
+			earliestAttempt = Math.min(earliestAttempt, stripe.getEarliestAttempt());
+		return earliestAttempt;
+	}
+
+	/**
+	 * Notify the waiting threads, that the earliest attempt time could be
+	 * changed. The monitor is not locked if nobody waits.
+	 */
+	private void wakeUp() {
+		if( 0 < waitingThreads )
+		{
+			synchronized (waitLock) {
+				waitLock.notifyAll();
+			}
+		}
+	}
+
+}
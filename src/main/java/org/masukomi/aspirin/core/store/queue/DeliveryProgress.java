@@ -0,0 +1,44 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * <p>Snapshot of the recipient counts of a mail: how many recipients are 
+ * still pending (QUEUED or IN_PROGRESS), how many are SENT and how many 
+ * are FAILED.</p>
+ */
+public class DeliveryProgress {
+	private final String mailid;
+	private final int pending;
+	private final int sent;
+	private final int failed;
+	
+	public DeliveryProgress(String mailid, int pending, int sent, int failed) {
+		this.mailid = mailid;
+		this.pending = pending;
+		this.sent = sent;
+		this.failed = failed;
+	}
+	
+	public String getMailid() {
+		return mailid;
+	}
+	public int getPending() {
+		return pending;
+	}
+	public int getSent() {
+		return sent;
+	}
+	public int getFailed() {
+		return failed;
+	}
+	public int getTotal() {
+		return pending+sent+failed;
+	}
+	public boolean isCompleted() {
+		return pending == 0;
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" [mailid="+mailid+"; pending="+pending+"; sent="+sent+"; failed="+failed+"]";
+	}
+}
@@ -0,0 +1,23 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.List;
+
+/**
+ * <p>Extension of {@link QueueStore} for stores, which could be maintained
+ * incrementally instead of {@link QueueStore#clean()}. The store counts the
+ * outstanding recipients of every mail, so a completed mail is recognized
+ * when its last recipient is finished, and it indexes the queued items by
+ * their expiry time, so only the expired items are visited.</p>
+ */
+public interface ExpiringQueueStore extends QueueStore {
+	/**
+	 * Fail the QUEUED items expired since the previous call and remove the
+	 * mails, which were completed without being removed (e.g. by failing
+	 * their expired items or by {@link QueueStore#removeRecipient(String)}).
+	 * The cost is proportional to the count of these items, not to the size
+	 * of the store.
+	 *
+	 * @return List of removed mailids, their messages are not used any more.
+	 */
+	public List<String> reapExpired();
+}
@@ -0,0 +1,24 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.List;
+
+/**
+ * <p>Extension of {@link QueueStore} for stores, which could give back more 
+ * sendable recipients of the same mail together. These recipients are 
+ * delivered in one SMTP transaction: the message content is sent only once 
+ * with multiple RCPT TO commands.</p>
+ */
+public interface GroupingQueueStore extends QueueStore {
+	/**
+	 * It gives back other sendable QueueInfo objects of the same mail, which 
+	 * recipients are in the same domain as the recipient of the given 
+	 * QueueInfo. The returned objects are set to IN_PROGRESS state like in 
+	 * {@link QueueStore#next()}. Items out of time bounds are not returned, 
+	 * they are failed by the next() method.
+	 * 
+	 * @param qi The QueueInfo given back by next().
+	 * @param maxCount Maximal count of returned objects.
+	 * @return List of QueueInfo objects, could be empty.
+	 */
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount);
+}
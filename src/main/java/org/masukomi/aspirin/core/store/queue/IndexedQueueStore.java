@@ -0,0 +1,658 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store keeps all QueueInfo objects in memory like the
+ * {@link SimpleQueueStore}, but the QUEUED items are indexed by their next
+ * attempt time in a sorted set. So {@link #next()}, {@link #add(String, long,
+ * Collection)} and {@link #setSendingResult(QueueInfo)} cost O(log n) instead
+ * of sorting the whole queue on every call. It is useful if there are a lot
+ * of recipients in the queue.</p>
+ *
+ * <p>Only QUEUED items are in the schedule. An item is taken out of the
+ * schedule when it is given back by next() and it is put back with its new
+ * attempt time when the sending result is set.</p>
+ *
+ * <p>This store is a {@link BlockingQueueStore}: waiting threads are waked
+ * up, when the earliest attempt time of the schedule changes. It is a
+ * {@link GroupingQueueStore} too: the scheduled items are indexed by mailid
+ * and recipient domain, so {@link #nextCoRecipients(QueueInfo, int)} takes
+ * the sendable co-recipients from the head of their own schedule without
+ * visiting the other recipients of the mail.</p>
+ *
+ * <p>This store is an {@link ExpiringQueueStore} and a
+ * {@link ProgressQueueStore} too. The pending (QUEUED or IN_PROGRESS), sent
+ * and failed recipients of every mail are counted, so
+ * {@link #isCompleted(String)} costs O(1), and the completion of a mail is
+ * notified by the sending result of its last pending recipient. The pending items with expiry
+ * are indexed in buckets of one minute by their expiry time, so
+ * {@link #reapExpired()} visits only the buckets passed since its previous
+ * call.</p>
+ */
+public class IndexedQueueStore implements BlockingQueueStore, GroupingQueueStore, BulkQueueStore, ExpiringQueueStore, ProgressQueueStore {
+
+	private static final long EXPIRY_BUCKET_MILLIS = 60000;
+
+	private Map<String, ScheduleEntry> entryByMailidAndRecipient = new HashMap<String, ScheduleEntry>();
+	private Map<String, MailEntries> entriesByMailid = new HashMap<String, MailEntries>();
+	private Map<String, List<ScheduleEntry>> entriesByRecipient = new HashMap<String, List<ScheduleEntry>>();
+	private TreeSet<ScheduleEntry> schedule = new TreeSet<ScheduleEntry>();
+	private Map<String, TreeSet<ScheduleEntry>> scheduleByMailidAndDomain = new HashMap<String, TreeSet<ScheduleEntry>>();
+	private TreeMap<Long, Set<ScheduleEntry>> expiryBuckets = new TreeMap<Long, Set<ScheduleEntry>>();
+	private Set<String> completedMailids = new LinkedHashSet<String>();
+	private long sequence = 0;
+	private volatile long earliestAttempt = Long.MAX_VALUE;
+	private Object lock = new Object();
+
+	@Override
+	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+		try {
+			synchronized (lock) {
+				for( InternetAddress recipient : recipients )
+				{
+					QueueInfo queueInfo = new QueueInfo();
+					queueInfo.setExpiry(expiry);
+					queueInfo.setMailid(mailid);
+					queueInfo.setRecipient(recipient.getAddress());
+					link(queueInfo);
+				}
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed: "+mailid, e);
+		}
+	}
+
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		try {
+			synchronized (lock) {
+				for( QueueInfo queueInfo : queueInfos )
+					link(queueInfo);
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed.", e);
+		}
+	}
+
+	@Override
+	public List<String> clean() {
+		List<String> mailidList = null;
+		synchronized (lock) {
+			mailidList = new ArrayList<String>(entriesByMailid.keySet());
+			Iterator<String> mailidIt = mailidList.iterator();
+			while( mailidIt.hasNext() )
+			{
+				String mailid = mailidIt.next();
+				if( isCompleted(mailid) )
+				{
+					remove(mailid);
+					mailidIt.remove();
+				}
+			}
+		}
+		return mailidList;
+	}
+
+	@Override
+	public QueueInfo createQueueInfo() {
+		return new QueueInfo();
+	}
+
+	@Override
+	public long getNextAttempt(String mailid, String recipient) {
+		synchronized (lock) {
+			ScheduleEntry entry = entryByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+			if( entry != null && entry.queueInfo.hasState(DeliveryState.QUEUED) )
+				return entry.queueInfo.getAttempt();
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean hasBeenRecipientHandled(String mailid, String recipient) {
+		synchronized (lock) {
+			ScheduleEntry entry = entryByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+			return ( entry != null && entry.queueInfo.hasState(DeliveryState.FAILED, DeliveryState.SENT) );
+		}
+	}
+
+	@Override
+	public void init() {
+		// Do nothing
+	}
+
+	@Override
+	public boolean isCompleted(String mailid) {
+		synchronized (lock) {
+			MailEntries mailidEntries = entriesByMailid.get(mailid);
+			return ( mailidEntries == null || mailidEntries.counter.isCompleted() );
+		}
+	}
+
+	@Override
+	public DeliveryProgress getProgress(String mailid) {
+		synchronized (lock) {
+			MailEntries mailidEntries = entriesByMailid.get(mailid);
+			return ( mailidEntries != null ) ? mailidEntries.counter.toProgress(mailid) : null;
+		}
+	}
+
+	@Override
+	public void holdCompletion(String mailid) {
+		synchronized (lock) {
+			MailEntries mailidEntries = entriesByMailid.get(mailid);
+			if( mailidEntries == null )
+			{
+				mailidEntries = new MailEntries();
+				entriesByMailid.put(mailid, mailidEntries);
+			}
+			mailidEntries.counter.hold();
+		}
+	}
+
+	@Override
+	public boolean releaseCompletion(String mailid) {
+		synchronized (lock) {
+			MailEntries mailidEntries = entriesByMailid.get(mailid);
+			if( mailidEntries == null || !mailidEntries.counter.unhold() || !mailidEntries.counter.isCompleted() )
+				return false;
+			if( mailidEntries.isEmpty() )
+				entriesByMailid.remove(mailid);
+			else
+				completedMailids.add(mailid);
+			return true;
+		}
+	}
+
+	@Override
+	public QueueInfo next() {
+		synchronized (lock) {
+			long now = System.currentTimeMillis();
+			while( !schedule.isEmpty() )
+			{
+				ScheduleEntry entry = schedule.first();
+				// The earliest item is not sendable yet, so none of them.
+				if( now <= entry.scheduledAttempt )
+					return null;
+				unschedule(entry);
+				QueueInfo qi = entry.queueInfo;
+				if( !qi.hasState(DeliveryState.QUEUED) )
+					continue;
+				if( !qi.isInTimeBounds() )
+				{
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+						qi.setResultInfo("Delivery is out of time or attempt.");
+					qi.setState(DeliveryState.FAILED);
+					setSendingResult(qi);
+				}
+				else
+				{
+					qi.setState(DeliveryState.IN_PROGRESS);
+					return qi;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount) {
+		List<QueueInfo> coRecipients = new ArrayList<QueueInfo>();
+		synchronized (lock) {
+			TreeSet<ScheduleEntry> domainSchedule = scheduleByMailidAndDomain.get(createDomainKey(qi));
+			if( domainSchedule != null )
+			{
+				long now = System.currentTimeMillis();
+				List<ScheduleEntry> takenEntries = new ArrayList<ScheduleEntry>();
+				for( ScheduleEntry entry : domainSchedule )
+				{
+					// The items are ordered by attempt time.
+					if( maxCount <= takenEntries.size() || now <= entry.scheduledAttempt )
+						break;
+					// Items out of bounds are failed by next().
+					if( entry.queueInfo != qi && entry.queueInfo.isInTimeBounds() )
+						takenEntries.add(entry);
+				}
+				for( ScheduleEntry entry : takenEntries )
+				{
+					unschedule(entry);
+					entry.queueInfo.setState(DeliveryState.IN_PROGRESS);
+					coRecipients.add(entry.queueInfo);
+				}
+			}
+		}
+		return coRecipients;
+	}
+
+	@Override
+	public QueueInfo nextBlocking(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized (lock) {
+			while( true )
+			{
+				QueueInfo qi = next();
+				if( qi != null )
+					return qi;
+				long now = System.currentTimeMillis();
+				long waitTime = deadline-now;
+				if( waitTime <= 0 )
+					return null;
+				// Wake up when the earliest item becomes sendable.
+				if( !schedule.isEmpty() )
+					waitTime = Math.min(waitTime, schedule.first().scheduledAttempt-now+1);
+				lock.wait(waitTime);
+			}
+		}
+	}
+
+	@Override
+	public List<String> reapExpired() {
+		List<String> removedMailids = new ArrayList<String>();
+		synchronized (lock) {
+			long currentBucket = System.currentTimeMillis()/EXPIRY_BUCKET_MILLIS;
+			while( !expiryBuckets.isEmpty() && expiryBuckets.firstKey() < currentBucket )
+			{
+				Set<ScheduleEntry> bucketEntries = expiryBuckets.pollFirstEntry().getValue();
+				for( ScheduleEntry entry : bucketEntries )
+					entry.expiryIndexed = false;
+				for( ScheduleEntry entry : bucketEntries )
+				{
+					// IN_PROGRESS items are failed when they are released.
+					QueueInfo qi = entry.queueInfo;
+					if( !qi.hasState(DeliveryState.QUEUED) )
+						continue;
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+						qi.setResultInfo("Delivery is out of time or attempt.");
+					qi.setState(DeliveryState.FAILED);
+					setSendingResult(qi);
+				}
+			}
+			List<String> mailids = new ArrayList<String>(completedMailids);
+			completedMailids.clear();
+			for( String mailid : mailids )
+			{
+				if( isCompleted(mailid) )
+				{
+					remove(mailid);
+					removedMailids.add(mailid);
+				}
+			}
+		}
+		return removedMailids;
+	}
+
+	@Override
+	public void remove(String mailid) {
+		synchronized (lock) {
+			completedMailids.remove(mailid);
+			MailEntries removeableEntries = entriesByMailid.remove(mailid);
+			if( removeableEntries != null )
+			{
+				for( ScheduleEntry entry : removeableEntries )
+					unlink(entry, false, true);
+			}
+		}
+	}
+
+	@Override
+	public void removeRecipient(String recipient) {
+		synchronized (lock) {
+			List<ScheduleEntry> removeableEntries = entriesByRecipient.remove(recipient);
+			if( removeableEntries != null )
+			{
+				for( ScheduleEntry entry : removeableEntries )
+					unlink(entry, true, false);
+			}
+		}
+	}
+
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		QueueInfo finishedQueueInfo = null;
+		synchronized (lock) {
+			ScheduleEntry entry = entryByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
+			if( entry != null )
+			{
+				QueueInfo uniqueQueueInfo = entry.queueInfo;
+				if( entry.scheduled )
+					unschedule(entry);
+				uniqueQueueInfo.setAttempt(System.currentTimeMillis()+AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
+				uniqueQueueInfo.incAttemptCount();
+				uniqueQueueInfo.setState(qi.getState());
+				reschedule(entry);
+				if( track(entry, entriesByMailid.get(uniqueQueueInfo.getMailid())) )
+					finishedQueueInfo = uniqueQueueInfo;
+			}
+		}
+		// Called without the lock, unless the caller holds it (next()).
+		if( finishedQueueInfo != null && AspirinInternal.getListenerManager() != null )
+			AspirinInternal.getListenerManager().notifyFinished(finishedQueueInfo);
+	}
+
+	@Override
+	public void signal() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (lock) {
+			return entriesByMailid.size();
+		}
+	}
+
+	/**
+	 * Put a recovered QueueInfo into the store. It replaces the item with the 
+	 * same mailid and recipient. Used by persistent subclasses.
+	 */
+	protected void restore(QueueInfo queueInfo) {
+		synchronized (lock) {
+			link(queueInfo);
+		}
+	}
+
+	/**
+	 * @return The stored QueueInfo of the recipient or null.
+	 */
+	protected QueueInfo getQueueInfo(String mailid, String recipient) {
+		synchronized (lock) {
+			ScheduleEntry entry = entryByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+			return ( entry != null ) ? entry.queueInfo : null;
+		}
+	}
+
+	/**
+	 * @return All stored QueueInfo objects. Iterate only in locked state, 
+	 * see {@link #getLock()}.
+	 */
+	protected Iterable<QueueInfo> getQueueInfos() {
+		return new Iterable<QueueInfo>() {
+			@Override
+			public Iterator<QueueInfo> iterator() {
+				final Iterator<ScheduleEntry> entryIt = entryByMailidAndRecipient.values().iterator();
+				return new Iterator<QueueInfo>() {
+					@Override
+					public boolean hasNext() {
+						return entryIt.hasNext();
+					}
+					@Override
+					public QueueInfo next() {
+						return entryIt.next().queueInfo;
+					}
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @return The earliest attempt time of the QUEUED items or
+	 * Long.MAX_VALUE, if there is no QUEUED item. It is read without locking,
+	 * so a compound store could skip this store cheaply if nothing is
+	 * sendable.
+	 */
+	protected long getEarliestAttempt() {
+		return earliestAttempt;
+	}
+
+	/**
+	 * @return The lock of all store operations. Subclasses could lock it to 
+	 * make their own work atomic with a store operation.
+	 */
+	protected Object getLock() {
+		return lock;
+	}
+
+	/**
+	 * Index a new QueueInfo and put it into the schedule. An item with the 
+	 * same mailid and recipient is replaced. Call only in locked state.
+	 */
+	private void link(QueueInfo queueInfo) {
+		String mailid = queueInfo.getMailid();
+		ScheduleEntry entry = new ScheduleEntry(queueInfo, sequence++);
+		ScheduleEntry previous = entryByMailidAndRecipient.put(createSearchKey(mailid, queueInfo.getRecipient()), entry);
+		if( previous != null )
+			unlink(previous, true, true);
+
+		MailEntries mailidEntries = entriesByMailid.get(mailid);
+		if( mailidEntries == null )
+		{
+			mailidEntries = new MailEntries();
+			entriesByMailid.put(mailid, mailidEntries);
+		}
+		mailidEntries.add(entry);
+		track(entry, mailidEntries);
+
+		List<ScheduleEntry> recipientEntries = entriesByRecipient.get(queueInfo.getRecipient());
+		if( recipientEntries == null )
+		{
+			recipientEntries = new ArrayList<ScheduleEntry>();
+			entriesByRecipient.put(queueInfo.getRecipient(), recipientEntries);
+		}
+		recipientEntries.add(entry);
+
+		reschedule(entry);
+	}
+
+	/**
+	 * Put the entry into the schedule with its current attempt time, if it is
+	 * waiting for delivery. If it becomes the earliest item, the waiting
+	 * threads are waked up. Call only in locked state.
+	 */
+	private void reschedule(ScheduleEntry entry) {
+		if( entry.queueInfo.hasState(DeliveryState.QUEUED) )
+		{
+			entry.scheduledAttempt = entry.queueInfo.getAttempt();
+			entry.scheduled = true;
+			schedule.add(entry);
+			String domainKey = createDomainKey(entry.queueInfo);
+			TreeSet<ScheduleEntry> domainSchedule = scheduleByMailidAndDomain.get(domainKey);
+			if( domainSchedule == null )
+			{
+				domainSchedule = new TreeSet<ScheduleEntry>();
+				scheduleByMailidAndDomain.put(domainKey, domainSchedule);
+			}
+			domainSchedule.add(entry);
+			if( schedule.first() == entry )
+			{
+				updateEarliestAttempt();
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Take the entry out of the schedule and out of the schedule of its mail
+	 * and recipient domain. Call only in locked state.
+	 */
+	private void unschedule(ScheduleEntry entry) {
+		boolean first = ( schedule.first() == entry );
+		schedule.remove(entry);
+		entry.scheduled = false;
+		if( first )
+			updateEarliestAttempt();
+		String domainKey = createDomainKey(entry.queueInfo);
+		TreeSet<ScheduleEntry> domainSchedule = scheduleByMailidAndDomain.get(domainKey);
+		if( domainSchedule != null )
+		{
+			domainSchedule.remove(entry);
+			if( domainSchedule.isEmpty() )
+				scheduleByMailidAndDomain.remove(domainKey);
+		}
+	}
+
+	/**
+	 * Follow the state of the entry in the counters of its mail and in the
+	 * expiry index. The mail is marked as completed, when its last pending
+	 * item is finished. Call only in locked state, after the
+	 * state of the entry was changed.
+	 *
+	 * @return True, if the mail is completed by this change.
+	 */
+	private boolean track(ScheduleEntry entry, MailEntries mailidEntries) {
+		QueueInfo qi = entry.queueInfo;
+		DeliveryState counted = ProgressCounter.countedState(qi.getState());
+		boolean finished = false;
+		if( counted != entry.counted && mailidEntries != null )
+		{
+			boolean completed = mailidEntries.counter.isCompleted();
+			mailidEntries.counter.move(entry.counted, counted);
+			entry.counted = counted;
+			if( mailidEntries.counter.isCompleted() )
+			{
+				completedMailids.add(qi.getMailid());
+				finished = !completed;
+			}
+		}
+		boolean pending = ( counted == DeliveryState.QUEUED );
+		if( pending && !entry.expiryIndexed && qi.getExpiry() != -1 )
+		{
+			Long bucket = Long.valueOf(qi.getExpiry()/EXPIRY_BUCKET_MILLIS);
+			Set<ScheduleEntry> bucketEntries = expiryBuckets.get(bucket);
+			if( bucketEntries == null )
+			{
+				bucketEntries = new LinkedHashSet<ScheduleEntry>();
+				expiryBuckets.put(bucket, bucketEntries);
+			}
+			bucketEntries.add(entry);
+			entry.expiryIndexed = true;
+		}
+		else
+		if( !pending && entry.expiryIndexed )
+			unindexExpiry(entry);
+		return finished;
+	}
+
+	/**
+	 * Remove the entry from its expiry bucket. Call only in locked state.
+	 */
+	private void unindexExpiry(ScheduleEntry entry) {
+		Long bucket = Long.valueOf(entry.queueInfo.getExpiry()/EXPIRY_BUCKET_MILLIS);
+		Set<ScheduleEntry> bucketEntries = expiryBuckets.get(bucket);
+		if( bucketEntries != null )
+		{
+			bucketEntries.remove(entry);
+			if( bucketEntries.isEmpty() )
+				expiryBuckets.remove(bucket);
+		}
+		entry.expiryIndexed = false;
+	}
+
+	/**
+	 * Call only in locked state, after the first item of the schedule was
+	 * changed.
+	 */
+	private void updateEarliestAttempt() {
+		earliestAttempt = ( schedule.isEmpty() ) ? Long.MAX_VALUE : schedule.first().scheduledAttempt;
+	}
+
+	/**
+	 * Remove the entry from the schedule and from the search indexes. Call
+	 * only in locked state.
+	 */
+	private void unlink(ScheduleEntry entry, boolean fromMailidIndex, boolean fromRecipientIndex) {
+		QueueInfo qi = entry.queueInfo;
+		if( entry.scheduled )
+			unschedule(entry);
+		if( entry.expiryIndexed )
+			unindexExpiry(entry);
+		String searchKey = createSearchKey(qi.getMailid(), qi.getRecipient());
+		if( entryByMailidAndRecipient.get(searchKey) == entry )
+			entryByMailidAndRecipient.remove(searchKey);
+		if( fromMailidIndex )
+		{
+			MailEntries mailidEntries = entriesByMailid.get(qi.getMailid());
+			if( mailidEntries != null && mailidEntries.remove(entry) )
+			{
+				if( entry.counted != null )
+				{
+					mailidEntries.counter.move(entry.counted, null);
+					entry.counted = null;
+					if( mailidEntries.counter.isCompleted() )
+						completedMailids.add(qi.getMailid());
+				}
+				if( mailidEntries.isEmpty() && !mailidEntries.counter.isHeld() )
+					entriesByMailid.remove(qi.getMailid());
+			}
+		}
+		if( fromRecipientIndex )
+		{
+			List<ScheduleEntry> recipientEntries = entriesByRecipient.get(qi.getRecipient());
+			if( recipientEntries != null )
+			{
+				recipientEntries.remove(entry);
+				if( recipientEntries.isEmpty() )
+					entriesByRecipient.remove(qi.getRecipient());
+			}
+		}
+	}
+
+	private String createSearchKey(String mailid, String recipient) {
+		return mailid+"-"+recipient;
+	}
+
+	/**
+	 * The domain has no '@' character, so the key could not be the same for
+	 * other mailid and domain.
+	 */
+	private String createDomainKey(QueueInfo qi) {
+		return qi.getRecipientDomain()+"@"+qi.getMailid();
+	}
+
+	/**
+	 * Schedule key of a QueueInfo. The attempt time is copied on scheduling,
+	 * so the order of the schedule could not be broken by changing the
+	 * QueueInfo. Items with the same attempt time are ordered by insertion.
+	 */
+	private static class ScheduleEntry implements Comparable<ScheduleEntry> {
+		private final QueueInfo queueInfo;
+		private final long sequence;
+		private long scheduledAttempt = 0;
+		private boolean scheduled = false;
+		private DeliveryState counted = null;
+		private boolean expiryIndexed = false;
+
+		ScheduleEntry(QueueInfo queueInfo, long sequence) {
+			this.queueInfo = queueInfo;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(ScheduleEntry o) {
+			if( scheduledAttempt != o.scheduledAttempt )
+				return ( scheduledAttempt < o.scheduledAttempt ) ? -1 : 1;
+			if( sequence != o.sequence )
+				return ( sequence < o.sequence ) ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/**
+	 * Items of a mail with their counters.
+	 */
+	private static class MailEntries extends ArrayList<ScheduleEntry> {
+		private static final long serialVersionUID = 1L;
+		private final ProgressCounter counter = new ProgressCounter();
+	}
+
+}
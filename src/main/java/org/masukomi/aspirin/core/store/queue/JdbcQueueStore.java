@@ -0,0 +1,850 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store keeps the queue in a database table through JDBC, so the
+ * queue survives a restart. It is written for embedded databases (for
+ * example H2 or SQLite in file mode) used by one Aspirin instance: the JDBC
+ * driver has to be on the classpath, the database is given by
+ * aspirin.queuestore.jdbc.url. The mail bodies have to be kept by a
+ * persistent mail store, for example FileMailStore.</p>
+ *
+ * <p>Every recipient is a row of the aspirin_queue table. The primary key is
+ * (mailid, recipient), so the rows of a mail are found by the key prefix.
+ * The sendable rows are found by the (state, attempt) index, the recipients
+ * by the recipient index. The table and the indexes are created on
+ * {@link #init()}, if they do not exist.</p>
+ *
+ * <p>The changes are executed immediately on one connection, so every query
+ * sees them, but the delivery state changes are committed in groups: if
+ * aspirin.queuestore.jdbc.batch.size changes are collected or
+ * aspirin.queuestore.jdbc.commit.interval milliseconds elapsed. The commit
+ * is the expensive part on a durable storage, so more thousands of state
+ * changes could be written in a second, but the changes of the last group
+ * could be lost by a crash, then the recipients are delivered again. If
+ * the interval is 0, every operation is committed immediately. The added
+ * recipients are committed before add() and addAll() return. Every change
+ * is started with a savepoint: if it fails partway, its executed rows are
+ * rolled back, and the changes collected before are kept.</p>
+ *
+ * <p>{@link #next()} claims the earliest sendable rows in batches of
+ * aspirin.queuestore.jdbc.batch.size: they are set to IN_PROGRESS in the
+ * database and given back one by one from memory. Rows in progress on
+ * {@link #init()} (claimed before a crash) are queued again, so the store
+ * could not be shared by more Aspirin instances.</p>
+ */
+public class JdbcQueueStore implements BlockingQueueStore, GroupingQueueStore, BulkQueueStore, Closeable {
+
+	private static final String TABLE = "aspirin_queue";
+	private static final String COLUMNS = "mailid, recipient, expiry, state, attempt, attempt_count, result_info";
+	private static final int RESULT_INFO_LENGTH_MAX = 1024;
+
+	private static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS "+TABLE+" ("+
+			"mailid VARCHAR(255) NOT NULL, "+
+			"recipient VARCHAR(255) NOT NULL, "+
+			"expiry BIGINT NOT NULL, "+
+			"state INTEGER NOT NULL, "+
+			"attempt BIGINT NOT NULL, "+
+			"attempt_count INTEGER NOT NULL, "+
+			"result_info VARCHAR("+RESULT_INFO_LENGTH_MAX+"), "+
+			"PRIMARY KEY (mailid, recipient))";
+	private static final String SQL_CREATE_SCHEDULE_INDEX = "CREATE INDEX IF NOT EXISTS "+TABLE+"_schedule ON "+TABLE+" (state, attempt)";
+	private static final String SQL_CREATE_RECIPIENT_INDEX = "CREATE INDEX IF NOT EXISTS "+TABLE+"_recipient ON "+TABLE+" (recipient)";
+	private static final String SQL_INSERT = "INSERT INTO "+TABLE+" ("+COLUMNS+") VALUES (?, ?, ?, ?, 0, 0, NULL)";
+	private static final String SQL_REQUEUE = "UPDATE "+TABLE+" SET expiry = ?, state = ?, attempt = 0, attempt_count = 0, result_info = NULL WHERE mailid = ? AND recipient = ?";
+	private static final String SQL_UPDATE_STATE = "UPDATE "+TABLE+" SET state = ? WHERE mailid = ? AND recipient = ?";
+	private static final String SQL_UPDATE_ALL_STATES = "UPDATE "+TABLE+" SET state = ? WHERE state = ?";
+	private static final String SQL_UPDATE_RESULT = "UPDATE "+TABLE+" SET state = ?, attempt = ?, attempt_count = ?, result_info = ? WHERE mailid = ? AND recipient = ?";
+	private static final String SQL_SELECT_SENDABLE = "SELECT "+COLUMNS+" FROM "+TABLE+" WHERE state = ? AND attempt < ? ORDER BY attempt";
+	private static final String SQL_SELECT_SENDABLE_OF_MAIL = "SELECT "+COLUMNS+" FROM "+TABLE+" WHERE mailid = ? AND state = ? AND attempt < ?";
+	private static final String SQL_SELECT_EARLIEST = "SELECT MIN(attempt) FROM "+TABLE+" WHERE state = ?";
+	private static final String SQL_SELECT_ONE = "SELECT state, attempt FROM "+TABLE+" WHERE mailid = ? AND recipient = ?";
+	private static final String SQL_SELECT_MAIL = "SELECT state FROM "+TABLE+" WHERE mailid = ?";
+	private static final String SQL_SELECT_UNFINISHED_MAIL = "SELECT state FROM "+TABLE+" WHERE mailid = ? AND state IN (?, ?)";
+	private static final String SQL_SELECT_UNFINISHED_MAILIDS = "SELECT DISTINCT mailid FROM "+TABLE+" WHERE state IN (?, ?)";
+	private static final String SQL_DELETE_FINISHED = "DELETE FROM "+TABLE+" WHERE mailid NOT IN (SELECT mailid FROM "+TABLE+" WHERE state IN (?, ?))";
+	private static final String SQL_DELETE_MAIL = "DELETE FROM "+TABLE+" WHERE mailid = ?";
+	private static final String SQL_DELETE_RECIPIENT = "DELETE FROM "+TABLE+" WHERE recipient = ?";
+	private static final String SQL_COUNT_MAILS = "SELECT COUNT(DISTINCT mailid) FROM "+TABLE;
+
+	private Connection connection = null;
+	private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	/*
+	 * Rows claimed as IN_PROGRESS, but not given back by next() yet.
+	 */
+	private LinkedList<QueueInfo> claimedQueueInfos = new LinkedList<QueueInfo>();
+	private int uncommittedChanges = 0;
+	private volatile boolean closed = true;
+	private CommitThread commitThread = null;
+	private Object lock = new Object();
+
+	@Override
+	public void init() {
+		synchronized (lock) {
+			String url = AspirinInternal.getConfiguration().getQueueStoreJdbcUrl();
+			try {
+				connection = DriverManager.getConnection(url, AspirinInternal.getConfiguration().getQueueStoreJdbcUser(), AspirinInternal.getConfiguration().getQueueStoreJdbcPassword());
+				connection.setAutoCommit(false);
+				Statement ddl = connection.createStatement();
+				try {
+					ddl.executeUpdate(SQL_CREATE_TABLE);
+					ddl.executeUpdate(SQL_CREATE_SCHEDULE_INDEX);
+					ddl.executeUpdate(SQL_CREATE_RECIPIENT_INDEX);
+				} finally {
+					ddl.close();
+				}
+				// The delivery was interrupted by the restart.
+				PreparedStatement requeue = statement(SQL_UPDATE_ALL_STATES);
+				requeue.setInt(1, DeliveryState.QUEUED.getStateId());
+				requeue.setInt(2, DeliveryState.IN_PROGRESS.getStateId());
+				int requeuedCount = requeue.executeUpdate();
+				connection.commit();
+				AspirinInternal.getLogger().info("JdbcQueueStore.init(): Queue opened: {}, {} recipients in progress queued again.",url,requeuedCount);
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.init(): Queue database could not be opened: "+url,sqle);
+				closeConnection();
+				return;
+			}
+			closed = false;
+		}
+		commitThread = new CommitThread();
+		commitThread.start();
+	}
+
+	@Override
+	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+		Set<String> addresses = new LinkedHashSet<String>();
+		for( InternetAddress recipient : recipients )
+			addresses.add(recipient.getAddress());
+		synchronized (lock) {
+			Savepoint savepoint = null;
+			try {
+				checkOpen();
+				savepoint = connection.setSavepoint();
+				PreparedStatement insert = statement(SQL_INSERT);
+				boolean newMail = !exists(mailid);
+				if( newMail )
+				{
+					for( String recipient : addresses )
+					{
+						setKey(insert, 1, mailid, recipient);
+						insert.setLong(3, expiry);
+						insert.setInt(4, DeliveryState.QUEUED.getStateId());
+						insert.addBatch();
+					}
+					insert.executeBatch();
+				}
+				else
+				{
+					for( String recipient : addresses )
+						requeueOrInsert(mailid, recipient, expiry);
+				}
+				uncommittedChanges += addresses.size();
+				commit();
+				// The requeued recipients are not claimed any more.
+				if( !newMail )
+				{
+					for( String recipient : addresses )
+						unclaim(mailid, recipient);
+				}
+				lock.notifyAll();
+			} catch (SQLException sqle) {
+				rollback(savepoint);
+				throw new MessagingException("Message queueing failed: "+mailid, sqle);
+			}
+		}
+	}
+
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		synchronized (lock) {
+			Savepoint savepoint = null;
+			try {
+				checkOpen();
+				savepoint = connection.setSavepoint();
+				PreparedStatement insert = statement(SQL_INSERT);
+				List<QueueInfo> requeuedQueueInfos = new ArrayList<QueueInfo>();
+				// New mails are inserted by one batch.
+				Set<String> batchedMailids = new HashSet<String>();
+				int runStart = 0;
+				while( runStart < queueInfos.size() )
+				{
+					String mailid = queueInfos.get(runStart).getMailid();
+					int runEnd = runStart+1;
+					while( runEnd < queueInfos.size() && mailid.equals(queueInfos.get(runEnd).getMailid()) )
+						runEnd++;
+					if( batchedMailids.contains(mailid) )
+					{
+						insert.executeBatch();
+						batchedMailids.clear();
+					}
+					boolean newMail = !exists(mailid);
+					if( !newMail && !batchedMailids.isEmpty() )
+					{
+						// The insert statement is used by requeueOrInsert() too.
+						insert.executeBatch();
+						batchedMailids.clear();
+					}
+					Set<String> recipients = new HashSet<String>();
+					for( int i = runStart; i < runEnd; i++ )
+					{
+						QueueInfo queueInfo = queueInfos.get(i);
+						if( !recipients.add(queueInfo.getRecipient()) )
+							continue;
+						if( newMail )
+						{
+							setKey(insert, 1, mailid, queueInfo.getRecipient());
+							insert.setLong(3, queueInfo.getExpiry());
+							insert.setInt(4, DeliveryState.QUEUED.getStateId());
+							insert.addBatch();
+						}
+						else
+						{
+							requeueOrInsert(mailid, queueInfo.getRecipient(), queueInfo.getExpiry());
+							requeuedQueueInfos.add(queueInfo);
+						}
+					}
+					if( newMail )
+						batchedMailids.add(mailid);
+					runStart = runEnd;
+				}
+				if( !batchedMailids.isEmpty() )
+					insert.executeBatch();
+				uncommittedChanges += queueInfos.size();
+				commit();
+				for( QueueInfo queueInfo : requeuedQueueInfos )
+					unclaim(queueInfo.getMailid(), queueInfo.getRecipient());
+				lock.notifyAll();
+			} catch (SQLException sqle) {
+				rollback(savepoint);
+				throw new MessagingException("Message queueing failed.", sqle);
+			}
+		}
+	}
+
+	@Override
+	public List<String> clean() {
+		List<String> mailidList = new ArrayList<String>();
+		synchronized (lock) {
+			if( closed )
+				return mailidList;
+			try {
+				PreparedStatement delete = statement(SQL_DELETE_FINISHED);
+				setUnfinishedStates(delete, 1);
+				delete.executeUpdate();
+				PreparedStatement select = statement(SQL_SELECT_UNFINISHED_MAILIDS);
+				setUnfinishedStates(select, 1);
+				ResultSet rs = select.executeQuery();
+				try {
+					while( rs.next() )
+						mailidList.add(rs.getString(1));
+				} finally {
+					rs.close();
+				}
+				changed(1);
+				commit();
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.clean(): Cleaning failed.",sqle);
+			}
+		}
+		return mailidList;
+	}
+
+	@Override
+	public QueueInfo createQueueInfo() {
+		return new QueueInfo();
+	}
+
+	@Override
+	public long getNextAttempt(String mailid, String recipient) {
+		synchronized (lock) {
+			if( closed )
+				return -1;
+			try {
+				PreparedStatement select = statement(SQL_SELECT_ONE);
+				setKey(select, 1, mailid, recipient);
+				ResultSet rs = select.executeQuery();
+				try {
+					if( rs.next() && rs.getInt(1) == DeliveryState.QUEUED.getStateId() )
+						return rs.getLong(2);
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.getNextAttempt(): Query failed. mailid="+mailid,sqle);
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean hasBeenRecipientHandled(String mailid, String recipient) {
+		synchronized (lock) {
+			if( closed )
+				return false;
+			try {
+				PreparedStatement select = statement(SQL_SELECT_ONE);
+				setKey(select, 1, mailid, recipient);
+				ResultSet rs = select.executeQuery();
+				try {
+					if( rs.next() )
+					{
+						int state = rs.getInt(1);
+						return ( state == DeliveryState.FAILED.getStateId() || state == DeliveryState.SENT.getStateId() );
+					}
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.hasBeenRecipientHandled(): Query failed. mailid="+mailid,sqle);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isCompleted(String mailid) {
+		synchronized (lock) {
+			if( closed )
+				return true;
+			try {
+				PreparedStatement select = statement(SQL_SELECT_UNFINISHED_MAIL);
+				select.setString(1, mailid);
+				setUnfinishedStates(select, 2);
+				select.setMaxRows(1);
+				ResultSet rs = select.executeQuery();
+				try {
+					return !rs.next();
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.isCompleted(): Query failed. mailid="+mailid,sqle);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public QueueInfo next() {
+		synchronized (lock) {
+			if( closed )
+				return null;
+			while( true )
+			{
+				QueueInfo qi = claimedQueueInfos.poll();
+				if( qi == null )
+				{
+					try {
+						if( claim() == 0 )
+							return null;
+					} catch (SQLException sqle) {
+						AspirinInternal.getLogger().error("JdbcQueueStore.next(): Claiming failed.",sqle);
+						return null;
+					}
+					continue;
+				}
+				if( !qi.isInTimeBounds() )
+				{
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+						qi.setResultInfo("Delivery is out of time or attempt.");
+					qi.setState(DeliveryState.FAILED);
+					setSendingResult(qi);
+				}
+				else
+				{
+					qi.setState(DeliveryState.IN_PROGRESS);
+					return qi;
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount) {
+		List<QueueInfo> coRecipients = new ArrayList<QueueInfo>();
+		synchronized (lock) {
+			if( closed )
+				return coRecipients;
+			// Claimed rows first, they are IN_PROGRESS in the database already.
+			Iterator<QueueInfo> claimedIt = claimedQueueInfos.iterator();
+			while( claimedIt.hasNext() && coRecipients.size() < maxCount )
+			{
+				QueueInfo coQi = claimedIt.next();
+				if( isCoRecipient(qi, coQi) )
+				{
+					claimedIt.remove();
+					coQi.setState(DeliveryState.IN_PROGRESS);
+					coRecipients.add(coQi);
+				}
+			}
+			if( maxCount <= coRecipients.size() )
+				return coRecipients;
+			try {
+				PreparedStatement select = statement(SQL_SELECT_SENDABLE_OF_MAIL);
+				select.setString(1, qi.getMailid());
+				select.setInt(2, DeliveryState.QUEUED.getStateId());
+				select.setLong(3, System.currentTimeMillis());
+				select.setMaxRows(0);
+				List<QueueInfo> selectedQueueInfos = readQueueInfos(select);
+				PreparedStatement update = statement(SQL_UPDATE_STATE);
+				int claimedCount = 0;
+				for( QueueInfo coQi : selectedQueueInfos )
+				{
+					if( maxCount <= coRecipients.size() )
+						break;
+					if( isCoRecipient(qi, coQi) )
+					{
+						update.setInt(1, DeliveryState.IN_PROGRESS.getStateId());
+						setKey(update, 2, coQi.getMailid(), coQi.getRecipient());
+						update.addBatch();
+						claimedCount++;
+						coQi.setState(DeliveryState.IN_PROGRESS);
+						coRecipients.add(coQi);
+					}
+				}
+				if( 0 < claimedCount )
+				{
+					update.executeBatch();
+					changed(claimedCount);
+				}
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.nextCoRecipients(): Claiming failed. qi="+qi,sqle);
+			}
+		}
+		return coRecipients;
+	}
+
+	@Override
+	public QueueInfo nextBlocking(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized (lock) {
+			while( true )
+			{
+				QueueInfo qi = next();
+				if( qi != null )
+					return qi;
+				long now = System.currentTimeMillis();
+				long waitTime = deadline-now;
+				if( waitTime <= 0 )
+					return null;
+				// Wake up when the earliest item becomes sendable.
+				long earliestAttempt = getEarliestAttempt();
+				if( earliestAttempt != Long.MAX_VALUE )
+					waitTime = Math.min(waitTime, Math.max(1, earliestAttempt-now+1));
+				lock.wait(waitTime);
+			}
+		}
+	}
+
+	@Override
+	public void remove(String mailid) {
+		synchronized (lock) {
+			if( closed )
+				return;
+			unclaim(mailid, null);
+			try {
+				PreparedStatement delete = statement(SQL_DELETE_MAIL);
+				delete.setString(1, mailid);
+				delete.executeUpdate();
+				changed(1);
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.remove(): Delete failed. mailid="+mailid,sqle);
+			}
+		}
+	}
+
+	@Override
+	public void removeRecipient(String recipient) {
+		synchronized (lock) {
+			if( closed )
+				return;
+			unclaim(null, recipient);
+			try {
+				PreparedStatement delete = statement(SQL_DELETE_RECIPIENT);
+				delete.setString(1, recipient);
+				delete.executeUpdate();
+				changed(1);
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.removeRecipient(): Delete failed. recipient="+recipient,sqle);
+			}
+		}
+	}
+
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		synchronized (lock) {
+			if( closed )
+				return;
+			qi.setAttempt(System.currentTimeMillis()+AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
+			qi.incAttemptCount();
+			String resultInfo = qi.getResultInfo();
+			if( resultInfo != null && RESULT_INFO_LENGTH_MAX < resultInfo.length() )
+				resultInfo = resultInfo.substring(0, RESULT_INFO_LENGTH_MAX);
+			Savepoint savepoint = null;
+			try {
+				savepoint = connection.setSavepoint();
+				PreparedStatement update = statement(SQL_UPDATE_RESULT);
+				update.setInt(1, qi.getState().getStateId());
+				update.setLong(2, qi.getAttempt());
+				update.setInt(3, qi.getAttemptCount());
+				if( resultInfo != null )
+					update.setString(4, resultInfo);
+				else
+					update.setNull(4, Types.VARCHAR);
+				setKey(update, 5, qi.getMailid(), qi.getRecipient());
+				update.executeUpdate();
+				changed(1);
+			} catch (SQLException sqle) {
+				rollback(savepoint);
+				AspirinInternal.getLogger().error("JdbcQueueStore.setSendingResult(): Update failed. qi="+qi,sqle);
+			}
+			if( qi.hasState(DeliveryState.QUEUED) )
+				lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void signal() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (lock) {
+			if( closed )
+				return 0;
+			try {
+				ResultSet rs = statement(SQL_COUNT_MAILS).executeQuery();
+				try {
+					return ( rs.next() ) ? rs.getInt(1) : 0;
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.size(): Query failed.",sqle);
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Commit the changes and close the database connection. The claimed rows
+	 * not given back by next() are queued again.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if( commitThread != null )
+			commitThread.interrupt();
+		synchronized (lock) {
+			if( connection == null )
+				return;
+			try {
+				PreparedStatement update = statement(SQL_UPDATE_STATE);
+				for( QueueInfo qi : claimedQueueInfos )
+				{
+					update.setInt(1, DeliveryState.QUEUED.getStateId());
+					setKey(update, 2, qi.getMailid(), qi.getRecipient());
+					update.addBatch();
+				}
+				if( !claimedQueueInfos.isEmpty() )
+					update.executeBatch();
+				claimedQueueInfos.clear();
+				connection.commit();
+				uncommittedChanges = 0;
+			} catch (SQLException sqle) {
+				throw new IOException("Queue database could not be committed: "+sqle.getMessage());
+			} finally {
+				closeConnection();
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Claim the earliest sendable rows. Call only in locked state.
+	 *
+	 * @return Count of claimed rows.
+	 */
+	private int claim() throws SQLException {
+		int batchSize = Math.max(1, AspirinInternal.getConfiguration().getQueueStoreJdbcBatchSize());
+		PreparedStatement select = statement(SQL_SELECT_SENDABLE);
+		select.setInt(1, DeliveryState.QUEUED.getStateId());
+		select.setLong(2, System.currentTimeMillis());
+		select.setMaxRows(batchSize);
+		List<QueueInfo> selectedQueueInfos = readQueueInfos(select);
+		if( selectedQueueInfos.isEmpty() )
+			return 0;
+		PreparedStatement update = statement(SQL_UPDATE_STATE);
+		for( QueueInfo qi : selectedQueueInfos )
+		{
+			update.setInt(1, DeliveryState.IN_PROGRESS.getStateId());
+			setKey(update, 2, qi.getMailid(), qi.getRecipient());
+			update.addBatch();
+		}
+		update.executeBatch();
+		claimedQueueInfos.addAll(selectedQueueInfos);
+		changed(selectedQueueInfos.size());
+		return selectedQueueInfos.size();
+	}
+
+	/**
+	 * Queue the existing recipient again like a new one, or insert it. The
+	 * caller unclaims the recipient, when the change is committed. Call only
+	 * in locked state.
+	 */
+	private void requeueOrInsert(String mailid, String recipient, long expiry) throws SQLException {
+		PreparedStatement requeue = statement(SQL_REQUEUE);
+		requeue.setLong(1, expiry);
+		requeue.setInt(2, DeliveryState.QUEUED.getStateId());
+		setKey(requeue, 3, mailid, recipient);
+		if( requeue.executeUpdate() == 0 )
+		{
+			PreparedStatement insert = statement(SQL_INSERT);
+			setKey(insert, 1, mailid, recipient);
+			insert.setLong(3, expiry);
+			insert.setInt(4, DeliveryState.QUEUED.getStateId());
+			insert.executeUpdate();
+		}
+	}
+
+	/**
+	 * Drop the claimed rows of the mailid and/or recipient (null matches
+	 * everything). Call only in locked state.
+	 */
+	private void unclaim(String mailid, String recipient) {
+		Iterator<QueueInfo> claimedIt = claimedQueueInfos.iterator();
+		while( claimedIt.hasNext() )
+		{
+			QueueInfo qi = claimedIt.next();
+			if( ( mailid == null || mailid.equals(qi.getMailid()) ) && ( recipient == null || recipient.equals(qi.getRecipient()) ) )
+				claimedIt.remove();
+		}
+	}
+
+	private boolean isCoRecipient(QueueInfo qi, QueueInfo coQi) {
+		return (
+				qi.getMailid().equals(coQi.getMailid()) &&
+				!qi.getRecipient().equals(coQi.getRecipient()) &&
+				qi.getRecipientDomain().equals(coQi.getRecipientDomain()) &&
+				coQi.isInTimeBounds()
+		);
+	}
+
+	/**
+	 * @return The earliest attempt time of the QUEUED rows or Long.MAX_VALUE.
+	 * Call only in locked state.
+	 */
+	private long getEarliestAttempt() {
+		if( closed )
+			return Long.MAX_VALUE;
+		try {
+			PreparedStatement select = statement(SQL_SELECT_EARLIEST);
+			select.setInt(1, DeliveryState.QUEUED.getStateId());
+			ResultSet rs = select.executeQuery();
+			try {
+				if( rs.next() )
+				{
+					long earliestAttempt = rs.getLong(1);
+					if( !rs.wasNull() )
+						return earliestAttempt;
+				}
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException sqle) {
+			AspirinInternal.getLogger().error("JdbcQueueStore.getEarliestAttempt(): Query failed.",sqle);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Call only in locked state.
+	 */
+	private boolean exists(String mailid) throws SQLException {
+		PreparedStatement select = statement(SQL_SELECT_MAIL);
+		select.setString(1, mailid);
+		select.setMaxRows(1);
+		ResultSet rs = select.executeQuery();
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	private List<QueueInfo> readQueueInfos(PreparedStatement select) throws SQLException {
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+		ResultSet rs = select.executeQuery();
+		try {
+			while( rs.next() )
+			{
+				QueueInfo qi = new QueueInfo();
+				qi.setMailid(rs.getString(1));
+				qi.setRecipient(rs.getString(2));
+				qi.setExpiry(rs.getLong(3));
+				DeliveryState state = DeliveryState.QUEUED;
+				for( DeliveryState st : DeliveryState.values() )
+				{
+					if( st.getStateId() == rs.getInt(4) )
+						state = st;
+				}
+				qi.setAttempt(rs.getLong(5));
+				qi.setAttemptCount(rs.getInt(6));
+				qi.setResultInfo(rs.getString(7));
+				qi.restoreState(state);
+				queueInfos.add(qi);
+			}
+		} finally {
+			rs.close();
+		}
+		return queueInfos;
+	}
+
+	private void setKey(PreparedStatement statement, int firstIndex, String mailid, String recipient) throws SQLException {
+		statement.setString(firstIndex, mailid);
+		statement.setString(firstIndex+1, recipient);
+	}
+
+	private void setUnfinishedStates(PreparedStatement statement, int firstIndex) throws SQLException {
+		statement.setInt(firstIndex, DeliveryState.QUEUED.getStateId());
+		statement.setInt(firstIndex+1, DeliveryState.IN_PROGRESS.getStateId());
+	}
+
+	/**
+	 * @return The cached prepared statement of the SQL. Call only in locked
+	 * state.
+	 */
+	private PreparedStatement statement(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if( statement == null )
+		{
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	private void checkOpen() throws SQLException {
+		if( closed )
+			throw new SQLException("Queue store is closed.");
+	}
+
+	/**
+	 * Count the executed changes and commit them, if the batch is full or
+	 * every change has to be committed. Call only in locked state.
+	 */
+	private void changed(int changeCount) throws SQLException {
+		uncommittedChanges += changeCount;
+		if( AspirinInternal.getConfiguration().getQueueStoreJdbcCommitInterval() <= 0 || AspirinInternal.getConfiguration().getQueueStoreJdbcBatchSize() <= uncommittedChanges )
+			commit();
+	}
+
+	/**
+	 * Undo the executed changes of a failed operation, the changes collected
+	 * before the savepoint are kept. Without a savepoint the operation did
+	 * not change anything. Call only in locked state.
+	 */
+	private void rollback(Savepoint savepoint) {
+		if( savepoint == null || connection == null )
+			return;
+		try {
+			connection.rollback(savepoint);
+		} catch (SQLException sqle) {
+			AspirinInternal.getLogger().error("JdbcQueueStore.rollback(): Rollback failed.",sqle);
+		}
+	}
+
+	/**
+	 * Call only in locked state.
+	 */
+	private void commit() throws SQLException {
+		if( uncommittedChanges == 0 || connection == null )
+			return;
+		connection.commit();
+		uncommittedChanges = 0;
+	}
+
+	private void closeConnection() {
+		for( PreparedStatement statement : statements.values() )
+		{
+			try {
+				statement.close();
+			} catch (SQLException sqle) {
+				// Nothing to do
+			}
+		}
+		statements.clear();
+		if( connection != null )
+		{
+			try {
+				connection.close();
+			} catch (SQLException sqle) {
+				AspirinInternal.getLogger().error("JdbcQueueStore.closeConnection(): Connection could not be closed.",sqle);
+			}
+			connection = null;
+		}
+	}
+
+	/**
+	 * This thread commits the collected changes periodically.
+	 */
+	private class CommitThread extends Thread {
+
+		CommitThread() {
+			setName("Aspirin-"+JdbcQueueStore.class.getSimpleName()+"-"+getId());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while( !closed )
+			{
+				try {
+					int commitInterval = AspirinInternal.getConfiguration().getQueueStoreJdbcCommitInterval();
+					Thread.sleep( 0 < commitInterval ? commitInterval : 1000 );
+				} catch (InterruptedException ie) {
+					// Closed or waked up
+				}
+				synchronized (lock) {
+					if( closed )
+						break;
+					try {
+						commit();
+					} catch (SQLException sqle) {
+						AspirinInternal.getLogger().error("JdbcQueueStore.CommitThread.run(): Commit failed.",sqle);
+					}
+				}
+			}
+		}
+	}
+
+}
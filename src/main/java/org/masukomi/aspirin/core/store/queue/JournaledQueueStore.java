@@ -0,0 +1,756 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store keeps the queue in memory like the {@link IndexedQueueStore},
+ * but every change is written into an append-only journal too, so the queue
+ * survives a restart: states, attempt counts and next attempt times are
+ * recovered on {@link #init()}. The mail bodies have to be kept by a
+ * persistent mail store, for example FileMailStore.</p>
+ *
+ * <p>Journal records are compact binary records (length, content, CRC32) of
+ * the changes: added recipients, sending results and removals. A record is
+ * written with the store operation atomically. The journal is synced to the
+ * disk by a background thread in every aspirin.queuestore.journal.sync.interval
+ * milliseconds, so more records are synced together. If the interval is 0,
+ * every record is synced immediately.</p>
+ *
+ * <p>Added recipients are written into the journal before they are queued,
+ * if the record could not be written, adding fails with a
+ * MessagingException. The batch of {@link #addAll(List)} is one record, so
+ * it is recovered whole or not at all. After a failed write or sync a new journal is started
+ * and a snapshot is written as soon as possible, so the changes of the
+ * broken journal are kept by the snapshot.</p>
+ *
+ * <p>If the journal is greater than aspirin.queuestore.journal.compaction.size
+ * or aspirin.queuestore.journal.snapshot.interval elapsed, the whole queue is
+ * written into a snapshot and a new journal is started. The older journals
+ * are deleted after the snapshot and its directory are synced, so the disk
+ * usage is proportional to the queue size, not to the count of changes. The
+ * store operations wait only while the queue is copied, it is written into
+ * the snapshot from the copy.</p>
+ *
+ * <p>Recovery reads the snapshot, then replays the newer journals. An
+ * incomplete or broken record at the end of a journal (written while the
+ * system crashed) stops the replay of that journal. Items in progress at the
+ * restart are queued again. After recovery a new snapshot is written.</p>
+ */
+public class JournaledQueueStore extends IndexedQueueStore implements Closeable {
+
+	private static final String JOURNAL_PREFIX = "queue-";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String SNAPSHOT_NAME = "queue.snapshot";
+	private static final String SNAPSHOT_TEMP_NAME = "queue.snapshot.tmp";
+	private static final int SNAPSHOT_MAGIC = 0x41535153;
+	private static final int RECORD_LENGTH_MAX = 1 << 28;
+	private static final int RESULT_INFO_LENGTH_MAX = 1024;
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_RESULT = 2;
+	private static final byte RECORD_REMOVE = 3;
+	private static final byte RECORD_REMOVE_RECIPIENT = 4;
+	private static final byte RECORD_ADD_ALL = 5;
+
+	private File journalDir;
+	private long generation = 0;
+	private long lastSnapshot = 0;
+	private volatile boolean closed = true;
+	private JournalSyncThread syncThread = null;
+	/** Only one snapshot is written at a time. */
+	private Object snapshotLock = new Object();
+	/*
+	 * Records are created in locked state of the store, see getLock().
+	 */
+	private RecordBuffer recordBuffer = new RecordBuffer();
+	private DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+	private CRC32 recordCrc = new CRC32();
+	/*
+	 * The journal file is written in locked state of the store and synced by
+	 * the sync thread. These fields are guarded by the journal lock.
+	 */
+	private Object journalLock = new Object();
+	private FileOutputStream journalFileOut = null;
+	private DataOutputStream journalOut = null;
+	private long journalSize = 0;
+	private boolean journalDirty = false;
+	/** A write or sync failed, the next record goes to a new journal. */
+	private boolean journalBroken = false;
+	private boolean snapshotRequested = false;
+
+	@Override
+	public void init() {
+		synchronized (getLock()) {
+			journalDir = new File(AspirinInternal.getConfiguration().getQueueStoreJournalDir());
+			if( !journalDir.exists() && !journalDir.mkdirs() )
+				AspirinInternal.getLogger().error("JournaledQueueStore.init(): Journal directory could not be created: {}.",journalDir.getAbsolutePath());
+			long start = System.currentTimeMillis();
+			long snapshotGeneration = readSnapshot();
+			long recordCount = 0;
+			for( Long journalGeneration : getJournalGenerations() )
+			{
+				if( journalGeneration < snapshotGeneration )
+					getJournalFile(journalGeneration).delete();
+				else
+					recordCount += replayJournal(getJournalFile(journalGeneration));
+				generation = Math.max(generation, journalGeneration);
+			}
+			generation = Math.max(generation, snapshotGeneration);
+			AspirinInternal.getLogger().info("JournaledQueueStore.init(): Queue recovered from {} in {} ms, {} journal records replayed.",new Object[]{journalDir.getAbsolutePath(),System.currentTimeMillis()-start,recordCount});
+			closed = false;
+		}
+		try {
+			snapshot();
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("JournaledQueueStore.init(): Snapshot failed.",ioe);
+		}
+		syncThread = new JournalSyncThread();
+		syncThread.start();
+	}
+
+	@Override
+	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+		synchronized (getLock()) {
+			try {
+				startRecord(RECORD_ADD);
+				recordOut.writeUTF(mailid);
+				recordOut.writeLong(expiry);
+				recordOut.writeInt(recipients.size());
+				for( InternetAddress recipient : recipients )
+					recordOut.writeUTF(recipient.getAddress());
+				writeRecord();
+			} catch (IOException ioe) {
+				throw new MessagingException("Message queueing failed, journal could not be written: "+mailid, ioe);
+			}
+			super.add(mailid, expiry, recipients);
+		}
+	}
+
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		synchronized (getLock()) {
+			// The whole batch is one record, so a failed write could not leave 
+			// a part of it in the journal.
+			List<Integer> runStarts = new ArrayList<Integer>();
+			for( int i = 0; i < queueInfos.size(); i++ )
+			{
+				if( i == 0 || !queueInfos.get(i-1).getMailid().equals(queueInfos.get(i).getMailid()) )
+					runStarts.add(i);
+			}
+			runStarts.add(queueInfos.size());
+			try {
+				startRecord(RECORD_ADD_ALL);
+				recordOut.writeInt(runStarts.size()-1);
+				for( int run = 0; run+1 < runStarts.size(); run++ )
+				{
+					int runStart = runStarts.get(run);
+					int runEnd = runStarts.get(run+1);
+					recordOut.writeUTF(queueInfos.get(runStart).getMailid());
+					recordOut.writeLong(queueInfos.get(runStart).getExpiry());
+					recordOut.writeInt(runEnd-runStart);
+					for( int i = runStart; i < runEnd; i++ )
+						recordOut.writeUTF(queueInfos.get(i).getRecipient());
+				}
+				writeRecord();
+			} catch (IOException ioe) {
+				throw new MessagingException("Message queueing failed, journal could not be written.", ioe);
+			}
+			super.addAll(queueInfos);
+		}
+	}
+
+	@Override
+	public void remove(String mailid) {
+		synchronized (getLock()) {
+			super.remove(mailid);
+			try {
+				startRecord(RECORD_REMOVE);
+				recordOut.writeUTF(mailid);
+				writeRecord();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("JournaledQueueStore.remove(): Journal write failed. mailid="+mailid,ioe);
+			}
+		}
+	}
+
+	@Override
+	public void removeRecipient(String recipient) {
+		synchronized (getLock()) {
+			super.removeRecipient(recipient);
+			try {
+				startRecord(RECORD_REMOVE_RECIPIENT);
+				recordOut.writeUTF(recipient);
+				writeRecord();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("JournaledQueueStore.removeRecipient(): Journal write failed. recipient="+recipient,ioe);
+			}
+		}
+	}
+
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		synchronized (getLock()) {
+			super.setSendingResult(qi);
+			QueueInfo storedQueueInfo = getQueueInfo(qi.getMailid(), qi.getRecipient());
+			if( storedQueueInfo == null )
+				return;
+			try {
+				startRecord(RECORD_RESULT);
+				writeQueueInfo(recordOut, storedQueueInfo);
+				writeRecord();
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("JournaledQueueStore.setSendingResult(): Journal write failed. qi="+qi,ioe);
+			}
+		}
+	}
+
+	/**
+	 * Write the whole queue into a new snapshot, start a new journal and
+	 * delete the older journals. It is called automatically, but it could be
+	 * called to compact the journal immediately.
+	 *
+	 * @throws IOException If the snapshot could not be written.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			long snapshotGeneration = 0;
+			List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+			synchronized (getLock()) {
+				if( closed )
+					return;
+				// The new journal contains the changes after the snapshot.
+				snapshotGeneration = generation+1;
+				openJournal(snapshotGeneration);
+				for( QueueInfo qi : getQueueInfos() )
+					queueInfos.add(copyQueueInfo(qi));
+				synchronized (journalLock) {
+					snapshotRequested = false;
+				}
+				lastSnapshot = System.currentTimeMillis();
+			}
+			try {
+				writeSnapshot(snapshotGeneration, queueInfos);
+			} catch (IOException ioe) {
+				// The new journal does not contain the earlier changes.
+				synchronized (journalLock) {
+					snapshotRequested = true;
+				}
+				throw ioe;
+			}
+			for( Long journalGeneration : getJournalGenerations() )
+			{
+				if( journalGeneration < snapshotGeneration )
+					getJournalFile(journalGeneration).delete();
+			}
+			AspirinInternal.getLogger().debug("JournaledQueueStore.snapshot(): Snapshot {} written.",snapshotGeneration);
+		}
+	}
+
+	/**
+	 * Sync the journal and stop the background thread. Changes after
+	 * closing are not written into the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if( syncThread != null )
+			syncThread.interrupt();
+		synchronized (getLock()) {
+			synchronized (journalLock) {
+				closeJournal();
+			}
+		}
+	}
+
+	/**
+	 * Write the copied queue into the snapshot file and sync it with its
+	 * directory, so the older journals could be deleted.
+	 */
+	private void writeSnapshot(long snapshotGeneration, List<QueueInfo> queueInfos) throws IOException {
+		File snapshotTempFile = new File(journalDir, SNAPSHOT_TEMP_NAME);
+		FileOutputStream snapshotFileOut = new FileOutputStream(snapshotTempFile);
+		try {
+			DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(snapshotFileOut, BUFFER_SIZE));
+			snapshotOut.writeInt(SNAPSHOT_MAGIC);
+			snapshotOut.writeLong(snapshotGeneration);
+			for( QueueInfo qi : queueInfos )
+			{
+				snapshotOut.writeBoolean(true);
+				writeQueueInfo(snapshotOut, qi);
+			}
+			snapshotOut.writeBoolean(false);
+			snapshotOut.writeLong(queueInfos.size());
+			snapshotOut.flush();
+			snapshotFileOut.getFD().sync();
+		} finally {
+			snapshotFileOut.close();
+		}
+		File snapshotFile = new File(journalDir, SNAPSHOT_NAME);
+		if( !snapshotTempFile.renameTo(snapshotFile) )
+		{
+			// Some platforms could not rename to an existing file.
+			snapshotFile.delete();
+			if( !snapshotTempFile.renameTo(snapshotFile) )
+				throw new IOException("Snapshot could not be renamed: "+snapshotTempFile.getAbsolutePath());
+		}
+		syncDirectory(journalDir);
+	}
+
+	/**
+	 * Start a new journal file. Call only in locked state of the store.
+	 */
+	private void openJournal(long journalGeneration) throws IOException {
+		synchronized (journalLock) {
+			try {
+				closeJournal();
+			} catch (IOException ioe) {
+				// The records of the closed journal are kept by a snapshot.
+				AspirinInternal.getLogger().error("JournaledQueueStore.openJournal(): Journal could not be closed.",ioe);
+				snapshotRequested = true;
+			}
+			journalBroken = false;
+			generation = journalGeneration;
+			journalFileOut = new FileOutputStream(getJournalFile(journalGeneration), true);
+			journalOut = new DataOutputStream(new BufferedOutputStream(journalFileOut, BUFFER_SIZE));
+			journalSize = 0;
+			journalDirty = false;
+		}
+	}
+
+	/**
+	 * Call only in locked state of the journal.
+	 */
+	private void closeJournal() throws IOException {
+		if( journalOut != null )
+		{
+			try {
+				journalOut.flush();
+				journalFileOut.getFD().sync();
+			} finally {
+				journalOut.close();
+				journalOut = null;
+				journalFileOut = null;
+			}
+		}
+	}
+
+	private void startRecord(byte recordType) throws IOException {
+		recordBuffer.reset();
+		recordOut.writeByte(recordType);
+	}
+
+	/**
+	 * Append the record buffer to the journal. Call only in locked state of
+	 * the store.
+	 */
+	private void writeRecord() throws IOException {
+		recordOut.flush();
+		// A longer record would be taken as broken by the replay.
+		if( RECORD_LENGTH_MAX < recordBuffer.size() )
+			throw new IOException("Journal record is too long: "+recordBuffer.size());
+		recordCrc.reset();
+		recordCrc.update(recordBuffer.getBuffer(), 0, recordBuffer.size());
+		synchronized (journalLock) {
+			if( closed )
+				return;
+			if( journalOut == null || journalBroken )
+			{
+				// The records after a broken one are not replayed.
+				openJournal(generation+1);
+				snapshotRequested = true;
+			}
+			try {
+				journalOut.writeInt(recordBuffer.size());
+				journalOut.write(recordBuffer.getBuffer(), 0, recordBuffer.size());
+				journalOut.writeInt((int)recordCrc.getValue());
+				journalSize += recordBuffer.size()+8;
+				journalDirty = true;
+				if( AspirinInternal.getConfiguration().getQueueStoreJournalSyncInterval() <= 0 )
+				{
+					journalOut.flush();
+					journalFileOut.getFD().sync();
+					journalDirty = false;
+				}
+			} catch (IOException ioe) {
+				journalBroken = true;
+				snapshotRequested = true;
+				throw ioe;
+			}
+		}
+	}
+
+	/**
+	 * Sync the journal records written since the last sync. The store
+	 * operations wait only while the buffer is flushed, not while the disk
+	 * is synced.
+	 */
+	private void syncJournal() throws IOException {
+		FileOutputStream fileOut = null;
+		synchronized (journalLock) {
+			if( !journalDirty || journalOut == null || journalBroken )
+				return;
+			try {
+				journalOut.flush();
+			} catch (IOException ioe) {
+				journalBroken = true;
+				snapshotRequested = true;
+				throw ioe;
+			}
+			journalDirty = false;
+			fileOut = journalFileOut;
+		}
+		try {
+			fileOut.getFD().sync();
+		} catch (IOException ioe) {
+			// The journal was closed (and synced) by a snapshot meanwhile.
+			if( fileOut.getFD().valid() )
+			{
+				synchronized (journalLock) {
+					if( fileOut == journalFileOut )
+						journalBroken = true;
+					snapshotRequested = true;
+				}
+				throw ioe;
+			}
+		}
+	}
+
+	private boolean isSnapshotDue() {
+		long compactionSize = AspirinInternal.getConfiguration().getQueueStoreJournalCompactionSize();
+		long snapshotInterval = AspirinInternal.getConfiguration().getQueueStoreJournalSnapshotInterval();
+		synchronized (journalLock) {
+			if( snapshotRequested )
+				return true;
+			if( journalSize == 0 )
+				return false;
+			if( 0 < compactionSize && compactionSize <= journalSize )
+				return true;
+			return ( 0 < snapshotInterval && lastSnapshot+snapshotInterval <= System.currentTimeMillis() );
+		}
+	}
+
+	/**
+	 * Restore the queue from the snapshot. Call only in locked state of the
+	 * store.
+	 *
+	 * @return The generation of the first journal after the snapshot, 0 if
+	 * there is no snapshot.
+	 */
+	private long readSnapshot() {
+		new File(journalDir, SNAPSHOT_TEMP_NAME).delete();
+		File snapshotFile = new File(journalDir, SNAPSHOT_NAME);
+		if( !snapshotFile.exists() )
+			return 0;
+		DataInputStream snapshotIn = null;
+		try {
+			snapshotIn = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE));
+			if( snapshotIn.readInt() != SNAPSHOT_MAGIC )
+				throw new IOException("Not a queue snapshot: "+snapshotFile.getAbsolutePath());
+			long snapshotGeneration = snapshotIn.readLong();
+			long count = 0;
+			while( snapshotIn.readBoolean() )
+			{
+				restore(readQueueInfo(snapshotIn));
+				count++;
+			}
+			if( snapshotIn.readLong() != count )
+				throw new IOException("Incomplete queue snapshot: "+snapshotFile.getAbsolutePath());
+			return snapshotGeneration;
+		} catch (IOException ioe) {
+			AspirinInternal.getLogger().error("JournaledQueueStore.readSnapshot(): Snapshot could not be read, only journals are replayed.",ioe);
+			return 0;
+		} finally {
+			closeQuietly(snapshotIn);
+		}
+	}
+
+	/**
+	 * Replay the records of a journal. Call only in locked state of the
+	 * store.
+	 *
+	 * @return Count of replayed records.
+	 */
+	private long replayJournal(File journalFile) {
+		long count = 0;
+		DataInputStream journalIn = null;
+		try {
+			journalIn = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), BUFFER_SIZE));
+			byte[] buffer = new byte[256];
+			CRC32 crc = new CRC32();
+			while( true )
+			{
+				int length = 0;
+				int checksum = 0;
+				try {
+					length = journalIn.readInt();
+					if( length <= 0 || RECORD_LENGTH_MAX < length )
+						throw new IOException("Invalid record length: "+length);
+					if( buffer.length < length )
+						buffer = new byte[length];
+					journalIn.readFully(buffer, 0, length);
+					checksum = journalIn.readInt();
+				} catch (EOFException eofe) {
+					break;
+				}
+				crc.reset();
+				crc.update(buffer, 0, length);
+				if( (int)crc.getValue() != checksum )
+					throw new IOException("Invalid record checksum after "+count+" records.");
+				applyRecord(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+				count++;
+			}
+		} catch (IOException ioe) {
+			// Records after a broken one could not be trusted.
+			AspirinInternal.getLogger().warn("JournaledQueueStore.replayJournal(): Replay of {} stopped: {}",journalFile.getName(),ioe.getMessage());
+		} finally {
+			closeQuietly(journalIn);
+		}
+		return count;
+	}
+
+	/**
+	 * Write removal records of the new mails, which add records were
+	 * written, but the mails were not queued. Call only in locked state of
+	 * the store.
+	 */
+	private void applyRecord(DataInput recordIn) throws IOException {
+		byte recordType = recordIn.readByte();
+		switch( recordType )
+		{
+			case RECORD_ADD:
+				applyAdd(recordIn);
+				break;
+			case RECORD_ADD_ALL:
+				int mailCount = recordIn.readInt();
+				for( int i = 0; i < mailCount; i++ )
+					applyAdd(recordIn);
+				break;
+			case RECORD_RESULT:
+				restore(readQueueInfo(recordIn));
+				break;
+			case RECORD_REMOVE:
+				super.remove(recordIn.readUTF());
+				break;
+			case RECORD_REMOVE_RECIPIENT:
+				super.removeRecipient(recordIn.readUTF());
+				break;
+			default:
+				throw new IOException("Unknown record type: "+recordType);
+		}
+	}
+
+	/**
+	 * Restore the recipients of a mail added by a RECORD_ADD or a part of a
+	 * RECORD_ADD_ALL.
+	 */
+	private void applyAdd(DataInput recordIn) throws IOException {
+		String mailid = recordIn.readUTF();
+		long expiry = recordIn.readLong();
+		int recipientCount = recordIn.readInt();
+		for( int i = 0; i < recipientCount; i++ )
+		{
+			QueueInfo qi = new QueueInfo();
+			qi.setMailid(mailid);
+			qi.setRecipient(recordIn.readUTF());
+			qi.setExpiry(expiry);
+			restore(qi);
+		}
+	}
+
+	private void writeQueueInfo(DataOutput out, QueueInfo qi) throws IOException {
+		out.writeUTF(qi.getMailid());
+		out.writeUTF(qi.getRecipient());
+		out.writeLong(qi.getExpiry());
+		out.writeByte(qi.getState().getStateId());
+		out.writeLong(qi.getAttempt());
+		out.writeInt(qi.getAttemptCount());
+		String resultInfo = qi.getResultInfo();
+		out.writeBoolean(resultInfo != null);
+		if( resultInfo != null )
+		{
+			if( RESULT_INFO_LENGTH_MAX < resultInfo.length() )
+				resultInfo = resultInfo.substring(0, RESULT_INFO_LENGTH_MAX);
+			out.writeUTF(resultInfo);
+		}
+	}
+
+	/**
+	 * @return Copy of the stored QueueInfo, which is not changed by the
+	 * store operations.
+	 */
+	private QueueInfo copyQueueInfo(QueueInfo qi) {
+		QueueInfo copy = new QueueInfo();
+		copy.setMailid(qi.getMailid());
+		copy.setRecipient(qi.getRecipient());
+		copy.setExpiry(qi.getExpiry());
+		copy.setAttempt(qi.getAttempt());
+		copy.setAttemptCount(qi.getAttemptCount());
+		copy.setResultInfo(qi.getResultInfo());
+		copy.restoreState(qi.getState());
+		return copy;
+	}
+
+	private QueueInfo readQueueInfo(DataInput in) throws IOException {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(in.readUTF());
+		qi.setRecipient(in.readUTF());
+		qi.setExpiry(in.readLong());
+		DeliveryState state = getState(in.readByte());
+		qi.setAttempt(in.readLong());
+		qi.setAttemptCount(in.readInt());
+		if( in.readBoolean() )
+			qi.setResultInfo(in.readUTF());
+		// The delivery was interrupted by the restart.
+		if( state == DeliveryState.IN_PROGRESS )
+			state = DeliveryState.QUEUED;
+		qi.restoreState(state);
+		return qi;
+	}
+
+	private DeliveryState getState(int stateId) throws IOException {
+		for( DeliveryState state : DeliveryState.values() )
+		{
+			if( state.getStateId() == stateId )
+				return state;
+		}
+		throw new IOException("Unknown delivery state: "+stateId);
+	}
+
+	private File getJournalFile(long journalGeneration) {
+		return new File(journalDir, JOURNAL_PREFIX+journalGeneration+JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * @return The generations of existing journal files in ascending order.
+	 */
+	private List<Long> getJournalGenerations() {
+		List<Long> journalGenerations = new ArrayList<Long>();
+		String[] fileNames = journalDir.list();
+		if( fileNames == null )
+			return journalGenerations;
+		for( String fileName : fileNames )
+		{
+			if( !fileName.startsWith(JOURNAL_PREFIX) || !fileName.endsWith(JOURNAL_SUFFIX) )
+				continue;
+			try {
+				journalGenerations.add(Long.valueOf(fileName.substring(JOURNAL_PREFIX.length(), fileName.length()-JOURNAL_SUFFIX.length())));
+			} catch (NumberFormatException nfe) {
+				// Not a journal file
+			}
+		}
+		Collections.sort(journalGenerations);
+		return journalGenerations;
+	}
+
+	/**
+	 * Sync the directory, so the renamed and created files are found after a
+	 * crash. The directory is opened by FileChannel.open() of Java 7 or
+	 * newer through reflection. It is not done on older Java versions and on
+	 * platforms, where a directory could not be opened (Windows).
+	 */
+	private static void syncDirectory(File dir) {
+		FileChannel channel = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> openOptionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(openOptionClass, 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+			Object path = File.class.getMethod("toPath").invoke(dir);
+			channel = (FileChannel)FileChannel.class.getMethod("open", pathClass, options.getClass()).invoke(null, path, options);
+			channel.force(true);
+		} catch (Exception e) {
+			AspirinInternal.getLogger().debug("JournaledQueueStore.syncDirectory(): Directory could not be synced: {}",e.toString());
+		} finally {
+			if( channel != null )
+			{
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if( closeable == null )
+			return;
+		try {
+			closeable.close();
+		} catch (IOException ioe) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Record content buffer without copying on write.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(256);
+		}
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * This thread syncs the journal periodically and writes the snapshots.
+	 */
+	private class JournalSyncThread extends Thread {
+
+		JournalSyncThread() {
+			setName("Aspirin-"+JournaledQueueStore.class.getSimpleName()+"-"+getId());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while( !closed )
+			{
+				try {
+					int syncInterval = AspirinInternal.getConfiguration().getQueueStoreJournalSyncInterval();
+					Thread.sleep( 0 < syncInterval ? syncInterval : 1000 );
+				} catch (InterruptedException ie) {
+					// Closed or waked up
+				}
+				if( closed )
+					break;
+				try {
+					syncJournal();
+					if( isSnapshotDue() )
+						snapshot();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("JournaledQueueStore.JournalSyncThread.run(): Journal sync failed.",ioe);
+				}
+			}
+		}
+	}
+
+}
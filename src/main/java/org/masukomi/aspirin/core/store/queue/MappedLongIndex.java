@@ -0,0 +1,234 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>Open addressing hash index of long values in a {@link MappedRegion}.
+ * Every slot contains a 64 bit hash and a value. The index does not know
+ * the keys: more values could have the same hash, so the caller decides by
+ * a {@link ValueMatcher}, which value belongs to the searched key.</p>
+ *
+ * <p>The index is doubled into a new file if it is filled to 75%. File
+ * names contain the capacity: name-capacity.index.</p>
+ */
+class MappedLongIndex {
+
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 16;
+	private static final long EMPTY = 0L;
+	static final long NOT_FOUND = -1L;
+
+	/**
+	 * Decide whether a value with the searched hash belongs to the searched
+	 * key.
+	 */
+	interface ValueMatcher {
+		boolean matches(long value);
+	}
+
+	private File dir;
+	private String name;
+	private MappedRegion region;
+	private long capacity;
+	private long mask;
+	private long count;
+
+	/**
+	 * Open the existing index file with the greatest capacity or create a
+	 * new one. Other index files of this name are deleted.
+	 */
+	MappedLongIndex(File dir, String name, long initialCapacity) throws IOException {
+		this.dir = dir;
+		this.name = name;
+		long existingCapacity = 0;
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				long fileCapacity = getCapacity(file);
+				if( existingCapacity < fileCapacity )
+					existingCapacity = fileCapacity;
+			}
+		}
+		open( 0 < existingCapacity ? existingCapacity : initialCapacity );
+		if( 0 < existingCapacity )
+			count = region.getLong(8);
+		deleteOtherFiles();
+	}
+
+	long size() {
+		return count;
+	}
+
+	/**
+	 * @return The first value with the given hash accepted by the matcher or
+	 * {@link #NOT_FOUND}.
+	 */
+	long find(long hash, ValueMatcher matcher) {
+		long slotHash = toSlotHash(hash);
+		for( long slot = slotHash & mask; ; slot = (slot+1) & mask )
+		{
+			long storedHash = region.getLong(slotPosition(slot));
+			if( storedHash == EMPTY )
+				return NOT_FOUND;
+			if( storedHash == slotHash )
+			{
+				long value = region.getLong(slotPosition(slot)+8);
+				if( matcher.matches(value) )
+					return value;
+			}
+		}
+	}
+
+	/**
+	 * @return The values of all slots in slot order.
+	 */
+	long[] values() {
+		long[] values = new long[(int)count];
+		int i = 0;
+		for( long slot = 0; slot < capacity; slot++ )
+		{
+			if( region.getLong(slotPosition(slot)) != EMPTY )
+				values[i++] = region.getLong(slotPosition(slot)+8);
+		}
+		return values;
+	}
+
+	void put(long hash, long value) throws IOException {
+		if( capacity*3/4 <= count+1 )
+			grow();
+		insert(toSlotHash(hash), value);
+		count++;
+		region.putLong(8, count);
+	}
+
+	/**
+	 * Remove the slot with the given hash and value.
+	 *
+	 * @return true, if the slot was found.
+	 */
+	boolean remove(long hash, long value) {
+		long slotHash = toSlotHash(hash);
+		long slot = slotHash & mask;
+		while( true )
+		{
+			long storedHash = region.getLong(slotPosition(slot));
+			if( storedHash == EMPTY )
+				return false;
+			if( storedHash == slotHash && region.getLong(slotPosition(slot)+8) == value )
+				break;
+			slot = (slot+1) & mask;
+		}
+		// Shift back the following slots of the probe sequence.
+		long free = slot;
+		long next = slot;
+		while( true )
+		{
+			next = (next+1) & mask;
+			long nextHash = region.getLong(slotPosition(next));
+			if( nextHash == EMPTY )
+				break;
+			long home = nextHash & mask;
+			boolean movable = ( free <= next ) ? ( home <= free || next < home ) : ( home <= free && next < home );
+			if( movable )
+			{
+				region.putLong(slotPosition(free), nextHash);
+				region.putLong(slotPosition(free)+8, region.getLong(slotPosition(next)+8));
+				free = next;
+			}
+		}
+		region.putLong(slotPosition(free), EMPTY);
+		region.putLong(slotPosition(free)+8, EMPTY);
+		count--;
+		region.putLong(8, count);
+		return true;
+	}
+
+	void force() {
+		region.force();
+	}
+
+	void close() throws IOException {
+		region.close();
+	}
+
+	/**
+	 * Close and delete all files of this index.
+	 */
+	void delete() throws IOException {
+		region.close();
+		region.getFile().delete();
+	}
+
+	private void insert(long slotHash, long value) {
+		long slot = slotHash & mask;
+		while( region.getLong(slotPosition(slot)) != EMPTY )
+			slot = (slot+1) & mask;
+		region.putLong(slotPosition(slot)+8, value);
+		region.putLong(slotPosition(slot), slotHash);
+	}
+
+	private void grow() throws IOException {
+		MappedRegion previousRegion = region;
+		long previousCapacity = capacity;
+		open(capacity*2);
+		for( long slot = 0; slot < previousCapacity; slot++ )
+		{
+			long position = HEADER_SIZE+slot*SLOT_SIZE;
+			long storedHash = previousRegion.getLong(position);
+			if( storedHash != EMPTY )
+				insert(storedHash, previousRegion.getLong(position+8));
+		}
+		region.putLong(8, count);
+		previousRegion.close();
+		previousRegion.getFile().delete();
+	}
+
+	private void open(long newCapacity) throws IOException {
+		region = new MappedRegion(new File(dir, name+"-"+newCapacity+".index"));
+		capacity = newCapacity;
+		mask = newCapacity-1;
+		region.putLong(0, newCapacity);
+	}
+
+	private void deleteOtherFiles() {
+		File[] files = dir.listFiles();
+		if( files == null )
+			return;
+		for( File file : files )
+		{
+			if( 0 < getCapacity(file) && !file.equals(region.getFile()) )
+				file.delete();
+		}
+	}
+
+	/**
+	 * @return The capacity in the name of an index file of this index, 0 if
+	 * the file does not belong to this index.
+	 */
+	private long getCapacity(File file) {
+		String fileName = file.getName();
+		String prefix = name+"-";
+		if( !fileName.startsWith(prefix) || !fileName.endsWith(".index") )
+			return 0;
+		try {
+			return Long.parseLong(fileName.substring(prefix.length(), fileName.length()-".index".length()));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private long slotPosition(long slot) {
+		return HEADER_SIZE+slot*SLOT_SIZE;
+	}
+
+	/**
+	 * The empty slot marker could not be a hash.
+	 */
+	private static long toSlotHash(long hash) {
+		return ( hash == EMPTY ) ? 1L : hash;
+	}
+
+}
@@ -0,0 +1,1102 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>This store keeps the queue in memory mapped files instead of the Java
+ * heap, so the heap usage does not depend on the queue size. It is useful if
+ * there are tens of millions of recipients in the queue. The mail bodies
+ * have to be kept by a persistent mail store, for example FileMailStore.</p>
+ *
+ * <p>Every recipient is a fixed size (64 bytes) record. Mailids, recipients
+ * and result infos are interned: every string is stored once with a
+ * reference count and the records contain only its offset. The records of a
+ * mail are chained, the QUEUED records are ordered by their next attempt
+ * time in a binary heap. The mails, the recipients of a mail, the records
+ * of a recipient address and the interned strings are found by open
+ * addressing hash indexes. The first record of a mail keeps the count of its
+ * QUEUED and IN_PROGRESS records, so a mail is completed if the count is 0.
+ * The operations cost O(log n) like in {@link IndexedQueueStore},
+ * {@link #clean()} reads the mail index only. QueueInfo objects are created
+ * only for the items given back by {@link #next()}.</p>
+ *
+ * <p>The files are in the aspirin.queuestore.mapped.dir directory. After a
+ * clean shutdown (see {@link #close()}) the store is opened without reading
+ * the records. If the store was not closed, the indexes and the heap are
+ * rebuilt from the records and the items in progress are queued again. The
+ * changes are written to the disk by the operating system: they survive a
+ * crash of the JVM, but not a crash of the operating system. The files are
+ * synced by {@link #clean()} and {@link #close()}.</p>
+ *
+ * <p>Space of removed records is reused. Space of unused strings is
+ * reclaimed by {@link #clean()}, if the most of the string file is unused.
+ * </p>
+ */
+public class MappedQueueStore implements BlockingQueueStore, GroupingQueueStore, BulkQueueStore, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x41534d51;
+	private static final int VERSION = 2;
+	/** Files of this version are rebuilt, they have no pending counts. */
+	private static final int VERSION_WITHOUT_PENDING = 1;
+	private static final int HEADER_CHUNK_BITS = 12;
+	private static final int INDEX_CAPACITY = 1024;
+	private static final int RESULT_INFO_LENGTH_MAX = 1024;
+	private static final long COMPACTION_GARBAGE_MIN = 16L*1024*1024;
+	private static final int NONE = -1;
+
+	/*
+	 * Header fields.
+	 */
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CLEAN = 8;
+	private static final int HEADER_GENERATION = 12;
+	private static final int HEADER_RECORD_END = 16;
+	private static final int HEADER_FREE_RECORD = 20;
+	private static final int HEADER_RECORD_COUNT = 24;
+	private static final int HEADER_HEAP_SIZE = 28;
+	private static final int HEADER_STRINGS_END = 32;
+	private static final int HEADER_STRING_GARBAGE = 40;
+
+	/*
+	 * Record fields. The record size is a power of two, so a record never
+	 * crosses a chunk boundary of the mapped file.
+	 */
+	private static final int RECORD_SIZE = 64;
+	private static final int RECORD_STATE = 0;
+	private static final int RECORD_NEXT = 4;
+	private static final int RECORD_MAILID = 8;
+	private static final int RECORD_RECIPIENT = 16;
+	private static final int RECORD_EXPIRY = 24;
+	private static final int RECORD_ATTEMPT = 32;
+	private static final int RECORD_ATTEMPT_COUNT = 40;
+	private static final int RECORD_HEAP_POSITION = 44;
+	private static final int RECORD_RESULT_INFO = 48;
+	/** Count of the pending records of the mail, valid in the first one. */
+	private static final int RECORD_PENDING = 56;
+	private static final int[] RECORD_STRINGS = {RECORD_MAILID, RECORD_RECIPIENT, RECORD_RESULT_INFO};
+	private static final byte STATE_FREE = 9;
+
+	/*
+	 * String entry fields: reference count, byte length, hash, forward
+	 * offset used by the compaction, then the UTF-8 bytes. Entries are
+	 * aligned to 8 bytes, offset 0 is the null string.
+	 */
+	private static final int STRING_REFERENCES = 0;
+	private static final int STRING_LENGTH = 4;
+	private static final int STRING_HASH = 8;
+	private static final int STRING_FORWARD = 16;
+	private static final int STRING_BYTES = 24;
+	private static final long STRINGS_START = 8;
+
+	private File dir;
+	private MappedRegion header = null;
+	private MappedRegion records = null;
+	private MappedRegion strings = null;
+	private MappedRegion heap = null;
+	private MappedLongIndex stringIndex = null;
+	private MappedLongIndex mailIndex = null;
+	private MappedLongIndex recipientIndex = null;
+	private MappedLongIndex addressIndex = null;
+	private Set<Integer> recordsInProgress = new HashSet<Integer>();
+	private RecordMatcher recordMatcher = new RecordMatcher();
+	private boolean closed = true;
+	private Object lock = new Object();
+
+	@Override
+	public void init() {
+		synchronized (lock) {
+			dir = new File(AspirinInternal.getConfiguration().getQueueStoreMappedDir());
+			if( !dir.exists() && !dir.mkdirs() )
+				AspirinInternal.getLogger().error("MappedQueueStore.init(): Queue directory could not be created: {}.",dir.getAbsolutePath());
+			long start = System.currentTimeMillis();
+			try {
+				header = new MappedRegion(new File(dir, "queue.header"), HEADER_CHUNK_BITS);
+				boolean created = ( header.getInt(HEADER_MAGIC) != MAGIC );
+				if( created )
+				{
+					header.putInt(HEADER_VERSION, VERSION);
+					header.putInt(HEADER_CLEAN, 1);
+					header.putInt(HEADER_GENERATION, 0);
+					header.putInt(HEADER_RECORD_END, 0);
+					header.putInt(HEADER_FREE_RECORD, NONE);
+					header.putInt(HEADER_RECORD_COUNT, 0);
+					header.putInt(HEADER_HEAP_SIZE, 0);
+					header.putLong(HEADER_STRINGS_END, STRINGS_START);
+					header.putLong(HEADER_STRING_GARBAGE, 0);
+					header.putInt(HEADER_MAGIC, MAGIC);
+				}
+				int version = header.getInt(HEADER_VERSION);
+				if( version != VERSION && version != VERSION_WITHOUT_PENDING )
+					throw new IOException("Unsupported queue file version: "+version);
+				int generation = header.getInt(HEADER_GENERATION);
+				deleteOtherGenerations(generation);
+				records = new MappedRegion(getRecordsFile(generation));
+				strings = new MappedRegion(getStringsFile(generation));
+				heap = new MappedRegion(new File(dir, "queue.heap"));
+				boolean clean = ( header.getInt(HEADER_CLEAN) == 1 && version == VERSION );
+				// Modified from now, it is set again by a clean shutdown.
+				header.putInt(HEADER_CLEAN, 0);
+				header.putInt(HEADER_VERSION, VERSION);
+				header.force();
+				if( clean )
+					openIndexes();
+				else
+					rebuild(true);
+				closed = false;
+			} catch (IOException ioe) {
+				AspirinInternal.getLogger().error("MappedQueueStore.init(): Queue files could not be opened in "+dir.getAbsolutePath(),ioe);
+				return;
+			}
+			AspirinInternal.getLogger().info("MappedQueueStore.init(): Queue opened from {} in {} ms, {} recipients.",new Object[]{dir.getAbsolutePath(),System.currentTimeMillis()-start,header.getInt(HEADER_RECORD_COUNT)});
+		}
+	}
+
+	@Override
+	public void add(String mailid, long expiry, Collection<InternetAddress> recipients) throws MessagingException {
+		try {
+			synchronized (lock) {
+				checkOpen();
+				for( InternetAddress recipient : recipients )
+					addRecord(mailid, recipient.getAddress(), expiry);
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed: "+mailid, e);
+		}
+	}
+
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		try {
+			synchronized (lock) {
+				checkOpen();
+				for( QueueInfo queueInfo : queueInfos )
+					addRecord(queueInfo.getMailid(), queueInfo.getRecipient(), queueInfo.getExpiry());
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed.", e);
+		}
+	}
+
+	@Override
+	public List<String> clean() {
+		List<String> mailidList = new ArrayList<String>();
+		synchronized (lock) {
+			if( closed )
+				return mailidList;
+			List<Integer> completedHeads = new ArrayList<Integer>();
+			for( long head : mailIndex.values() )
+			{
+				int id = (int)head;
+				if( isMailCompleted(id) )
+					completedHeads.add(id);
+				else
+					mailidList.add(readString(getMailidRef(id)));
+			}
+			for( Integer head : completedHeads )
+				removeMail(head);
+			long stringGarbage = header.getLong(HEADER_STRING_GARBAGE);
+			if( COMPACTION_GARBAGE_MIN < stringGarbage && header.getLong(HEADER_STRINGS_END)/2 < stringGarbage )
+			{
+				try {
+					compact();
+				} catch (IOException ioe) {
+					AspirinInternal.getLogger().error("MappedQueueStore.clean(): Compaction failed.",ioe);
+				}
+			}
+			force();
+		}
+		return mailidList;
+	}
+
+	@Override
+	public QueueInfo createQueueInfo() {
+		return new QueueInfo();
+	}
+
+	@Override
+	public long getNextAttempt(String mailid, String recipient) {
+		synchronized (lock) {
+			int id = findRecord(mailid, recipient);
+			if( id != NONE && getState(id) == DeliveryState.QUEUED.getStateId() )
+				return records.getLong(recordPosition(id)+RECORD_ATTEMPT);
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean hasBeenRecipientHandled(String mailid, String recipient) {
+		synchronized (lock) {
+			int id = findRecord(mailid, recipient);
+			if( id == NONE )
+				return false;
+			byte state = getState(id);
+			return ( state == DeliveryState.FAILED.getStateId() || state == DeliveryState.SENT.getStateId() );
+		}
+	}
+
+	@Override
+	public boolean isCompleted(String mailid) {
+		synchronized (lock) {
+			if( closed )
+				return true;
+			long mailidRef = findString(mailid);
+			if( mailidRef == 0 )
+				return true;
+			int head = findMailHead(mailidRef);
+			return ( head == NONE || isMailCompleted(head) );
+		}
+	}
+
+	@Override
+	public QueueInfo next() {
+		synchronized (lock) {
+			if( closed )
+				return null;
+			long now = System.currentTimeMillis();
+			while( 0 < header.getInt(HEADER_HEAP_SIZE) )
+			{
+				int id = heap.getInt(0);
+				// The earliest item is not sendable yet, so none of them.
+				if( now <= records.getLong(recordPosition(id)+RECORD_ATTEMPT) )
+					return null;
+				removeFromHeap(id);
+				QueueInfo qi = readQueueInfo(id);
+				if( !qi.isInTimeBounds() )
+				{
+					if( qi.getResultInfo() == null || qi.getResultInfo().isEmpty() )
+						qi.setResultInfo("Delivery is out of time or attempt.");
+					qi.setState(DeliveryState.FAILED);
+					setSendingResult(qi);
+				}
+				else
+				{
+					records.putByte(recordPosition(id)+RECORD_STATE, (byte)DeliveryState.IN_PROGRESS.getStateId());
+					recordsInProgress.add(id);
+					qi.setState(DeliveryState.IN_PROGRESS);
+					return qi;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount) {
+		List<QueueInfo> coRecipients = new ArrayList<QueueInfo>();
+		synchronized (lock) {
+			if( closed )
+				return coRecipients;
+			long mailidRef = findString(qi.getMailid());
+			if( mailidRef == 0 )
+				return coRecipients;
+			long now = System.currentTimeMillis();
+			for( int id = findMailHead(mailidRef); id != NONE && coRecipients.size() < maxCount; id = getNext(id) )
+			{
+				if( records.getInt(recordPosition(id)+RECORD_HEAP_POSITION) == NONE || now <= records.getLong(recordPosition(id)+RECORD_ATTEMPT) )
+					continue;
+				QueueInfo coQi = readQueueInfo(id);
+				if( !coQi.isInTimeBounds() || !qi.getRecipientDomain().equals(coQi.getRecipientDomain()) )
+					continue;
+				removeFromHeap(id);
+				records.putByte(recordPosition(id)+RECORD_STATE, (byte)DeliveryState.IN_PROGRESS.getStateId());
+				recordsInProgress.add(id);
+				coQi.setState(DeliveryState.IN_PROGRESS);
+				coRecipients.add(coQi);
+			}
+		}
+		return coRecipients;
+	}
+
+	@Override
+	public QueueInfo nextBlocking(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized (lock) {
+			while( true )
+			{
+				QueueInfo qi = next();
+				if( qi != null )
+					return qi;
+				long now = System.currentTimeMillis();
+				long waitTime = deadline-now;
+				if( waitTime <= 0 )
+					return null;
+				// Wake up when the earliest item becomes sendable.
+				if( !closed && 0 < header.getInt(HEADER_HEAP_SIZE) )
+					waitTime = Math.min(waitTime, records.getLong(recordPosition(heap.getInt(0))+RECORD_ATTEMPT)-now+1);
+				lock.wait(waitTime);
+			}
+		}
+	}
+
+	@Override
+	public void remove(String mailid) {
+		synchronized (lock) {
+			if( closed )
+				return;
+			long mailidRef = findString(mailid);
+			if( mailidRef == 0 )
+				return;
+			int head = findMailHead(mailidRef);
+			if( head != NONE )
+				removeMail(head);
+		}
+	}
+
+	@Override
+	public void removeRecipient(String recipient) {
+		synchronized (lock) {
+			if( closed )
+				return;
+			long recipientRef = findString(recipient);
+			if( recipientRef == 0 )
+				return;
+			long recipientHash = strings.getLong(recipientRef+STRING_HASH);
+			while( true )
+			{
+				// The matcher is used by the unlinking too.
+				recordMatcher.mailidRef = 0;
+				recordMatcher.recipientRef = recipientRef;
+				long id = addressIndex.find(recipientHash, recordMatcher);
+				if( id == MappedLongIndex.NOT_FOUND )
+					return;
+				unlinkRecord((int)id);
+				freeRecord((int)id);
+			}
+		}
+	}
+
+	@Override
+	public void setSendingResult(QueueInfo qi) {
+		synchronized (lock) {
+			int id = findRecord(qi.getMailid(), qi.getRecipient());
+			if( id == NONE )
+				return;
+			removeFromHeap(id);
+			recordsInProgress.remove(id);
+			long position = recordPosition(id);
+			records.putLong(position+RECORD_ATTEMPT, System.currentTimeMillis()+AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
+			records.putInt(position+RECORD_ATTEMPT_COUNT, records.getInt(position+RECORD_ATTEMPT_COUNT)+1);
+			setState(id, (byte)qi.getState().getStateId());
+			String resultInfo = qi.getResultInfo();
+			if( resultInfo != null && RESULT_INFO_LENGTH_MAX < resultInfo.length() )
+				resultInfo = resultInfo.substring(0, RESULT_INFO_LENGTH_MAX);
+			setResultInfo(id, resultInfo);
+			if( qi.hasState(DeliveryState.QUEUED) )
+				addToHeap(id);
+		}
+	}
+
+	@Override
+	public void signal() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (lock) {
+			return ( closed ) ? 0 : (int)mailIndex.size();
+		}
+	}
+
+	/**
+	 * Queue the items in progress again, sync and close the files. The next
+	 * {@link #init()} opens the store without rebuilding it.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if( closed )
+				return;
+			for( Integer id : recordsInProgress )
+			{
+				records.putByte(recordPosition(id)+RECORD_STATE, (byte)DeliveryState.QUEUED.getStateId());
+				addToHeap(id);
+			}
+			recordsInProgress.clear();
+			force();
+			closed = true;
+			stringIndex.close();
+			mailIndex.close();
+			recipientIndex.close();
+			addressIndex.close();
+			heap.close();
+			strings.close();
+			records.close();
+			header.putInt(HEADER_CLEAN, 1);
+			header.close();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sync all changes to the disk.
+	 */
+	private void force() {
+		records.force();
+		strings.force();
+		heap.force();
+		stringIndex.force();
+		mailIndex.force();
+		recipientIndex.force();
+		addressIndex.force();
+		header.force();
+	}
+
+	private void checkOpen() throws IOException {
+		if( closed )
+			throw new IOException("Queue store is closed.");
+	}
+
+	private void openIndexes() throws IOException {
+		stringIndex = new MappedLongIndex(dir, "strings", INDEX_CAPACITY);
+		mailIndex = new MappedLongIndex(dir, "mails", INDEX_CAPACITY);
+		recipientIndex = new MappedLongIndex(dir, "recipients", INDEX_CAPACITY);
+		addressIndex = new MappedLongIndex(dir, "addresses", INDEX_CAPACITY);
+	}
+
+	/**
+	 * Recreate the indexes, the heap, the mail chains, the pending counts,
+	 * the list of free records and the string reference counts from the
+	 * records.
+	 *
+	 * @param requeueInProgress Items in progress are queued again.
+	 */
+	private void rebuild(boolean requeueInProgress) throws IOException {
+		if( stringIndex == null )
+			openIndexes();
+		stringIndex.delete();
+		mailIndex.delete();
+		recipientIndex.delete();
+		addressIndex.delete();
+		openIndexes();
+		// Strings: reset reference counts, the end of a broken entry is the end.
+		long stringsEnd = header.getLong(HEADER_STRINGS_END);
+		long position = STRINGS_START;
+		while( position < stringsEnd )
+		{
+			int length = strings.getInt(position+STRING_LENGTH);
+			if( length < 0 || stringsEnd < position+getStringEntrySize(length) )
+				break;
+			strings.putInt(position+STRING_REFERENCES, 0);
+			position += getStringEntrySize(length);
+		}
+		stringsEnd = position;
+		header.putLong(HEADER_STRINGS_END, stringsEnd);
+		// Records: link the live records, chain the free ones.
+		int recordEnd = header.getInt(HEADER_RECORD_END);
+		header.putInt(HEADER_FREE_RECORD, NONE);
+		header.putInt(HEADER_RECORD_COUNT, 0);
+		header.putInt(HEADER_HEAP_SIZE, 0);
+		for( int id = recordEnd-1; 0 <= id; id-- )
+		{
+			long recordPosition = recordPosition(id);
+			records.putInt(recordPosition+RECORD_HEAP_POSITION, NONE);
+			byte state = getState(id);
+			if( state == DeliveryState.IN_PROGRESS.getStateId() && requeueInProgress )
+			{
+				state = (byte)DeliveryState.QUEUED.getStateId();
+				records.putByte(recordPosition+RECORD_STATE, state);
+			}
+			long mailidRef = getMailidRef(id);
+			long recipientRef = records.getLong(recordPosition+RECORD_RECIPIENT);
+			long resultInfoRef = records.getLong(recordPosition+RECORD_RESULT_INFO);
+			if( getDeliveryState(state) == null || !isStringRef(mailidRef, stringsEnd) || !isStringRef(recipientRef, stringsEnd) || ( resultInfoRef != 0 && !isStringRef(resultInfoRef, stringsEnd) ) )
+			{
+				records.putByte(recordPosition+RECORD_STATE, STATE_FREE);
+				records.putInt(recordPosition+RECORD_NEXT, header.getInt(HEADER_FREE_RECORD));
+				header.putInt(HEADER_FREE_RECORD, id);
+				continue;
+			}
+			strings.putInt(mailidRef+STRING_REFERENCES, strings.getInt(mailidRef+STRING_REFERENCES)+1);
+			strings.putInt(recipientRef+STRING_REFERENCES, strings.getInt(recipientRef+STRING_REFERENCES)+1);
+			if( resultInfoRef != 0 )
+				strings.putInt(resultInfoRef+STRING_REFERENCES, strings.getInt(resultInfoRef+STRING_REFERENCES)+1);
+			header.putInt(HEADER_RECORD_COUNT, header.getInt(HEADER_RECORD_COUNT)+1);
+			linkRecord(id);
+			if( isPending(state) )
+				addPending(id, 1);
+			if( state == DeliveryState.QUEUED.getStateId() )
+				addToHeap(id);
+			else if( state == DeliveryState.IN_PROGRESS.getStateId() )
+				recordsInProgress.add(id);
+		}
+		// Index the used strings, the others are garbage.
+		long stringGarbage = 0;
+		for( position = STRINGS_START; position < stringsEnd; position += getStringEntrySize(strings.getInt(position+STRING_LENGTH)) )
+		{
+			if( 0 < strings.getInt(position+STRING_REFERENCES) )
+				stringIndex.put(strings.getLong(position+STRING_HASH), position);
+			else
+				stringGarbage += getStringEntrySize(strings.getInt(position+STRING_LENGTH));
+		}
+		header.putLong(HEADER_STRING_GARBAGE, stringGarbage);
+		AspirinInternal.getLogger().info("MappedQueueStore.rebuild(): Queue rebuilt, {} recipients.",header.getInt(HEADER_RECORD_COUNT));
+	}
+
+	/**
+	 * Copy the live records and their strings into files of the next
+	 * generation, then rebuild the indexes. The header is switched to the
+	 * new generation only after the new files are synced.
+	 */
+	private void compact() throws IOException {
+		int generation = header.getInt(HEADER_GENERATION);
+		MappedRegion newRecords = new MappedRegion(getRecordsFile(generation+1));
+		MappedRegion newStrings = new MappedRegion(getStringsFile(generation+1));
+		long newStringsEnd = STRINGS_START;
+		int newRecordEnd = 0;
+		int recordEnd = header.getInt(HEADER_RECORD_END);
+		long stringsEnd = header.getLong(HEADER_STRINGS_END);
+		for( long position = STRINGS_START; position < stringsEnd; position += getStringEntrySize(strings.getInt(position+STRING_LENGTH)) )
+			strings.putLong(position+STRING_FORWARD, 0);
+		for( int id = 0; id < recordEnd; id++ )
+		{
+			if( getState(id) == STATE_FREE )
+				continue;
+			long position = recordPosition(id);
+			long newPosition = recordPosition(newRecordEnd);
+			for( int offset = 0; offset < RECORD_SIZE; offset += 8 )
+				newRecords.putLong(newPosition+offset, records.getLong(position+offset));
+			for( int field : RECORD_STRINGS )
+			{
+				long ref = records.getLong(position+field);
+				if( ref == 0 )
+					continue;
+				long newRef = strings.getLong(ref+STRING_FORWARD);
+				if( newRef == 0 )
+				{
+					int entrySize = getStringEntrySize(strings.getInt(ref+STRING_LENGTH));
+					byte[] entry = new byte[entrySize];
+					strings.getBytes(ref, entry, entrySize);
+					newStrings.putBytes(newStringsEnd, entry, entrySize);
+					newRef = newStringsEnd;
+					newStringsEnd += entrySize;
+					strings.putLong(ref+STRING_FORWARD, newRef);
+				}
+				newRecords.putLong(newPosition+field, newRef);
+			}
+			newRecordEnd++;
+		}
+		newRecords.force();
+		newStrings.force();
+		// Switch to the new generation.
+		header.putInt(HEADER_RECORD_END, newRecordEnd);
+		header.putLong(HEADER_STRINGS_END, newStringsEnd);
+		header.putInt(HEADER_GENERATION, generation+1);
+		header.force();
+		records.close();
+		strings.close();
+		records = newRecords;
+		strings = newStrings;
+		deleteOtherGenerations(generation+1);
+		// The items in progress are found again by their state.
+		recordsInProgress.clear();
+		rebuild(false);
+		AspirinInternal.getLogger().info("MappedQueueStore.compact(): Queue compacted, {} records, {} bytes of strings.",newRecordEnd,newStringsEnd);
+	}
+
+	private void deleteOtherGenerations(int generation) {
+		File[] files = dir.listFiles();
+		if( files == null )
+			return;
+		for( File file : files )
+		{
+			String fileName = file.getName();
+			if( ( fileName.startsWith("records-") || fileName.startsWith("strings-") ) && fileName.endsWith(".dat") && !fileName.endsWith("-"+generation+".dat") )
+				file.delete();
+		}
+	}
+
+	private File getRecordsFile(int generation) {
+		return new File(dir, "records-"+generation+".dat");
+	}
+
+	private File getStringsFile(int generation) {
+		return new File(dir, "strings-"+generation+".dat");
+	}
+
+	/*
+	 * Records
+	 */
+
+	private long recordPosition(int id) {
+		return (long)id*RECORD_SIZE;
+	}
+
+	private byte getState(int id) {
+		return records.getByte(recordPosition(id)+RECORD_STATE);
+	}
+
+	private long getMailidRef(int id) {
+		return records.getLong(recordPosition(id)+RECORD_MAILID);
+	}
+
+	private int getNext(int id) {
+		return records.getInt(recordPosition(id)+RECORD_NEXT);
+	}
+
+	/**
+	 * Set the state of a linked record and update the pending count of its
+	 * mail.
+	 */
+	private void setState(int id, byte state) {
+		boolean wasPending = isPending(getState(id));
+		records.putByte(recordPosition(id)+RECORD_STATE, state);
+		if( wasPending != isPending(state) )
+			addPending(id, wasPending ? -1 : 1);
+	}
+
+	private boolean isPending(byte state) {
+		return ( state == DeliveryState.QUEUED.getStateId() || state == DeliveryState.IN_PROGRESS.getStateId() );
+	}
+
+	/**
+	 * Change the pending count in the first record of the mail.
+	 */
+	private void addPending(int id, int change) {
+		long position = recordPosition(findMailHead(getMailidRef(id)))+RECORD_PENDING;
+		records.putInt(position, records.getInt(position)+change);
+	}
+
+	/**
+	 * @return The state with the given id or null, if it is not a valid
+	 * state (for example {@link #STATE_FREE}).
+	 */
+	private DeliveryState getDeliveryState(byte stateId) {
+		for( DeliveryState state : DeliveryState.values() )
+		{
+			if( state.getStateId() == stateId )
+				return state;
+		}
+		return null;
+	}
+
+	private QueueInfo readQueueInfo(int id) {
+		long position = recordPosition(id);
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(readString(records.getLong(position+RECORD_MAILID)));
+		qi.setRecipient(readString(records.getLong(position+RECORD_RECIPIENT)));
+		qi.setExpiry(records.getLong(position+RECORD_EXPIRY));
+		qi.setAttempt(records.getLong(position+RECORD_ATTEMPT));
+		qi.setAttemptCount(records.getInt(position+RECORD_ATTEMPT_COUNT));
+		qi.setResultInfo(readString(records.getLong(position+RECORD_RESULT_INFO)));
+		qi.restoreState(getDeliveryState(getState(id)));
+		return qi;
+	}
+
+	private void setResultInfo(int id, String resultInfo) {
+		long position = recordPosition(id)+RECORD_RESULT_INFO;
+		long previousRef = records.getLong(position);
+		records.putLong(position, ( resultInfo != null ) ? intern(resultInfo) : 0);
+		if( previousRef != 0 )
+			release(previousRef);
+	}
+
+	private int allocateRecord() {
+		int id = header.getInt(HEADER_FREE_RECORD);
+		if( id != NONE )
+		{
+			header.putInt(HEADER_FREE_RECORD, getNext(id));
+		}
+		else
+		{
+			id = header.getInt(HEADER_RECORD_END);
+			header.putInt(HEADER_RECORD_END, id+1);
+		}
+		// A free record could contain references of a broken record.
+		for( int offset = 0; offset < RECORD_SIZE; offset += 8 )
+			records.putLong(recordPosition(id)+offset, 0);
+		header.putInt(HEADER_RECORD_COUNT, header.getInt(HEADER_RECORD_COUNT)+1);
+		return id;
+	}
+
+	private void freeRecord(int id) {
+		long position = recordPosition(id);
+		release(records.getLong(position+RECORD_MAILID));
+		release(records.getLong(position+RECORD_RECIPIENT));
+		setResultInfo(id, null);
+		recordsInProgress.remove(id);
+		records.putByte(position+RECORD_STATE, STATE_FREE);
+		records.putInt(position+RECORD_NEXT, header.getInt(HEADER_FREE_RECORD));
+		header.putInt(HEADER_FREE_RECORD, id);
+		header.putInt(HEADER_RECORD_COUNT, header.getInt(HEADER_RECORD_COUNT)-1);
+	}
+
+	/**
+	 * Add a new record or queue the existing one again like a new one. Call
+	 * only in locked state.
+	 */
+	private void addRecord(String mailid, String recipient, long expiry) throws IOException {
+		long mailidRef = intern(mailid);
+		long recipientRef = intern(recipient);
+		int id = findRecord(mailidRef, recipientRef);
+		if( id != NONE )
+		{
+			// Requeue the existing item like a new one.
+			release(mailidRef);
+			release(recipientRef);
+			removeFromHeap(id);
+			recordsInProgress.remove(id);
+		}
+		else
+		{
+			id = allocateRecord();
+			records.putLong(recordPosition(id)+RECORD_MAILID, mailidRef);
+			records.putLong(recordPosition(id)+RECORD_RECIPIENT, recipientRef);
+			records.putInt(recordPosition(id)+RECORD_HEAP_POSITION, NONE);
+			linkRecord(id);
+		}
+		records.putLong(recordPosition(id)+RECORD_EXPIRY, expiry);
+		records.putLong(recordPosition(id)+RECORD_ATTEMPT, 0);
+		records.putInt(recordPosition(id)+RECORD_ATTEMPT_COUNT, 0);
+		setResultInfo(id, null);
+		setState(id, (byte)DeliveryState.QUEUED.getStateId());
+		addToHeap(id);
+	}
+
+	/**
+	 * Put the record into the chain of its mail and into the recipient
+	 * indexes. The first record of a mail is in the mail index, the others
+	 * are chained after it. The record is not counted as pending.
+	 */
+	private void linkRecord(int id) throws IOException {
+		long mailidRef = getMailidRef(id);
+		long mailidHash = strings.getLong(mailidRef+STRING_HASH);
+		long recipientHash = strings.getLong(records.getLong(recordPosition(id)+RECORD_RECIPIENT)+STRING_HASH);
+		int head = findMailHead(mailidRef);
+		if( head == NONE )
+		{
+			records.putInt(recordPosition(id)+RECORD_NEXT, NONE);
+			records.putInt(recordPosition(id)+RECORD_PENDING, 0);
+			mailIndex.put(mailidHash, id);
+		}
+		else
+		{
+			records.putInt(recordPosition(id)+RECORD_NEXT, getNext(head));
+			records.putInt(recordPosition(head)+RECORD_NEXT, id);
+		}
+		recipientIndex.put(recipientKey(mailidHash, recipientHash), id);
+		addressIndex.put(recipientHash, id);
+	}
+
+	/**
+	 * Remove the record from the heap, from the pending count, from the
+	 * chain of its mail and from the indexes.
+	 */
+	private void unlinkRecord(int id) {
+		long mailidRef = getMailidRef(id);
+		long mailidHash = strings.getLong(mailidRef+STRING_HASH);
+		long recipientHash = strings.getLong(records.getLong(recordPosition(id)+RECORD_RECIPIENT)+STRING_HASH);
+		removeFromHeap(id);
+		if( isPending(getState(id)) )
+			addPending(id, -1);
+		recipientIndex.remove(recipientKey(mailidHash, recipientHash), id);
+		addressIndex.remove(recipientHash, id);
+		int head = findMailHead(mailidRef);
+		if( head == id )
+		{
+			mailIndex.remove(mailidHash, id);
+			if( getNext(id) != NONE )
+			{
+				// The next record becomes the first one.
+				records.putInt(recordPosition(getNext(id))+RECORD_PENDING, records.getInt(recordPosition(id)+RECORD_PENDING));
+				try {
+					mailIndex.put(mailidHash, getNext(id));
+				} catch (IOException ioe) {
+					throw new IllegalStateException("Mail index could not be extended.", ioe);
+				}
+			}
+			return;
+		}
+		for( int previous = head; previous != NONE; previous = getNext(previous) )
+		{
+			if( getNext(previous) == id )
+			{
+				records.putInt(recordPosition(previous)+RECORD_NEXT, getNext(id));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove all records of the mail.
+	 */
+	private void removeMail(int head) {
+		long mailidHash = strings.getLong(getMailidRef(head)+STRING_HASH);
+		mailIndex.remove(mailidHash, head);
+		int id = head;
+		while( id != NONE )
+		{
+			int next = getNext(id);
+			long recipientHash = strings.getLong(records.getLong(recordPosition(id)+RECORD_RECIPIENT)+STRING_HASH);
+			removeFromHeap(id);
+			recipientIndex.remove(recipientKey(mailidHash, recipientHash), id);
+			addressIndex.remove(recipientHash, id);
+			freeRecord(id);
+			id = next;
+		}
+	}
+
+	private boolean isMailCompleted(int head) {
+		return ( records.getInt(recordPosition(head)+RECORD_PENDING) == 0 );
+	}
+
+	private int findMailHead(long mailidRef) {
+		recordMatcher.mailidRef = mailidRef;
+		recordMatcher.recipientRef = 0;
+		return (int)mailIndex.find(strings.getLong(mailidRef+STRING_HASH), recordMatcher);
+	}
+
+	private int findRecord(String mailid, String recipient) {
+		if( closed )
+			return NONE;
+		long mailidRef = findString(mailid);
+		long recipientRef = findString(recipient);
+		if( mailidRef == 0 || recipientRef == 0 )
+			return NONE;
+		return findRecord(mailidRef, recipientRef);
+	}
+
+	private int findRecord(long mailidRef, long recipientRef) {
+		recordMatcher.mailidRef = mailidRef;
+		recordMatcher.recipientRef = recipientRef;
+		return (int)recipientIndex.find(recipientKey(strings.getLong(mailidRef+STRING_HASH), strings.getLong(recipientRef+STRING_HASH)), recordMatcher);
+	}
+
+	private long recipientKey(long mailidHash, long recipientHash) {
+		return mix(mailidHash*31+recipientHash);
+	}
+
+	/*
+	 * Heap of QUEUED records ordered by attempt time, then by record id.
+	 */
+
+	private void addToHeap(int id) {
+		int size = header.getInt(HEADER_HEAP_SIZE);
+		header.putInt(HEADER_HEAP_SIZE, size+1);
+		setHeapItem(size, id);
+		siftUp(size);
+		// The earliest attempt changed, the waiting threads recompute it.
+		if( heap.getInt(0) == id )
+			lock.notifyAll();
+	}
+
+	private void removeFromHeap(int id) {
+		int heapPosition = records.getInt(recordPosition(id)+RECORD_HEAP_POSITION);
+		if( heapPosition == NONE )
+			return;
+		records.putInt(recordPosition(id)+RECORD_HEAP_POSITION, NONE);
+		int size = header.getInt(HEADER_HEAP_SIZE)-1;
+		header.putInt(HEADER_HEAP_SIZE, size);
+		if( heapPosition == size )
+			return;
+		setHeapItem(heapPosition, heap.getInt((long)size*4));
+		siftDown(siftUp(heapPosition));
+	}
+
+	private int siftUp(int heapPosition) {
+		int id = heap.getInt((long)heapPosition*4);
+		while( 0 < heapPosition )
+		{
+			int parent = (heapPosition-1)/2;
+			int parentId = heap.getInt((long)parent*4);
+			if( !isEarlier(id, parentId) )
+				break;
+			setHeapItem(heapPosition, parentId);
+			heapPosition = parent;
+		}
+		setHeapItem(heapPosition, id);
+		return heapPosition;
+	}
+
+	private void siftDown(int heapPosition) {
+		int size = header.getInt(HEADER_HEAP_SIZE);
+		int id = heap.getInt((long)heapPosition*4);
+		while( true )
+		{
+			int child = heapPosition*2+1;
+			if( size <= child )
+				break;
+			int childId = heap.getInt((long)child*4);
+			if( child+1 < size && isEarlier(heap.getInt((long)(child+1)*4), childId) )
+			{
+				child++;
+				childId = heap.getInt((long)child*4);
+			}
+			if( !isEarlier(childId, id) )
+				break;
+			setHeapItem(heapPosition, childId);
+			heapPosition = child;
+		}
+		setHeapItem(heapPosition, id);
+	}
+
+	private void setHeapItem(int heapPosition, int id) {
+		heap.putInt((long)heapPosition*4, id);
+		records.putInt(recordPosition(id)+RECORD_HEAP_POSITION, heapPosition);
+	}
+
+	private boolean isEarlier(int id, int otherId) {
+		long attempt = records.getLong(recordPosition(id)+RECORD_ATTEMPT);
+		long otherAttempt = records.getLong(recordPosition(otherId)+RECORD_ATTEMPT);
+		if( attempt != otherAttempt )
+			return attempt < otherAttempt;
+		return id < otherId;
+	}
+
+	/*
+	 * Interned strings
+	 */
+
+	/**
+	 * @return The offset of the string with incremented reference count. A
+	 * new entry is appended if the string is not stored yet.
+	 */
+	private long intern(String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		long hash = hash(bytes);
+		long ref = stringIndex.find(hash, new StringMatcher(bytes));
+		if( ref != MappedLongIndex.NOT_FOUND )
+		{
+			strings.putInt(ref+STRING_REFERENCES, strings.getInt(ref+STRING_REFERENCES)+1);
+			return ref;
+		}
+		ref = header.getLong(HEADER_STRINGS_END);
+		strings.putInt(ref+STRING_REFERENCES, 1);
+		strings.putInt(ref+STRING_LENGTH, bytes.length);
+		strings.putLong(ref+STRING_HASH, hash);
+		strings.putLong(ref+STRING_FORWARD, 0);
+		strings.putBytes(ref+STRING_BYTES, bytes, bytes.length);
+		header.putLong(HEADER_STRINGS_END, ref+getStringEntrySize(bytes.length));
+		try {
+			stringIndex.put(hash, ref);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("String index could not be extended.", ioe);
+		}
+		return ref;
+	}
+
+	/**
+	 * Decrement the reference count of the string. The unused string is
+	 * removed from the index, its space is reclaimed by the compaction.
+	 */
+	private void release(long ref) {
+		if( ref == 0 )
+			return;
+		int references = strings.getInt(ref+STRING_REFERENCES)-1;
+		strings.putInt(ref+STRING_REFERENCES, references);
+		if( references == 0 )
+		{
+			stringIndex.remove(strings.getLong(ref+STRING_HASH), ref);
+			header.putLong(HEADER_STRING_GARBAGE, header.getLong(HEADER_STRING_GARBAGE)+getStringEntrySize(strings.getInt(ref+STRING_LENGTH)));
+		}
+	}
+
+	/**
+	 * @return The offset of the stored string or 0.
+	 */
+	private long findString(String value) {
+		if( value == null )
+			return 0;
+		byte[] bytes = value.getBytes(UTF8);
+		long ref = stringIndex.find(hash(bytes), new StringMatcher(bytes));
+		return ( ref != MappedLongIndex.NOT_FOUND ) ? ref : 0;
+	}
+
+	private String readString(long ref) {
+		if( ref == 0 )
+			return null;
+		int length = strings.getInt(ref+STRING_LENGTH);
+		byte[] bytes = new byte[length];
+		strings.getBytes(ref+STRING_BYTES, bytes, length);
+		return new String(bytes, UTF8);
+	}
+
+	private boolean isStringRef(long ref, long stringsEnd) {
+		return ( STRINGS_START <= ref && ref < stringsEnd && (ref & 7) == 0 );
+	}
+
+	private static int getStringEntrySize(int length) {
+		return (STRING_BYTES+length+7) & ~7;
+	}
+
+	/**
+	 * FNV-1a hash of the bytes, mixed for the open addressing index.
+	 */
+	private static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for( byte b : bytes )
+		{
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Matches records of the given mailid and recipient (any mailid or
+	 * recipient if its reference is 0). Used only in locked state.
+	 */
+	private class RecordMatcher implements MappedLongIndex.ValueMatcher {
+		private long mailidRef;
+		private long recipientRef;
+
+		@Override
+		public boolean matches(long value) {
+			long position = recordPosition((int)value);
+			return (
+					( mailidRef == 0 || records.getLong(position+RECORD_MAILID) == mailidRef ) &&
+					( recipientRef == 0 || records.getLong(position+RECORD_RECIPIENT) == recipientRef )
+			);
+		}
+	}
+
+	/**
+	 * Matches string entries with the given UTF-8 bytes.
+	 */
+	private class StringMatcher implements MappedLongIndex.ValueMatcher {
+		private final byte[] bytes;
+
+		StringMatcher(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public boolean matches(long value) {
+			if( strings.getInt(value+STRING_LENGTH) != bytes.length )
+				return false;
+			for( int i = 0; i < bytes.length; i++ )
+			{
+				if( strings.getByte(value+STRING_BYTES+i) != bytes[i] )
+					return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A growable file mapped into memory in fixed size chunks, so it could be
+ * greater than 2 GB. Values of a fixed size record never cross a chunk
+ * boundary, if the record size is a power of two. Byte arrays could cross
+ * them.</p>
+ *
+ * <p>The file is extended when a position after its end is written.</p>
+ */
+class MappedRegion {
+
+	static final int DEFAULT_CHUNK_BITS = 26;
+
+	private final int chunkBits;
+	private final int chunkSize;
+	private final int chunkMask;
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+	MappedRegion(File file) throws IOException {
+		this(file, DEFAULT_CHUNK_BITS);
+	}
+
+	/**
+	 * @param chunkBits The chunk size is 2^chunkBits bytes. Small files
+	 * should use small chunks, the file length is always a multiple of the
+	 * chunk size.
+	 */
+	MappedRegion(File file, int chunkBits) throws IOException {
+		this.chunkBits = chunkBits;
+		this.chunkSize = 1 << chunkBits;
+		this.chunkMask = chunkSize-1;
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		long length = randomAccessFile.length();
+		while( (long)chunks.size()*chunkSize < length )
+			mapChunk();
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	byte getByte(long position) {
+		return chunk(position).get((int)(position & chunkMask));
+	}
+
+	void putByte(long position, byte value) {
+		chunk(position).put((int)(position & chunkMask), value);
+	}
+
+	int getInt(long position) {
+		return chunk(position).getInt((int)(position & chunkMask));
+	}
+
+	void putInt(long position, int value) {
+		chunk(position).putInt((int)(position & chunkMask), value);
+	}
+
+	long getLong(long position) {
+		return chunk(position).getLong((int)(position & chunkMask));
+	}
+
+	void putLong(long position, long value) {
+		chunk(position).putLong((int)(position & chunkMask), value);
+	}
+
+	void getBytes(long position, byte[] bytes, int length) {
+		int done = 0;
+		while( done < length )
+		{
+			MappedByteBuffer chunk = chunk(position+done);
+			int offset = (int)((position+done) & chunkMask);
+			int count = Math.min(length-done, chunkSize-offset);
+			for( int i = 0; i < count; i++ )
+				bytes[done+i] = chunk.get(offset+i);
+			done += count;
+		}
+	}
+
+	void putBytes(long position, byte[] bytes, int length) {
+		int done = 0;
+		while( done < length )
+		{
+			MappedByteBuffer chunk = chunk(position+done);
+			int offset = (int)((position+done) & chunkMask);
+			int count = Math.min(length-done, chunkSize-offset);
+			for( int i = 0; i < count; i++ )
+				chunk.put(offset+i, bytes[done+i]);
+			done += count;
+		}
+	}
+
+	/**
+	 * Write the changed pages to the disk.
+	 */
+	void force() {
+		for( MappedByteBuffer chunk : chunks )
+			chunk.force();
+	}
+
+	/**
+	 * Close the file. The mapped memory is released by the garbage collector.
+	 */
+	void close() throws IOException {
+		force();
+		chunks.clear();
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	private MappedByteBuffer chunk(long position) {
+		int chunkIndex = (int)(position >>> chunkBits);
+		while( chunks.size() <= chunkIndex )
+		{
+			try {
+				mapChunk();
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Mapped file could not be extended: "+file.getAbsolutePath(), ioe);
+			}
+		}
+		return chunks.get(chunkIndex);
+	}
+
+	private void mapChunk() throws IOException {
+		chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)chunks.size()*chunkSize, chunkSize));
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * <p>Mutable recipient counters of a mail, used by the 
+ * {@link ProgressQueueStore} implementations. The counted states are 
+ * QUEUED (pending), SENT and FAILED, an IN_PROGRESS item is counted as 
+ * QUEUED. Not thread safe, use it in the locked state of the store.</p>
+ */
+class ProgressCounter {
+	private int pending = 0;
+	private int sent = 0;
+	private int failed = 0;
+	private int holds = 0;
+	
+	/**
+	 * @return The counted state of the given state.
+	 */
+	static DeliveryState countedState(DeliveryState state) {
+		return ( state == DeliveryState.IN_PROGRESS ) ? DeliveryState.QUEUED : state;
+	}
+	
+	/**
+	 * Move an item from the previous counted state to the next one. A null 
+	 * state means, that the item is not counted.
+	 */
+	void move(DeliveryState previous, DeliveryState next) {
+		if( previous == next )
+			return;
+		add(previous, -1);
+		add(next, 1);
+	}
+	
+	int getPending() {
+		return pending;
+	}
+	
+	/**
+	 * @return True, if there is no pending item and the completion is not 
+	 * held.
+	 */
+	boolean isCompleted() {
+		return pending == 0 && holds == 0;
+	}
+	
+	void hold() {
+		holds++;
+	}
+	
+	/**
+	 * @return True, if the completion was held.
+	 */
+	boolean unhold() {
+		if( holds == 0 )
+			return false;
+		holds--;
+		return true;
+	}
+	
+	boolean isHeld() {
+		return 0 < holds;
+	}
+	
+	DeliveryProgress toProgress(String mailid) {
+		return new DeliveryProgress(mailid, pending, sent, failed);
+	}
+	
+	private void add(DeliveryState state, int delta) {
+		if( state == null )
+			return;
+		switch( state )
+		{
+			case SENT:
+				sent += delta;
+				break;
+			case FAILED:
+				failed += delta;
+				break;
+			default:
+				pending += delta;
+				break;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.masukomi.aspirin.core.store.queue;
+
+/**
+ * <p>Extension of {@link QueueStore} for stores, which count the pending, 
+ * sent and failed recipients of every mail. The counters are updated in 
+ * {@link QueueStore#setSendingResult(QueueInfo)}, so the completion and the 
+ * progress of a mail are given back in constant time, without iterating 
+ * its recipients.</p>
+ * 
+ * <p>When the last pending recipient of a mail gets its final state, 
+ * setSendingResult() notifies the listeners about the completion, see 
+ * {@link org.masukomi.aspirin.core.listener.ListenerManager#notifyFinished(QueueInfo)}.
+ * The completion is decided in locked state of the store, when the counters 
+ * are updated, so it is notified once, even if the last recipients are 
+ * finished by parallel threads.</p>
+ */
+public interface ProgressQueueStore extends QueueStore {
+	/**
+	 * @param mailid The mail id of a message.
+	 * @return The recipient counts of the mail or null, if the mail is not 
+	 * in the store.
+	 */
+	public DeliveryProgress getProgress(String mailid);
+	
+	/**
+	 * Hold the completion of a mail, while its recipients are being added. 
+	 * The mail is not completed, even if every queued recipient is 
+	 * finished, until the hold is released.
+	 * @param mailid The mail id of a message.
+	 */
+	public void holdCompletion(String mailid);
+	
+	/**
+	 * Release a hold of {@link #holdCompletion(String)}. The completion is 
+	 * decided in the same locked state, so it is notified once: either by 
+	 * the caller, if this method gives back true, or by the sending result 
+	 * of the last pending recipient.
+	 * @param mailid The mail id of a message.
+	 * @return True, if the mail is completed by releasing the hold: it has 
+	 * no pending recipient and no other hold.
+	 */
+	public boolean releaseCompletion(String mailid);
+}
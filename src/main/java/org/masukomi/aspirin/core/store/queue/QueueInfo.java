@@ -19,6 +19,7 @@ public class QueueInfo {
 	
 	private transient boolean notifiedAlready = false;
 	private transient String complexId = null;
+	private transient String recipientDomain = null;
 	
 	public String getComplexId() {
 		if( complexId == null )
@@ -37,6 +38,16 @@ public class QueueInfo {
 	}
 	public void setRecipient(String recipient) {
 		this.recipient = recipient;
+		this.recipientDomain = null;
+	}
+	/**
+	 * @return The lower case domain part of the recipient address. The 
+	 * recipients in the same domain have the same mail servers.
+	 */
+	public String getRecipientDomain() {
+		if( recipientDomain == null && recipient != null )
+			recipientDomain = recipient.substring(recipient.lastIndexOf("@")+1).toLowerCase();
+		return recipientDomain;
 	}
 	public String getResultInfo() {
 		return resultInfo;
@@ -87,6 +98,17 @@ public class QueueInfo {
 		}
 	}
 	
+	/**
+	 * Set the state of a recovered item without notifying AspirinListeners, 
+	 * they were notified before the restart. Used by persistent stores.
+	 * 
+	 * @param state The recovered state.
+	 */
+	void restoreState(DeliveryState state) {
+		this.state = state;
+		this.notifiedAlready = !hasState(DeliveryState.QUEUED, DeliveryState.IN_PROGRESS);
+	}
+	
 	public boolean hasState(DeliveryState... states) {
 		for( DeliveryState st : states )
 		{
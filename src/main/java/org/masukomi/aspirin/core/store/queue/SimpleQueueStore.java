@@ -6,10 +6,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
@@ -18,16 +20,28 @@ import org.masukomi.aspirin.core.AspirinInternal;
 
 
 /**
+ * <p>The pending, sent and failed recipients of every mail are counted, 
+ * when they are added and when their sending result is set, so 
+ * {@link #isCompleted(String)} does not iterate the recipients, and the 
+ * completion of a mail is notified by the sending result of its last 
+ * pending recipient.</p>
+ * 
+ * <p>The QUEUED recipients are indexed by mailid and recipient domain, so 
+ * {@link #nextCoRecipients(QueueInfo, int)} takes them without iterating the 
+ * other recipients of the mail.</p>
  * 
  * @author Laszlo Solova
  *
  */
-public class SimpleQueueStore implements QueueStore {
+public class SimpleQueueStore implements GroupingQueueStore, BulkQueueStore, ProgressQueueStore {
 	
 	private List<QueueInfo> queueInfoList = new LinkedList<QueueInfo>();
 	private Map<String, QueueInfo> queueInfoByMailidAndRecipient = new HashMap<String, QueueInfo>();
 	private Map<String, List<QueueInfo>> queueInfoByMailid = new HashMap<String, List<QueueInfo>>();
 	private Map<String, List<QueueInfo>> queueInfoByRecipient = new HashMap<String, List<QueueInfo>>();
+	private Map<String, Set<QueueInfo>> queuedByMailidAndDomain = new HashMap<String, Set<QueueInfo>>();
+	private Map<String, ProgressCounter> counterByMailid = new HashMap<String, ProgressCounter>();
+	private Map<String, DeliveryState> countedStateByMailidAndRecipient = new HashMap<String, DeliveryState>();
 	private Object lock = new Object();
 	private Comparator<QueueInfo> queueInfoComparator = new Comparator<QueueInfo>() {
 		@Override
@@ -46,19 +60,7 @@ public class SimpleQueueStore implements QueueStore {
 				queueInfo.setMailid(mailid);
 				queueInfo.setRecipient(recipient.getAddress());
 				synchronized (lock) {
-					
-					queueInfoList.add(queueInfo);
-					
-					queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(),queueInfo.getRecipient()), queueInfo);
-					
-					if( !queueInfoByMailid.containsKey(queueInfo.getMailid()) )
-						queueInfoByMailid.put(queueInfo.getMailid(), new ArrayList<QueueInfo>());
-					queueInfoByMailid.get(queueInfo.getMailid()).add(queueInfo);
-					
-					if( !queueInfoByRecipient.containsKey(queueInfo.getRecipient()) )
-						queueInfoByRecipient.put(queueInfo.getRecipient(), new ArrayList<QueueInfo>());
-					queueInfoByRecipient.get(queueInfo.getRecipient()).add(queueInfo);
-					
+					insert(queueInfo);
 				}
 			}
 		} catch (Exception e) {
@@ -66,6 +68,18 @@ public class SimpleQueueStore implements QueueStore {
 		}
 	}
 	
+	@Override
+	public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+		try {
+			synchronized (lock) {
+				for( QueueInfo queueInfo : queueInfos )
+					insert(queueInfo);
+			}
+		} catch (Exception e) {
+			throw new MessagingException("Message queueing failed.", e);
+		}
+	}
+	
 	@Override
 	public List<String> clean() {
 		List<String> mailidList = null;
@@ -111,16 +125,43 @@ public class SimpleQueueStore implements QueueStore {
 	
 	@Override
 	public boolean isCompleted(String mailid) {
-		List<QueueInfo> qibmList = queueInfoByMailid.get(mailid);
-		if( qibmList != null )
-		{
-			for( QueueInfo sqi : qibmList )
+		synchronized (lock) {
+			ProgressCounter counter = counterByMailid.get(mailid);
+			return ( counter == null || counter.isCompleted() );
+		}
+	}
+	
+	@Override
+	public DeliveryProgress getProgress(String mailid) {
+		synchronized (lock) {
+			ProgressCounter counter = counterByMailid.get(mailid);
+			return ( counter != null ) ? counter.toProgress(mailid) : null;
+		}
+	}
+	
+	@Override
+	public void holdCompletion(String mailid) {
+		synchronized (lock) {
+			ProgressCounter counter = counterByMailid.get(mailid);
+			if( counter == null )
 			{
-				if( sqi.hasState(DeliveryState.IN_PROGRESS, DeliveryState.QUEUED) )
-					return false;
+				counter = new ProgressCounter();
+				counterByMailid.put(mailid, counter);
 			}
+			counter.hold();
+		}
+	}
+	
+	@Override
+	public boolean releaseCompletion(String mailid) {
+		synchronized (lock) {
+			ProgressCounter counter = counterByMailid.get(mailid);
+			if( counter == null || !counter.unhold() || !counter.isCompleted() )
+				return false;
+			if( !queueInfoByMailid.containsKey(mailid) )
+				counterByMailid.remove(mailid);
+			return true;
 		}
-		return true;
 	}
 	
 	@Override
@@ -144,6 +185,7 @@ public class SimpleQueueStore implements QueueStore {
 						else
 						{	
 							qi.setState(DeliveryState.IN_PROGRESS);
+							unindexQueued(qi);
 							return qi;
 						}
 					}
@@ -153,16 +195,51 @@ public class SimpleQueueStore implements QueueStore {
 		return null;
 	}
 	
+	@Override
+	public List<QueueInfo> nextCoRecipients(QueueInfo qi, int maxCount) {
+		List<QueueInfo> coRecipients = new ArrayList<QueueInfo>();
+		synchronized (lock) {
+			String domainKey = createDomainKey(qi);
+			Set<QueueInfo> queuedSet = queuedByMailidAndDomain.get(domainKey);
+			if( queuedSet != null )
+			{
+				Iterator<QueueInfo> queuedIt = queuedSet.iterator();
+				while( queuedIt.hasNext() && coRecipients.size() < maxCount )
+				{
+					QueueInfo sqi = queuedIt.next();
+					// The state could be changed on the item itself.
+					if( !sqi.hasState(DeliveryState.QUEUED) )
+					{
+						queuedIt.remove();
+						continue;
+					}
+					if( sqi != qi && sqi.isSendable() && sqi.isInTimeBounds() )
+					{
+						queuedIt.remove();
+						sqi.setState(DeliveryState.IN_PROGRESS);
+						coRecipients.add(sqi);
+					}
+				}
+				if( queuedSet.isEmpty() )
+					queuedByMailidAndDomain.remove(domainKey);
+			}
+		}
+		return coRecipients;
+	}
+	
 	@Override
 	public void remove(String mailid) {
 		synchronized (lock) {
+			counterByMailid.remove(mailid);
 			List<QueueInfo> removeableQueueInfos = queueInfoByMailid.remove(mailid);
 			if( removeableQueueInfos != null )
 			{
 				for( QueueInfo sqi : removeableQueueInfos )
 				{
 					queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
+					countedStateByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
 					queueInfoByRecipient.get(sqi.getRecipient()).remove(sqi);
+					unindexQueued(sqi);
 				}
 			}
 		}
@@ -178,6 +255,8 @@ public class SimpleQueueStore implements QueueStore {
 				{
 					queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
 					queueInfoByMailid.get(sqi.getMailid()).remove(sqi);
+					unindexQueued(sqi);
+					count(sqi, null);
 				}
 			}
 		}
@@ -185,6 +264,7 @@ public class SimpleQueueStore implements QueueStore {
 
 	@Override
 	public void setSendingResult(QueueInfo qi) {
+		QueueInfo finishedQueueInfo = null;
 		synchronized (lock) {
 			QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
 			if( uniqueQueueInfo != null )
@@ -192,8 +272,17 @@ public class SimpleQueueStore implements QueueStore {
 				uniqueQueueInfo.setAttempt(System.currentTimeMillis()+AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
 				uniqueQueueInfo.incAttemptCount();
 				uniqueQueueInfo.setState(qi.getState());
+				if( uniqueQueueInfo.hasState(DeliveryState.QUEUED) )
+					indexQueued(uniqueQueueInfo);
+				else
+					unindexQueued(uniqueQueueInfo);
+				if( count(uniqueQueueInfo, ProgressCounter.countedState(uniqueQueueInfo.getState())) )
+					finishedQueueInfo = uniqueQueueInfo;
 			}
 		}
+		// Called without the lock, unless the caller holds it (next()).
+		if( finishedQueueInfo != null && AspirinInternal.getListenerManager() != null )
+			AspirinInternal.getListenerManager().notifyFinished(finishedQueueInfo);
 	}
 	
 	@Override
@@ -201,8 +290,87 @@ public class SimpleQueueStore implements QueueStore {
 		return queueInfoByMailid.size();
 	}
 	
+	/**
+	 * Move the item to the given counted state in the counters of its mail.
+	 * A null state removes it from the counters. Call only in locked state.
+	 * @return True, if the mail is completed by this change.
+	 */
+	private boolean count(QueueInfo queueInfo, DeliveryState counted) {
+		String searchKey = createSearchKey(queueInfo.getMailid(), queueInfo.getRecipient());
+		DeliveryState previous = ( counted != null ) ? countedStateByMailidAndRecipient.put(searchKey, counted) : countedStateByMailidAndRecipient.remove(searchKey);
+		ProgressCounter counter = counterByMailid.get(queueInfo.getMailid());
+		if( counter == null && counted == null )
+			return false;
+		if( counter == null )
+		{
+			counter = new ProgressCounter();
+			counterByMailid.put(queueInfo.getMailid(), counter);
+		}
+		boolean completed = counter.isCompleted();
+		counter.move(previous, counted);
+		return ( !completed && counter.isCompleted() );
+	}
+	
+	/**
+	 * Call only in locked state.
+	 */
+	private void insert(QueueInfo queueInfo) {
+		queueInfoList.add(queueInfo);
+		
+		queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(),queueInfo.getRecipient()), queueInfo);
+		
+		if( !queueInfoByMailid.containsKey(queueInfo.getMailid()) )
+			queueInfoByMailid.put(queueInfo.getMailid(), new ArrayList<QueueInfo>());
+		queueInfoByMailid.get(queueInfo.getMailid()).add(queueInfo);
+		
+		if( !queueInfoByRecipient.containsKey(queueInfo.getRecipient()) )
+			queueInfoByRecipient.put(queueInfo.getRecipient(), new ArrayList<QueueInfo>());
+		queueInfoByRecipient.get(queueInfo.getRecipient()).add(queueInfo);
+		
+		if( queueInfo.hasState(DeliveryState.QUEUED) )
+			indexQueued(queueInfo);
+		
+		count(queueInfo, ProgressCounter.countedState(queueInfo.getState()));
+	}
+	
+	/**
+	 * Call only in locked state.
+	 */
+	private void indexQueued(QueueInfo queueInfo) {
+		String domainKey = createDomainKey(queueInfo);
+		Set<QueueInfo> queuedSet = queuedByMailidAndDomain.get(domainKey);
+		if( queuedSet == null )
+		{
+			queuedSet = new LinkedHashSet<QueueInfo>();
+			queuedByMailidAndDomain.put(domainKey, queuedSet);
+		}
+		queuedSet.add(queueInfo);
+	}
+	
+	/**
+	 * Call only in locked state.
+	 */
+	private void unindexQueued(QueueInfo queueInfo) {
+		String domainKey = createDomainKey(queueInfo);
+		Set<QueueInfo> queuedSet = queuedByMailidAndDomain.get(domainKey);
+		if( queuedSet != null )
+		{
+			queuedSet.remove(queueInfo);
+			if( queuedSet.isEmpty() )
+				queuedByMailidAndDomain.remove(domainKey);
+		}
+	}
+	
 	private String createSearchKey(String mailid, String recipient) {
 		return mailid+"-"+recipient;
 	}
+	
+	/**
+	 * The domain has no '@' character, so the key could not be the same for 
+	 * other mailid and domain.
+	 */
+	private String createDomainKey(QueueInfo queueInfo) {
+		return queueInfo.getRecipientDomain()+"@"+queueInfo.getMailid();
+	}
 
 }
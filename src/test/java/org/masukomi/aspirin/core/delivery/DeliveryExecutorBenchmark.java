@@ -0,0 +1,65 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>Manual benchmark of the dispatch overhead of delivery executors. It is 
+ * not a unit test, run the main() method. The tasks do nothing, so the 
+ * measured time is the cost of handing over a task to a delivery thread and 
+ * getting the thread back.</p>
+ * 
+ */
+public class DeliveryExecutorBenchmark {
+	
+	private static final int TASK_COUNT = 200000;
+	
+	public static void main(String[] args) throws Exception {
+		for( int round = 0; round < 3; round++ )
+		{
+			measure(new PooledDeliveryExecutor());
+			measure(new ThreadPoolDeliveryExecutor());
+		}
+	}
+	
+	private static void measure(DeliveryExecutor executor) throws Exception {
+		executor.init();
+		CountDownLatch finished = new CountDownLatch(TASK_COUNT);
+		int rejected = 0;
+		long start = System.nanoTime();
+		for( int i = 0; i < TASK_COUNT; i++ )
+		{
+			try {
+				executor.execute(new EmptyTask(finished));
+			} catch (RejectedExecutionException ree) {
+				rejected++;
+				finished.countDown();
+			}
+		}
+		finished.await();
+		long elapsed = System.nanoTime()-start;
+		executor.shutdown();
+		System.out.println(executor.getClass().getSimpleName()+" tasks="+TASK_COUNT+
+				" rejected="+rejected+" dispatch="+(elapsed/TASK_COUNT)+" ns/task");
+	}
+	
+	private static class EmptyTask extends DeliveryTask {
+		private CountDownLatch finished;
+		
+		EmptyTask(CountDownLatch finished) {
+			super(null);
+			this.finished = finished;
+		}
+		
+		@Override
+		public void run() {
+			finished.countDown();
+		}
+		
+		@Override
+		public void release() {
+			// Nothing to release
+		}
+	}
+
+}
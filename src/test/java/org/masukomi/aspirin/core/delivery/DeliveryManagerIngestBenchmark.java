@@ -0,0 +1,83 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.queue.ConcurrentQueueStore;
+import org.masukomi.aspirin.core.store.queue.IndexedQueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Manual benchmark of the mail ingest rate. It is not a unit test, run the 
+ * main() method. The same messages are added to a not started delivery 
+ * manager one by one with add() and in batches with addAll(), so nothing is 
+ * delivered. The DNS prefetching is switched off.</p>
+ * 
+ */
+public class DeliveryManagerIngestBenchmark {
+	
+	private static final int MESSAGES = 100000;
+	private static final int RECIPIENTS_PER_MESSAGE = 2;
+	private static final int BATCH_SIZE = 10000;
+	
+	public static void main(String[] args) throws Exception {
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(0);
+		List<MimeMessage> messages = new ArrayList<MimeMessage>(MESSAGES);
+		for( int i = 0; i < MESSAGES; i++ )
+		{
+			MimeMessage message = AspirinInternal.createNewMimeMessage();
+			message.setFrom(new InternetAddress("sender@example.com"));
+			for( int r = 0; r < RECIPIENTS_PER_MESSAGE; r++ )
+				message.addRecipient(RecipientType.TO, new InternetAddress("user"+i+"."+r+"@example.com"));
+			message.setSubject("Benchmark "+i);
+			message.setText("Benchmark message "+i);
+			message.saveChanges();
+			messages.add(message);
+		}
+		String[] queueStoreClassNames = new String[]{
+				SimpleQueueStore.class.getCanonicalName(),
+				IndexedQueueStore.class.getCanonicalName(),
+				ConcurrentQueueStore.class.getCanonicalName()
+		};
+		for( int round = 0; round < 2; round++ )
+		{
+			for( String queueStoreClassName : queueStoreClassNames )
+			{
+				measure(queueStoreClassName, messages, false);
+				measure(queueStoreClassName, messages, true);
+			}
+		}
+	}
+	
+	private static void measure(String queueStoreClassName, List<MimeMessage> messages, boolean bulk) throws Exception {
+		// Fresh stores for every measurement
+		AspirinInternal.getConfiguration().setMailStoreClassName(SimpleMailStore.class.getCanonicalName());
+		AspirinInternal.getConfiguration().setQueueStoreClassName(queueStoreClassName);
+		DeliveryManager deliveryManager = new DeliveryManager();
+		long start = System.nanoTime();
+		if( bulk )
+		{
+			for( int from = 0; from < messages.size(); from += BATCH_SIZE )
+				deliveryManager.addAll(messages.subList(from, Math.min(messages.size(), from+BATCH_SIZE)));
+		}
+		else
+		{
+			for( MimeMessage message : messages )
+				deliveryManager.add(message);
+		}
+		long elapsed = System.nanoTime()-start;
+		int queueSize = AspirinInternal.getConfiguration().getQueueStore().size();
+		deliveryManager.shutdown();
+		System.out.println(queueStoreClassName.substring(queueStoreClassName.lastIndexOf('.')+1)+
+				( bulk ? " addAll(batch="+BATCH_SIZE+")" : " add()" )+
+				" messages="+messages.size()+" ingest="+(messages.size()*1000000000L/Math.max(1, elapsed))+" messages/s"+
+				" (queued mails="+queueSize+")");
+	}
+	
+}
@@ -0,0 +1,259 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.listener.AspirinListener;
+import org.masukomi.aspirin.core.listener.ResultState;
+import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.mail.WriteBehindMailStore;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+import org.masukomi.aspirin.core.store.queue.QueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+/**
+ * <p>Test of the delivery manager without starting the delivery. The items
+ * are taken and released by the test itself.</p>
+ *
+ */
+public class DeliveryManagerTest {
+
+	@Test
+	public void streamedMailIsFinishedIfDeliveryBeatsTheStream() throws Exception {
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(0);
+		final DeliveryManager deliveryManager = AspirinInternal.getDeliveryManager();
+		final QueueStore queueStore = AspirinInternal.getConfiguration().getQueueStore();
+		final List<String> finishedMailids = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> finishedRecipients = Collections.synchronizedList(new ArrayList<String>());
+		AspirinListener listener = new AspirinListener() {
+			@Override
+			public void delivered(String mailId, String recipient, ResultState state, String resultContent) {
+				if( state == ResultState.FINISHED )
+				{
+					finishedMailids.add(mailId);
+					finishedRecipients.add(recipient);
+				}
+			}
+		};
+		AspirinInternal.addListener(listener);
+		try {
+			final String mailid = "streamed.1";
+			MimeMessage message = AspirinInternal.createNewMimeMessage();
+			message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+			message.setFrom(new InternetAddress("sender@example.com"));
+			message.setSubject("Streamed");
+			message.setText("Streamed message");
+			message.saveChanges();
+			// The iterator ends after the first chunk is queued and delivered.
+			Iterator<InternetAddress> recipients = new Iterator<InternetAddress>() {
+				private int count = 0;
+				private boolean delivered = false;
+				@Override
+				public boolean hasNext() {
+					if( 0 < count && !delivered && queueStore.getNextAttempt(mailid, "user0@example.com") != -1 )
+					{
+						QueueInfo qi;
+						while( (qi = queueStore.next()) != null )
+						{
+							qi.setState(DeliveryState.SENT);
+							deliveryManager.release(qi);
+						}
+						delivered = true;
+					}
+					return !delivered;
+				}
+				@Override
+				public InternetAddress next() {
+					try {
+						return new InternetAddress("user"+(count++)+"@example.com");
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+			Assert.assertEquals(mailid, deliveryManager.add(message, recipients));
+
+			long deadline = System.currentTimeMillis()+10000;
+			while( !finishedMailids.contains(mailid) && System.currentTimeMillis() < deadline )
+				Thread.sleep(10);
+			Thread.sleep(100);
+			Assert.assertEquals(1, Collections.frequency(finishedMailids, mailid));
+			Assert.assertNull(finishedRecipients.get(finishedMailids.indexOf(mailid)));
+			Assert.assertNull(deliveryManager.getProgress(mailid));
+		} finally {
+			AspirinInternal.removeListener(listener);
+		}
+	}
+
+	@Test
+	public void failedStreamIsRemovedWithoutFinishing() throws Exception {
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(0);
+		DeliveryManager deliveryManager = AspirinInternal.getDeliveryManager();
+		Configuration configuration = AspirinInternal.getConfiguration();
+		QueueStore queueStore = configuration.getQueueStore();
+		MailStore previousMailStore = configuration.getMailStore();
+		boolean previousSync = configuration.isMailStoreWriteBehindSync();
+		final List<String> finishedMailids = Collections.synchronizedList(new ArrayList<String>());
+		AspirinListener listener = new AspirinListener() {
+			@Override
+			public void delivered(String mailId, String recipient, ResultState state, String resultContent) {
+				if( state == ResultState.FINISHED )
+					finishedMailids.add(mailId);
+			}
+		};
+		AspirinInternal.addListener(listener);
+		try {
+			// The iterator fails after the first chunk is queued.
+			Iterator<InternetAddress> failingRecipients = new Iterator<InternetAddress>() {
+				private int count = 0;
+				@Override
+				public boolean hasNext() {
+					if( count == 1500 )
+						throw new IllegalStateException("Test failure");
+					return true;
+				}
+				@Override
+				public InternetAddress next() {
+					try {
+						return new InternetAddress("user"+(count++)+"@example.com");
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+			try {
+				deliveryManager.add(message("failed.1"), failingRecipients);
+				Assert.fail("Failed stream was added.");
+			} catch (IllegalStateException ise) {
+				// Expected
+			}
+			Assert.assertEquals(-1, queueStore.getNextAttempt("failed.1", "user0@example.com"));
+			Assert.assertNull(configuration.getMailStore().get("failed.1"));
+
+			// The message could not be stored by a closed store.
+			WriteBehindMailStore closedStore = new WriteBehindMailStore(new SimpleMailStore());
+			closedStore.init();
+			closedStore.close();
+			configuration.setMailStoreWriteBehindSync(true);
+			configuration.setMailStore(closedStore);
+			try {
+				deliveryManager.add(message("failed.2"), Collections.singletonList(new InternetAddress("user@example.com")).iterator());
+				Assert.fail("Unstored stream was added.");
+			} catch (MessagingException me) {
+				// Expected
+			}
+			Assert.assertEquals(-1, queueStore.getNextAttempt("failed.2", "user@example.com"));
+
+			Thread.sleep(500);
+			Assert.assertTrue(finishedMailids.isEmpty());
+		} finally {
+			AspirinInternal.removeListener(listener);
+			configuration.setMailStore(previousMailStore);
+			configuration.setMailStoreWriteBehindSync(previousSync);
+		}
+	}
+
+	@Test
+	public void failedBatchIsRolledBack() throws Exception {
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(0);
+		DeliveryManager deliveryManager = AspirinInternal.getDeliveryManager();
+		Configuration configuration = AspirinInternal.getConfiguration();
+		MailStore previousMailStore = configuration.getMailStore();
+		QueueStore previousQueueStore = configuration.getQueueStore();
+		final boolean[] queueFailing = new boolean[1];
+		SimpleMailStore mailStore = new SimpleMailStore() {
+			@Override
+			public Set<String> setAll(Map<String, MimeMessage> messages) {
+				Set<String> failedMailids = new HashSet<String>(super.setAll(messages));
+				if( !queueFailing[0] )
+				{
+					super.remove("batch.2");
+					failedMailids.add("batch.2");
+				}
+				return failedMailids;
+			}
+		};
+		SimpleQueueStore queueStore = new SimpleQueueStore() {
+			@Override
+			public void addAll(List<QueueInfo> queueInfos) throws MessagingException {
+				super.addAll(queueInfos.subList(0, 1));
+				if( queueFailing[0] )
+					throw new MessagingException("Test failure");
+				super.addAll(queueInfos.subList(1, queueInfos.size()));
+			}
+		};
+		configuration.setMailStore(mailStore);
+		configuration.setQueueStore(queueStore);
+		try {
+			List<MimeMessage> messages = new ArrayList<MimeMessage>();
+			for( int i = 1; i <= 3; i++ )
+				messages.add(message("batch."+i));
+			for( int attempt = 0; attempt < 2; attempt++ )
+			{
+				// The message store fails first, then the queue store.
+				queueFailing[0] = ( attempt == 1 );
+				try {
+					deliveryManager.addAll(messages);
+					Assert.fail("Failed batch was added.");
+				} catch (MessagingException me) {
+					// Expected
+				}
+				Assert.assertTrue(mailStore.getMailIds().isEmpty());
+				Assert.assertEquals(0, queueStore.size());
+			}
+
+			// A mail added before with a mail id of the batch is kept.
+			MimeMessage earlierMessage = message("batch.3");
+			earlierMessage.setHeader("To", "earlier@example.com");
+			deliveryManager.add(earlierMessage);
+			try {
+				deliveryManager.addAll(messages);
+				Assert.fail("Failed batch was added.");
+			} catch (MessagingException me) {
+				// Expected
+			}
+			Assert.assertEquals(Collections.singletonList("batch.3"), mailStore.getMailIds());
+			Assert.assertEquals(1, queueStore.size());
+			Assert.assertTrue(queueStore.getNextAttempt("batch.3", "earlier@example.com") != -1);
+		} finally {
+			configuration.setMailStore(previousMailStore);
+			configuration.setQueueStore(previousQueueStore);
+		}
+	}
+
+	private static MimeMessage message(String mailid) throws Exception {
+		MimeMessage message = AspirinInternal.createNewMimeMessage();
+		message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setHeader("To", "user@example.com");
+		message.setSubject("Batch");
+		message.setText("Batch message");
+		message.saveChanges();
+		return message;
+	}
+
+}
@@ -0,0 +1,161 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.URLName;
+
+/**
+ * <p>Minimal SMTP server on the loopback interface for the connection tests.
+ * It accepts every command and records the envelope senders.</p>
+ *
+ * <p>The RSET command could be set to fail, or to close the connection
+ * after a successful answer, like a server closing an idle connection.</p>
+ *
+ */
+class FakeSmtpServer {
+
+	static final int RSET_OK = 0;
+	static final int RSET_FAIL = 1;
+	static final int RSET_CLOSE = 2;
+
+	private final ServerSocket serverSocket;
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger resetCount = new AtomicInteger();
+	private final List<String> senders = new CopyOnWriteArrayList<String>();
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+	private volatile int resetMode = RSET_OK;
+
+	FakeSmtpServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread("FakeSmtpServer") {
+			@Override
+			public void run() {
+				while( !serverSocket.isClosed() )
+				{
+					try {
+						final Socket socket = serverSocket.accept();
+						sockets.add(socket);
+						connectionCount.incrementAndGet();
+						Thread handler = new Thread("FakeSmtpServer-"+connectionCount.get()) {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						};
+						handler.setDaemon(true);
+						handler.start();
+					} catch (IOException ioe) {
+						// Closed
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	URLName getUrl() {
+		return new URLName("smtp://127.0.0.1:"+serverSocket.getLocalPort());
+	}
+
+	int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	int getResetCount() {
+		return resetCount.get();
+	}
+
+	List<String> getSenders() {
+		return senders;
+	}
+
+	void setResetMode(int resetMode) {
+		this.resetMode = resetMode;
+	}
+
+	void close() throws IOException {
+		serverSocket.close();
+		for( Socket socket : sockets )
+			socket.close();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			OutputStream out = socket.getOutputStream();
+			reply(out, "220 localhost ESMTP");
+			String line;
+			while( (line = in.readLine()) != null )
+			{
+				String command = line.toUpperCase();
+				if( command.startsWith("EHLO") || command.startsWith("HELO") )
+				{
+					reply(out, "250 localhost");
+				}
+				else
+				if( command.startsWith("MAIL FROM:") )
+				{
+					senders.add(line.substring("MAIL FROM:".length()).trim());
+					reply(out, "250 OK");
+				}
+				else
+				if( command.startsWith("DATA") )
+				{
+					reply(out, "354 Go ahead");
+					while( (line = in.readLine()) != null && !line.equals(".") )
+					{
+						// Message content is dropped
+					}
+					reply(out, "250 OK");
+				}
+				else
+				if( command.startsWith("RSET") )
+				{
+					resetCount.incrementAndGet();
+					if( resetMode == RSET_FAIL )
+					{
+						reply(out, "421 Closing");
+						break;
+					}
+					reply(out, "250 OK");
+					if( resetMode == RSET_CLOSE )
+						break;
+				}
+				else
+				if( command.startsWith("QUIT") )
+				{
+					reply(out, "221 Bye");
+					break;
+				}
+				else
+				{
+					reply(out, "250 OK");
+				}
+			}
+		} catch (IOException ioe) {
+			// Connection closed by the client
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				// Nothing to do
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String line) throws IOException {
+		out.write((line+"\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+}
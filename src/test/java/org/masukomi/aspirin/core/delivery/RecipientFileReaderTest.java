@@ -0,0 +1,51 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the recipient list file reader used by streaming enqueue.</p>
+ *
+ */
+public class RecipientFileReaderTest {
+
+	@Test
+	public void commentsEmptyLinesAndInvalidAddressesAreSkipped() throws Exception {
+		File recipientFile = File.createTempFile("aspirin-recipients", ".txt");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(recipientFile), "UTF-8");
+			writer.write("# Newsletter\n");
+			writer.write("a@example.com\n");
+			writer.write("\n");
+			writer.write("  b@example.com  \n");
+			writer.write("not an address\n");
+			writer.write("c@example.com");
+			writer.close();
+
+			RecipientFileReader reader = new RecipientFileReader(recipientFile);
+			List<String> recipients = new ArrayList<String>();
+			while( reader.hasNext() )
+			{
+				// hasNext() does not skip recipients if it is called again
+				Assert.assertTrue(reader.hasNext());
+				recipients.add(reader.next().getAddress());
+			}
+			reader.close();
+			Assert.assertNull(reader.getFailure());
+			Assert.assertEquals(3, recipients.size());
+			Assert.assertEquals("a@example.com", recipients.get(0));
+			Assert.assertEquals("b@example.com", recipients.get(1));
+			Assert.assertEquals("c@example.com", recipients.get(2));
+		} finally {
+			recipientFile.delete();
+		}
+	}
+
+}
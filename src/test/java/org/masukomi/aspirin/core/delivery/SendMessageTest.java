@@ -0,0 +1,70 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.Arrays;
+
+import javax.mail.URLName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+/**
+ * <p>Test of the sending on pooled connections against local fake
+ * servers.</p>
+ *
+ */
+public class SendMessageTest {
+
+	private int previousMessagesMax;
+	private FakeSmtpServer primary;
+	private FakeSmtpServer secondary;
+
+	@Before
+	public void startServers() throws Exception {
+		previousMessagesMax = AspirinInternal.getConfiguration().getDeliveryConnectionMessagesMax();
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(10);
+		SmtpConnectionPoolTest.useSmtpTransport();
+		primary = new FakeSmtpServer();
+		secondary = new FakeSmtpServer();
+	}
+
+	@After
+	public void stopServers() throws Exception {
+		primary.close();
+		secondary.close();
+		AspirinInternal.getConfiguration().getMailSession().getProperties().remove("mail.smtp.class");
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(previousMessagesMax);
+	}
+
+	@Test
+	public void staleConnectionIsRetriedOnSameServer() throws Exception {
+		send("stale.1");
+		Assert.assertEquals(1, primary.getConnectionCount());
+
+		// The server answers the check, but closes the connection after it.
+		primary.setResetMode(FakeSmtpServer.RSET_CLOSE);
+		DeliveryContext dCtx = send("stale.2");
+		Assert.assertEquals(DeliveryState.SENT, dCtx.getContextVariable("newstate"));
+		Assert.assertEquals(2, primary.getConnectionCount());
+		Assert.assertEquals(2, primary.getSenders().size());
+		Assert.assertEquals(0, secondary.getConnectionCount());
+	}
+
+	private DeliveryContext send(String mailid) throws Exception {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(mailid);
+		qi.setRecipient("recipient@example.com");
+		qi.setState(DeliveryState.IN_PROGRESS);
+		DeliveryContext dCtx = new DeliveryContext()
+			.setQueueInfo(qi)
+			.setMessage(SmtpConnectionPoolTest.message());
+		dCtx.addContextVariable("targetservers", Arrays.<URLName>asList(primary.getUrl(), secondary.getUrl()));
+		new SendMessage().handle(dCtx);
+		return dCtx;
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Test of the SMTP connection reuse against a local fake server. The
+ * mock transport of the test classpath is replaced by the real SMTP
+ * transport.</p>
+ *
+ */
+public class SmtpConnectionPoolTest {
+
+	private int previousMessagesMax;
+	private FakeSmtpServer server;
+	private SmtpConnectionPool pool;
+
+	@Before
+	public void createPool() throws Exception {
+		previousMessagesMax = AspirinInternal.getConfiguration().getDeliveryConnectionMessagesMax();
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(10);
+		useSmtpTransport();
+		server = new FakeSmtpServer();
+		pool = new SmtpConnectionPool();
+	}
+
+	@After
+	public void closePool() throws Exception {
+		pool.close();
+		server.close();
+		AspirinInternal.getConfiguration().getMailSession().getProperties().remove("mail.smtp.class");
+		AspirinInternal.getConfiguration().setDeliveryConnectionMessagesMax(previousMessagesMax);
+	}
+
+	@Test
+	public void connectionIsReusedAfterReset() throws Exception {
+		SmtpConnection connection = pool.borrow(server.getUrl());
+		pool.giveBack(connection, true);
+		Assert.assertEquals(1, pool.getNumIdle());
+
+		SmtpConnection reused = pool.borrow(server.getUrl());
+		Assert.assertSame(connection, reused);
+		Assert.assertEquals(1, server.getResetCount());
+		Assert.assertEquals(1, server.getConnectionCount());
+		Assert.assertEquals(1, pool.getHitCount());
+		Assert.assertEquals(1, pool.getMissCount());
+		pool.giveBack(reused, true);
+	}
+
+	@Test
+	public void failedResetOpensNewConnection() throws Exception {
+		SmtpConnection connection = pool.borrow(server.getUrl());
+		pool.giveBack(connection, true);
+		server.setResetMode(FakeSmtpServer.RSET_FAIL);
+
+		SmtpConnection newConnection = pool.borrow(server.getUrl());
+		Assert.assertNotSame(connection, newConnection);
+		Assert.assertEquals(0, newConnection.getMessageCount());
+		Assert.assertEquals(2, server.getConnectionCount());
+		Assert.assertEquals(1, pool.getDestroyedCount());
+		pool.giveBack(newConnection, true);
+	}
+
+	@Test
+	public void failedDeliveryClosesConnection() throws Exception {
+		SmtpConnection connection = pool.borrow(server.getUrl());
+		pool.giveBack(connection, false);
+		Assert.assertEquals(1, pool.getDestroyedCount());
+		Assert.assertEquals(0, pool.getNumIdle());
+		Assert.assertFalse(connection.getTransport().isConnected());
+
+		SmtpConnection newConnection = pool.borrow(server.getUrl());
+		Assert.assertNotSame(connection, newConnection);
+		Assert.assertEquals(2, server.getConnectionCount());
+		pool.giveBack(newConnection, true);
+	}
+
+	@Test
+	public void freshBorrowSkipsIdleConnections() throws Exception {
+		SmtpConnection connection = pool.borrow(server.getUrl());
+		pool.giveBack(connection, true);
+
+		SmtpConnection newConnection = pool.borrow(server.getUrl(), true);
+		Assert.assertNotSame(connection, newConnection);
+		Assert.assertEquals(0, server.getResetCount());
+		Assert.assertEquals(1, pool.getDestroyedCount());
+		pool.giveBack(newConnection, true);
+	}
+
+	@Test
+	public void resolvedAddressIsUsedWithHostName() throws Exception {
+		// The host name could not be resolved, the address is used.
+		URLName targetServer = new URLName("smtp", "mail.invalid", server.getUrl().getPort(), "127.0.0.1", null, null);
+		SmtpConnection connection = pool.borrow(targetServer);
+		Assert.assertTrue(connection.getTransport().isConnected());
+		Assert.assertEquals("mail.invalid", connection.getTransport().getURLName().getHost());
+		Assert.assertEquals(1, server.getConnectionCount());
+		pool.giveBack(connection, true);
+	}
+
+	@Test
+	public void envelopeSenderIsSetPerConnection() throws Exception {
+		SmtpConnection first = pool.borrow(server.getUrl());
+		SmtpConnection second = pool.borrow(server.getUrl());
+		first.setEnvelopeFrom("first@example.com");
+		second.setEnvelopeFrom("second@example.com");
+		Address[] recipients = new Address[]{new InternetAddress("recipient@example.com")};
+		second.getTransport().sendMessage(message(), recipients);
+		first.getTransport().sendMessage(message(), recipients);
+		Assert.assertEquals(2, server.getSenders().size());
+		Assert.assertEquals("<second@example.com>", server.getSenders().get(0));
+		Assert.assertEquals("<first@example.com>", server.getSenders().get(1));
+		pool.giveBack(first, true);
+		pool.giveBack(second, true);
+	}
+
+	/**
+	 * The connections are opened with a copy of the configured session
+	 * properties, the mock transport is replaced there.
+	 */
+	static void useSmtpTransport() {
+		Properties sessionProperties = AspirinInternal.getConfiguration().getMailSession().getProperties();
+		sessionProperties.put("mail.smtp.class", "com.sun.mail.smtp.SMTPTransport");
+	}
+
+	static MimeMessage message() throws Exception {
+		MimeMessage message = AspirinInternal.createNewMimeMessage();
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setSubject("Pooled");
+		message.setText("Pooled connection test.");
+		message.saveChanges();
+		return message;
+	}
+
+}
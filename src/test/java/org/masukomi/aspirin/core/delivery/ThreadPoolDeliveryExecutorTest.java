@@ -0,0 +1,137 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+/**
+ * <p>Test of the thread limit and the waiting of the default delivery
+ * executor. The tasks wait for a gate instead of delivering.</p>
+ *
+ */
+public class ThreadPoolDeliveryExecutorTest {
+
+	private int previousThreadsMax;
+	private ThreadPoolDeliveryExecutor executor;
+
+	@Before
+	public void createExecutor() {
+		previousThreadsMax = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
+		AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(2);
+		executor = new ThreadPoolDeliveryExecutor();
+		executor.init();
+	}
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdown();
+		AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(previousThreadsMax);
+	}
+
+	@Test
+	public void threadLimitIsChangedImmediately() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		AtomicInteger running = new AtomicInteger();
+		for( int i = 0; i < 4; i++ )
+			executor.execute(new GatedTask(gate, running));
+		waitFor(running, 2);
+		Assert.assertEquals(2, executor.getActiveCount());
+		Assert.assertEquals(2, executor.getQueuedCount());
+
+		AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(4);
+		executor.configChanged(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX);
+		// The waiting tasks are started by the new threads.
+		waitFor(running, 4);
+		Assert.assertEquals(4, executor.getActiveCount());
+		Assert.assertEquals(0, executor.getQueuedCount());
+		gate.countDown();
+	}
+
+	@Test
+	public void fullExecutorWaitsForFreePlace() throws Exception {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		// Two running and two waiting tasks fill the executor.
+		for( int i = 0; i < 4; i++ )
+			executor.execute(new GatedTask(gate, running));
+		final CountDownLatch accepted = new CountDownLatch(1);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				executor.execute(new GatedTask(gate, running));
+				accepted.countDown();
+			}
+		};
+		submitter.start();
+		Assert.assertFalse(accepted.await(200, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, executor.getQueuedCount());
+
+		gate.countDown();
+		Assert.assertTrue(accepted.await(10, TimeUnit.SECONDS));
+		waitFor(running, 5);
+	}
+
+	@Test
+	public void shutdownGivesBackWaitingTasks() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		AtomicInteger running = new AtomicInteger();
+		for( int i = 0; i < 4; i++ )
+			executor.execute(new GatedTask(gate, running));
+		waitFor(running, 2);
+		List<DeliveryTask> notStarted = executor.shutdown();
+		Assert.assertEquals(2, notStarted.size());
+		try {
+			executor.execute(new GatedTask(gate, running));
+			Assert.fail("Task was accepted after shutdown.");
+		} catch (RejectedExecutionException ree) {
+			// Expected
+		}
+		gate.countDown();
+	}
+
+	private static void waitFor(AtomicInteger running, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+10000;
+		while( running.get() < count && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		Assert.assertEquals(count, running.get());
+	}
+
+	/**
+	 * Task counting its start and waiting for the gate.
+	 */
+	private static class GatedTask extends DeliveryTask {
+		private final CountDownLatch gate;
+		private final AtomicInteger running;
+
+		GatedTask(CountDownLatch gate, AtomicInteger running) {
+			super(null);
+			this.gate = gate;
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			running.incrementAndGet();
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void release() {
+			// Nothing to release
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Test of the virtual thread delivery executor. It is skipped on Java
+ * runtimes without virtual threads (before Java 21).</p>
+ *
+ */
+public class VirtualThreadDeliveryExecutorTest {
+
+	private int previousThreadsMax;
+	private VirtualThreadDeliveryExecutor executor;
+
+	@Before
+	public void createExecutor() {
+		Assume.assumeTrue(isVirtualThreadSupported());
+		previousThreadsMax = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
+		AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(1);
+		executor = new VirtualThreadDeliveryExecutor();
+		executor.init();
+	}
+
+	@After
+	public void shutdownExecutor() {
+		if( executor == null )
+			return;
+		executor.shutdown();
+		AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(previousThreadsMax);
+	}
+
+	@Test
+	public void shutdownWakesWaitingCaller() throws Exception {
+		final CountDownLatch gate = new CountDownLatch(1);
+		executor.execute(new GatedTask(gate));
+		final AtomicReference<Exception> result = new AtomicReference<Exception>();
+		final CountDownLatch returned = new CountDownLatch(1);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(new GatedTask(gate));
+				} catch (Exception e) {
+					result.set(e);
+				}
+				returned.countDown();
+			}
+		};
+		submitter.start();
+		// The only delivery slot is taken, the caller waits.
+		Assert.assertFalse(returned.await(200, TimeUnit.MILLISECONDS));
+
+		executor.shutdown();
+		Assert.assertTrue(returned.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(result.get() instanceof RejectedExecutionException);
+		Assert.assertEquals(1, executor.getActiveCount());
+		gate.countDown();
+	}
+
+	private static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+
+	/**
+	 * Task waiting for the gate instead of delivering.
+	 */
+	private static class GatedTask extends DeliveryTask {
+		private final CountDownLatch gate;
+
+		GatedTask(CountDownLatch gate) {
+			super(null);
+			this.gate = gate;
+		}
+
+		@Override
+		public void run() {
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void release() {
+			// Nothing to release
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.URLName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Test of the mail server address resolution. The caches are filled by
+ * the test, so no DNS lookup is made.</p>
+ *
+ */
+public class DnsResolverAddressTest {
+
+	@Before
+	public void enableAddresses() {
+		AspirinInternal.getConfiguration().setDnsAddressesResolve(true);
+	}
+
+	@After
+	public void resetResolver() {
+		AspirinInternal.getConfiguration().setDnsAddressesResolve(false);
+		DnsResolver.getMxCache().clear();
+		DnsResolver.getAddressCache().clear();
+	}
+
+	@Test
+	public void cachedAddressesKeepHostName() {
+		DnsResolver.getMxCache().put("example.com", Collections.singletonList(new URLName("smtp://mx.example.com")), 300);
+		DnsResolver.getAddressCache().put("mx.example.com", Arrays.asList(
+				new URLName("smtp://mx.example.com/192.0.2.1"),
+				new URLName("smtp://mx.example.com/2001:db8::1")
+		), 300);
+
+		List<URLName> servers = new ArrayList<URLName>(DnsResolver.getMXRecordsForHost("example.com"));
+		Assert.assertEquals(2, servers.size());
+		Assert.assertEquals("mx.example.com", servers.get(0).getHost());
+		Assert.assertEquals("192.0.2.1", servers.get(0).getFile());
+		Assert.assertEquals("mx.example.com", servers.get(1).getHost());
+		Assert.assertEquals("2001:db8::1", servers.get(1).getFile());
+		Assert.assertEquals(1, DnsResolver.getAddressCache().getHitCount());
+	}
+
+	@Test
+	public void serverWithoutAddressIsKept() {
+		DnsResolver.getMxCache().put("example.org", Arrays.asList(
+				new URLName("smtp://mx1.example.org"),
+				new URLName("smtp://mx2.example.org")
+		), 300);
+		DnsResolver.getAddressCache().put("mx1.example.org", Collections.<URLName>emptyList(), -1);
+		DnsResolver.getAddressCache().put("mx2.example.org", Collections.singletonList(new URLName("smtp://mx2.example.org/192.0.2.2")), 300);
+
+		List<URLName> servers = new ArrayList<URLName>(DnsResolver.getMXRecordsForHost("example.org"));
+		Assert.assertEquals(2, servers.size());
+		Assert.assertEquals("mx1.example.org", servers.get(0).getHost());
+		Assert.assertNull(servers.get(0).getFile());
+		Assert.assertEquals("192.0.2.2", servers.get(1).getFile());
+	}
+
+	@Test
+	public void addressesAreNotResolvedByDefault() {
+		AspirinInternal.getConfiguration().setDnsAddressesResolve(false);
+		DnsResolver.getMxCache().put("example.net", Collections.singletonList(new URLName("smtp://mx.example.net")), 300);
+		DnsResolver.getAddressCache().put("mx.example.net", Collections.singletonList(new URLName("smtp://mx.example.net/192.0.2.3")), 300);
+
+		Collection<URLName> servers = DnsResolver.getMXRecordsForHost("example.net");
+		Assert.assertEquals(1, servers.size());
+		Assert.assertNull(servers.iterator().next().getFile());
+	}
+
+}
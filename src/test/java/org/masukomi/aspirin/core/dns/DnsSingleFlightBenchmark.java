@@ -0,0 +1,200 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+/**
+ * <p>Manual benchmark of concurrent MX lookups of the same domain. It is not 
+ * a unit test, run the main() method. A local stub DNS server answers every 
+ * MX query after a delay and counts the queries. A burst of threads resolves 
+ * the same domain at once: first with plain lookups, then with 
+ * {@link DnsResolver}, which shares the concurrent lookups. The MX cache is 
+ * disabled, so only the lookup sharing is measured.</p>
+ * 
+ */
+public class DnsSingleFlightBenchmark {
+	
+	private static final int THREAD_COUNT = 1000;
+	private static final int ANSWER_DELAY = 20;
+	
+	public static void main(String[] args) throws Exception {
+		StubDnsServer server = new StubDnsServer(ANSWER_DELAY);
+		server.start();
+		SimpleResolver resolver = new SimpleResolver("127.0.0.1");
+		resolver.setPort(server.getPort());
+		resolver.setTimeout(10);
+		Lookup.setDefaultResolver(resolver);
+		AspirinInternal.getConfiguration().setDnsCacheSize(0);
+		try {
+			for( int round = 0; round < 3; round++ )
+			{
+				// Every burst gets a new domain, so the dnsjava cache is not used
+				measure("plain lookup", server, new PlainLookup("plain"+round+".example.com"));
+				measure("single-flight", server, new ResolverLookup("shared"+round+".example.com"));
+			}
+		} finally {
+			server.shutdown();
+		}
+	}
+	
+	private static void measure(String name, StubDnsServer server, final Runnable lookup) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(THREAD_COUNT);
+		final long[] latencies = new long[THREAD_COUNT];
+		int queryCountBefore = server.getQueryCount();
+		for( int i = 0; i < THREAD_COUNT; i++ )
+		{
+			final int index = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long begin = System.nanoTime();
+						lookup.run();
+						latencies[index] = System.nanoTime()-begin;
+					} catch (InterruptedException ie) {
+						latencies[index] = -1;
+					} finally {
+						finished.countDown();
+					}
+				}
+			};
+			thread.start();
+		}
+		start.countDown();
+		finished.await();
+		Arrays.sort(latencies);
+		long p50 = latencies[THREAD_COUNT/2];
+		long p99 = latencies[THREAD_COUNT*99/100];
+		System.out.println(name+" threads="+THREAD_COUNT+" queries="+(server.getQueryCount()-queryCountBefore)+
+				" p50="+TimeUnit.NANOSECONDS.toMillis(p50)+" ms p99="+TimeUnit.NANOSECONDS.toMillis(p99)+" ms");
+	}
+	
+	private static class PlainLookup implements Runnable {
+		private String domain;
+		
+		PlainLookup(String domain) {
+			this.domain = domain;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				new Lookup(domain, Type.MX).run();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	private static class ResolverLookup implements Runnable {
+		private String domain;
+		
+		ResolverLookup(String domain) {
+			this.domain = domain;
+		}
+		
+		@Override
+		public void run() {
+			DnsResolver.getMXRecordsForHost(domain);
+		}
+	}
+	
+	/**
+	 * This DNS server answers every MX query with the "mx" subdomain of the 
+	 * queried name, other queries with an empty answer.
+	 */
+	private static class StubDnsServer extends Thread {
+		private DatagramSocket socket;
+		private ScheduledExecutorService answerScheduler = Executors.newScheduledThreadPool(4);
+		private AtomicInteger queryCount = new AtomicInteger();
+		private int answerDelay;
+		
+		StubDnsServer(int answerDelay) throws Exception {
+			this.answerDelay = answerDelay;
+			this.socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+		}
+		
+		int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		int getQueryCount() {
+			return queryCount.get();
+		}
+		
+		@Override
+		public void run() {
+			byte[] buffer = new byte[512];
+			while( !socket.isClosed() )
+			{
+				try {
+					final DatagramPacket query = new DatagramPacket(buffer, buffer.length);
+					socket.receive(query);
+					queryCount.incrementAndGet();
+					final byte[] answer = createAnswer(Arrays.copyOf(query.getData(), query.getLength()));
+					final DatagramPacket answerPacket = new DatagramPacket(answer, answer.length, query.getSocketAddress());
+					answerScheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								socket.send(answerPacket);
+							} catch (Exception e) {
+								// Socket closed
+							}
+						}
+					}, answerDelay, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					// Socket closed
+				}
+			}
+		}
+		
+		void shutdown() {
+			socket.close();
+			answerScheduler.shutdownNow();
+		}
+		
+		private byte[] createAnswer(byte[] query) {
+			// Skip the header and the question name
+			int questionEnd = 12;
+			while( query[questionEnd] != 0 )
+				questionEnd += query[questionEnd]+1;
+			int type = ((query[questionEnd+1] & 0xff) << 8) | (query[questionEnd+2] & 0xff);
+			questionEnd += 5;
+			boolean mx = ( type == Type.MX );
+			byte[] answerRecord = new byte[]{
+					(byte)0xc0, 0x0c,				// Name: pointer to the question
+					0x00, 0x0f, 0x00, 0x01,			// Type MX, class IN
+					0x00, 0x00, 0x01, 0x2c,			// TTL 300
+					0x00, 0x07,						// Data length
+					0x00, 0x0a,						// Preference 10
+					0x02, 'm', 'x', (byte)0xc0, 0x0c	// Exchange: mx.<question>
+			};
+			byte[] answer = Arrays.copyOf(query, questionEnd+( mx ? answerRecord.length : 0 ));
+			answer[2] = (byte)0x81;					// Response, recursion desired
+			answer[3] = (byte)0x80;					// Recursion available, no error
+			answer[6] = 0x00;
+			answer[7] = (byte)( mx ? 1 : 0 );		// Answer count
+			answer[8] = answer[9] = answer[10] = answer[11] = 0x00;
+			if( mx )
+				System.arraycopy(answerRecord, 0, answer, questionEnd, answerRecord.length);
+			return answer;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.mail.URLName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the TTL based MX cache.</p>
+ *
+ */
+public class MxCacheTest {
+
+	private static Collection<URLName> servers(String host) {
+		return Collections.singletonList(new URLName(DnsResolver.SMTP_PROTOCOL_PREFIX+host));
+	}
+
+	@After
+	public void resetConfiguration() {
+		Configuration configuration = AspirinInternal.getConfiguration();
+		configuration.setDnsCacheSize(10000);
+		configuration.setDnsCacheTtlNegative(60000);
+		configuration.setDnsCacheTtlMin(60000);
+		configuration.setDnsCacheTtlMax(3600000);
+	}
+
+	@Test
+	public void cachedDomainIsHit() {
+		MxCache cache = new MxCache();
+		Assert.assertNull(cache.get("example.com"));
+		cache.put("example.com", servers("mx.example.com"), 300);
+
+		Collection<URLName> cached = cache.get("example.com");
+		Assert.assertEquals(1, cached.size());
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals(0.5, cache.getHitRatio(), 0.001);
+	}
+
+	@Test
+	public void emptyAnswerIsCachedForNegativeTtl() {
+		MxCache cache = new MxCache();
+		cache.put("nowhere.example", Collections.<URLName>emptyList(), -1);
+		Assert.assertTrue(cache.get("nowhere.example").isEmpty());
+
+		AspirinInternal.getConfiguration().setDnsCacheTtlNegative(0);
+		cache.put("other.example", Collections.<URLName>emptyList(), -1);
+		Assert.assertNull(cache.get("other.example"));
+	}
+
+	@Test
+	public void fullCacheEvictsNearestExpiry() {
+		AspirinInternal.getConfiguration().setDnsCacheSize(2);
+		MxCache cache = new MxCache();
+		cache.put("a.example", servers("mx.a.example"), 100);
+		cache.put("b.example", servers("mx.b.example"), 3000);
+		cache.put("c.example", servers("mx.c.example"), 3000);
+
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertNull(cache.get("a.example"));
+		Assert.assertNotNull(cache.get("b.example"));
+		Assert.assertNotNull(cache.get("c.example"));
+	}
+
+	@Test
+	public void replacedEntryGetsItsNewExpiry() {
+		AspirinInternal.getConfiguration().setDnsCacheSize(2);
+		MxCache cache = new MxCache();
+		cache.put("a.example", servers("mx.a.example"), 100);
+		cache.put("b.example", servers("mx.b.example"), 2000);
+		cache.put("a.example", servers("mx.a.example"), 3000);
+		cache.put("c.example", servers("mx.c.example"), 3000);
+
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertNull(cache.get("b.example"));
+		Assert.assertNotNull(cache.get("a.example"));
+		Assert.assertNotNull(cache.get("c.example"));
+	}
+
+	@Test
+	public void expiredEntriesAreRemovedBeforeEviction() throws Exception {
+		Configuration configuration = AspirinInternal.getConfiguration();
+		configuration.setDnsCacheSize(3);
+		configuration.setDnsCacheTtlMin(1);
+		configuration.setDnsCacheTtlMax(1);
+		MxCache cache = new MxCache();
+		cache.put("a.example", servers("mx.a.example"), 300);
+		cache.put("b.example", servers("mx.b.example"), 300);
+		Thread.sleep(20);
+		configuration.setDnsCacheTtlMax(3600000);
+		cache.put("c.example", servers("mx.c.example"), 300);
+		cache.put("d.example", servers("mx.d.example"), 300);
+
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(2, cache.getExpiredCount());
+		Assert.assertEquals(0, cache.getEvictionCount());
+		Assert.assertNotNull(cache.get("c.example"));
+		Assert.assertNotNull(cache.get("d.example"));
+	}
+
+}
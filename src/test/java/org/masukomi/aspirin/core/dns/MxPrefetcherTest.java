@@ -0,0 +1,155 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.delivery.DeliveryManager;
+
+/**
+ * <p>Test of the MX prefetching of added mails. The lookups of the test
+ * domains are held in flight by the test, so no DNS lookup is made.</p>
+ *
+ */
+public class MxPrefetcherTest {
+
+	private int previousPrefetchThreads;
+	private DeliveryManager deliveryManager;
+	private MxPrefetcher prefetcher;
+
+	@Before
+	public void enablePrefetching() {
+		previousPrefetchThreads = AspirinInternal.getConfiguration().getDnsPrefetchThreads();
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(1);
+		deliveryManager = AspirinInternal.getDeliveryManager();
+		prefetcher = deliveryManager.getMxPrefetcher();
+	}
+
+	@After
+	public void resetPrefetching() {
+		AspirinInternal.getConfiguration().setDnsPrefetchThreads(previousPrefetchThreads);
+		DnsResolver.getMxCache().clear();
+	}
+
+	@Test
+	public void addedMailIsPrefetched() throws Exception {
+		String domain = "prefetch1.example";
+		CountDownLatch gate = new CountDownLatch(1);
+		holdLookup(domain, gate, true);
+		long scheduled = prefetcher.getScheduledCount();
+		long hits = prefetcher.getHitCount();
+		long shared = DnsResolver.getMxSingleFlight().getSharedCount();
+		try {
+			add("prefetch.1", domain);
+			Assert.assertEquals(scheduled+1, prefetcher.getScheduledCount());
+			waitForSharing(shared);
+
+			// The delivery would wait for the prefetching lookup.
+			prefetcher.checkPrefetched(domain);
+			Assert.assertEquals(hits+1, prefetcher.getHitCount());
+		} finally {
+			gate.countDown();
+			deliveryManager.remove("prefetch.1");
+		}
+	}
+
+	@Test
+	public void uncachedResultIsMiss() throws Exception {
+		String domain = "prefetch2.example";
+		CountDownLatch gate = new CountDownLatch(1);
+		holdLookup(domain, gate, false);
+		long misses = prefetcher.getMissCount();
+		long shared = DnsResolver.getMxSingleFlight().getSharedCount();
+		try {
+			add("prefetch.2", domain);
+			waitForSharing(shared);
+		} finally {
+			gate.countDown();
+		}
+		long deadline = System.currentTimeMillis()+10000;
+		while( DnsResolver.getMxSingleFlight().isInFlight(domain) && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+
+		// Temporary failures are not cached, the delivery resolves again.
+		prefetcher.checkPrefetched(domain);
+		Assert.assertEquals(misses+1, prefetcher.getMissCount());
+		// Only the first delivery is counted.
+		prefetcher.checkPrefetched(domain);
+		Assert.assertEquals(misses+1, prefetcher.getMissCount());
+		deliveryManager.remove("prefetch.2");
+	}
+
+	@Test
+	public void cachedDomainIsNotPrefetched() throws Exception {
+		String domain = "prefetch3.example";
+		DnsResolver.getMxCache().put(domain, Collections.singletonList(new URLName("smtp://mx."+domain)), 300);
+		long scheduled = prefetcher.getScheduledCount();
+		add("prefetch.3", domain);
+		Assert.assertEquals(scheduled, prefetcher.getScheduledCount());
+		deliveryManager.remove("prefetch.3");
+	}
+
+	private void add(String mailid, String domain) throws Exception {
+		MimeMessage message = AspirinInternal.createNewMimeMessage();
+		message.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setHeader("To", "user@"+domain);
+		message.setSubject("Prefetch");
+		message.setText("Prefetch test.");
+		message.saveChanges();
+		deliveryManager.add(message);
+	}
+
+	/**
+	 * Start a lookup of the domain, which waits for the gate. The
+	 * prefetching joins this lookup.
+	 */
+	private static void holdLookup(final String domain, final CountDownLatch gate, final boolean cache) throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread lookupThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					DnsResolver.getMxSingleFlight().execute(domain, new Callable<Collection<URLName>>() {
+						@Override
+						public Collection<URLName> call() throws Exception {
+							started.countDown();
+							gate.await();
+							Collection<URLName> servers = Collections.singletonList(new URLName("smtp://mx."+domain));
+							if( cache )
+								DnsResolver.getMxCache().put(domain, servers, 300);
+							return servers;
+						}
+					});
+				} catch (Exception e) {
+					// The missing result fails the test
+				}
+			}
+		};
+		lookupThread.setDaemon(true);
+		lookupThread.start();
+		started.await();
+	}
+
+	/**
+	 * Wait until the prefetching joins the held lookup.
+	 */
+	private static void waitForSharing(long shared) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+10000;
+		while( DnsResolver.getMxSingleFlight().getSharedCount() == shared && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		Assert.assertTrue(DnsResolver.getMxSingleFlight().getSharedCount() > shared);
+	}
+
+}
@@ -0,0 +1,143 @@
+package org.masukomi.aspirin.core.dns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the sharing of concurrent lookups.</p>
+ *
+ */
+public class SingleFlightTest {
+
+	private static final int CALLERS = 8;
+
+	@Test
+	public void concurrentCallersShareOneLookup() throws Exception {
+		final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final AtomicInteger lookupCount = new AtomicInteger();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final Callable<String> lookup = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				lookupCount.incrementAndGet();
+				gate.await();
+				return "mx.example.com";
+			}
+		};
+		final List<String> results = new ArrayList<String>();
+		List<Thread> callers = new ArrayList<Thread>();
+		for( int i = 0; i < CALLERS; i++ )
+		{
+			Thread caller = new Thread() {
+				@Override
+				public void run() {
+					try {
+						String result = singleFlight.execute("example.com", lookup);
+						synchronized (results) {
+							results.add(result);
+						}
+					} catch (Exception e) {
+						// The missing result fails the test
+					}
+				}
+			};
+			callers.add(caller);
+			caller.start();
+		}
+		// Every caller is either the executing or a waiting one.
+		long deadline = System.currentTimeMillis()+10000;
+		while( singleFlight.getExecutionCount()+singleFlight.getSharedCount() < CALLERS && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		Assert.assertEquals(1, singleFlight.getInFlightCount());
+
+		gate.countDown();
+		for( Thread caller : callers )
+			caller.join(10000);
+		Assert.assertEquals(1, lookupCount.get());
+		Assert.assertEquals(1, singleFlight.getExecutionCount());
+		Assert.assertEquals(CALLERS-1, singleFlight.getSharedCount());
+		Assert.assertEquals(CALLERS, results.size());
+		for( String result : results )
+			Assert.assertEquals("mx.example.com", result);
+		Assert.assertEquals(0, singleFlight.getInFlightCount());
+	}
+
+	@Test
+	public void failedLookupIsNotKept() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final AtomicInteger lookupCount = new AtomicInteger();
+		Callable<String> failingLookup = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				lookupCount.incrementAndGet();
+				throw new IllegalStateException("SERVFAIL");
+			}
+		};
+		try {
+			singleFlight.execute("example.com", failingLookup);
+			Assert.fail("Failed lookup gave a result.");
+		} catch (ExecutionException ee) {
+			Assert.assertTrue(ee.getCause() instanceof IllegalStateException);
+		}
+		Assert.assertEquals(0, singleFlight.getInFlightCount());
+
+		// The next call runs a new lookup.
+		String result = singleFlight.execute("example.com", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				lookupCount.incrementAndGet();
+				return "mx.example.com";
+			}
+		});
+		Assert.assertEquals("mx.example.com", result);
+		Assert.assertEquals(2, lookupCount.get());
+		Assert.assertEquals(2, singleFlight.getExecutionCount());
+	}
+
+	@Test
+	public void failureIsGivenToWaitingCallers() throws Exception {
+		final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final Callable<String> failingLookup = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				gate.await();
+				throw new IllegalStateException("SERVFAIL");
+			}
+		};
+		final AtomicInteger failureCount = new AtomicInteger();
+		final CountDownLatch finished = new CountDownLatch(2);
+		for( int i = 0; i < 2; i++ )
+		{
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						singleFlight.execute("example.com", failingLookup);
+					} catch (ExecutionException ee) {
+						failureCount.incrementAndGet();
+					} catch (InterruptedException ie) {
+						// The missing failure fails the test
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		long deadline = System.currentTimeMillis()+10000;
+		while( singleFlight.getSharedCount() < 1 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		gate.countDown();
+		Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(2, failureCount.get());
+		Assert.assertEquals(1, singleFlight.getExecutionCount());
+	}
+
+}
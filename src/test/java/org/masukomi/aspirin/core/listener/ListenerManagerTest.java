@@ -0,0 +1,158 @@
+package org.masukomi.aspirin.core.listener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+/**
+ * <p>Test of the asynchronous listener dispatching.</p>
+ *
+ */
+public class ListenerManagerTest {
+
+	/**
+	 * Records the SENT events, the first call waits for the gate.
+	 */
+	private static class BlockedListener implements AspirinListener {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final List<String> recipients = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void delivered(String mailId, String recipient, ResultState state, String resultContent) {
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			if( state == ResultState.SENT )
+			{
+				recipients.add(recipient);
+				threadNames.add(Thread.currentThread().getName());
+			}
+		}
+	}
+
+	private static QueueInfo sent(String mailid, String recipient) {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(mailid);
+		qi.setRecipient(recipient);
+		qi.setState(DeliveryState.SENT);
+		return qi;
+	}
+
+	private static void awaitDispatched(ListenerManager manager, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+10000;
+		while( manager.getDispatchedCount() < count && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+	}
+
+	@After
+	public void resetConfiguration() {
+		Configuration configuration = AspirinInternal.getConfiguration();
+		configuration.setListenerDispatcherThreads(1);
+		configuration.setListenerOverflow("spill");
+		configuration.setListenerQueueSize(10000);
+		configuration.setListenerBatchSize(100);
+		configuration.setListenerBatchTimeout(1000);
+	}
+
+	@Test
+	public void spilledEventsAreDispatchedInOrder() throws Exception {
+		AspirinInternal.getConfiguration().setListenerQueueSize(2);
+		ListenerManager manager = new ListenerManager();
+		BlockedListener listener = new BlockedListener();
+		manager.add(listener);
+		for( int i = 0; i < 20; i++ )
+			manager.notifyListeners(sent("mail1", "user"+i+"@example.com"));
+		Assert.assertTrue(0 < manager.getSpilledCount());
+		Assert.assertTrue(0 < manager.getQueueDepth());
+		Assert.assertTrue(listener.recipients.isEmpty());
+
+		listener.gate.countDown();
+		awaitDispatched(manager, 20);
+		manager.shutdown();
+		Assert.assertEquals(20, listener.recipients.size());
+		for( int i = 0; i < 20; i++ )
+			Assert.assertEquals("user"+i+"@example.com", listener.recipients.get(i));
+		Assert.assertFalse(listener.threadNames.contains(Thread.currentThread().getName()));
+		Assert.assertEquals(0, manager.getQueueDepth());
+		Assert.assertEquals(0, manager.getDroppedCount());
+	}
+
+	@Test
+	public void eventsAreDroppedIfBufferIsFull() throws Exception {
+		AspirinInternal.getConfiguration().setListenerQueueSize(1);
+		AspirinInternal.getConfiguration().setListenerOverflow("drop");
+		ListenerManager manager = new ListenerManager();
+		BlockedListener listener = new BlockedListener();
+		manager.add(listener);
+		for( int i = 0; i < 5; i++ )
+			manager.notifyListeners(sent("mail1", "user"+i+"@example.com"));
+		Assert.assertTrue(3 <= manager.getDroppedCount());
+		Assert.assertEquals(0, manager.getSpilledCount());
+
+		listener.gate.countDown();
+		manager.shutdown();
+		Assert.assertEquals(5, listener.recipients.size()+manager.getDroppedCount());
+	}
+
+	@Test
+	public void resultsAreDeliveredInBatches() throws Exception {
+		AspirinInternal.getConfiguration().setListenerBatchSize(4);
+		AspirinInternal.getConfiguration().setListenerBatchTimeout(200);
+		ListenerManager manager = new ListenerManager();
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<String> recipients = Collections.synchronizedList(new ArrayList<String>());
+		manager.add(new BatchAspirinListener() {
+			@Override
+			public void delivered(List<DeliveryResult> results) {
+				batchSizes.add(results.size());
+				for( DeliveryResult result : results )
+				{
+					Assert.assertEquals(ResultState.SENT, result.getState());
+					// The queue store publishes the completion as a separate result.
+					Assert.assertFalse(result.isFinished());
+					recipients.add(result.getRecipient());
+				}
+			}
+		});
+		for( int i = 0; i < 10; i++ )
+			manager.notifyListeners(sent("mail1", "user"+i+"@example.com"));
+
+		// The last, unfilled batch is delivered after the timeout.
+		long deadline = System.currentTimeMillis()+10000;
+		while( recipients.size() < 10 && System.currentTimeMillis() < deadline )
+			Thread.sleep(10);
+		manager.shutdown();
+		Assert.assertEquals(10, recipients.size());
+		for( int i = 0; i < 10; i++ )
+			Assert.assertEquals("user"+i+"@example.com", recipients.get(i));
+		for( Integer batchSize : batchSizes )
+			Assert.assertTrue(batchSize <= 4);
+		Assert.assertTrue(batchSizes.size() < 10);
+	}
+
+	@Test
+	public void listenersAreCalledSynchronouslyWithoutDispatchers() throws Exception {
+		AspirinInternal.getConfiguration().setListenerDispatcherThreads(0);
+		ListenerManager manager = new ListenerManager();
+		BlockedListener listener = new BlockedListener();
+		listener.gate.countDown();
+		manager.add(listener);
+		manager.notifyListeners(sent("mail1", "user@example.com"));
+		Assert.assertEquals(1, listener.recipients.size());
+		Assert.assertEquals(Thread.currentThread().getName(), listener.threadNames.get(0));
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the size bounded message cache.</p>
+ *
+ */
+public class CachingMailStoreTest {
+
+	/**
+	 * Counts the loaded messages.
+	 */
+	private static class CountingMailStore extends SimpleMailStore {
+		int loadCount = 0;
+
+		@Override
+		public MimeMessage get(String mailid) {
+			loadCount++;
+			return super.get(mailid);
+		}
+	}
+
+	private static MimeMessage message() {
+		return new MimeMessage((Session)null);
+	}
+
+	@Test
+	public void loadedMessagesAreCached() throws Exception {
+		CountingMailStore backingStore = new CountingMailStore();
+		backingStore.set("mail1", message());
+		CachingMailStore store = new CachingMailStore(backingStore, 1048576L, "lru");
+
+		MimeMessage msg = store.get("mail1");
+		Assert.assertNotNull(msg);
+		Assert.assertSame(msg, store.get("mail1"));
+		Assert.assertEquals(1, backingStore.loadCount);
+		Assert.assertEquals(1, store.getMissCount());
+		Assert.assertEquals(1, store.getHitCount());
+		Assert.assertTrue(0 < store.getSize());
+
+		store.remove("mail1");
+		Assert.assertNull(store.get("mail1"));
+		Assert.assertEquals(0, store.getCount());
+		Assert.assertEquals(0, store.getSize());
+	}
+
+	@Test
+	public void leastRecentlyUsedMessageIsEvicted() throws Exception {
+		MessageCache cache = new MessageCache(300, MessageCache.POLICY_LRU);
+		cache.put("a", message(), 100);
+		cache.put("b", message(), 100);
+		cache.put("c", message(), 100);
+		Assert.assertNotNull(cache.get("a"));
+		cache.put("d", message(), 100);
+
+		Assert.assertNull(cache.get("b"));
+		Assert.assertNotNull(cache.get("a"));
+		Assert.assertNotNull(cache.get("c"));
+		Assert.assertNotNull(cache.get("d"));
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertEquals(300, cache.getSize());
+
+		// Larger than the whole cache
+		cache.put("e", message(), 301);
+		Assert.assertNull(cache.get("e"));
+		Assert.assertEquals(3, cache.getCount());
+	}
+
+	@Test
+	public void frequentlyUsedMessagesAreKeptByTinyLfu() throws Exception {
+		MessageCache cache = new MessageCache(10000, MessageCache.POLICY_TINYLFU);
+		for( int i = 0; i < 9; i++ )
+		{
+			cache.put("hot"+i, message(), 1000);
+			for( int j = 0; j < 3; j++ )
+				Assert.assertNotNull(cache.get("hot"+i));
+		}
+		// Used once, it is not admitted.
+		cache.put("cold", message(), 1000);
+		Assert.assertNull(cache.get("cold"));
+		Assert.assertEquals(9, cache.getCount());
+		for( int i = 0; i < 9; i++ )
+			Assert.assertNotNull(cache.get("hot"+i));
+
+		// Used more often than the least recently used one.
+		for( int j = 0; j < 10; j++ )
+			cache.get("cold");
+		cache.putLoaded("cold", message(), 1000, cache.getModifications());
+		Assert.assertNotNull(cache.get("cold"));
+		Assert.assertEquals(9, cache.getCount());
+		Assert.assertEquals(2, cache.getEvictionCount());
+	}
+
+}
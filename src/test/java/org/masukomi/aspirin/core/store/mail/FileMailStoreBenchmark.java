@@ -0,0 +1,168 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+
+/**
+ * <p>Manual benchmark of the file mail store with large messages. It is not
+ * a unit test, run the main() method with enough heap for the copied
+ * messages (for example -Xmx512m). The files are written into a temporary
+ * directory, give another one as the first argument to measure a specific
+ * disk.</p>
+ *
+ * <p>The messages have a 10 MB base64 encoded attachment. They are loaded
+ * by the store (shared file streams) and by parsing a plain file stream,
+ * which copies the content into the heap. The loaded messages are kept, so
+ * the used heap is printed for all of them, then every message is written
+ * out like the SMTP transport does.</p>
+ *
+ */
+public class FileMailStoreBenchmark {
+
+	private static final int MESSAGES = 20;
+	private static final int ATTACHMENT_SIZE = 10*1048576;
+
+	public static void main(String[] args) throws Exception {
+		File baseDir = ( 0 < args.length ) ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+		File rootDir = new File(baseDir, "aspirin-file-benchmark");
+		delete(rootDir);
+		FileMailStore store = new FileMailStore();
+		store.setRootDir(rootDir);
+		byte[] raw = createMessage();
+
+		long start = System.nanoTime();
+		for( int i = 0; i < MESSAGES; i++ )
+			store.set("bench."+i, parse(raw, "bench."+i));
+		long setElapsed = System.nanoTime()-start;
+		System.out.println("FileMailStore set="+mbPerSecond(MESSAGES*(long)raw.length, setElapsed)+" MB/s");
+
+		measure("shared", store, null);
+		measure("copied", store, rootDir);
+		delete(rootDir);
+	}
+
+	/**
+	 * Load every message, by the store or by parsing the files in rootDir,
+	 * and write them out.
+	 */
+	private static void measure(String name, FileMailStore store, File rootDir) throws Exception {
+		System.gc();
+		long baseHeap = usedHeap();
+		long start = System.nanoTime();
+		List<MimeMessage> messages = new ArrayList<MimeMessage>();
+		if( rootDir == null )
+		{
+			for( String mailid : store.getMailIds() )
+				messages.add(store.get(mailid));
+		}
+		else
+		{
+			for( File subDir : rootDir.listFiles() )
+			{
+				if( !subDir.isDirectory() )
+					continue;
+				for( File msgFile : subDir.listFiles() )
+				{
+					InputStream in = new FileInputStream(msgFile);
+					try {
+						messages.add(new MimeMessage(Session.getDefaultInstance(System.getProperties()), in));
+					} finally {
+						in.close();
+					}
+				}
+			}
+		}
+		long loadElapsed = System.nanoTime()-start;
+		System.gc();
+		long loadedHeap = usedHeap()-baseHeap;
+
+		CountingOutputStream out = new CountingOutputStream();
+		start = System.nanoTime();
+		for( MimeMessage msg : messages )
+			msg.writeTo(out);
+		long writeElapsed = System.nanoTime()-start;
+
+		System.out.println("FileMailStore "+name+" messages="+messages.size()+
+				" load="+(loadElapsed/1000000)+" ms"+
+				" heap="+(loadedHeap/1048576)+" MB"+
+				" writeTo="+mbPerSecond(out.count, writeElapsed)+" MB/s");
+	}
+
+	private static byte[] createMessage() throws Exception {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		Random random = new Random(42);
+		StringBuilder msg = new StringBuilder(ATTACHMENT_SIZE+ATTACHMENT_SIZE/38+1024);
+		msg.append("From: sender@example.com\r\n");
+		msg.append("To: recipient@example.com\r\n");
+		msg.append("Subject: Benchmark\r\n");
+		msg.append("MIME-Version: 1.0\r\n");
+		msg.append("Content-Type: multipart/mixed; boundary=\"bench\"\r\n\r\n");
+		msg.append("--bench\r\nContent-Type: text/plain\r\n\r\nSee the attachment.\r\n");
+		msg.append("--bench\r\nContent-Type: application/octet-stream\r\n");
+		msg.append("Content-Transfer-Encoding: base64\r\n\r\n");
+		// The content is not decoded, random base64 characters are enough.
+		for( int i = 0; i < ATTACHMENT_SIZE; i++ )
+		{
+			msg.append(alphabet.charAt(random.nextInt(64)));
+			if( i%76 == 75 )
+				msg.append("\r\n");
+		}
+		msg.append("\r\n--bench--\r\n");
+		return msg.toString().getBytes("US-ASCII");
+	}
+
+	private static MimeMessage parse(byte[] raw, String mailid) throws Exception {
+		MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new ByteArrayInputStream(raw));
+		msg.setHeader(Aspirin.HEADER_MAIL_ID, mailid);
+		return msg;
+	}
+
+	private static long usedHeap() {
+		return Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
+	}
+
+	private static long mbPerSecond(long bytes, long elapsedNanos) {
+		return bytes*1000000000L/Math.max(1, elapsedNanos)/1048576;
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				if( file.isDirectory() )
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
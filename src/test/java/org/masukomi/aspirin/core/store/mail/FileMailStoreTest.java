@@ -0,0 +1,172 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the file mail store index and the recovery scan.</p>
+ *
+ */
+public class FileMailStoreTest extends MailStoreTestSupport {
+
+	private FileMailStore createStore(int recoveryThreads) {
+		FileMailStore store = new FileMailStore();
+		store.setRootDir(tempDir);
+		store.setRecoveryThreads(recoveryThreads);
+		store.init();
+		return store;
+	}
+
+	/**
+	 * @return The message files of the mailid in the store directories.
+	 */
+	private List<File> messageFiles(String mailid) {
+		List<File> files = new ArrayList<File>();
+		for( File subDir : tempDir.listFiles() )
+		{
+			File[] subDirFiles = subDir.listFiles();
+			if( subDirFiles == null )
+				continue;
+			for( File file : subDirFiles )
+			{
+				if( file.getName().startsWith(FileMailStore.encodeMailid(mailid)+"+") && file.getName().endsWith(".msg") )
+					files.add(file);
+			}
+		}
+		return files;
+	}
+
+	@Test
+	public void mailidIsEncodedIntoFileName() {
+		Assert.assertEquals("1287654321.3f", FileMailStore.encodeMailid("1287654321.3f"));
+		Assert.assertEquals("a%20b%2Fc%C3%A9", FileMailStore.encodeMailid("a b/c\u00e9"));
+		Assert.assertEquals("a b/c\u00e9", FileMailStore.decodeMailid("a%20b%2Fc%C3%A9"));
+		// Not canonical or not encoded names
+		Assert.assertNull(FileMailStore.decodeMailid("a%2fb"));
+		Assert.assertNull(FileMailStore.decodeMailid("a b"));
+		Assert.assertNull(FileMailStore.decodeMailid("a%2"));
+	}
+
+	@Test
+	public void loadedMessagesDoNotKeepTheirFilesOpen() throws Exception {
+		File fdDir = new File("/proc/self/fd");
+		FileMailStore store = createStore(1);
+		for( int i = 0; i < 50; i++ )
+			store.set("mail"+i, message("mail"+i, "text"+i));
+		int openFiles = fdDir.isDirectory() ? fdDir.list().length : 0;
+		List<MimeMessage> loaded = new ArrayList<MimeMessage>();
+		for( int i = 0; i < 50; i++ )
+		{
+			loaded.add(store.get("mail"+i));
+			Assert.assertEquals("text"+i, content(loaded.get(i)));
+		}
+		if( fdDir.isDirectory() )
+			Assert.assertTrue(fdDir.list().length < openFiles+50);
+		store.close();
+	}
+
+	@Test
+	public void closedStoreIsLoadedFromIndex() throws Exception {
+		FileMailStore store = createStore(1);
+		store.set("mail1", message("mail1", "first"));
+		store.set("mail 2/x", message("mail 2/x", "second"));
+		store.set("mail3", message("mail3", "third"));
+		store.set("mail1", message("mail1", "replaced"));
+		store.remove("mail3");
+		store.close();
+
+		// A file without index record is not found, so the index is used.
+		new File(tempDir, "0").mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(new File(tempDir, "0"), "ghost.msg"));
+		out.write(raw("ghost", "ghost").getBytes("UTF-8"));
+		out.close();
+
+		FileMailStore loadedStore = createStore(1);
+		Assert.assertEquals(2, loadedStore.getMailIds().size());
+		Assert.assertEquals("replaced", content(loadedStore.get("mail1")));
+		Assert.assertEquals("second", content(loadedStore.get("mail 2/x")));
+		Assert.assertNull(loadedStore.get("mail3"));
+		Assert.assertNull(loadedStore.get("ghost"));
+		loadedStore.close();
+	}
+
+	@Test
+	public void replacedMessageIsWrittenIntoNewFile() throws Exception {
+		FileMailStore store = createStore(1);
+		store.set("mail1", message("mail1", "first"));
+		MimeMessage loaded = store.get("mail1");
+		store.set("mail1", message("mail1", "second"));
+		Assert.assertEquals("second", content(store.get("mail1")));
+		Assert.assertEquals(1, messageFiles("mail1").size());
+		try {
+			// The loaded message never mixes its headers with the new content.
+			Assert.assertFalse("second".equals(content(loaded)));
+		} catch (Exception e) {
+			// The file of the previous version is deleted.
+		}
+		store.close();
+	}
+
+	@Test
+	public void scanKeepsTheLatestFile() throws Exception {
+		FileMailStore store = createStore(1);
+		store.set("mail1", message("mail1", "latest"));
+		File latestFile = messageFiles("mail1").get(0);
+		Assert.assertTrue(0 < FileMailStore.getSequence(latestFile.getName()));
+
+		// Crash before the previous file was deleted
+		File previousFile = new File(latestFile.getParentFile(), "mail1+1.msg");
+		FileOutputStream out = new FileOutputStream(previousFile);
+		out.write(raw("mail1", "previous").getBytes("UTF-8"));
+		out.close();
+
+		FileMailStore recoveredStore = createStore(1);
+		Assert.assertEquals("latest", content(recoveredStore.get("mail1")));
+		Assert.assertFalse(previousFile.exists());
+		Assert.assertTrue(latestFile.exists());
+		// New files get a higher sequence than the loaded ones.
+		recoveredStore.set("mail1", message("mail1", "newer"));
+		Assert.assertEquals("newer", content(recoveredStore.get("mail1")));
+		Assert.assertTrue(FileMailStore.getSequence(latestFile.getName()) < FileMailStore.getSequence(messageFiles("mail1").get(0).getName()));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void notClosedStoreIsScanned() throws Exception {
+		FileMailStore store = createStore(1);
+		for( int i = 0; i < 10; i++ )
+			store.set("mail"+i, message("mail"+i, "text"+i));
+		store.remove("mail5");
+
+		// Legacy file name and incomplete write
+		File subDir = new File(tempDir, "1");
+		subDir.mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(subDir, "legacy id.msg"));
+		out.write(raw("legacy id", "legacy").getBytes("UTF-8"));
+		out.close();
+		File tempFile = new File(subDir, "broken.msg.tmp");
+		tempFile.createNewFile();
+
+		FileMailStore recoveredStore = createStore(2);
+		Assert.assertEquals(10, recoveredStore.getMailIds().size());
+		Assert.assertEquals("text0", content(recoveredStore.get("mail0")));
+		Assert.assertEquals("text9", content(recoveredStore.get("mail9")));
+		Assert.assertNull(recoveredStore.get("mail5"));
+		Assert.assertEquals("legacy", content(recoveredStore.get("legacy id")));
+		Assert.assertFalse(tempFile.exists());
+		recoveredStore.close();
+
+		// The scan result is written into the index.
+		FileMailStore loadedStore = createStore(1);
+		Assert.assertEquals(10, loadedStore.getMailIds().size());
+		loadedStore.close();
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.masukomi.aspirin.Aspirin;
+
+/**
+ * <p>Shared fixture of the mail store tests: an empty temporary directory
+ * for every test and the message helpers.</p>
+ *
+ */
+public abstract class MailStoreTestSupport {
+
+	protected File tempDir;
+
+	static String raw(String mailid, String text) {
+		return Aspirin.HEADER_MAIL_ID+": "+mailid+"\r\nSubject: Test\r\n\r\n"+text+"\r\n";
+	}
+
+	static MimeMessage message(String mailid, String text) throws Exception {
+		return new MimeMessage(Session.getDefaultInstance(System.getProperties()), new ByteArrayInputStream(raw(mailid, text).getBytes("UTF-8")));
+	}
+
+	/**
+	 * @return The body of the message.
+	 */
+	static String content(MimeMessage msg) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeTo(out);
+		String raw = out.toString("UTF-8");
+		return raw.substring(raw.indexOf("\r\n\r\n")+4).trim();
+	}
+
+	@Before
+	public void createTempDir() throws Exception {
+		tempDir = File.createTempFile("aspirin-mailstore", "");
+		tempDir.delete();
+		tempDir.mkdirs();
+	}
+
+	@After
+	public void deleteTempDir() {
+		delete(tempDir);
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				if( file.isDirectory() )
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Manual benchmark of the segment mail store against the file mail
+ * store. It is not a unit test, run the main() method. The files are
+ * written into a temporary directory, give another one as the first
+ * argument to measure a specific disk.</p>
+ *
+ * <p>Every store gets the same messages, then a new instance is
+ * initialized from the stored files. The write throughput, the startup
+ * time and the count of files are printed.</p>
+ *
+ */
+public class SegmentMailStoreBenchmark {
+
+	private static final int MESSAGE_SIZE = 4096;
+
+	public static void main(String[] args) throws Exception {
+		File baseDir = ( 0 < args.length ) ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+		int[] sizes = new int[]{10000, 100000};
+		for( int size : sizes )
+		{
+			File fileDir = new File(baseDir, "aspirin-file-benchmark-"+size);
+			delete(fileDir);
+			FileMailStore fileStore = new FileMailStore();
+			fileStore.setRootDir(fileDir);
+			measure(fileStore, size, fileDir);
+			fileStore.close();
+			FileMailStore reopenedFileStore = new FileMailStore();
+			reopenedFileStore.setRootDir(fileDir);
+			measureInit(reopenedFileStore, fileDir);
+			reopenedFileStore.close();
+			delete(fileDir);
+
+			File segmentDir = new File(baseDir, "aspirin-segment-benchmark-"+size);
+			delete(segmentDir);
+			AspirinInternal.getConfiguration().setMailStoreSegmentDir(segmentDir.getAbsolutePath());
+			SegmentMailStore segmentStore = new SegmentMailStore();
+			segmentStore.init();
+			measure(segmentStore, size, segmentDir);
+			segmentStore.close();
+			SegmentMailStore reopenedSegmentStore = new SegmentMailStore();
+			measureInit(reopenedSegmentStore, segmentDir);
+			reopenedSegmentStore.close();
+			delete(segmentDir);
+		}
+	}
+
+	private static void measure(MailStore store, int size, File dir) throws Exception {
+		byte[] raw = createMessage();
+		long start = System.nanoTime();
+		for( int i = 0; i < size; i++ )
+		{
+			MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new ByteArrayInputStream(raw));
+			msg.setHeader(Aspirin.HEADER_MAIL_ID, "bench."+i);
+			store.set("bench."+i, msg);
+		}
+		long setElapsed = System.nanoTime()-start;
+		System.out.println(store.getClass().getSimpleName()+" messages="+size+
+				" set="+(size*1000000000L/Math.max(1, setElapsed))+" messages/s"+
+				" files="+countFiles(dir));
+	}
+
+	private static void measureInit(MailStore store, File dir) {
+		long start = System.nanoTime();
+		store.init();
+		long initElapsed = System.nanoTime()-start;
+		System.out.println(store.getClass().getSimpleName()+" init="+(initElapsed/1000000)+" ms"+
+				" (messages="+store.getMailIds().size()+")");
+	}
+
+	private static byte[] createMessage() throws Exception {
+		StringBuilder msg = new StringBuilder(MESSAGE_SIZE+256);
+		msg.append("From: sender@example.com\r\n");
+		msg.append("To: recipient@example.com\r\n");
+		msg.append("Subject: Benchmark\r\n\r\n");
+		while( msg.length() < MESSAGE_SIZE )
+			msg.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+		return msg.toString().getBytes("US-ASCII");
+	}
+
+	private static int countFiles(File dir) {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+				count += ( file.isDirectory() ) ? countFiles(file) : 1;
+		}
+		return count;
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				if( file.isDirectory() )
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
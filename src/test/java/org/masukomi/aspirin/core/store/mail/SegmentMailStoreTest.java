@@ -0,0 +1,158 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Test of the segment mail store recovery and compaction.</p>
+ *
+ */
+public class SegmentMailStoreTest extends MailStoreTestSupport {
+
+	private String originalSegmentDir;
+	private int originalSegmentSize;
+
+	@Before
+	public void setSegmentDir() {
+		originalSegmentDir = AspirinInternal.getConfiguration().getMailStoreSegmentDir();
+		originalSegmentSize = AspirinInternal.getConfiguration().getMailStoreSegmentSize();
+		AspirinInternal.getConfiguration().setMailStoreSegmentDir(tempDir.getAbsolutePath());
+	}
+
+	@After
+	public void restoreSegmentDir() {
+		AspirinInternal.getConfiguration().setMailStoreSegmentDir(originalSegmentDir);
+		AspirinInternal.getConfiguration().setMailStoreSegmentSize(originalSegmentSize);
+	}
+
+	private SegmentMailStore createStore() {
+		SegmentMailStore store = new SegmentMailStore();
+		store.init();
+		return store;
+	}
+
+	@Test
+	public void messagesAreRecoveredAfterRestart() throws Exception {
+		SegmentMailStore store = createStore();
+		store.set("mail1", message("mail1", "first"));
+		store.set("mail2", message("mail2", "second"));
+		store.set("mail3", message("mail3", "third"));
+		store.set("mail2", message("mail2", "replaced"));
+		store.remove("mail3");
+		Assert.assertEquals("replaced", content(store.get("mail2")));
+		Assert.assertNull(store.get("mail3"));
+		store.close();
+
+		SegmentMailStore recoveredStore = createStore();
+		Assert.assertEquals(2, recoveredStore.getMailIds().size());
+		Assert.assertEquals("first", content(recoveredStore.get("mail1")));
+		Assert.assertEquals("replaced", content(recoveredStore.get("mail2")));
+		Assert.assertNull(recoveredStore.get("mail3"));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void recordLongerThanTheSegmentIsTruncatedTail() throws Exception {
+		SegmentMailStore store = createStore();
+		store.set("mail1", message("mail1", "first"));
+		store.close();
+		File segmentFile = new File(tempDir, "segment-1.log");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(segmentFile, true));
+		out.writeInt(Integer.MAX_VALUE);
+		out.write(new byte[16]);
+		out.close();
+
+		SegmentMailStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.getMailIds().size());
+		Assert.assertEquals("first", content(recoveredStore.get("mail1")));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void tombstoneIsDroppedWithoutOlderRecords() throws Exception {
+		// Every record gets its own segment.
+		AspirinInternal.getConfiguration().setMailStoreSegmentSize(1);
+		SegmentMailStore store = createStore();
+		store.set("mail1", message("mail1", "first"));
+		store.set("mail2", message("mail2", "second"));
+		store.remove("mail1");
+		Assert.assertEquals(2, store.compact());
+		// Only the record of mail2 is left.
+		for( File segmentFile : tempDir.listFiles() )
+		{
+			if( !"segment-2.log".equals(segmentFile.getName()) )
+				Assert.assertEquals(0, segmentFile.length());
+		}
+		store.close();
+
+		SegmentMailStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.getMailIds().size());
+		Assert.assertNull(recoveredStore.get("mail1"));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void loadedMessageIsFoundAfterCompaction() throws Exception {
+		SegmentMailStore store = createStore();
+		for( int i = 1; i <= 4; i++ )
+		{
+			// The first segment is closed after the fourth message.
+			if( i == 4 )
+				AspirinInternal.getConfiguration().setMailStoreSegmentSize(1);
+			store.set("mail"+i, message("mail"+i, "text"+i));
+		}
+		MimeMessage loaded = store.get("mail2");
+		store.remove("mail1");
+		store.remove("mail3");
+		store.remove("mail4");
+		Assert.assertTrue(0 < store.compact());
+		Assert.assertFalse(new File(tempDir, "segment-1.log").exists());
+		Assert.assertEquals("text2", content(loaded));
+		Assert.assertEquals("text2", content(loaded));
+
+		store.remove("mail2");
+		try {
+			content(loaded);
+			Assert.fail("Removed message was read.");
+		} catch (MessagingException me) {
+			// Expected
+		}
+		store.close();
+	}
+
+	@Test
+	public void deadSegmentsAreCompacted() throws Exception {
+		// Every message gets its own segment.
+		AspirinInternal.getConfiguration().setMailStoreSegmentSize(1);
+		SegmentMailStore store = createStore();
+		for( int i = 0; i < 10; i++ )
+			store.set("mail"+i, message("mail"+i, "text"+i));
+		for( int i = 0; i < 10; i++ )
+		{
+			if( i != 5 )
+				store.remove("mail"+i);
+		}
+		int segmentCount = tempDir.list().length;
+		Assert.assertTrue(0 < store.compact());
+		Assert.assertTrue(tempDir.list().length < segmentCount);
+		Assert.assertEquals("text5", content(store.get("mail5")));
+		store.close();
+
+		// The removed messages are not recovered from the remaining segments.
+		SegmentMailStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.getMailIds().size());
+		Assert.assertEquals("text5", content(recoveredStore.get("mail5")));
+		recoveredStore.close();
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Manual benchmark of the ingest rate of the write-behind mail store
+ * against the file mail store. It is not a unit test, run the main()
+ * method. The files are written into a temporary directory, give another
+ * one as the first argument to measure a specific disk.</p>
+ *
+ * <p>Some threads store the same count of messages. The rate is measured
+ * until every call returned and until every message is synced. The file
+ * mail store is measured without syncing, like it was used before, and
+ * with a sync after every message.</p>
+ *
+ */
+public class WriteBehindMailStoreBenchmark {
+
+	private static final int MESSAGE_SIZE = 4096;
+	private static final int MESSAGES = 20000;
+	private static final int THREADS = 8;
+
+	public static void main(String[] args) throws Exception {
+		File baseDir = ( 0 < args.length ) ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+		byte[] raw = createMessage();
+
+		File fileDir = new File(baseDir, "aspirin-writebehind-benchmark-files");
+		measure("FileMailStore", createFileStore(fileDir), raw, false, false);
+		measure("FileMailStore sync", createFileStore(fileDir), raw, false, true);
+		measure("WriteBehindMailStore(FileMailStore)", new WriteBehindMailStore(createFileStore(fileDir)), raw, false, false);
+		measure("WriteBehindMailStore(FileMailStore) sync", new WriteBehindMailStore(createFileStore(fileDir)), raw, true, false);
+
+		File segmentDir = new File(baseDir, "aspirin-writebehind-benchmark-segments");
+		AspirinInternal.getConfiguration().setMailStoreSegmentDir(segmentDir.getAbsolutePath());
+		measure("WriteBehindMailStore(SegmentMailStore)", new WriteBehindMailStore(new SegmentMailStore()), raw, false, false);
+		measure("WriteBehindMailStore(SegmentMailStore) sync", new WriteBehindMailStore(new SegmentMailStore()), raw, true, false);
+		delete(fileDir);
+		delete(segmentDir);
+	}
+
+	private static FileMailStore createFileStore(File rootDir) {
+		FileMailStore store = new FileMailStore();
+		store.setRootDir(rootDir);
+		return store;
+	}
+
+	/**
+	 * @param sync Wait for the sync in the write-behind store.
+	 * @param flushEvery Flush the store after every message.
+	 */
+	private static void measure(String name, final MailStore store, final byte[] raw, final boolean sync, final boolean flushEvery) throws Exception {
+		if( store instanceof FileMailStore )
+			delete(((FileMailStore)store).getRootDir());
+		else
+			delete(new File(AspirinInternal.getConfiguration().getMailStoreSegmentDir()));
+		store.init();
+		Thread[] threads = new Thread[THREADS];
+		long start = System.nanoTime();
+		for( int t = 0; t < threads.length; t++ )
+		{
+			final int threadNumber = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for( int i = threadNumber; i < MESSAGES; i += THREADS )
+						{
+							MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new ByteArrayInputStream(raw));
+							msg.setHeader(Aspirin.HEADER_MAIL_ID, "bench."+i);
+							if( store instanceof WriteBehindMailStore )
+								((WriteBehindMailStore)store).set("bench."+i, msg, sync);
+							else
+								store.set("bench."+i, msg);
+							if( flushEvery )
+								((Flushable)store).flush();
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for( Thread thread : threads )
+			thread.join();
+		long setElapsed = System.nanoTime()-start;
+		((Flushable)store).flush();
+		long syncElapsed = System.nanoTime()-start;
+		System.out.println(name+" messages="+MESSAGES+" threads="+THREADS+
+				" set="+(MESSAGES*1000000000L/Math.max(1, setElapsed))+" messages/s"+
+				" synced="+(MESSAGES*1000000000L/Math.max(1, syncElapsed))+" messages/s");
+		((Closeable)store).close();
+	}
+
+	private static byte[] createMessage() throws Exception {
+		StringBuilder msg = new StringBuilder(MESSAGE_SIZE+256);
+		msg.append("From: sender@example.com\r\n");
+		msg.append("To: recipient@example.com\r\n");
+		msg.append("Subject: Benchmark\r\n\r\n");
+		while( msg.length() < MESSAGE_SIZE )
+			msg.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+		return msg.toString().getBytes("US-ASCII");
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				if( file.isDirectory() )
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,234 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the write-behind mail store ordering, durability and group
+ * commits.</p>
+ *
+ */
+public class WriteBehindMailStoreTest extends MailStoreTestSupport {
+
+	/**
+	 * Backing store counting the flushes. The writes wait for the gate, the
+	 * flushes take some time or fail, the failing message is not stored.
+	 */
+	private static class FlushCountingStore extends SimpleMailStore implements Flushable {
+		final AtomicInteger flushCount = new AtomicInteger();
+		final CountDownLatch gate;
+		final long flushTime;
+		volatile boolean failing = false;
+		volatile String failingMailid = null;
+
+		FlushCountingStore(CountDownLatch gate, long flushTime) {
+			this.gate = gate;
+			this.flushTime = flushTime;
+		}
+
+		@Override
+		public synchronized MimeMessage get(String mailid) {
+			return super.get(mailid);
+		}
+
+		@Override
+		public synchronized void remove(String mailid) {
+			super.remove(mailid);
+		}
+
+		@Override
+		public Set<String> setAll(Map<String, MimeMessage> messages) {
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			Set<String> failedMailids = new HashSet<String>();
+			synchronized (this) {
+				for( Map.Entry<String, MimeMessage> message : messages.entrySet() )
+				{
+					if( message.getKey().equals(failingMailid) )
+						failedMailids.add(message.getKey());
+					else
+						super.set(message.getKey(), message.getValue());
+				}
+			}
+			return failedMailids;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushCount.incrementAndGet();
+			try {
+				Thread.sleep(flushTime);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			if( failing )
+				throw new IOException("Test failure");
+		}
+	}
+
+	@Test
+	public void waitingOperationsAreServedInOrder() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		FlushCountingStore backingStore = new FlushCountingStore(gate, 0);
+		WriteBehindMailStore store = new WriteBehindMailStore(backingStore);
+		store.init();
+		MimeMessage msg1 = message("mail1", "Text");
+		Assert.assertTrue(store.set("mail1", msg1, false));
+		store.set("mail2", message("mail2", "Text"), false);
+		store.remove("mail2");
+		// Nothing is written yet.
+		Assert.assertNull(backingStore.get("mail1"));
+		Assert.assertSame(msg1, store.get("mail1"));
+		Assert.assertNull(store.get("mail2"));
+		Assert.assertEquals(1, store.getMailIds().size());
+
+		gate.countDown();
+		store.flush();
+		Assert.assertSame(msg1, backingStore.get("mail1"));
+		Assert.assertNull(backingStore.get("mail2"));
+		Assert.assertTrue(0 < backingStore.flushCount.get());
+		store.close();
+	}
+
+	@Test
+	public void waitingCallsAreSyncedByGroupCommits() throws Exception {
+		final FlushCountingStore backingStore = new FlushCountingStore(new CountDownLatch(0), 5);
+		final WriteBehindMailStore store = new WriteBehindMailStore(backingStore);
+		store.init();
+		final AtomicInteger synced = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for( int t = 0; t < threads.length; t++ )
+		{
+			final int threadNumber = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for( int i = 0; i < 20; i++ )
+						{
+							String mailid = "mail"+threadNumber+"."+i;
+							if( store.set(mailid, message(mailid, "Text"), true) && backingStore.get(mailid) != null )
+								synced.incrementAndGet();
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for( Thread thread : threads )
+			thread.join();
+		Assert.assertEquals(160, synced.get());
+		// The concurrent messages share the flushes.
+		Assert.assertTrue(backingStore.flushCount.get() < 160);
+
+		backingStore.failing = true;
+		Assert.assertFalse(store.set("failed", message("failed", "Text"), true));
+		store.close();
+	}
+
+	@Test
+	public void messagesAddedByAspirinShareGroupCommits() throws Exception {
+		Configuration configuration = Aspirin.getConfiguration();
+		MailStore previousMailStore = configuration.getMailStore();
+		boolean previousSync = configuration.isMailStoreWriteBehindSync();
+		final FlushCountingStore backingStore = new FlushCountingStore(new CountDownLatch(0), 5);
+		final WriteBehindMailStore store = new WriteBehindMailStore(backingStore);
+		store.init();
+		configuration.setDnsPrefetchThreads(0);
+		configuration.setMailStoreWriteBehindSync(true);
+		configuration.setMailStore(store);
+		final Set<String> mailids = Collections.synchronizedSet(new HashSet<String>());
+		try {
+			Thread[] threads = new Thread[8];
+			for( int t = 0; t < threads.length; t++ )
+			{
+				final int threadNumber = t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for( int i = 0; i < 20; i++ )
+							{
+								String mailid = "added"+threadNumber+"."+i;
+								MimeMessage msg = message(mailid, "Text");
+								msg.setHeader("To", "user@example.com");
+								Aspirin.add(msg);
+								mailids.add(mailid);
+							}
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for( Thread thread : threads )
+				thread.join();
+			Assert.assertEquals(160, mailids.size());
+			// The adds do not wait for the commits in the mailing lock.
+			Assert.assertTrue(backingStore.flushCount.get() < 160);
+		} finally {
+			for( String mailid : mailids )
+				Aspirin.remove(mailid);
+			configuration.setMailStore(previousMailStore);
+			configuration.setMailStoreWriteBehindSync(previousSync);
+			store.close();
+		}
+	}
+
+	@Test
+	public void failedMessageFailsItsOwnWaiter() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		FlushCountingStore backingStore = new FlushCountingStore(gate, 0);
+		backingStore.failingMailid = "bad";
+		final WriteBehindMailStore store = new WriteBehindMailStore(backingStore);
+		store.init();
+		final boolean[] results = new boolean[2];
+		final String[] mailids = new String[]{"good", "bad"};
+		Thread[] threads = new Thread[2];
+		for( int t = 0; t < threads.length; t++ )
+		{
+			final int threadNumber = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[threadNumber] = store.set(mailids[threadNumber], message(mailids[threadNumber], "Text"), true);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		// Both messages are waiting, they are likely written by one commit.
+		Thread.sleep(100);
+		gate.countDown();
+		for( Thread thread : threads )
+			thread.join();
+		Assert.assertTrue(results[0]);
+		Assert.assertFalse(results[1]);
+		Assert.assertNotNull(backingStore.get("good"));
+		Assert.assertNull(backingStore.get("bad"));
+		store.close();
+	}
+
+}
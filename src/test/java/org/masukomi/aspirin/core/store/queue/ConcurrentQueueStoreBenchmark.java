@@ -0,0 +1,95 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * <p>Manual multi-producer/multi-consumer benchmark. It is not a unit test,
+ * run the main() method.</p>
+ *
+ * <p>Producer threads add mails, consumer threads take the items by
+ * nextBlocking(), set them SENT and remove the completed mails like the
+ * delivery manager. The throughput of {@link IndexedQueueStore} (one lock)
+ * and {@link ConcurrentQueueStore} (striped locks) are compared with
+ * different thread counts. The {@link SimpleQueueStore} is not measured,
+ * because its next() sorts the whole queue and it is not safe with more
+ * consumer threads.</p>
+ *
+ */
+public class ConcurrentQueueStoreBenchmark {
+
+	private static final int MAILS = 200000;
+	private static final int RECIPIENTS_PER_MAIL = 5;
+
+	public static void main(String[] args) throws Exception {
+		int[] threadCounts = new int[]{1, 4, 16};
+		for( int threadCount : threadCounts )
+		{
+			measure(new IndexedQueueStore(), threadCount);
+			measure(new ConcurrentQueueStore(), threadCount);
+		}
+	}
+
+	private static void measure(final BlockingQueueStore store, int threadCount) throws Exception {
+		store.init();
+		final Collection<InternetAddress> recipients = new ArrayList<InternetAddress>(RECIPIENTS_PER_MAIL);
+		for( int i = 0; i < RECIPIENTS_PER_MAIL; i++ )
+			recipients.add(new InternetAddress("user"+i+"@example.com"));
+		final AtomicInteger nextMail = new AtomicInteger();
+		final AtomicInteger delivered = new AtomicInteger();
+		final int total = MAILS*RECIPIENTS_PER_MAIL;
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int p = 0; p < threadCount; p++ )
+		{
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						int mail = 0;
+						while( (mail = nextMail.getAndIncrement()) < MAILS )
+							store.add("bench."+mail, -1L, recipients);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for( int c = 0; c < threadCount; c++ )
+		{
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while( delivered.get() < total )
+						{
+							QueueInfo qi = store.nextBlocking(100);
+							if( qi == null )
+								continue;
+							qi.setState(DeliveryState.SENT);
+							store.setSendingResult(qi);
+							if( store.isCompleted(qi.getMailid()) )
+								store.remove(qi.getMailid());
+							delivered.incrementAndGet();
+						}
+					} catch (InterruptedException ie) {
+						// Finished
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for( Thread thread : threads )
+			thread.start();
+		for( Thread thread : threads )
+			thread.join();
+		long elapsed = System.nanoTime()-start;
+		System.out.println(store.getClass().getSimpleName()+" producers="+threadCount+" consumers="+threadCount+
+				" recipients="+total+" throughput="+(total*1000000000L/Math.max(1, elapsed))+" recipients/s"+
+				" (remaining mails="+store.size()+")");
+	}
+
+}
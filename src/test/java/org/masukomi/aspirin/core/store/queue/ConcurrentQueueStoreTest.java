@@ -0,0 +1,93 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the striped queue store.</p>
+ *
+ */
+public class ConcurrentQueueStoreTest {
+
+	@Test
+	public void itemsOfAllStripesAreDelivered() throws Exception {
+		ConcurrentQueueStore store = new ConcurrentQueueStore();
+		for( int i = 0; i < 100; i++ )
+			store.add("mail"+i, -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		Assert.assertEquals(100, store.size());
+
+		QueueInfo first = store.next();
+		List<QueueInfo> coRecipients = store.nextCoRecipients(first, 10);
+		Assert.assertEquals(1, coRecipients.size());
+		Assert.assertEquals(first.getMailid(), coRecipients.get(0).getMailid());
+		int count = 2;
+		while( store.next() != null )
+			count++;
+		Assert.assertEquals(200, count);
+		Assert.assertFalse(store.isCompleted("mail1"));
+
+		store.removeRecipient("a@example.com");
+		store.removeRecipient("b@example.com");
+		Assert.assertEquals(0, store.size());
+		Assert.assertTrue(store.clean().isEmpty());
+	}
+
+	@Test
+	public void concurrentProducersAndConsumers() throws Exception {
+		final ConcurrentQueueStore store = new ConcurrentQueueStore();
+		final int mailsPerProducer = 500;
+		final ConcurrentHashMap<String, Boolean> delivered = new ConcurrentHashMap<String, Boolean>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int p = 0; p < 4; p++ )
+		{
+			final int producer = p;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for( int i = 0; i < mailsPerProducer; i++ )
+							store.add("mail"+producer+"."+i, -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for( int c = 0; c < 4; c++ )
+		{
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						QueueInfo qi = null;
+						while( (qi = store.nextBlocking(500)) != null )
+						{
+							if( delivered.putIfAbsent(qi.getComplexId(), Boolean.TRUE) != null )
+								duplicates.incrementAndGet();
+							qi.setState(DeliveryState.SENT);
+							store.setSendingResult(qi);
+							if( store.isCompleted(qi.getMailid()) )
+								store.remove(qi.getMailid());
+						}
+					} catch (InterruptedException ie) {
+						// Finished
+					}
+				}
+			});
+		}
+		for( Thread thread : threads )
+			thread.start();
+		for( Thread thread : threads )
+			thread.join();
+		Assert.assertEquals(0, duplicates.get());
+		Assert.assertEquals(4*mailsPerProducer*2, delivered.size());
+		Assert.assertEquals(0, store.size());
+	}
+
+}
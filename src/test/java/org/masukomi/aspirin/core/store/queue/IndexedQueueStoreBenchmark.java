@@ -0,0 +1,68 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * <p>Manual benchmark of next() cost by queue size. It is not a unit test,
+ * run the main() method with a big heap (for example -Xmx4g), because the
+ * largest queue contains 5M recipients.</p>
+ *
+ * <p>The per-call cost of {@link IndexedQueueStore} has to be (nearly) flat
+ * between the queue sizes. The {@link SimpleQueueStore} is measured only up to
+ * 100k recipients, because it sorts the whole queue on every call.</p>
+ *
+ */
+public class IndexedQueueStoreBenchmark {
+
+	private static final int RECIPIENTS_PER_MAIL = 100;
+	private static final int MEASURED_CALLS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = new int[]{10000, 100000, 1000000, 5000000};
+		for( int size : sizes )
+			measure(new IndexedQueueStore(), size);
+		for( int size : sizes )
+		{
+			if( 100000 < size )
+				break;
+			measure(new SimpleQueueStore(), size);
+		}
+	}
+
+	private static void measure(QueueStore store, int size) throws Exception {
+		fill(store, size);
+		// Warm up with a few calls, then measure next() and re-keying.
+		cycle(store, 1000);
+		long start = System.nanoTime();
+		int calls = cycle(store, MEASURED_CALLS);
+		long elapsed = System.nanoTime()-start;
+		System.out.println(store.getClass().getSimpleName()+" size="+size+
+				" calls="+calls+" next+setSendingResult="+(elapsed/Math.max(1, calls))+" ns/call");
+	}
+
+	private static void fill(QueueStore store, int size) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>(RECIPIENTS_PER_MAIL);
+		for( int i = 0; i < RECIPIENTS_PER_MAIL; i++ )
+			recipients.add(new InternetAddress("user"+i+"@example.com"));
+		for( int i = 0; i < size/RECIPIENTS_PER_MAIL; i++ )
+			store.add("bench."+i, -1L, recipients);
+	}
+
+	private static int cycle(QueueStore store, int count) {
+		int calls = 0;
+		for( int i = 0; i < count; i++ )
+		{
+			QueueInfo qi = store.next();
+			if( qi == null )
+				break;
+			qi.setState(DeliveryState.QUEUED);
+			store.setSendingResult(qi);
+			calls++;
+		}
+		return calls;
+	}
+
+}
@@ -0,0 +1,251 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.listener.AspirinListener;
+import org.masukomi.aspirin.core.listener.ResultState;
+
+/**
+ * <p>Test of the attempt time ordered queue store.</p>
+ *
+ */
+public class IndexedQueueStoreTest {
+
+	@Test
+	public void nextGivesBackItemsInInsertionOrder() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("c@example.com"));
+
+		Assert.assertEquals("a@example.com", store.next().getRecipient());
+		Assert.assertEquals("b@example.com", store.next().getRecipient());
+		Assert.assertEquals("c@example.com", store.next().getRecipient());
+		Assert.assertNull(store.next());
+	}
+
+	@Test
+	public void releasedItemIsRescheduledAfterAttemptDelay() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+
+		QueueInfo first = store.next();
+		first.setState(DeliveryState.QUEUED);
+		store.setSendingResult(first);
+		Assert.assertTrue(System.currentTimeMillis() < store.getNextAttempt("mail1", "a@example.com"));
+
+		// The released item goes to the end of the schedule
+		Assert.assertEquals("b@example.com", store.next().getRecipient());
+		Assert.assertNull(store.next());
+	}
+
+	@Test
+	public void completionAndRemoval() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("b@example.com"));
+		Assert.assertEquals(2, store.size());
+
+		QueueInfo qi = store.next();
+		Assert.assertFalse(store.isCompleted("mail1"));
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertTrue(store.isCompleted("mail1"));
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", "a@example.com"));
+
+		store.remove("mail2");
+		Assert.assertEquals(1, store.size());
+		Assert.assertNull(store.next());
+		Assert.assertTrue(store.clean().isEmpty());
+		Assert.assertEquals(0, store.size());
+	}
+
+	@Test
+	public void coRecipientsAreGroupedByMailAndDomain() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@other.com", "c@EXAMPLE.com", "d@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("e@example.com"));
+
+		QueueInfo first = store.next();
+		Assert.assertEquals("a@example.com", first.getRecipient());
+		List<QueueInfo> coRecipients = store.nextCoRecipients(first, 1);
+		Assert.assertEquals(1, coRecipients.size());
+		Assert.assertEquals("c@EXAMPLE.com", coRecipients.get(0).getRecipient());
+		Assert.assertTrue(coRecipients.get(0).hasState(DeliveryState.IN_PROGRESS));
+
+		// Grouped items are taken out of the schedule
+		Assert.assertEquals("b@other.com", store.next().getRecipient());
+		Assert.assertEquals("d@example.com", store.next().getRecipient());
+		Assert.assertEquals("e@example.com", store.next().getRecipient());
+		Assert.assertNull(store.next());
+	}
+
+	@Test
+	public void coRecipientsAreTakenFromTheirOwnSchedule() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		// The same "mailid-domain" text for different mails
+		store.add("mail-a", -1L, QueueStoreTestSupport.recipients("a@b.com", "b@b.com", "c@b.com", "d@other.com"));
+		store.add("mail", -1L, QueueStoreTestSupport.recipients("e@a-b.com"));
+
+		QueueInfo first = store.next();
+		Assert.assertEquals("a@b.com", first.getRecipient());
+		QueueInfo second = store.nextCoRecipients(first, 1).get(0);
+		Assert.assertEquals("b@b.com", second.getRecipient());
+		// The requeued item waits for its next attempt.
+		second.setState(DeliveryState.QUEUED);
+		store.setSendingResult(second);
+		List<QueueInfo> coRecipients = store.nextCoRecipients(first, 10);
+		Assert.assertEquals(1, coRecipients.size());
+		Assert.assertEquals("c@b.com", coRecipients.get(0).getRecipient());
+		Assert.assertTrue(store.nextCoRecipients(first, 10).isEmpty());
+
+		store.remove("mail-a");
+		Assert.assertEquals("e@a-b.com", store.next().getRecipient());
+		Assert.assertNull(store.next());
+	}
+
+	@Test
+	public void blockingNextIsWakedUpByAdd() throws Exception {
+		final IndexedQueueStore store = new IndexedQueueStore();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+					store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		producer.start();
+		QueueInfo qi = store.nextBlocking(10000);
+		Assert.assertNotNull(qi);
+		Assert.assertEquals("a@example.com", qi.getRecipient());
+		Assert.assertTrue(System.currentTimeMillis()-start < 5000);
+		Assert.assertNull(store.nextBlocking(10));
+	}
+
+	@Test
+	public void expiredItemsAreReapedAndCompletedMailsRemoved() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		long expired = System.currentTimeMillis()-120000;
+		store.add("mail1", expired, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		store.add("mail2", expired, QueueStoreTestSupport.recipients("c@example.com"));
+		store.add("mail3", -1L, QueueStoreTestSupport.recipients("d@example.com"));
+
+		// The item in progress is failed on release, its mail is kept.
+		QueueInfo inProgress = store.next();
+		Assert.assertEquals("d@example.com", inProgress.getRecipient());
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("e@example.com"));
+		List<String> removed = store.reapExpired();
+		Assert.assertEquals(1, removed.size());
+		Assert.assertEquals("mail1", removed.get(0));
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail2", "c@example.com"));
+		Assert.assertFalse(store.isCompleted("mail2"));
+		Assert.assertEquals(2, store.size());
+
+		inProgress.setState(DeliveryState.SENT);
+		store.setSendingResult(inProgress);
+		Assert.assertTrue(store.isCompleted("mail3"));
+		store.removeRecipient("e@example.com");
+		removed = store.reapExpired();
+		Assert.assertEquals(2, removed.size());
+		Assert.assertTrue(removed.contains("mail2"));
+		Assert.assertTrue(removed.contains("mail3"));
+		Assert.assertEquals(0, store.size());
+		Assert.assertTrue(store.reapExpired().isEmpty());
+	}
+
+	@Test
+	public void progressIsCounted() throws Exception {
+		IndexedQueueStore store = new IndexedQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@example.com"));
+		Assert.assertEquals(3, store.getProgress("mail1").getPending());
+
+		QueueInfo first = store.next();
+		first.setState(DeliveryState.SENT);
+		store.setSendingResult(first);
+		QueueInfo second = store.next();
+		second.setState(DeliveryState.FAILED);
+		store.setSendingResult(second);
+		DeliveryProgress progress = store.getProgress("mail1");
+		Assert.assertEquals(1, progress.getPending());
+		Assert.assertEquals(1, progress.getSent());
+		Assert.assertEquals(1, progress.getFailed());
+		Assert.assertEquals(3, progress.getTotal());
+
+		// The mail is completed by the sending result, not by the state.
+		QueueInfo last = store.next();
+		last.setState(DeliveryState.SENT);
+		Assert.assertFalse(store.isCompleted("mail1"));
+		store.setSendingResult(last);
+		Assert.assertTrue(store.isCompleted("mail1"));
+		Assert.assertTrue(store.getProgress("mail1").isCompleted());
+
+		store.remove("mail1");
+		Assert.assertNull(store.getProgress("mail1"));
+	}
+
+	@Test
+	public void completionIsNotifiedOnce() throws Exception {
+		final IndexedQueueStore store = new IndexedQueueStore();
+		final AtomicInteger finished = new AtomicInteger();
+		AspirinListener listener = new AspirinListener() {
+			@Override
+			public void delivered(String mailId, String recipient, ResultState state, String resultContent) {
+				if( state == ResultState.FINISHED && mailId.startsWith("once.") )
+					finished.incrementAndGet();
+			}
+		};
+		AspirinInternal.addListener(listener);
+		try {
+			final QueueInfo[][] items = new QueueInfo[100][2];
+			for( int i = 0; i < items.length; i++ )
+			{
+				store.add("once."+i, -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+				items[i][0] = store.next();
+				items[i][1] = store.next();
+			}
+			// Both recipients of every mail are completed at the same time.
+			final CyclicBarrier barrier = new CyclicBarrier(2);
+			Thread[] threads = new Thread[2];
+			for( int t = 0; t < threads.length; t++ )
+			{
+				final int column = t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for( QueueInfo[] mailItems : items )
+							{
+								barrier.await();
+								mailItems[column].setState(DeliveryState.SENT);
+								store.setSendingResult(mailItems[column]);
+							}
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for( Thread thread : threads )
+				thread.join();
+
+			long deadline = System.currentTimeMillis()+10000;
+			while( finished.get() < items.length && System.currentTimeMillis() < deadline )
+				Thread.sleep(10);
+			Thread.sleep(100);
+			Assert.assertEquals(items.length, finished.get());
+		} finally {
+			AspirinInternal.removeListener(listener);
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the JDBC queue store on an embedded H2 database in file
+ * mode.</p>
+ *
+ */
+public class JdbcQueueStoreTest extends QueueStoreTestSupport<JdbcQueueStore> {
+
+	private String originalUrl;
+	private int originalBatchSize;
+	private int originalCommitInterval;
+
+	@Override
+	protected void configure(Configuration configuration) {
+		originalUrl = configuration.getQueueStoreJdbcUrl();
+		originalBatchSize = configuration.getQueueStoreJdbcBatchSize();
+		originalCommitInterval = configuration.getQueueStoreJdbcCommitInterval();
+		configuration.setQueueStoreJdbcUrl("jdbc:h2:"+new File(tempDir, "queue").getAbsolutePath());
+		configuration.setQueueStoreJdbcBatchSize(2);
+	}
+
+	@Override
+	protected void restoreConfiguration(Configuration configuration) {
+		configuration.setQueueStoreJdbcUrl(originalUrl);
+		configuration.setQueueStoreJdbcBatchSize(originalBatchSize);
+		configuration.setQueueStoreJdbcCommitInterval(originalCommitInterval);
+	}
+
+	@Override
+	protected JdbcQueueStore newStore() {
+		return new JdbcQueueStore();
+	}
+
+	private static QueueInfo queueInfo(String mailid, String recipient) {
+		QueueInfo qi = new QueueInfo();
+		qi.setMailid(mailid);
+		qi.setRecipient(recipient);
+		qi.setExpiry(-1L);
+		return qi;
+	}
+
+	@Test
+	public void queueOperations() throws Exception {
+		JdbcQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@other.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		Assert.assertEquals(2, store.size());
+
+		QueueInfo qi = store.next();
+		List<QueueInfo> coRecipients = store.nextCoRecipients(qi, 10);
+		if( "c@other.com".equals(qi.getRecipient()) || "mail2".equals(qi.getMailid()) )
+			Assert.assertTrue(coRecipients.isEmpty());
+		else
+			Assert.assertEquals(1, coRecipients.size());
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertTrue(store.hasBeenRecipientHandled(qi.getMailid(), qi.getRecipient()));
+		Assert.assertEquals(1, qi.getAttemptCount());
+
+		store.removeRecipient("a@example.com");
+		store.removeRecipient("b@example.com");
+		Assert.assertTrue(store.isCompleted("mail2"));
+		Assert.assertEquals(1, store.size());
+		store.remove("mail1");
+		Assert.assertEquals(0, store.size());
+		Assert.assertNull(store.next());
+		store.close();
+	}
+
+	@Test
+	public void stateIsKeptAfterRestart() throws Exception {
+		JdbcQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("d@example.com"));
+		store.remove("mail2");
+
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+		QueueInfo requeued = store.next();
+		requeued.setState(DeliveryState.QUEUED);
+		requeued.setResultInfo("Temporary failure");
+		store.setSendingResult(requeued);
+		long nextAttempt = store.getNextAttempt("mail1", requeued.getRecipient());
+		Assert.assertTrue(System.currentTimeMillis() < nextAttempt);
+		// This one is in progress while the store is closed.
+		QueueInfo inProgress = store.next();
+		store.close();
+
+		JdbcQueueStore reopenedStore = createStore();
+		Assert.assertEquals(1, reopenedStore.size());
+		Assert.assertTrue(reopenedStore.hasBeenRecipientHandled("mail1", sent.getRecipient()));
+		Assert.assertEquals(nextAttempt, reopenedStore.getNextAttempt("mail1", requeued.getRecipient()));
+		Assert.assertEquals(0, reopenedStore.getNextAttempt("mail1", inProgress.getRecipient()));
+		Assert.assertEquals(-1, reopenedStore.getNextAttempt("mail2", "d@example.com"));
+		QueueInfo qi = reopenedStore.next();
+		Assert.assertEquals(inProgress.getRecipient(), qi.getRecipient());
+		Assert.assertEquals(0, qi.getAttemptCount());
+		Assert.assertNull(reopenedStore.next());
+		Assert.assertFalse(reopenedStore.isCompleted("mail1"));
+		reopenedStore.close();
+	}
+
+	@Test
+	public void claimedItemsAreDeliveredOnce() throws Exception {
+		JdbcQueueStore store = createStore();
+		for( int i = 0; i < 10; i++ )
+			store.add("mail"+i, -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		Set<String> delivered = new HashSet<String>();
+		QueueInfo qi = null;
+		while( (qi = store.next()) != null )
+		{
+			Assert.assertTrue(delivered.add(qi.getComplexId()));
+			qi.setState(DeliveryState.SENT);
+			store.setSendingResult(qi);
+			if( store.isCompleted(qi.getMailid()) )
+				store.remove(qi.getMailid());
+		}
+		Assert.assertEquals(20, delivered.size());
+		Assert.assertEquals(0, store.size());
+		Assert.assertTrue(store.clean().isEmpty());
+		store.close();
+	}
+
+	@Test
+	public void bulkAddInsertsAndRequeues() throws Exception {
+		JdbcQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+
+		// New and existing mails are mixed, mail2 comes back in a later run.
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+		queueInfos.add(queueInfo("mail2", "a@example.com"));
+		queueInfos.add(queueInfo("mail2", "a@example.com"));
+		queueInfos.add(queueInfo("mail1", "a@example.com"));
+		queueInfos.add(queueInfo("mail1", "b@example.com"));
+		queueInfos.add(queueInfo("mail3", "a@example.com"));
+		queueInfos.add(queueInfo("mail2", "b@example.com"));
+		store.addAll(queueInfos);
+		Assert.assertEquals(3, store.size());
+		Assert.assertFalse(store.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertEquals(0, store.getNextAttempt("mail1", "a@example.com"));
+		Assert.assertEquals(0, store.getNextAttempt("mail2", "b@example.com"));
+
+		Set<String> claimed = new HashSet<String>();
+		QueueInfo qi = null;
+		while( (qi = store.next()) != null )
+			Assert.assertTrue(claimed.add(qi.getComplexId()));
+		Assert.assertEquals(5, claimed.size());
+		store.close();
+	}
+
+	@Test
+	public void failedAddIsRolledBack() throws Exception {
+		JdbcQueueStore store = createStore();
+		store.add("mail0", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+
+		// The recipient is longer than the column, it fails after the first row.
+		StringBuilder longRecipient = new StringBuilder();
+		while( longRecipient.length() < 300 )
+			longRecipient.append("x");
+		longRecipient.append("@example.com");
+		try {
+			store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", longRecipient.toString()));
+			Assert.fail("Too long recipient was queued.");
+		} catch (MessagingException me) {
+			// Expected
+		}
+		Assert.assertEquals(-1, store.getNextAttempt("mail1", "a@example.com"));
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+		queueInfos.add(queueInfo("mail2", "a@example.com"));
+		queueInfos.add(queueInfo("mail3", longRecipient.toString()));
+		try {
+			store.addAll(queueInfos);
+			Assert.fail("Too long recipient was queued.");
+		} catch (MessagingException me) {
+			// Expected
+		}
+		Assert.assertEquals(-1, store.getNextAttempt("mail2", "a@example.com"));
+		Assert.assertEquals(1, store.size());
+		store.close();
+
+		// The sending result collected before the failures is kept.
+		JdbcQueueStore reopenedStore = createStore();
+		Assert.assertEquals(1, reopenedStore.size());
+		Assert.assertTrue(reopenedStore.hasBeenRecipientHandled("mail0", "a@example.com"));
+		reopenedStore.close();
+	}
+
+	@Test
+	public void concurrentWorkersClaimEveryRecipientOnce() throws Exception {
+		AspirinInternal.getConfiguration().setQueueStoreJdbcBatchSize(16);
+		// The commit thread commits while the workers claim.
+		AspirinInternal.getConfiguration().setQueueStoreJdbcCommitInterval(5);
+		final JdbcQueueStore store = createStore();
+		for( int i = 0; i < 200; i++ )
+			store.add("mail"+i, -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		final Set<String> delivered = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		Thread[] workers = new Thread[4];
+		for( int t = 0; t < workers.length; t++ )
+		{
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					QueueInfo qi = null;
+					while( (qi = store.next()) != null )
+					{
+						if( !delivered.add(qi.getComplexId()) )
+							duplicates.incrementAndGet();
+						qi.setState(DeliveryState.SENT);
+						store.setSendingResult(qi);
+						if( store.isCompleted(qi.getMailid()) )
+							store.remove(qi.getMailid());
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for( Thread worker : workers )
+			worker.join();
+		Assert.assertEquals(0, duplicates.get());
+		Assert.assertEquals(400, delivered.size());
+		Assert.assertEquals(0, store.size());
+		store.close();
+
+		JdbcQueueStore reopenedStore = createStore();
+		Assert.assertEquals(0, reopenedStore.size());
+		reopenedStore.close();
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.mail.internet.InternetAddress;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+
+/**
+ * <p>Manual benchmark of journal write throughput and recovery time. It is
+ * not a unit test, run the main() method with a big heap (for example
+ * -Xmx8g), because the largest queue contains 10M recipients. The journal is
+ * written into a temporary directory, give another one as the first
+ * argument to measure a specific disk.</p>
+ *
+ * <p>Every size is measured in three steps: adding the recipients (one
+ * journal record per mail), setting a sending result for every recipient
+ * (one record per recipient, this is the common write) and recovering the
+ * store from the snapshot and the journal in a new instance.</p>
+ *
+ */
+public class JournaledQueueStoreBenchmark {
+
+	private static final int RECIPIENTS_PER_MAIL = 100;
+
+	public static void main(String[] args) throws Exception {
+		File baseDir = ( 0 < args.length ) ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"));
+		int[] sizes = new int[]{1000000, 10000000};
+		for( int size : sizes )
+		{
+			File journalDir = new File(baseDir, "aspirin-journal-benchmark-"+size);
+			delete(journalDir);
+			AspirinInternal.getConfiguration().setQueueStoreJournalDir(journalDir.getAbsolutePath());
+			measure(size);
+			delete(journalDir);
+		}
+	}
+
+	private static void measure(int size) throws Exception {
+		JournaledQueueStore store = new JournaledQueueStore();
+		store.init();
+
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>(RECIPIENTS_PER_MAIL);
+		for( int i = 0; i < RECIPIENTS_PER_MAIL; i++ )
+			recipients.add(new InternetAddress("user"+i+"@example.com"));
+		long start = System.nanoTime();
+		for( int i = 0; i < size/RECIPIENTS_PER_MAIL; i++ )
+			store.add("bench."+i, -1L, recipients);
+		long addElapsed = System.nanoTime()-start;
+
+		start = System.nanoTime();
+		int results = 0;
+		QueueInfo qi = null;
+		while( (qi = store.next()) != null )
+		{
+			qi.setState(DeliveryState.QUEUED);
+			store.setSendingResult(qi);
+			results++;
+		}
+		long resultElapsed = System.nanoTime()-start;
+		store.close();
+
+		start = System.nanoTime();
+		JournaledQueueStore recoveredStore = new JournaledQueueStore();
+		recoveredStore.init();
+		long recoveryElapsed = System.nanoTime()-start;
+		int recoveredSize = recoveredStore.size();
+		recoveredStore.close();
+
+		System.out.println("JournaledQueueStore recipients="+size+
+				" add="+(size*1000000000L/Math.max(1, addElapsed))+" recipients/s"+
+				" setSendingResult="+(results*1000000000L/Math.max(1, resultElapsed))+" records/s"+
+				" recovery="+(recoveryElapsed/1000000)+" ms (mails="+recoveredSize+")");
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+				file.delete();
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,187 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the journaled queue store recovery.</p>
+ *
+ */
+public class JournaledQueueStoreTest extends QueueStoreTestSupport<JournaledQueueStore> {
+
+	private String originalJournalDir;
+
+	@Override
+	protected void configure(Configuration configuration) {
+		originalJournalDir = configuration.getQueueStoreJournalDir();
+		configuration.setQueueStoreJournalDir(tempDir.getAbsolutePath());
+	}
+
+	@Override
+	protected void restoreConfiguration(Configuration configuration) {
+		configuration.setQueueStoreJournalDir(originalJournalDir);
+	}
+
+	@Override
+	protected JournaledQueueStore newStore() {
+		return new JournaledQueueStore();
+	}
+
+	@Test
+	public void stateIsRecoveredAfterRestart() throws Exception {
+		JournaledQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("d@example.com"));
+
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+		QueueInfo requeued = store.next();
+		requeued.setState(DeliveryState.QUEUED);
+		store.setSendingResult(requeued);
+		long nextAttempt = store.getNextAttempt("mail1", "b@example.com");
+		// This one is in progress while the store is closed.
+		Assert.assertEquals("c@example.com", store.next().getRecipient());
+		store.remove("mail2");
+		store.close();
+
+		JournaledQueueStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.size());
+		Assert.assertTrue(recoveredStore.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertEquals(nextAttempt, recoveredStore.getNextAttempt("mail1", "b@example.com"));
+		Assert.assertEquals(1, recoveredStore.getQueueInfo("mail1", "b@example.com").getAttemptCount());
+		Assert.assertTrue(recoveredStore.getQueueInfo("mail1", "c@example.com").hasState(DeliveryState.QUEUED));
+		Assert.assertNull(recoveredStore.getQueueInfo("mail2", "d@example.com"));
+		recoveredStore.close();
+
+		// Recovery wrote a snapshot and deleted the replayed journals
+		Assert.assertTrue(new File(tempDir, "queue.snapshot").exists());
+		JournaledQueueStore snapshotStore = createStore();
+		Assert.assertEquals(nextAttempt, snapshotStore.getNextAttempt("mail1", "b@example.com"));
+		snapshotStore.close();
+	}
+
+	@Test
+	public void addedBatchIsRecovered() throws Exception {
+		JournaledQueueStore store = createStore();
+		String[][] items = new String[][]{
+				{"mail1", "a@example.com"},
+				{"mail1", "b@example.com"},
+				{"mail2", "c@example.com"}
+		};
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+		for( String[] item : items )
+		{
+			QueueInfo qi = store.createQueueInfo();
+			qi.setMailid(item[0]);
+			qi.setExpiry(-1L);
+			qi.setRecipient(item[1]);
+			queueInfos.add(qi);
+		}
+		store.addAll(queueInfos);
+		Assert.assertEquals(2, store.size());
+		store.close();
+
+		JournaledQueueStore recoveredStore = createStore();
+		Assert.assertEquals(2, recoveredStore.size());
+		Assert.assertEquals(0, recoveredStore.getNextAttempt("mail1", "b@example.com"));
+		Assert.assertEquals(0, recoveredStore.getNextAttempt("mail2", "c@example.com"));
+		int count = 0;
+		while( recoveredStore.next() != null )
+			count++;
+		Assert.assertEquals(3, count);
+		recoveredStore.close();
+	}
+
+	@Test
+	public void tornBatchIsSkippedWhole() throws Exception {
+		JournaledQueueStore store = createStore();
+		store.add("mail0", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		List<QueueInfo> queueInfos = new ArrayList<QueueInfo>();
+		for( int i = 1; i <= 2; i++ )
+		{
+			QueueInfo qi = store.createQueueInfo();
+			qi.setMailid("mail"+i);
+			qi.setExpiry(-1L);
+			qi.setRecipient("a@example.com");
+			queueInfos.add(qi);
+		}
+		store.addAll(queueInfos);
+		store.close();
+
+		// Simulate a crash while the batch was written
+		for( File journal : tempDir.listFiles() )
+		{
+			if( journal.getName().endsWith(".journal") && 0 < journal.length() )
+			{
+				RandomAccessFile journalFile = new RandomAccessFile(journal, "rw");
+				journalFile.setLength(journal.length()-10);
+				journalFile.close();
+			}
+		}
+
+		JournaledQueueStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.size());
+		Assert.assertNull(recoveredStore.getQueueInfo("mail1", "a@example.com"));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void changesAfterSnapshotAreRecovered() throws Exception {
+		JournaledQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+		store.snapshot();
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("c@example.com"));
+		store.close();
+
+		// Only the journal started by the snapshot is kept
+		int journalCount = 0;
+		for( File journal : tempDir.listFiles() )
+		{
+			if( journal.getName().endsWith(".journal") )
+				journalCount++;
+		}
+		Assert.assertEquals(1, journalCount);
+
+		JournaledQueueStore recoveredStore = createStore();
+		Assert.assertEquals(2, recoveredStore.size());
+		Assert.assertTrue(recoveredStore.hasBeenRecipientHandled("mail1", sent.getRecipient()));
+		Assert.assertNotNull(recoveredStore.getQueueInfo("mail2", "c@example.com"));
+		recoveredStore.close();
+	}
+
+	@Test
+	public void brokenJournalTailIsSkipped() throws Exception {
+		JournaledQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		store.close();
+
+		// Simulate a record torn by a crash
+		File[] journals = tempDir.listFiles();
+		for( File journal : journals )
+		{
+			if( journal.getName().endsWith(".journal") && 0 < journal.length() )
+			{
+				FileOutputStream journalOut = new FileOutputStream(journal, true);
+				journalOut.write(new byte[]{0, 0, 0, 100, 2, 5});
+				journalOut.close();
+			}
+		}
+
+		JournaledQueueStore recoveredStore = createStore();
+		Assert.assertEquals(1, recoveredStore.size());
+		Assert.assertEquals("a@example.com", recoveredStore.next().getRecipient());
+		recoveredStore.close();
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Test of the memory mapped queue store.</p>
+ *
+ */
+public class MappedQueueStoreTest extends QueueStoreTestSupport<MappedQueueStore> {
+
+	private String originalQueueDir;
+
+	@Override
+	protected void configure(Configuration configuration) {
+		originalQueueDir = configuration.getQueueStoreMappedDir();
+		configuration.setQueueStoreMappedDir(tempDir.getAbsolutePath());
+	}
+
+	@Override
+	protected void restoreConfiguration(Configuration configuration) {
+		configuration.setQueueStoreMappedDir(originalQueueDir);
+	}
+
+	@Override
+	protected MappedQueueStore newStore() {
+		return new MappedQueueStore();
+	}
+
+	@Test
+	public void queueOperations() throws Exception {
+		MappedQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@other.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		Assert.assertEquals(2, store.size());
+
+		QueueInfo qi = store.next();
+		Assert.assertEquals("mail1", qi.getMailid());
+		List<QueueInfo> coRecipients = store.nextCoRecipients(qi, 10);
+		Assert.assertEquals(1, coRecipients.size());
+		Assert.assertEquals(qi.getRecipientDomain(), coRecipients.get(0).getRecipientDomain());
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertTrue(store.hasBeenRecipientHandled("mail1", qi.getRecipient()));
+		Assert.assertFalse(store.isCompleted("mail1"));
+
+		store.removeRecipient("a@example.com");
+		Assert.assertEquals(1, store.size());
+		Assert.assertTrue(store.isCompleted("mail2"));
+		store.remove("mail1");
+		Assert.assertEquals(0, store.size());
+		Assert.assertNull(store.next());
+		store.close();
+	}
+
+	@Test
+	public void pendingCountsFollowTheRecords() throws Exception {
+		MappedQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		// The first record of mail1 is removed, its count goes to the next one.
+		store.removeRecipient("a@example.com");
+		Assert.assertFalse(store.isCompleted("mail1"));
+		Assert.assertTrue(store.isCompleted("mail2"));
+
+		QueueInfo qi = store.next();
+		Assert.assertEquals("b@example.com", qi.getRecipient());
+		qi.setState(DeliveryState.FAILED);
+		store.setSendingResult(qi);
+		Assert.assertTrue(store.isCompleted("mail1"));
+		store.add("mail3", -1L, QueueStoreTestSupport.recipients("c@example.com"));
+		QueueInfo sent = store.next();
+		Assert.assertEquals("mail3", sent.getMailid());
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("b@example.com"));
+		Assert.assertFalse(store.isCompleted("mail1"));
+		List<String> mailids = store.clean();
+		Assert.assertEquals(1, mailids.size());
+		Assert.assertEquals("mail1", mailids.get(0));
+		Assert.assertEquals(1, store.size());
+		// Simulate a crash: the counts are rebuilt from the records.
+
+		MappedQueueStore rebuiltStore = createStore();
+		Assert.assertFalse(rebuiltStore.isCompleted("mail1"));
+		qi = rebuiltStore.next();
+		qi.setState(DeliveryState.SENT);
+		rebuiltStore.setSendingResult(qi);
+		Assert.assertTrue(rebuiltStore.isCompleted("mail1"));
+		rebuiltStore.close();
+	}
+
+	@Test
+	public void stateIsKeptAfterRestart() throws Exception {
+		MappedQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com", "c@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("d@example.com"));
+
+		QueueInfo sent = store.next();
+		sent.setState(DeliveryState.SENT);
+		store.setSendingResult(sent);
+		QueueInfo requeued = store.next();
+		requeued.setState(DeliveryState.QUEUED);
+		requeued.setResultInfo("Temporary failure");
+		store.setSendingResult(requeued);
+		long nextAttempt = store.getNextAttempt("mail1", "b@example.com");
+		// This one is in progress while the store is closed.
+		Assert.assertEquals("c@example.com", store.next().getRecipient());
+		store.remove("mail2");
+		store.close();
+
+		MappedQueueStore reopenedStore = createStore();
+		Assert.assertEquals(1, reopenedStore.size());
+		Assert.assertTrue(reopenedStore.hasBeenRecipientHandled("mail1", "a@example.com"));
+		Assert.assertEquals(nextAttempt, reopenedStore.getNextAttempt("mail1", "b@example.com"));
+		Assert.assertEquals(0, reopenedStore.getNextAttempt("mail1", "c@example.com"));
+		Assert.assertEquals(-1, reopenedStore.getNextAttempt("mail2", "d@example.com"));
+		QueueInfo qi = reopenedStore.next();
+		Assert.assertEquals("c@example.com", qi.getRecipient());
+		Assert.assertEquals(0, qi.getAttemptCount());
+		reopenedStore.close();
+	}
+
+	@Test
+	public void storeIsRebuiltIfNotClosed() throws Exception {
+		MappedQueueStore store = createStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("c@example.com"));
+		Assert.assertEquals("a@example.com", store.next().getRecipient());
+		store.remove("mail2");
+		// Simulate a crash: the store is not closed.
+
+		MappedQueueStore rebuiltStore = createStore();
+		Assert.assertEquals(1, rebuiltStore.size());
+		Assert.assertEquals("a@example.com", rebuiltStore.next().getRecipient());
+		Assert.assertEquals("b@example.com", rebuiltStore.next().getRecipient());
+		Assert.assertNull(rebuiltStore.next());
+		Assert.assertFalse(rebuiltStore.isCompleted("mail1"));
+		Assert.assertTrue(rebuiltStore.isCompleted("mail2"));
+		rebuiltStore.close();
+	}
+
+}
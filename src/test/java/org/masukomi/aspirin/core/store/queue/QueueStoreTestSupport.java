@@ -0,0 +1,91 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+/**
+ * <p>Shared fixture of the persistent queue store tests: an empty temporary
+ * directory for every test, which is set in the configuration, and the
+ * stores created by the test, which are closed after it. The recipient
+ * helper is used by the other queue store tests too.</p>
+ *
+ */
+abstract class QueueStoreTestSupport<S extends QueueStore & Closeable> {
+
+	protected File tempDir;
+	private final List<S> stores = new ArrayList<S>();
+
+	static Collection<InternetAddress> recipients(String... addresses) throws Exception {
+		Collection<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for( String address : addresses )
+			recipients.add(new InternetAddress(address));
+		return recipients;
+	}
+
+	/**
+	 * Point the store configuration into the temporary directory. The
+	 * original values are kept for {@link #restoreConfiguration(Configuration)}.
+	 */
+	protected abstract void configure(Configuration configuration);
+
+	protected abstract void restoreConfiguration(Configuration configuration);
+
+	protected abstract S newStore();
+
+	/**
+	 * @return A new initialized store, it is closed after the test.
+	 */
+	protected S createStore() {
+		S store = newStore();
+		store.init();
+		stores.add(store);
+		return store;
+	}
+
+	@Before
+	public void createTempDir() throws Exception {
+		tempDir = File.createTempFile("aspirin-queuestore", "");
+		tempDir.delete();
+		tempDir.mkdirs();
+		configure(AspirinInternal.getConfiguration());
+	}
+
+	@After
+	public void deleteTempDir() throws Exception {
+		try {
+			// The files are released before they are deleted.
+			for( S store : stores )
+				store.close();
+		} finally {
+			stores.clear();
+			restoreConfiguration(AspirinInternal.getConfiguration());
+			delete(tempDir);
+		}
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				if( file.isDirectory() )
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
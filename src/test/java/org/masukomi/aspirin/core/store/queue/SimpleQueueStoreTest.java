@@ -0,0 +1,74 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Test of the recipient counters of the simple queue store.</p>
+ *
+ */
+public class SimpleQueueStoreTest {
+
+	@Test
+	public void completionIsCounted() throws Exception {
+		SimpleQueueStore store = new SimpleQueueStore();
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com", "b@example.com"));
+		store.add("mail2", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+		Assert.assertFalse(store.isCompleted("mail1"));
+
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.SENT);
+		Assert.assertFalse(store.isCompleted(qi.getMailid()));
+		store.setSendingResult(qi);
+		DeliveryProgress progress = store.getProgress(qi.getMailid());
+		Assert.assertEquals(1, progress.getPending());
+		Assert.assertEquals(1, progress.getSent());
+
+		store.removeRecipient("a@example.com");
+		store.removeRecipient("b@example.com");
+		Assert.assertTrue(store.isCompleted("mail1"));
+		Assert.assertTrue(store.isCompleted("mail2"));
+		Assert.assertEquals(0, store.getProgress("mail2").getTotal());
+	}
+
+	@Test
+	public void heldMailIsCompletedByTheRelease() throws Exception {
+		SimpleQueueStore store = new SimpleQueueStore();
+		store.holdCompletion("mail1");
+		Assert.assertFalse(store.isCompleted("mail1"));
+		store.add("mail1", -1L, QueueStoreTestSupport.recipients("a@example.com"));
+
+		QueueInfo qi = store.next();
+		qi.setState(DeliveryState.SENT);
+		store.setSendingResult(qi);
+		Assert.assertFalse(store.isCompleted("mail1"));
+		Assert.assertEquals(0, store.getProgress("mail1").getPending());
+
+		Assert.assertTrue(store.releaseCompletion("mail1"));
+		Assert.assertTrue(store.isCompleted("mail1"));
+		Assert.assertFalse(store.releaseCompletion("mail1"));
+	}
+
+	@Test
+	public void coRecipientsAreGroupedByMailAndDomain() throws Exception {
+		SimpleQueueStore store = new SimpleQueueStore();
+		store.add("mail-a", -1L, QueueStoreTestSupport.recipients("a@b.com", "b@b.com", "c@B.com", "d@other.com"));
+		store.add("mail", -1L, QueueStoreTestSupport.recipients("e@a-b.com"));
+
+		QueueInfo first = store.next();
+		while( !"mail-a".equals(first.getMailid()) || !"b.com".equals(first.getRecipientDomain()) )
+			first = store.next();
+		List<QueueInfo> coRecipients = store.nextCoRecipients(first, 10);
+		Assert.assertEquals(2, coRecipients.size());
+		for( QueueInfo coQi : coRecipients )
+		{
+			Assert.assertEquals("mail-a", coQi.getMailid());
+			Assert.assertEquals("b.com", coQi.getRecipientDomain());
+			Assert.assertTrue(coQi.hasState(DeliveryState.IN_PROGRESS));
+		}
+		Assert.assertTrue(store.nextCoRecipients(first, 10).isEmpty());
+	}
+
+}